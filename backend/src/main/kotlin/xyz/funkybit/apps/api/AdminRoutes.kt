@@ -36,6 +36,7 @@ import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.SymbolEntity
 import xyz.funkybit.core.model.db.WalletEntity
 import xyz.funkybit.core.sequencer.SequencerClient
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.utils.IconUtils.resolveSymbolUrl
 import xyz.funkybit.core.utils.fromFundamentalUnits
 import java.math.BigInteger
@@ -107,7 +108,9 @@ class AdminRoutes(
                         withdrawalFee = BigInteger.ZERO,
                         description = payload.description,
                         iconUrl = url,
-                    )
+                    ).also {
+                        ReferenceDataCache.notifyChanged()
+                    }
                 }
                 sequencerClient.setWithdrawalFees(
                     listOf(
@@ -118,6 +121,7 @@ class AdminRoutes(
                         try {
                             transaction {
                                 symbol.delete()
+                                ReferenceDataCache.notifyChanged()
                             }
                         } catch (e: Exception) {
                             throw RequestProcessingError("Unable to set withdrawal fees in sequencer: ${response.error}, and could not clean up symbol in DB: ${e.message}")
@@ -206,6 +210,7 @@ class AdminRoutes(
                         symbol.iconUrl = url
                         symbol.updatedAt = Clock.System.now()
                         symbol.updatedBy = request.principal.address.toString()
+                        ReferenceDataCache.notifyChanged()
                         originalData
                     }
                     if (originalData.withdrawalFee != payload.withdrawalFee) {
@@ -221,6 +226,7 @@ class AdminRoutes(
                                         symbol.description = originalData.description
                                         symbol.addToWallets = originalData.addToWallets
                                         symbol.iconUrl = originalData.iconUrl
+                                        ReferenceDataCache.notifyChanged()
                                     }
                                 } catch (e: Exception) {
                                     throw RequestProcessingError("Unable to set withdrawal fees in sequencer: ${response.error}, and could not revert symbol in DB: ${e.message}")
@@ -268,7 +274,9 @@ class AdminRoutes(
                         ),
                         baseSymbol,
                         quoteSymbol,
-                    )
+                    ).also {
+                        ReferenceDataCache.notifyChanged()
+                    }
                 }
                 sequencerClient.createMarket(
                     marketId = market.id.value.value,
@@ -279,7 +287,10 @@ class AdminRoutes(
                 ).let { response ->
                     if (response.hasError()) {
                         try {
-                            transaction { market.delete() }
+                            transaction {
+                                market.delete()
+                                ReferenceDataCache.notifyChanged()
+                            }
                         } catch (e: Exception) {
                             throw RequestProcessingError("Unable to create market in sequencer: ${response.error}, and could not clean up market in DB: ${e.message}")
                         }
@@ -22,9 +22,7 @@ import org.http4k.format.Argo
 import org.http4k.routing.bind
 import org.http4k.routing.routes
 import org.http4k.routing.websockets
-import org.http4k.server.Netty
 import org.http4k.server.PolyHandler
-import org.http4k.server.ServerConfig
 import org.http4k.server.asServer
 import org.slf4j.MDC
 import xyz.funkybit.apps.api.middleware.HttpTransactionLogger
@@ -34,10 +32,10 @@ import xyz.funkybit.apps.api.services.ExchangeApiService
 import xyz.funkybit.core.db.DbConfig
 import xyz.funkybit.core.sequencer.SequencerClient
 import xyz.funkybit.core.services.LinkedSignerService
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.telemetry.openTelemetry
 import xyz.funkybit.core.utils.TestnetChallengeUtils
 import xyz.funkybit.core.websocket.Broadcaster
-import java.time.Duration.ofSeconds
 
 data class ApiAppConfig(
     val httpPort: Int = System.getenv("HTTP_PORT")?.toIntOrNull() ?: 9000,
@@ -189,12 +187,13 @@ class ApiApp(config: ApiAppConfig = ApiAppConfig()) : BaseApp(config.dbConfig) {
     private val server = PolyHandler(
         httpHandler,
         websockets(websocketApi.connect()),
-    ).asServer(Netty(config.httpPort, ServerConfig.StopMode.Graceful(ofSeconds(1))))
+    ).asServer(NettyWithHandlerPool(config.httpPort))
 
     override fun start() {
         logger.info { "Starting" }
         super.start()
         LinkedSignerService.start(db)
+        ReferenceDataCache.start(db)
         server.start()
         broadcaster.start()
         logger.info { "Started" }
@@ -205,6 +204,7 @@ class ApiApp(config: ApiAppConfig = ApiAppConfig()) : BaseApp(config.dbConfig) {
         super.stop()
         broadcaster.stop()
         server.stop()
+        ReferenceDataCache.stop()
         LinkedSignerService.stop()
         logger.info { "Stopped" }
     }
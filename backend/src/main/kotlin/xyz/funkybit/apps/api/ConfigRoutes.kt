@@ -13,7 +13,6 @@ import org.http4k.core.with
 import org.http4k.format.KotlinxSerialization.auto
 import org.http4k.lens.Path
 import org.http4k.lens.string
-import org.jetbrains.exposed.sql.SortOrder
 import org.jetbrains.exposed.sql.transactions.transaction
 import xyz.funkybit.apps.api.middleware.principal
 import xyz.funkybit.apps.api.middleware.signedTokenSecurity
@@ -30,17 +29,16 @@ import xyz.funkybit.apps.api.model.TestnetChallengeDepositLimit
 import xyz.funkybit.apps.api.model.toSymbolInfo
 import xyz.funkybit.core.model.EvmAddress
 import xyz.funkybit.core.model.Symbol
-import xyz.funkybit.core.model.db.ChainEntity
 import xyz.funkybit.core.model.db.ChainId
-import xyz.funkybit.core.model.db.ChainTable
-import xyz.funkybit.core.model.db.DeployedSmartContractEntity
 import xyz.funkybit.core.model.db.MarketEntity
 import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.NetworkType
 import xyz.funkybit.core.model.db.SymbolEntity
 import xyz.funkybit.core.model.db.TestnetChallengeStatus
+import xyz.funkybit.core.model.db.WalletEntity
 import xyz.funkybit.core.model.db.pointsBalances
 import xyz.funkybit.core.model.db.sum
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.utils.TestnetChallengeUtils
 import java.math.BigDecimal
 import java.math.BigInteger
@@ -114,53 +112,46 @@ class ConfigRoutes(private val faucetMode: FaucetMode) {
                     ),
             )
         } bindContract Method.GET to { request ->
-            transaction {
-                Response(Status.OK).with(
-                    responseBody of
-                        ConfigurationApiResponse(
-                            chains = ChainEntity.all().orderBy(ChainTable.id to SortOrder.ASC).map { chain ->
-                                Chain(
-                                    id = chain.id.value,
-                                    name = chain.name,
-                                    contracts = DeployedSmartContractEntity.validContracts(chain.id.value).map {
-                                        DeployedContract(
-                                            name = it.name,
-                                            address = it.proxyAddress,
-                                        )
-                                    },
-                                    symbols = SymbolEntity.forChain(chain.id.value).map {
-                                        SymbolInfo(
-                                            name = it.name,
-                                            description = it.description,
-                                            contractAddress = it.contractAddress,
-                                            decimals = it.decimals,
-                                            faucetSupported = it.faucetSupported(faucetMode),
-                                            iconUrl = it.iconUrl,
-                                            withdrawalFee = it.withdrawalFee,
-                                        )
-                                    },
-                                    jsonRpcUrl = chain.jsonRpcUrl,
-                                    blockExplorerNetName = chain.blockExplorerNetName,
-                                    blockExplorerUrl = chain.blockExplorerUrl,
-                                    networkType = chain.networkType,
-                                )
-                            },
-                            markets = MarketEntity.all().map { market ->
-                                Market(
-                                    id = market.id.value,
-                                    baseSymbol = Symbol(market.baseSymbol.name),
-                                    baseDecimals = market.baseSymbol.decimals.toInt(),
-                                    quoteSymbol = Symbol(market.quoteSymbol.name),
-                                    quoteDecimals = market.quoteSymbol.decimals.toInt(),
-                                    tickSize = market.tickSize,
-                                    lastPrice = market.lastPrice,
-                                    minFee = market.minFee,
-                                )
-                            }.sortedWith(compareBy({ it.baseSymbol.value }, { it.quoteSymbol.value })),
-                            feeRates = FeeRates(xyz.funkybit.core.model.db.FeeRates.fetch()),
-                        ),
-                )
-            }
+            val referenceData = ReferenceDataCache.current()
+            // last prices change with every trade, so they are not taken from the reference data
+            val lastPrices = transaction { MarketEntity.lastPrices() }
+
+            Response(Status.OK).with(
+                responseBody of
+                    ConfigurationApiResponse(
+                        chains = referenceData.chains.map { chain ->
+                            Chain(
+                                id = chain.id.value,
+                                name = chain.name,
+                                contracts = referenceData.validContractsByChain[chain.id.value].orEmpty().map {
+                                    DeployedContract(
+                                        name = it.name,
+                                        address = it.proxyAddress,
+                                    )
+                                },
+                                symbols = referenceData.symbols.filter { it.chainId.value == chain.id.value }.map {
+                                    SymbolInfo(
+                                        name = it.name,
+                                        description = it.description,
+                                        contractAddress = it.contractAddress,
+                                        decimals = it.decimals,
+                                        faucetSupported = it.faucetSupported(faucetMode),
+                                        iconUrl = it.iconUrl,
+                                        withdrawalFee = it.withdrawalFee,
+                                    )
+                                },
+                                jsonRpcUrl = chain.jsonRpcUrl,
+                                blockExplorerNetName = chain.blockExplorerNetName,
+                                blockExplorerUrl = chain.blockExplorerUrl,
+                                networkType = chain.networkType,
+                            )
+                        },
+                        markets = referenceData.markets.map { market ->
+                            lastPrices[market.id]?.let { market.copy(lastPrice = it) } ?: market
+                        }.sortedWith(compareBy({ it.baseSymbol.value }, { it.quoteSymbol.value })),
+                        feeRates = FeeRates(referenceData.feeRates),
+                    ),
+            )
         }
     }
 
@@ -210,7 +201,8 @@ class ConfigRoutes(private val faucetMode: FaucetMode) {
                 Response(Status.OK).with(
                     responseBody of
                         AccountConfigurationApiResponse(
-                            role = if (wallet.isAdmin) Role.Admin else Role.User,
+                            // admin status is not taken from the principal, which can be cached
+                            role = if (WalletEntity.isAdmin(wallet.id)) Role.Admin else Role.User,
                             newSymbols = SymbolEntity.symbolsToAddToWallet(wallet.address).map {
                                 it.toSymbolInfo(faucetMode)
                             },
@@ -245,7 +237,8 @@ class ConfigRoutes(private val faucetMode: FaucetMode) {
         } bindContract Method.POST to { symbolName ->
             { request ->
                 transaction {
-                    val wallet = request.principal
+                    // the principal can be shared by concurrent requests of the same wallet, so update a copy
+                    val wallet = WalletEntity[request.principal.id]
                     if (!wallet.addedSymbols.contains(symbolName)) {
                         wallet.addedSymbols += symbolName
                     }
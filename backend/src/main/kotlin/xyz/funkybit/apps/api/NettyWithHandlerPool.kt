@@ -0,0 +1,137 @@
+package xyz.funkybit.apps.api
+
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelFuture
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.ChannelOption
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.handler.codec.http.HttpObjectAggregator
+import io.netty.handler.codec.http.HttpServerCodec
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler
+import io.netty.handler.stream.ChunkedWriteHandler
+import io.netty.util.concurrent.DefaultEventExecutorGroup
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.http4k.core.HttpHandler
+import org.http4k.server.Http4kChannelHandler
+import org.http4k.server.Http4kServer
+import org.http4k.server.PolyServerConfig
+import org.http4k.server.ServerConfig
+import org.http4k.server.WebSocketServerHandler
+import org.http4k.sse.SseHandler
+import org.http4k.websocket.Websocket
+import org.http4k.websocket.WsHandler
+import org.http4k.websocket.WsResponse
+import xyz.funkybit.core.websocket.FlowControlledWebsocket
+import java.net.InetSocketAddress
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+// Same pipeline as http4k's Netty server config, except that http handlers run on a pool of handler threads rather
+// than on the Netty event loop. Handlers block on the database and on the sequencer, and on an event loop thread
+// that would also hold up every other connection served by that thread. With handlers off the event loop, the
+// number of requests in flight is bounded by the size of the handler pool instead of the number of event loop
+// threads. Websockets are handed to the handler as FlowControlledWebsocket, so that messages for a slow client can
+// be held back before they are queued on its channel.
+class NettyWithHandlerPool(
+    private val port: Int,
+    private val handlerThreads: Int = System.getenv("HTTP_HANDLER_THREADS")?.toIntOrNull() ?: 256,
+    override val stopMode: ServerConfig.StopMode = ServerConfig.StopMode.Graceful(Duration.ofSeconds(1)),
+) : PolyServerConfig {
+    override fun toServer(http: HttpHandler?, ws: WsHandler?, sse: SseHandler?): Http4kServer = object : Http4kServer {
+        init {
+            if (sse != null) throw UnsupportedOperationException("Netty does not support sse")
+        }
+
+        private val masterGroup = NioEventLoopGroup()
+        private val workerGroup = NioEventLoopGroup()
+        private val handlerGroup = DefaultEventExecutorGroup(
+            handlerThreads,
+            BasicThreadFactory.Builder().namingPattern("http-handler-%d").daemon(true).build(),
+        )
+        private var closeFuture: ChannelFuture? = null
+        private lateinit var address: InetSocketAddress
+
+        override fun start(): Http4kServer = apply {
+            val bootstrap = ServerBootstrap()
+            bootstrap.group(masterGroup, workerGroup)
+                .channel(NioServerSocketChannel::class.java)
+                .childHandler(
+                    object : ChannelInitializer<SocketChannel>() {
+                        override fun initChannel(ch: SocketChannel) {
+                            ch.pipeline().addLast("codec", HttpServerCodec())
+                            ch.pipeline().addLast("keepAlive", HttpServerKeepAliveHandler())
+                            ch.pipeline().addLast("aggregator", HttpObjectAggregator(Int.MAX_VALUE))
+                            if (ws != null) {
+                                val writability = WritabilityListener()
+                                ch.pipeline().addLast("writability", writability)
+                                ch.pipeline().addLast("websocket", WebSocketServerHandler(ws.flowControlled(ch, writability)))
+                            }
+                            ch.pipeline().addLast("streamer", ChunkedWriteHandler())
+                            if (http != null) ch.pipeline().addLast(handlerGroup, "httpHandler", Http4kChannelHandler(http))
+                        }
+                    },
+                )
+                .option(ChannelOption.SO_BACKLOG, 1000)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+
+            val channel = bootstrap.bind(port).sync().channel()
+            address = channel.localAddress() as InetSocketAddress
+            closeFuture = channel.closeFuture()
+        }
+
+        override fun stop(): Http4kServer = apply {
+            closeFuture?.cancel(false)
+            val timeoutMs = when (val mode = stopMode) {
+                is ServerConfig.StopMode.Graceful -> mode.timeout.toMillis()
+                else -> 0L
+            }
+            listOf(masterGroup, workerGroup, handlerGroup)
+                .map { it.shutdownGracefully(0, timeoutMs, TimeUnit.MILLISECONDS) }
+                .forEach { it.awaitUninterruptibly() }
+        }
+
+        override fun port(): Int = if (port > 0) port else address.port
+    }
+}
+
+// Websocket sends on Netty return as soon as the frame is queued on the channel, so the websockets handed to the
+// handler also report whether the channel is writable, which Netty clears while more than the channel's high water
+// mark of outbound bytes is waiting for the client to read them.
+private fun WsHandler.flowControlled(channel: Channel, writability: WritabilityListener): WsHandler = { request ->
+    val response = this(request)
+    WsResponse { websocket -> response.consumer(NettyWebsocket(websocket, channel, writability)) }
+}
+
+private class NettyWebsocket(
+    websocket: Websocket,
+    private val channel: Channel,
+    private val writability: WritabilityListener,
+) : FlowControlledWebsocket, Websocket by websocket {
+    override val isWritable: Boolean
+        get() = channel.isWritable
+
+    override fun onWritable(fn: () -> Unit) {
+        writability.onWritable(fn)
+    }
+}
+
+private class WritabilityListener : ChannelInboundHandlerAdapter() {
+    private val listeners = CopyOnWriteArrayList<() -> Unit>()
+
+    fun onWritable(fn: () -> Unit) {
+        listeners.add(fn)
+    }
+
+    override fun channelWritabilityChanged(ctx: ChannelHandlerContext) {
+        if (ctx.channel().isWritable) {
+            listeners.forEach { it() }
+        }
+        ctx.fireChannelWritabilityChanged()
+    }
+}
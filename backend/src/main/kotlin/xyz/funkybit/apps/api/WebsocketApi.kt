@@ -11,6 +11,7 @@ import org.http4k.websocket.WsResponse
 import org.http4k.websocket.WsStatus
 import org.jetbrains.exposed.sql.transactions.transaction
 import xyz.funkybit.apps.api.middleware.AuthResult
+import xyz.funkybit.apps.api.middleware.authTokenCache
 import xyz.funkybit.apps.api.middleware.validateAuthToken
 import xyz.funkybit.apps.api.model.websocket.IncomingWSMessage
 import xyz.funkybit.core.model.db.WalletEntity
@@ -19,6 +20,7 @@ import xyz.funkybit.core.websocket.ConnectedClient
 import xyz.funkybit.core.websocket.InvalidSubscriptionException
 
 val wsUnauthorized = WsStatus(code = 3000, description = "Unauthorized")
+val wsLagging = WsStatus(code = 3001, description = "Lagging")
 
 class WebsocketApi(private val broadcaster: Broadcaster) {
     private val logger = KotlinLogging.logger {}
@@ -34,7 +36,9 @@ class WebsocketApi(private val broadcaster: Broadcaster) {
                     null -> ConnectedClient(websocket, null, Instant.DISTANT_FUTURE)
                     else -> when (val result = validateAuthToken(auth)) {
                         is AuthResult.Success -> {
-                            val wallet = transaction { WalletEntity.getOrCreateWithUser(result.address).first }
+                            val wallet = authTokenCache.getOrLoadWallet(result.address) {
+                                transaction { WalletEntity.getOrCreateWithUser(result.address).first }
+                            }
                             ConnectedClient(websocket, wallet, result.expiresAt)
                         }
                         else -> {
@@ -51,6 +55,7 @@ class WebsocketApi(private val broadcaster: Broadcaster) {
 
                 connectedClient.onClose { status ->
                     logger.debug { "Websocket client disconnected, status: $status" }
+                    connectedClient.disconnected()
                     broadcaster.unsubscribe(connectedClient)
                 }
 
@@ -0,0 +1,82 @@
+package xyz.funkybit.apps.api.middleware
+
+import kotlinx.datetime.Clock
+import kotlinx.datetime.Instant
+import xyz.funkybit.core.model.Address
+import xyz.funkybit.core.model.db.WalletEntity
+import xyz.funkybit.core.utils.sha256
+import xyz.funkybit.core.utils.toHex
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.minutes
+
+// Auth tokens whose signature has been verified, keyed by a digest of the token, so that signature recovery runs
+// once per token rather than once per request. A token signed by a linked signer is only reused while the wallet
+// still has the linked signer it was verified with. The wallets tokens resolve to are kept for a shorter time, so
+// that changes to them are eventually picked up. Privileges such as admin status must not be read from them.
+class AuthTokenCache(
+    private val maxSize: Int = System.getenv("AUTH_TOKEN_CACHE_SIZE")?.toIntOrNull() ?: 10_000,
+    private val walletTtl: Duration = System.getenv("AUTH_TOKEN_CACHE_WALLET_TTL")?.let { Duration.parse(it) } ?: 1.minutes,
+) {
+    data class VerifiedToken(
+        val result: AuthResult.Success,
+        val linkedSigner: Address?,
+    )
+
+    private class CachedWallet(
+        val wallet: WalletEntity,
+        val expiresAt: Instant,
+    )
+
+    private val tokens = lruMap<String, VerifiedToken>()
+    private val wallets = lruMap<Address, CachedWallet>()
+
+    fun getToken(token: String, now: Instant = Clock.System.now()): VerifiedToken? {
+        val key = digest(token)
+        return synchronized(tokens) {
+            tokens[key]?.let { verified ->
+                if (verified.result.expiresAt > now) {
+                    verified
+                } else {
+                    tokens.remove(key)
+                    null
+                }
+            }
+        }
+    }
+
+    fun putToken(token: String, verified: VerifiedToken) {
+        val key = digest(token)
+        synchronized(tokens) {
+            tokens[key] = verified
+        }
+    }
+
+    fun getOrLoadWallet(address: Address, now: Instant = Clock.System.now(), load: () -> WalletEntity): WalletEntity {
+        val key = address.canonicalize()
+        synchronized(wallets) {
+            wallets[key]?.let { cached ->
+                if (cached.expiresAt > now) return cached.wallet
+                wallets.remove(key)
+            }
+        }
+
+        return load().also { wallet ->
+            synchronized(wallets) {
+                wallets[key] = CachedWallet(wallet, now + walletTtl)
+            }
+        }
+    }
+
+    fun clear() {
+        synchronized(tokens) { tokens.clear() }
+        synchronized(wallets) { wallets.clear() }
+    }
+
+    private fun digest(token: String): String =
+        sha256(token.toByteArray()).toHex(false)
+
+    private fun <K, V> lruMap(): LinkedHashMap<K, V> =
+        object : LinkedHashMap<K, V>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>): Boolean = size > maxSize
+        }
+}
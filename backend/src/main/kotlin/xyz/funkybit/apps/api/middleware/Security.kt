@@ -55,23 +55,25 @@ val signedTokenSecurity = object : Security {
     private fun wrapWithAuthentication(httpHandler: HttpHandler): HttpHandler = { request ->
         when (val authResult = authenticate(request)) {
             is AuthResult.Success -> {
-                val wallet = transaction {
-                    WalletEntity.getOrCreateWithUser(authResult.address).also { (wallet, created) ->
-                        if (created) {
-                            runBlocking {
-                                sequencerClient.authorizeWallet(
-                                    authorizedWallet = wallet,
-                                    ownershipProof = SequencerClient.SignedMessage(
-                                        message = EIP712Helper.structuredDataAsJson(authResult.message),
-                                        signature = authResult.signature,
-                                    ),
-                                    // first wallet of the user
-                                    authorizationProof = null,
-                                )
+                val wallet = authTokenCache.getOrLoadWallet(authResult.address) {
+                    transaction {
+                        WalletEntity.getOrCreateWithUser(authResult.address).also { (wallet, created) ->
+                            if (created) {
+                                runBlocking {
+                                    sequencerClient.authorizeWallet(
+                                        authorizedWallet = wallet,
+                                        ownershipProof = SequencerClient.SignedMessage(
+                                            message = EIP712Helper.structuredDataAsJson(authResult.message),
+                                            signature = authResult.signature,
+                                        ),
+                                        // first wallet of the user
+                                        authorizationProof = null,
+                                    )
+                                }
                             }
                         }
-                    }
-                }.first
+                    }.first
+                }
 
                 val requestWithPrincipal = request.with(
                     principalRequestContextKey of wallet,
@@ -113,7 +115,9 @@ val adminSecurity = object : Security {
     override val filter = Filter { next -> wrapWithAdminCheck(next) }
 
     private fun wrapWithAdminCheck(httpHandler: HttpHandler): HttpHandler = { request ->
-        if (request.principal.isAdmin) {
+        // read from the database rather than from the principal, which can be cached, so that a removed admin is
+        // rejected on every node from the next request on
+        if (transaction { WalletEntity.isAdmin(request.principal.id) }) {
             httpHandler(request)
         } else {
             unauthorizedResponse("Access denied")
@@ -131,7 +135,15 @@ private fun authenticate(request: Request): AuthResult {
     return validateAuthToken(authHeader.removePrefix(AUTHORIZATION_SCHEME_PREFIX))
 }
 
+val authTokenCache = AuthTokenCache()
+
 fun validateAuthToken(token: String): AuthResult {
+    authTokenCache.getToken(token)?.let { verified ->
+        if (verified.linkedSigner == linkedSigner(verified.result.message)) {
+            return verified.result
+        }
+    }
+
     val message = token.substringBefore('.')
     val signature = token.substringAfter('.')
 
@@ -141,13 +153,16 @@ fun validateAuthToken(token: String): AuthResult {
         return authFailure("Token is expired or not valid yet")
     }
 
-    if (validateSignature(signInMessage, signature)) {
+    val linkedSigner = linkedSigner(signInMessage)
+    if (validateSignature(signInMessage, signature, linkedSigner)) {
         return AuthResult.Success(
             address = Address.auto(signInMessage.address),
             expiresAt = endOfValidityInterval(signInMessage),
             message = signInMessage,
             signature = signature,
-        )
+        ).also {
+            authTokenCache.putToken(token, AuthTokenCache.VerifiedToken(it, linkedSigner))
+        }
     }
 
     return authFailure("Invalid signature")
@@ -172,7 +187,17 @@ private fun validateExpiry(signInMessage: SignInMessage): Boolean {
 private fun endOfValidityInterval(signInMessage: SignInMessage): Instant =
     Instant.parse(signInMessage.timestamp) + AUTH_TOKEN_VALIDITY_INTERVAL
 
-private fun validateSignature(signInMessage: SignInMessage, signature: String): Boolean {
+// TODO - support bitcoin linked signers
+private fun linkedSigner(signInMessage: SignInMessage): EvmAddress? =
+    if (signInMessage.chainId.value == 0UL) {
+        null
+    } else {
+        runCatching {
+            LinkedSignerService.getLinkedSigner(EvmAddress.canonicalize(signInMessage.address), signInMessage.chainId) as? EvmAddress
+        }.getOrNull()
+    }
+
+private fun validateSignature(signInMessage: SignInMessage, signature: String, linkedSignerAddress: EvmAddress?): Boolean {
     return runCatching {
         if (signInMessage.chainId.value == 0UL) {
             val bitcoinAddress = BitcoinAddress.canonicalize(signInMessage.address)
@@ -180,8 +205,6 @@ private fun validateSignature(signInMessage: SignInMessage, signature: String):
             BitcoinSignatureVerification.verifyMessage(bitcoinAddress, signature.replace(" ", "+"), bitcoinSignInMessage)
         } else {
             val walletAddress = EvmAddress.canonicalize(signInMessage.address)
-            // TODO - support bitcoin linked signers
-            val linkedSignerAddress = LinkedSignerService.getLinkedSigner(walletAddress, signInMessage.chainId) as? EvmAddress
             ECHelper.isValidSignature(
                 messageHash = EIP712Helper.computeHash(signInMessage),
                 signature = signature.toEvmSignature(),
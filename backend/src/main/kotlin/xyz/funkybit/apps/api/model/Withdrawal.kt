@@ -41,6 +41,7 @@ data class Withdrawal(
                 symbol = Symbol(entity.symbol.name),
                 amount = entity.actualAmount ?: entity.amount,
                 status = when (entity.status) {
+                    WithdrawalStatus.SentToSequencer -> WithdrawalStatus.Pending
                     WithdrawalStatus.RollingBack, WithdrawalStatus.PendingRollback -> WithdrawalStatus.Settling
                     else -> entity.status
                 },
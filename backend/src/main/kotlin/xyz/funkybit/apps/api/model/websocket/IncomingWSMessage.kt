@@ -4,9 +4,9 @@ import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.json.JsonClassDiscriminator
-import xyz.funkybit.core.model.db.MarketEntity
 import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.OHLCDuration
+import xyz.funkybit.core.services.ReferenceDataCache
 
 @OptIn(ExperimentalSerializationApi::class)
 @JsonClassDiscriminator("type")
@@ -34,19 +34,19 @@ sealed class SubscriptionTopic {
     @Serializable
     @SerialName("OrderBook")
     data class OrderBook(val marketId: MarketId) : SubscriptionTopic() {
-        override fun validate() = MarketEntity.findById(marketId) != null
+        override fun validate() = ReferenceDataCache.market(marketId) != null
     }
 
     @Serializable
     @SerialName("IncrementalOrderBook")
     data class IncrementalOrderBook(val marketId: MarketId) : SubscriptionTopic() {
-        override fun validate() = MarketEntity.findById(marketId) != null
+        override fun validate() = ReferenceDataCache.market(marketId) != null
     }
 
     @Serializable
     @SerialName("Prices")
     data class Prices(val marketId: MarketId, val duration: OHLCDuration) : SubscriptionTopic() {
-        override fun validate() = MarketEntity.findById(marketId) != null
+        override fun validate() = ReferenceDataCache.market(marketId) != null
     }
 
     @Serializable
@@ -56,7 +56,7 @@ sealed class SubscriptionTopic {
     @Serializable
     @SerialName("MarketTrades")
     data class MarketTrades(val marketId: MarketId) : SubscriptionTopic() {
-        override fun validate() = MarketEntity.findById(marketId) != null
+        override fun validate() = ReferenceDataCache.market(marketId) != null
     }
 
     @Serializable
@@ -1,6 +1,8 @@
 package xyz.funkybit.apps.api.services
 
 import io.github.oshai.kotlinlogging.KotlinLogging
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.runBlocking
 import kotlinx.datetime.Instant
 import org.jetbrains.exposed.dao.id.EntityID
@@ -32,10 +34,8 @@ import xyz.funkybit.core.model.EvmAddress
 import xyz.funkybit.core.model.EvmSignature
 import xyz.funkybit.core.model.Symbol
 import xyz.funkybit.core.model.db.ChainId
-import xyz.funkybit.core.model.db.DeployedSmartContractEntity
 import xyz.funkybit.core.model.db.DepositEntity
 import xyz.funkybit.core.model.db.DepositException
-import xyz.funkybit.core.model.db.MarketEntity
 import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.OrderEntity
 import xyz.funkybit.core.model.db.OrderId
@@ -50,6 +50,7 @@ import xyz.funkybit.core.model.evm.TokenAddressAndChain
 import xyz.funkybit.core.sequencer.SequencerClient
 import xyz.funkybit.core.sequencer.toSequencerId
 import xyz.funkybit.core.services.LinkedSignerService
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.utils.TestnetChallengeUtils
 import xyz.funkybit.core.utils.bitcoin.BitcoinSignatureVerification
 import xyz.funkybit.core.utils.bitcoin.fromSatoshi
@@ -66,8 +67,6 @@ import java.math.BigInteger
 class ExchangeApiService(
     private val sequencerClient: SequencerClient,
 ) {
-    private val symbolMap = mutableMapOf<Symbol, SymbolEntity>()
-    private val marketMap = mutableMapOf<MarketId, Market>()
     private val logger = KotlinLogging.logger {}
 
     fun addOrder(
@@ -437,51 +436,40 @@ class ExchangeApiService(
                 .map { Pair(it, it.wallet) }
         }
         if (openOrders.isNotEmpty()) {
+            // the cancels of the different markets and wallets are independent, so they are sent concurrently
             runBlocking {
                 openOrders
                     .groupBy(
                         keySelector = { (order, wallet) -> Pair(order.marketGuid, wallet.address) },
                         valueTransform = { (order, _) -> order },
                     )
-                    .forEach { entry ->
+                    .map { entry ->
                         val orderIds = entry.value.map { it.guid.value }
                         val (marketGuid, walletAddress) = entry.key
 
-                        sequencerClient.cancelOrders(
-                            marketGuid.value,
-                            userId.value.toSequencerId(),
-                            walletAddress.toSequencerId(),
-                            orderIds,
-                            cancelAll = true,
-                        )
+                        async {
+                            sequencerClient.cancelOrders(
+                                marketGuid.value,
+                                userId.value.toSequencerId(),
+                                walletAddress.toSequencerId(),
+                                orderIds,
+                                cancelAll = true,
+                            )
+                        }
                     }
+                    .awaitAll()
             }
         }
     }
 
     private fun getSymbolEntity(asset: Symbol): SymbolEntity {
-        return symbolMap.getOrPut(asset) {
-            transaction { SymbolEntity.forName(asset.value) }
-        }
+        return ReferenceDataCache.symbol(asset)
+            ?: throw RequestProcessingError("Unknown symbol ${asset.value}")
     }
 
     private fun getMarket(marketId: MarketId): Market {
-        return marketMap.getOrPut(marketId) {
-            transaction {
-                MarketEntity[marketId].let {
-                    Market(
-                        it.id.value,
-                        baseSymbol = Symbol(it.baseSymbol.name),
-                        baseDecimals = it.baseSymbol.decimals.toInt(),
-                        quoteSymbol = Symbol(it.quoteSymbol.name),
-                        quoteDecimals = it.quoteSymbol.decimals.toInt(),
-                        tickSize = it.tickSize,
-                        lastPrice = it.lastPrice,
-                        minFee = it.minFee,
-                    )
-                }
-            }
-        }
+        return ReferenceDataCache.market(marketId)
+            ?: throw RequestProcessingError("Unknown market ${marketId.value}")
     }
 
     private fun toSequencerOrderType(isMarketOrder: Boolean, side: OrderSide): xyz.funkybit.sequencer.proto.Order.Type {
@@ -512,14 +500,9 @@ class ExchangeApiService(
         }
     }
 
-    private val exchangeContractsByChain = mutableMapOf<ChainId, Address>()
-
     private fun verifyEIP712Signature(walletAddress: EvmAddress, tx: EIP712Transaction, verifyingChainId: ChainId) {
-        val verifyingContract = exchangeContractsByChain[verifyingChainId] ?: transaction {
-            DeployedSmartContractEntity.latestExchangeContractAddress(verifyingChainId)?.also {
-                exchangeContractsByChain[verifyingChainId] = it
-            } ?: throw RequestProcessingError("Exchange contract not found for $verifyingChainId")
-        }
+        val verifyingContract = ReferenceDataCache.exchangeContract(verifyingChainId)
+            ?: throw RequestProcessingError("Exchange contract not found for $verifyingChainId")
 
         runCatching {
             val linkedSigner = LinkedSignerService.getLinkedSigner(walletAddress, verifyingChainId) as? EvmAddress
@@ -540,12 +523,11 @@ class ExchangeApiService(
     }
 
     private fun getWalletAddressForChain(wallet: WalletEntity, chainId: ChainId): Address {
-        return transaction {
-            if (wallet.networkType == chainId.networkType()) {
-                wallet.address
-            } else {
-                wallet.authorizedWallet(chainId.networkType())?.address
-            } ?: throw RequestProcessingError("No authorized wallet found for network type for this symbol")
+        return if (wallet.networkType == chainId.networkType()) {
+            wallet.address
+        } else {
+            transaction { wallet.authorizedWallet(chainId.networkType())?.address }
+                ?: throw RequestProcessingError("No authorized wallet found for network type for this symbol")
         }
     }
 }
@@ -17,6 +17,7 @@ import xyz.funkybit.core.model.db.ArchAccountType
 import xyz.funkybit.core.model.db.BitcoinUtxoAddressMonitorEntity
 import xyz.funkybit.core.model.db.DeployedSmartContractEntity
 import xyz.funkybit.core.model.rpc.ArchNetworkRpc
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.utils.bitcoin.ArchUtils
 import xyz.funkybit.core.utils.bitcoin.BitcoinSignatureGeneration
 import java.nio.ByteBuffer
@@ -127,9 +128,12 @@ object ArchContractsPublisher {
                     }
 
                     else -> {
-                        var index = setupState.numProcessed
+                        val firstUnprocessed = setupState.numProcessed
+                        val processedTxs = ArchNetworkClient.getProcessedTransactions(setupState.deploymentTxIds.drop(firstUnprocessed))
+                        var index = firstUnprocessed
                         while (index < setupState.deploymentTxIds.size && ArchUtils.handleTxStatusUpdate(
                                 setupState.deploymentTxIds[index],
+                                processedTxs[index - firstUnprocessed],
                                 onError = {
                                     programAccount.markAsFailed()
                                     logger.debug { "Failed to process $index deployment txId" }
@@ -167,9 +171,12 @@ object ArchContractsPublisher {
                     }
 
                     else -> {
-                        var index = setupState.numProcessed
+                        val firstUnprocessed = setupState.numProcessed
+                        val processedTxs = ArchNetworkClient.getProcessedTransactions(setupState.deploymentTxIds.drop(firstUnprocessed))
+                        var index = firstUnprocessed
                         while (index < setupState.deploymentTxIds.size && ArchUtils.handleTxStatusUpdate(
                                 setupState.deploymentTxIds[index],
+                                processedTxs[index - firstUnprocessed],
                                 onError = {
                                     programAccount.markAsFailed()
                                     logger.debug { "Failed to process $index deployment txId" }
@@ -299,6 +306,7 @@ object ArchContractsPublisher {
             proxyAddress = address,
             version = 1,
         )
+        ReferenceDataCache.notifyChanged()
     }
 
     private fun getProgramAccount() = transaction {
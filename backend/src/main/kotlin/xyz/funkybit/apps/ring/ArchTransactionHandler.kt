@@ -205,8 +205,9 @@ class ArchTransactionHandler(
                 refreshSubmittedTransaction(archTransaction) { _, error ->
                     if (error == null) {
                         archTransaction.markAsCompleted()
+                        val tokenAccountStates = ArchUtils.getAccountStates<ArchAccountState.Token>(assigningBalanceIndexUpdates.map { it.archAccountAddress })
                         val assignments = assigningBalanceIndexUpdates.groupBy { it.archAccountAddress }.flatMap { (pubkey, updates) ->
-                            val tokenAccountState = ArchUtils.getAccountState<ArchAccountState.Token>(pubkey)
+                            val tokenAccountState = tokenAccountStates.getValue(pubkey)
                             val balances = tokenAccountState.balances.reversed()
                             updates.map { update ->
                                 val index = balances.indexOfFirst { it.walletAddress == update.walletAddress }
@@ -441,12 +442,14 @@ class ArchTransactionHandler(
                                     failedEvents.forEach {
                                         logger.warn { "Got a failed settlement event $it" }
                                     }
+                                    val tokenAccountStates = ArchUtils.getAccountStates<ArchAccountState.Token>(
+                                        failedEvents.map { accounts[it.accountIndex.toInt()].pubkey },
+                                    )
                                     val failedTradeIds = failedEvents.groupBy { it.accountIndex }
                                         .mapValues { it.value.map { it.addressIndex } }
                                         .mapNotNull { (accountIndex, addressIndexes) ->
                                             val pubKey = accounts[accountIndex.toInt()].pubkey
-                                            val tokenAccountState =
-                                                ArchUtils.getAccountState<ArchAccountState.Token>(pubKey)
+                                            val tokenAccountState = tokenAccountStates.getValue(pubKey)
                                             val walletAddresses =
                                                 addressIndexes.map { tokenAccountState.balances[it.toInt()].walletAddress }
                                             val userGuids = walletAddresses.mapNotNull {
@@ -788,10 +791,13 @@ class ArchTransactionHandler(
 
     private fun partitionWithdrawals(settlingWithdrawals: List<WithdrawalEntity>, failedWithdrawals: List<ArchAccountState.Event>, archTransaction: BlockchainTransactionEntity): Pair<List<WithdrawalEntity>, List<WithdrawalEntity>> {
         val accounts = archTransaction.archAccounts()
+        val tokenAccountStates = ArchUtils.getAccountStates<ArchAccountState.Token>(
+            failedWithdrawals.map { accounts[it.accountIndex.toInt()].pubkey },
+        )
         val failedWithdrawalGuids = failedWithdrawals.groupBy { it.accountIndex }
             .mapNotNull { (accountIndex, failedEvents) ->
                 val pubKey = accounts[accountIndex.toInt()].pubkey
-                val tokenAccountState = ArchUtils.getAccountState<ArchAccountState.Token>(pubKey)
+                val tokenAccountState = tokenAccountStates.getValue(pubKey)
                 ArchAccountEntity.getByPubkey(pubKey)?.symbolGuid?.value?.let { symbolId ->
                     val failedSet: List<Triple<SymbolId, BigInteger, BitcoinAddress>> =
                         failedEvents.map {
@@ -1,6 +1,8 @@
 package xyz.funkybit.apps.ring
 
 import io.github.oshai.kotlinlogging.KotlinLogging
+import io.grpc.Status
+import io.grpc.StatusException
 import kotlinx.coroutines.runBlocking
 import kotlinx.datetime.Clock
 import org.jetbrains.exposed.sql.SortOrder
@@ -8,12 +10,11 @@ import org.jetbrains.exposed.sql.selectAll
 import org.jetbrains.exposed.sql.transactions.transaction
 import org.web3j.crypto.Keys
 import org.web3j.protocol.core.methods.response.EthBlock
-import org.web3j.protocol.core.methods.response.EthLog
 import org.web3j.protocol.core.methods.response.Log
 import org.web3j.tx.Contract
-import xyz.funkybit.apps.api.model.Withdrawal
 import xyz.funkybit.contracts.generated.Exchange
 import xyz.funkybit.core.blockchain.evm.EvmClient
+import xyz.funkybit.core.blockchain.evm.EvmServerException
 import xyz.funkybit.core.model.EvmAddress
 import xyz.funkybit.core.model.EvmSignature
 import xyz.funkybit.core.model.TxHash
@@ -44,6 +45,10 @@ class EvmBlockProcessor(
     private val statusReportInterval: Duration =
         System.getenv("EVM_BLOCK_PROCESSOR_STATUS_REPORT_INTERVAL_MINUTES")?.toInt()?.minutes
             ?: 1.minutes,
+    // blocks fetched in one batched request and processed in one transaction while catching up
+    private val batchSize: Int =
+        System.getenv("EVM_BLOCK_PROCESSOR_BATCH_SIZE")?.toIntOrNull()
+            ?: 100,
 ) {
     val logger = KotlinLogging.logger {}
     private val chainId = evmClient.chainId
@@ -66,37 +71,11 @@ class EvmBlockProcessor(
 
             while (true) {
                 try {
-                    val blocksToProcess = transaction {
-                        if (ChainEntity.findById(evmClient.chainId) != null) {
-                            (
-                                getLastProcessedBlock()?.number?.let { it + BigInteger.ONE }
-                                    ?: DepositEntity.maxBlockNumber(chainId)?.let { it + BigInteger.ONE }
-                                    ?: evmClient.getBlockNumber()
-                                ).rangeTo(evmClient.getBlockNumber())
-                        } else {
-                            listOf()
-                        }
-                    }
-
-                    for (blockNumber in blocksToProcess) {
-                        val blockFromRpcNode = evmClient.getBlock(blockNumber, withFullTxObjects = false)
-                        val lastProcessedBlock = transaction { getLastProcessedBlock() }
-                        if (lastProcessedBlock == null || blockFromRpcNode.parentHash == lastProcessedBlock.hash) {
-                            transaction {
-                                processBlock(blockFromRpcNode)
-                            }
-                        } else {
-                            transaction {
-                                handleFork(blockFromRpcNode, lastProcessedBlock)
-                            }
-                            break
-                        }
-                        processedBlocksCount += 1
-                        val now = Clock.System.now()
-                        if (now - statusReportedAt > statusReportInterval) {
-                            statusReportedAt = now
-                            logger.info { "Processed $processedBlocksCount blocks, latest block number: $blockNumber" }
-                        }
+                    processedBlocksCount += processNewBlocks()
+                    val now = Clock.System.now()
+                    if (now - statusReportedAt > statusReportInterval) {
+                        statusReportedAt = now
+                        logger.info { "Processed $processedBlocksCount blocks, latest block number: $latestProcessedBlockNumber" }
                     }
                     Thread.sleep(pollingIntervalInMs)
                 } catch (ie: InterruptedException) {
@@ -110,19 +89,82 @@ class EvmBlockProcessor(
         }
     }
 
-    private fun processBlock(blockFromRpcNode: EthBlock.Block) {
-        BlockEntity.create(blockFromRpcNode, chainId)
+    private var latestProcessedBlockNumber: BigInteger? = null
+
+    // Processes the blocks added since the last call, in ranges of up to batchSize blocks, and returns how many were
+    // processed. Stops at the first range that was not processed completely, see processBlocks.
+    internal fun processNewBlocks(): Int {
+        // sovereign withdrawals the gateway could not be reached for on a previous call
+        sendSovereignWithdrawals()
+
+        val blocksToProcess = transaction {
+            if (ChainEntity.findById(evmClient.chainId) != null) {
+                (
+                    getLastProcessedBlock()?.number?.let { it + BigInteger.ONE }
+                        ?: DepositEntity.maxBlockNumber(chainId)?.let { it + BigInteger.ONE }
+                        ?: evmClient.getBlockNumber()
+                    ).rangeTo(evmClient.getBlockNumber())
+            } else {
+                listOf()
+            }
+        }
+
+        var processedCount = 0
+        for (blockNumbers in blocksToProcess.chunked(batchSize)) {
+            val fetched = evmClient.getBlocksWithExchangeContractLogs(blockNumbers.first(), blockNumbers.last())
+            checkLogsAreFromBlocks(fetched)
+
+            val processed = transaction { processBlocks(fetched) }
+            // only once the withdrawals are committed, so that a rollback cannot leave the sequencer with a
+            // withdrawal that is then created again under a different id
+            sendSovereignWithdrawals()
+
+            processedCount += processed
+            if (processed > 0) {
+                latestProcessedBlockNumber = blockNumbers.first() + processed.toBigInteger() - BigInteger.ONE
+            }
+            if (processed < blockNumbers.size) {
+                break
+            }
+        }
+        return processedCount
+    }
 
-        val getLogsResult = evmClient.getExchangeContractLogs(blockFromRpcNode.number)
+    // the node may switch forks while serving a batch, logs not belonging to the returned blocks mean that the
+    // range has to be fetched again
+    private fun checkLogsAreFromBlocks(fetched: EvmClient.BlocksWithLogs) {
+        val blockHashes = fetched.blocks.map { it.hash }.toSet()
+        fetched.logs.firstOrNull { !blockHashes.contains(it.blockHash) }?.let {
+            throw EvmServerException("Log from block ${it.blockNumber} has hash ${it.blockHash} not matching the block, chainId=$chainId")
+        }
+    }
 
-        if (getLogsResult.hasError()) {
-            throw RuntimeException("Failed to get logs, block=${blockFromRpcNode.number}, chainId=$chainId, error code: ${getLogsResult.error.code}, error message: ${getLogsResult.error.message}")
+    // Processes fetched blocks for as long as each of them extends the chain processed so far, and returns how many
+    // were processed. A first block not extending the last processed one means a fork, which is handled in place of
+    // processing. A later block not extending its predecessor means the node switched forks while serving the batch,
+    // blocks from there on are fetched again, and a fork is detected then if needed.
+    private fun processBlocks(fetched: EvmClient.BlocksWithLogs): Int {
+        val lastProcessedBlock = getLastProcessedBlock()
+        val firstBlock = fetched.blocks.first()
+        if (lastProcessedBlock != null && firstBlock.parentHash != lastProcessedBlock.hash) {
+            handleFork(firstBlock, lastProcessedBlock)
+            return 0
         }
 
-        @Suppress("UNCHECKED_CAST")
-        (getLogsResult.logs as List<EthLog.LogObject>).forEach { logResult ->
-            processLog(logResult.get())
+        val logsByBlockHash = fetched.logs.groupBy { it.blockHash }
+        var parentHash = firstBlock.parentHash
+        var processed = 0
+        for (block in fetched.blocks) {
+            if (block.parentHash != parentHash) {
+                logger.info { "Block ${block.number} does not extend block ${block.number - BigInteger.ONE} in the same batch, chainId=$chainId" }
+                break
+            }
+            BlockEntity.create(block, chainId)
+            logsByBlockHash[block.hash].orEmpty().forEach(::processLog)
+            parentHash = block.hash
+            processed += 1
         }
+        return processed
     }
 
     private val blocksNumberToCheckOnForkDetected =
@@ -131,14 +173,14 @@ class EvmBlockProcessor(
     private fun handleFork(blockFromRpcNode: EthBlock.Block, lastProcessedBlock: BlockEntity) {
         logger.info { "Fork detected: for block [height=${blockFromRpcNode.number},hash=${blockFromRpcNode.hash},parentHash=${blockFromRpcNode.parentHash}] latest block found in db is [height=${lastProcessedBlock.number},hash=${lastProcessedBlock.guid.value},parentHash=${lastProcessedBlock.parentGuid.value}]. Looking for split point starting at ${blockFromRpcNode.number}, chainId=$chainId" }
 
-        val blocksToRollback = BlockEntity
-            .getRecentBlocksUpToNumber(
-                blockFromRpcNode.number - blocksNumberToCheckOnForkDetected,
-                chainId,
-            )
-            .filter { processedBlock ->
-                processedBlock.hash != evmClient.getBlock(processedBlock.number, withFullTxObjects = false).hash
-            }
+        val recentBlocks = BlockEntity.getRecentBlocksUpToNumber(
+            blockFromRpcNode.number - blocksNumberToCheckOnForkDetected,
+            chainId,
+        )
+        val blocksToRollback = recentBlocks
+            .zip(evmClient.getBlocks(recentBlocks.map { it.number }))
+            .filter { (processedBlock, blockOnNode) -> processedBlock.hash != blockOnNode.hash }
+            .map { (processedBlock, _) -> processedBlock }
 
         val blockNumbersToRollback = blocksToRollback.map { it.number }
 
@@ -190,31 +232,14 @@ class EvmBlockProcessor(
                 chainId,
                 EvmAddress(Keys.toChecksumAddress(withdrawalEventResponse.token)).takeIf { it != EvmAddress.zero },
             )
-            val nonce = 0L
-            val evmSignature = EvmSignature.emptySignature()
-
-            val wallet = WalletEntity.getByAddress(fromAddress)
-            val withdrawal = WithdrawalEntity.createPending(
-                wallet = wallet,
+            // sent to the sequencer by sendSovereignWithdrawals once committed
+            WithdrawalEntity.createPending(
+                wallet = WalletEntity.getByAddress(fromAddress),
                 symbol = symbol,
                 amount = withdrawalEventResponse.amount,
-                nonce = nonce,
-                signature = evmSignature,
-            ).let {
-                it.refresh(flush = true)
-                Withdrawal.fromEntity(it)
-            }
-
-            runBlocking {
-                sequencerClient.withdraw(
-                    wallet.userGuid.value.toSequencerId(),
-                    Asset(symbol.name),
-                    withdrawalEventResponse.amount,
-                    nonce = nonce.toBigInteger(),
-                    signature = evmSignature,
-                    withdrawal.id,
-                )
-            }
+                nonce = 0L,
+                signature = EvmSignature.emptySignature(),
+            )
         }
 
         if (Contract.staticExtractEventParameters(Exchange.LINKEDSIGNER_EVENT, log) != null) {
@@ -227,6 +252,39 @@ class EvmBlockProcessor(
         }
     }
 
+    // Sends the committed sovereign withdrawals that are still Pending, in the order they were requested, as confirmed
+    // deposits are sent. One the gateway could not be reached for stays Pending and is sent again on the next call.
+    // After any other failure the request may already be queued for the sequencer, whose response then settles the
+    // withdrawal, so it is not sent again: that would debit the balance twice.
+    private fun sendSovereignWithdrawals() {
+        transaction {
+            WithdrawalEntity.findPendingSovereign(chainId).forEach(::sendToSequencer)
+        }
+    }
+
+    private fun sendToSequencer(withdrawal: WithdrawalEntity) {
+        try {
+            runBlocking {
+                sequencerClient.withdraw(
+                    withdrawal.wallet.userGuid.value.toSequencerId(),
+                    Asset(withdrawal.symbol.name),
+                    withdrawal.amount,
+                    nonce = withdrawal.nonce.toBigInteger(),
+                    signature = withdrawal.signature,
+                    withdrawal.guid.value,
+                )
+            }
+            WithdrawalEntity.markAsSentToSequencer(withdrawal.guid)
+        } catch (e: Exception) {
+            if (e is StatusException && e.status.code == Status.Code.UNAVAILABLE) {
+                logger.warn { "Sequencer unavailable, sovereign withdrawal ${withdrawal.guid} will be sent again, chainId=$chainId" }
+            } else {
+                logger.error(e) { "Failed to notify Sequencer about sovereign withdrawal ${withdrawal.guid}, chainId=$chainId" }
+                WithdrawalEntity.markAsSentToSequencer(withdrawal.guid)
+            }
+        }
+    }
+
     private fun getLastProcessedBlock(): BlockEntity? =
         BlockTable
             .selectAll()
@@ -6,6 +6,7 @@ import xyz.funkybit.core.blockchain.ContractType
 import xyz.funkybit.core.blockchain.evm.EvmClient
 import xyz.funkybit.core.model.EvmAddress
 import xyz.funkybit.core.model.db.DeployedSmartContractEntity
+import xyz.funkybit.core.services.ReferenceDataCache
 
 class EvmContractsPublisher(val evmClient: EvmClient) {
     val logger = KotlinLogging.logger {}
@@ -49,6 +50,7 @@ class EvmContractsPublisher(val evmClient: EvmClient) {
                 proxyAddress = it.proxyAddress,
                 version = it.version,
             )
+            ReferenceDataCache.notifyChanged()
         }
     }
 }
@@ -19,6 +19,7 @@ import xyz.funkybit.core.model.telegram.bot.SessionState
 import xyz.funkybit.core.model.telegram.bot.TelegramBotUserEntity
 import xyz.funkybit.core.model.telegram.bot.TelegramMessageId
 import xyz.funkybit.core.sequencer.SequencerClient
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.utils.PgListener
 import kotlin.concurrent.thread
 
@@ -88,6 +89,7 @@ class BotApp : BaseApp(dbConfig = DbConfig()) {
         } else {
             logger.info { "Starting" }
             super.start()
+            ReferenceDataCache.start(db)
             client.startPolling(inputHandler = { input ->
                 transaction {
                     inputHandler.handle(input)
@@ -109,6 +111,7 @@ class BotApp : BaseApp(dbConfig = DbConfig()) {
             pendingSessionsRefresherThread.interrupt()
             pendingSessionsRefresherThread.join()
         }
+        ReferenceDataCache.stop()
         logger.info { "Stopped" }
     }
 
@@ -3,6 +3,8 @@ package xyz.funkybit.core.blockchain.bitcoin
 import io.github.oshai.kotlinlogging.KotlinLogging
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.decodeFromJsonElement
+import kotlinx.serialization.json.encodeToJsonElement
+import kotlinx.serialization.json.jsonObject
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import xyz.funkybit.core.model.BitcoinAddress
 import xyz.funkybit.core.model.TxHash
@@ -64,6 +66,23 @@ object ArchNetworkClient : JsonRpcClientBase(
         }
     }
 
+    fun getProcessedTransactions(txIds: List<TxHash>): List<ArchNetworkRpc.ProcessedTransaction?> =
+        getValues<ArchNetworkRpc.ProcessedTransaction>(
+            txIds.map {
+                ArchRpcRequest(
+                    "get_processed_transaction",
+                    ArchRpcParams(it.value),
+                )
+            },
+        ).map { result ->
+            result.getOrElse { e ->
+                if (e !is JsonRpcException || e.error.code != 404) {
+                    throw e
+                }
+                null
+            }
+        }
+
     fun readAccountInfo(pubKey: ArchNetworkRpc.Pubkey): ArchNetworkRpc.AccountInfoResult {
         return getValue(
             ArchRpcRequest(
@@ -73,6 +92,20 @@ object ArchNetworkClient : JsonRpcClientBase(
         )
     }
 
+    fun readAccountInfos(pubKeys: List<ArchNetworkRpc.Pubkey>): List<ArchNetworkRpc.AccountInfoResult> =
+        getValues<ArchNetworkRpc.AccountInfoResult>(
+            pubKeys.map {
+                ArchRpcRequest(
+                    "read_account_info",
+                    ArchRpcParams(it),
+                )
+            },
+        ).map { it.getOrThrow() }
+
+    inline fun <reified T> getValues(requests: List<ArchRpcRequest>): List<Result<T>> =
+        callBatch(requests.map { json.encodeToJsonElement(it).jsonObject })
+            .map { result -> result.mapCatching { json.decodeFromJsonElement<T>(it) } }
+
     inline fun <reified T> getValue(request: ArchRpcRequest): T {
         val jsonElement = call(json.encodeToString(request))
         return json.decodeFromJsonElement(jsonElement)
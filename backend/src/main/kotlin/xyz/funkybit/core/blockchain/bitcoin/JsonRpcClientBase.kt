@@ -4,10 +4,12 @@ import io.github.oshai.kotlinlogging.KLogger
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
 import kotlinx.serialization.json.JsonElement
 import kotlinx.serialization.json.JsonNull
 import kotlinx.serialization.json.JsonObject
 import kotlinx.serialization.json.decodeFromJsonElement
+import kotlinx.serialization.json.jsonObject
 import okhttp3.Credentials
 import okhttp3.Interceptor
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
@@ -40,7 +42,12 @@ data class JsonRpcError(
 
 class JsonRpcException(val error: JsonRpcError) : Exception(error.message)
 
-open class JsonRpcClientBase(val url: String, val logger: KLogger, interceptor: Interceptor? = null) {
+open class JsonRpcClientBase(
+    val url: String,
+    val logger: KLogger,
+    interceptor: Interceptor? = null,
+    private val maxBatchSize: Int = 100,
+) {
     @OptIn(ExperimentalSerializationApi::class)
     val json = Json {
         ignoreUnknownKeys = true
@@ -59,7 +66,41 @@ open class JsonRpcClientBase(val url: String, val logger: KLogger, interceptor:
 
     open val mediaType = "text/plain".toMediaTypeOrNull()
 
-    fun call(requestString: String): JsonElement {
+    fun call(requestString: String): JsonElement =
+        when (val jsonBody = post(requestString)) {
+            is JsonObject -> result(jsonBody)
+            else -> null
+        } ?: throw Exception("Failed to extract response")
+
+    // Sends requests as JSON-RPC 2.0 batches of up to maxBatchSize requests each. Results are in the order of the
+    // requests, and a request failing with an RPC error does not fail the others.
+    fun callBatch(requests: List<JsonObject>): List<Result<JsonElement>> =
+        requests.chunked(maxBatchSize).flatMap { batch ->
+            val responsesById = when (val jsonBody = post(JsonArray(batch).toString())) {
+                is JsonArray -> jsonBody.map { it.jsonObject }.associateBy { it["id"] }
+                // a batch rejected as a whole gets a single error response
+                is JsonObject -> {
+                    result(jsonBody)
+                    throw Exception("Failed to extract batch response")
+                }
+                else -> throw Exception("Failed to extract batch response")
+            }
+            batch.map { request ->
+                runCatching {
+                    val response = responsesById[request["id"]] ?: throw Exception("No response to request ${request["id"]} in batch")
+                    result(response) ?: throw Exception("Failed to extract response")
+                }
+            }
+        }
+
+    private fun result(response: JsonObject): JsonElement? =
+        if (response.containsKey("error") && response["error"] != JsonNull) {
+            throw JsonRpcException(json.decodeFromJsonElement<JsonRpcError>(response["error"]!!))
+        } else {
+            response["result"]
+        }
+
+    private fun post(requestString: String): JsonElement {
         val body = requestString.toRequestBody(mediaType)
 
         val httpRequest = Request.Builder()
@@ -73,16 +114,7 @@ open class JsonRpcClientBase(val url: String, val logger: KLogger, interceptor:
         }
         val httpResponseBody = httpResponse.body?.string() ?: ""
         return when (httpResponse.code) {
-            in 200..204 -> {
-                when (val jsonBody = json.parseToJsonElement(httpResponseBody)) {
-                    is JsonObject -> if (jsonBody.containsKey("error") && jsonBody["error"] != JsonNull) {
-                        throw JsonRpcException(json.decodeFromJsonElement<JsonRpcError>(jsonBody["error"]!!))
-                    } else {
-                        jsonBody["result"]
-                    }
-                    else -> null
-                } ?: throw Exception("Failed to extract response")
-            }
+            in 200..204 -> json.parseToJsonElement(httpResponseBody)
             else -> {
                 // it seems to also give 500s with RPC errors or RPC errors embedded within a string
                 try {
@@ -10,13 +10,16 @@ import org.web3j.crypto.ECKeyPair
 import org.web3j.crypto.Keys
 import org.web3j.crypto.Sign
 import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.BatchRequest
 import org.web3j.protocol.core.DefaultBlockParameter
 import org.web3j.protocol.core.DefaultBlockParameterName
 import org.web3j.protocol.core.RemoteFunctionCall
+import org.web3j.protocol.core.Response
 import org.web3j.protocol.core.methods.request.EthFilter
 import org.web3j.protocol.core.methods.request.Transaction
 import org.web3j.protocol.core.methods.response.EthBlock
 import org.web3j.protocol.core.methods.response.EthLog
+import org.web3j.protocol.core.methods.response.Log
 import org.web3j.protocol.core.methods.response.TransactionReceipt
 import org.web3j.protocol.http.HttpService
 import org.web3j.tx.RawTransactionManager
@@ -41,6 +44,7 @@ import xyz.funkybit.core.model.evm.EvmSettlement
 import xyz.funkybit.core.model.toEvmSignature
 import xyz.funkybit.core.utils.HttpClient
 import xyz.funkybit.core.utils.fromFundamentalUnits
+import xyz.funkybit.core.utils.rangeTo
 import xyz.funkybit.core.utils.toFundamentalUnits
 import xyz.funkybit.core.utils.toHex
 import xyz.funkybit.core.utils.toHexBytes
@@ -330,6 +334,62 @@ open class EvmClient(val config: EvmClientConfig) {
             ),
         )
 
+    data class BlocksWithLogs(
+        val blocks: List<EthBlock.Block>,
+        val logs: List<Log>,
+    )
+
+    // Headers and exchange contract logs of a range of blocks, fetched in a single batched request. The node may
+    // switch forks while serving the batch, so callers have to check that the logs belong to the returned blocks.
+    open fun getBlocksWithExchangeContractLogs(fromBlock: BigInteger, toBlock: BigInteger): BlocksWithLogs {
+        val blockNumbers = (fromBlock..toBlock).toList()
+        val batch = web3j.newBatch()
+        blockNumbers.forEach { batch.add(web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(it), false)) }
+        batch.add(
+            web3j.ethGetLogs(
+                EthFilter(
+                    DefaultBlockParameter.valueOf(fromBlock),
+                    DefaultBlockParameter.valueOf(toBlock),
+                    getContractAddress(ContractType.Exchange).toString(),
+                ),
+            ),
+        )
+        val responses = sendBatch(batch)
+
+        val blocks = blockNumbers.zip(responses).map { (blockNumber, response) ->
+            (response as EthBlock).block ?: throw EvmServerException("Block $blockNumber not found, chainId=$chainId")
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        val logs = ((responses.last() as EthLog).logs as List<EthLog.LogObject>).map { it.get() }
+
+        return BlocksWithLogs(blocks, logs)
+    }
+
+    open fun getBlocks(blockNumbers: List<BigInteger>): List<EthBlock.Block> {
+        if (blockNumbers.isEmpty()) {
+            return emptyList()
+        }
+        val batch = web3j.newBatch()
+        blockNumbers.forEach { batch.add(web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(it), false)) }
+        return blockNumbers.zip(sendBatch(batch)).map { (blockNumber, response) ->
+            (response as EthBlock).block ?: throw EvmServerException("Block $blockNumber not found, chainId=$chainId")
+        }
+    }
+
+    // responses in the order of the requests, nodes are free to answer a batch in any order
+    private fun sendBatch(batch: BatchRequest): List<Response<*>> {
+        val responsesById = batch.send().responses.associateBy { it.id }
+        return batch.requests.map { request ->
+            val response = responsesById[request.id]
+                ?: throw EvmServerException("No response to ${request.method} in batch, chainId=$chainId")
+            if (response.hasError()) {
+                throw EvmServerException("${request.method} failed, chainId=$chainId, error code: ${response.error.code}, error message: ${response.error.message}")
+            }
+            response
+        }
+    }
+
     fun getTxManager(nonceOverride: BigInteger): TransactionManagerWithNonceOverride {
         return TransactionManagerWithNonceOverride(web3j, submitterCredentials, chainId.value.toLong(), nonceOverride)
     }
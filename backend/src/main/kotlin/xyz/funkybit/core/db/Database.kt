@@ -74,7 +74,7 @@ fun Transaction.notifyDbListener(
     exec(
         listOfNotNull(
             "NOTIFY $channel",
-            payload?.let { "'$payload'" },
+            payload?.let { "'${it.replace("'", "''")}'" },
         ).joinToString(", "),
     )
 }
@@ -5,6 +5,8 @@ import xyz.funkybit.core.model.db.migrations.V101_OHLCTimestampWithTimezone
 import xyz.funkybit.core.model.db.migrations.V102_UserLinkedAccount
 import xyz.funkybit.core.model.db.migrations.V103_TMAUser
 import xyz.funkybit.core.model.db.migrations.V104_AddDiscordAndOauthRelayTokenToTMAUser
+import xyz.funkybit.core.model.db.migrations.V105_AddSequenceIdToBroadcasterJob
+import xyz.funkybit.core.model.db.migrations.V106_AddSentToSequencerStatusToWithdrawal
 import xyz.funkybit.core.model.db.migrations.V10_WithdrawalTable
 import xyz.funkybit.core.model.db.migrations.V11_NonNullableDeployedContractProxyAddress
 import xyz.funkybit.core.model.db.migrations.V12_BigDecimalPrice
@@ -210,4 +212,6 @@ val migrations = listOf(
     V102_UserLinkedAccount(),
     V103_TMAUser(),
     V104_AddDiscordAndOauthRelayTokenToTMAUser(),
+    V105_AddSequenceIdToBroadcasterJob(),
+    V106_AddSentToSequencerStatusToWithdrawal(),
 )
@@ -5,11 +5,14 @@ import io.github.oshai.kotlinlogging.KotlinLogging
 import kotlinx.datetime.Clock
 import kotlinx.datetime.Instant
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
 import org.http4k.format.KotlinxSerialization
 import org.jetbrains.exposed.dao.EntityClass
 import org.jetbrains.exposed.dao.id.EntityID
+import org.jetbrains.exposed.sql.SortOrder
 import org.jetbrains.exposed.sql.SqlExpressionBuilder.less
 import org.jetbrains.exposed.sql.deleteWhere
+import org.jetbrains.exposed.sql.insert
 import org.jetbrains.exposed.sql.json.jsonb
 import org.jetbrains.exposed.sql.kotlin.datetime.timestamp
 import org.jetbrains.exposed.sql.transactions.TransactionManager
@@ -42,16 +45,35 @@ data class BroadcasterNotification(
     }
 }
 
+// The notifications are carried in the payload of the notify, so that API nodes do not have to read them back from
+// the database. The job row is kept for replaying to a node that lost its listener connection, and is the only
+// transport when the notifications do not fit into a notify payload
 fun publishBroadcasterNotifications(notifications: List<BroadcasterNotification>) {
     if (notifications.isNotEmpty()) {
         logger.debug { "Scheduling broadcaster notifications: $notifications" }
+        val sequenceId = BroadcasterJobEntity.create(BroadcasterJobId.generate(), notifications, Clock.System.now())
+        val payload = KotlinxSerialization.json.encodeToString(BroadcasterJobPayload(sequenceId, notifications))
         TransactionManager.current().notifyDbListener(
             "broadcaster_ctl",
-            BroadcasterJobEntity.create(BroadcasterJobId.generate(), notifications, Clock.System.now()).value,
+            if (payload.toByteArray().size <= MAX_NOTIFY_PAYLOAD_BYTES) {
+                payload
+            } else {
+                KotlinxSerialization.json.encodeToString(BroadcasterJobPayload(sequenceId, notifications = null))
+            },
         )
     }
 }
 
+// postgres rejects notify payloads of 8000 bytes or more
+private const val MAX_NOTIFY_PAYLOAD_BYTES = 7900
+
+@Serializable
+data class BroadcasterJobPayload(
+    val sequenceId: Long,
+    // null when they have to be read from the job
+    val notifications: List<BroadcasterNotification>?,
+)
+
 @JvmInline
 value class BroadcasterJobId(override val value: String) : EntityId {
     companion object {
@@ -64,17 +86,30 @@ object BroadcasterJobTable : GUIDTable<BroadcasterJobId>("broadcaster_job", ::Br
     val createdAt = timestamp("created_at").index()
     val createdBy = varchar("created_by", 10485760)
     val notificationData = jsonb<List<BroadcasterNotification>>("notification_data", KotlinxSerialization.json)
+    val sequenceId = long("sequence_id").autoIncrement().uniqueIndex()
 }
 
 class BroadcasterJobEntity(guid: EntityID<BroadcasterJobId>) : GUIDEntity<BroadcasterJobId>(guid) {
     companion object : EntityClass<BroadcasterJobId, BroadcasterJobEntity>(BroadcasterJobTable) {
-        fun create(id: BroadcasterJobId, notifications: List<BroadcasterNotification>, currentTime: Instant): BroadcasterJobId {
-            return BroadcasterJobEntity.new(id) {
-                this.createdAt = currentTime
-                this.createdBy = "system"
-                this.notificationData = notifications
-            }.guid.value
-        }
+        // returns the sequence id of the job
+        fun create(id: BroadcasterJobId, notifications: List<BroadcasterNotification>, currentTime: Instant): Long =
+            BroadcasterJobTable.insert {
+                it[guid] = EntityID(id, BroadcasterJobTable)
+                it[createdAt] = currentTime
+                it[createdBy] = "system"
+                it[notificationData] = notifications
+            }[BroadcasterJobTable.sequenceId]
+
+        fun findBySequenceId(sequenceId: Long): BroadcasterJobEntity? =
+            BroadcasterJobEntity.find { BroadcasterJobTable.sequenceId.eq(sequenceId) }.singleOrNull()
+
+        // sequence ids are assigned on insert, not on commit, so jobs committed late can have lower ids than jobs
+        // already seen. Replaying goes by creation time instead, with callers allowing for the commit delay
+        fun listCreatedSince(timestamp: Instant): List<BroadcasterJobEntity> =
+            BroadcasterJobEntity
+                .find { BroadcasterJobTable.createdAt.greaterEq(timestamp) }
+                .orderBy(BroadcasterJobTable.sequenceId to SortOrder.ASC)
+                .toList()
 
         fun deleteOlderThan(timestamp: Instant): Int =
             BroadcasterJobTable.deleteWhere { createdAt.less(timestamp) }
@@ -83,4 +118,5 @@ class BroadcasterJobEntity(guid: EntityID<BroadcasterJobId>) : GUIDEntity<Broadc
     var createdAt by BroadcasterJobTable.createdAt
     var createdBy by BroadcasterJobTable.createdBy
     var notificationData by BroadcasterJobTable.notificationData
+    var sequenceId by BroadcasterJobTable.sequenceId
 }
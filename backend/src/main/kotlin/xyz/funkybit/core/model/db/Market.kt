@@ -70,6 +70,11 @@ class MarketEntity(guid: EntityID<MarketId>) : GUIDEntity<MarketId>(guid) {
                 .let { wrapRows(it) }
                 .with(MarketEntity::baseSymbol, MarketEntity::quoteSymbol)
 
+        fun lastPrices(): Map<MarketId, BigDecimal> =
+            MarketTable
+                .select(MarketTable.guid, MarketTable.lastPrice)
+                .associate { it[MarketTable.guid].value to it[MarketTable.lastPrice] }
+
         fun findBySymbols(symbol1: SymbolEntity, symbol2: SymbolEntity): MarketEntity? =
             MarketEntity.find {
                 (MarketTable.baseSymbolGuid.eq(symbol1.guid).and(MarketTable.quoteSymbolGuid.eq(symbol2.guid)))
@@ -40,6 +40,14 @@ value class OHLCId(override val value: String) : EntityId {
     override fun toString(): String = value
 }
 
+// a trade to merge into the candles of its market, e.g. the weighted price of the executions of a taker order
+data class OHLCTrade(
+    val market: MarketId,
+    val timestamp: Instant,
+    val price: BigDecimal,
+    val amount: BigInteger,
+)
+
 enum class OHLCDuration {
     P1M,
     P5M,
@@ -114,17 +122,34 @@ class OHLCEntity(guid: EntityID<OHLCId>) : GUIDEntity<OHLCId>(guid) {
 
     companion object : EntityClass<OHLCId, OHLCEntity>(OHLCTable) {
 
-        fun updateWith(market: MarketId, tradeTimestamp: Instant, tradePrice: BigDecimal, tradeAmount: BigInteger): List<OHLCEntity> {
+        fun updateWith(market: MarketId, tradeTimestamp: Instant, tradePrice: BigDecimal, tradeAmount: BigInteger): List<OHLCEntity> =
+            updateWith(listOf(OHLCTrade(market, tradeTimestamp, tradePrice, tradeAmount)))
+
+        // merges the trades into one row per market, duration and start first, since a single upsert can not
+        // update the same row twice. Returns the updated records
+        fun updateWith(trades: List<OHLCTrade>): List<OHLCEntity> {
+            if (trades.isEmpty()) return emptyList()
+
+            val rows = OHLCDuration.entries.flatMap { ohlcDuration ->
+                trades
+                    .groupBy { Pair(it.market, ohlcDuration.durationStart(it.timestamp)) }
+                    .map { (key, candleTrades) ->
+                        val (market, start) = key
+                        // sortedBy is stable, so of trades with the same timestamp the last one closes as it would
+                        // when applied one after the other
+                        val byTime = candleTrades.sortedBy { it.timestamp }
+                        val first = byTime.first()
+                        val last = byTime.last()
+                        "('${OHLCId.generate()}', '$market', '$start', '$ohlcDuration'::ohlcduration, ${first.price}, ${candleTrades.maxOf { it.price }}, ${candleTrades.minOf { it.price }}, ${last.price}, ${candleTrades.sumOf { it.amount }.toBigDecimal()}, '${first.timestamp}', '${last.timestamp}', now())"
+                    }
+            }
+
             return TransactionManager.current().exec(
                 """
                     INSERT INTO ${OHLCTable.tableName} (${OHLCTable.guid.name}, ${OHLCTable.marketGuid.name}, ${OHLCTable.start.name}, ${OHLCTable.duration.name}, 
                         ${OHLCTable.open.name}, ${OHLCTable.high.name}, ${OHLCTable.low.name}, ${OHLCTable.close.name}, ${OHLCTable.volume.name}, 
                         ${OHLCTable.firstTrade.name}, ${OHLCTable.lastTrade.name}, ${OHLCTable.createdAt.name})
-                    VALUES ${
-                    OHLCDuration.entries.joinToString(",") { ohlcDuration ->
-                        "('${OHLCId.generate()}', '$market', '${ohlcDuration.durationStart(tradeTimestamp)}', '$ohlcDuration'::ohlcduration, $tradePrice, $tradePrice, $tradePrice, $tradePrice, ${tradeAmount.toBigDecimal()}, '$tradeTimestamp', '$tradeTimestamp', now())"
-                    }
-                }
+                    VALUES ${rows.joinToString(",")}
                     ON CONFLICT (${OHLCTable.marketGuid.name}, ${OHLCTable.start.name}, ${OHLCTable.duration.name}) DO UPDATE
                     SET
                         open = CASE WHEN ${OHLCTable.tableName}.${firstTrade.name} > EXCLUDED.${firstTrade.name} THEN EXCLUDED.${open.name} ELSE ${OHLCTable.tableName}.${open.name} END,
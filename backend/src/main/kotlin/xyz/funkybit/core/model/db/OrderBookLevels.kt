@@ -0,0 +1,153 @@
+package xyz.funkybit.core.model.db
+
+import org.jetbrains.exposed.sql.ResultRow
+import org.jetbrains.exposed.sql.andWhere
+import xyz.funkybit.core.utils.fromFundamentalUnits
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.util.TreeMap
+
+// In memory aggregate of the open limit orders of a market by side and price level. It is loaded from the order
+// table once and then kept up to date from the orders each sequencer response changed, so that the cost of an order
+// book update is proportional to the number of changed orders rather than to the depth of the book.
+class OrderBookLevels private constructor(
+    private val priceScale: Int,
+    private val baseDecimals: UByte,
+    private var last: OrderBookSnapshot.LastTrade,
+) {
+    // the part of the book an order makes up, while it is an open limit order
+    private data class Contribution(
+        val side: OrderSide,
+        val price: BigDecimal,
+        val amount: BigInteger,
+    )
+
+    data class ChangedOrder(
+        val orderId: OrderId,
+        val marketId: MarketId,
+        val type: OrderType,
+        val side: OrderSide,
+        val status: OrderStatus,
+        val price: BigDecimal?,
+        val amount: BigInteger,
+    )
+
+    private val contributions = HashMap<OrderId, Contribution>()
+
+    // both sides are ordered by descending price, as in OrderBookSnapshot
+    private val bids = TreeMap<BigDecimal, BigInteger>(Comparator.reverseOrder())
+    private val asks = TreeMap<BigDecimal, BigInteger>(Comparator.reverseOrder())
+
+    // applies the current state of the changed orders and returns what changed in the book. Applying an order
+    // that is already reflected in the levels changes nothing
+    fun update(
+        changedOrders: List<ChangedOrder>,
+        latestTradesWithTakerOrders: List<Pair<TradeEntity, OrderEntity>>,
+        market: MarketEntity,
+    ): OrderBookSnapshot.Diff {
+        val prevBids = mutableMapOf<BigDecimal, BigInteger>()
+        val prevAsks = mutableMapOf<BigDecimal, BigInteger>()
+
+        fun apply(contribution: Contribution, sign: Int) {
+            val levels = levels(contribution.side)
+            val prevLevels = if (contribution.side == OrderSide.Buy) prevBids else prevAsks
+            val size = levels[contribution.price] ?: BigInteger.ZERO
+            prevLevels.putIfAbsent(contribution.price, size)
+            val newSize = if (sign > 0) size + contribution.amount else size - contribution.amount
+            if (newSize.signum() == 0) {
+                levels.remove(contribution.price)
+            } else {
+                levels[contribution.price] = newSize
+            }
+        }
+
+        changedOrders.forEach { order ->
+            contributions.remove(order.orderId)?.let { apply(it, -1) }
+            contribution(order)?.let {
+                contributions[order.orderId] = it
+                apply(it, 1)
+            }
+        }
+
+        val prevLast = last
+        last = OrderBookSnapshot.lastTrade(market, latestTradesWithTakerOrders, prevLast)
+
+        fun entriesDiff(prevLevels: Map<BigDecimal, BigInteger>, levels: TreeMap<BigDecimal, BigInteger>): List<OrderBookSnapshot.Entry> =
+            prevLevels
+                .filter { (price, prevSize) -> (levels[price] ?: BigInteger.ZERO) != prevSize }
+                .map { (price, _) ->
+                    levels[price]?.let { entry(price, it) } ?: OrderBookSnapshot.Entry(price, BigDecimal.ZERO.setScale(price.scale()))
+                }
+                .sortedByDescending { it.price }
+
+        return OrderBookSnapshot.Diff(
+            bids = entriesDiff(prevBids, bids),
+            asks = entriesDiff(prevAsks, asks),
+            last = if (prevLast == last) null else last,
+        )
+    }
+
+    fun snapshot(): OrderBookSnapshot =
+        OrderBookSnapshot(
+            bids = bids.map { (price, size) -> entry(price, size) },
+            asks = asks.map { (price, size) -> entry(price, size) },
+            last = last,
+        )
+
+    private fun levels(side: OrderSide): TreeMap<BigDecimal, BigInteger> =
+        if (side == OrderSide.Buy) bids else asks
+
+    private fun entry(price: BigDecimal, size: BigInteger): OrderBookSnapshot.Entry =
+        OrderBookSnapshot.Entry(
+            price = price,
+            size = size.fromFundamentalUnits(baseDecimals).stripTrailingZeros(),
+        )
+
+    private fun contribution(order: ChangedOrder): Contribution? =
+        if (order.type == OrderType.Limit && order.status in openStatuses && order.price != null) {
+            Contribution(order.side, order.price.setScale(priceScale), order.amount)
+        } else {
+            null
+        }
+
+    companion object {
+        private val openStatuses = listOf(OrderStatus.Open, OrderStatus.Partial)
+        private val orderColumns = listOf(OrderTable.guid, OrderTable.marketGuid, OrderTable.type, OrderTable.side, OrderTable.status, OrderTable.price, OrderTable.amount)
+
+        // loads the open limit orders of the market, the last trade is carried over from the given snapshot
+        fun load(market: MarketEntity, lastTrade: OrderBookSnapshot.LastTrade): OrderBookLevels =
+            OrderBookLevels(market.priceScale(), market.baseSymbol.decimals, lastTrade).also { levels ->
+                OrderTable
+                    .select(orderColumns)
+                    .where { OrderTable.marketGuid.eq(market.guid) }
+                    .andWhere { OrderTable.type.eq(OrderType.Limit) }
+                    .andWhere { OrderTable.status.inList(openStatuses) }
+                    .andWhere { OrderTable.price.isNotNull() }
+                    .map { it.toChangedOrder() }
+                    .let { levels.update(it, emptyList(), market) }
+            }
+
+        // the current state of the orders with the given sequencer order ids, grouped by market
+        fun changedOrders(sequencerOrderIds: List<Long>): Map<MarketId, List<ChangedOrder>> =
+            if (sequencerOrderIds.isEmpty()) {
+                emptyMap()
+            } else {
+                OrderTable
+                    .select(orderColumns)
+                    .where { OrderTable.sequencerOrderId.inList(sequencerOrderIds) }
+                    .map { it.toChangedOrder() }
+                    .groupBy { it.marketId }
+            }
+
+        private fun ResultRow.toChangedOrder() =
+            ChangedOrder(
+                orderId = this[OrderTable.guid].value,
+                marketId = this[OrderTable.marketGuid].value,
+                type = this[OrderTable.type],
+                side = this[OrderTable.side],
+                status = this[OrderTable.status],
+                price = this[OrderTable.price],
+                amount = this[OrderTable.amount].toBigInteger(),
+            )
+    }
+}
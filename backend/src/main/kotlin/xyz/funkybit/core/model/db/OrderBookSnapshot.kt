@@ -102,6 +102,16 @@ data class OrderBookSnapshot(
                     }
             }
 
+            return OrderBookSnapshot(
+                bids = getOrderBookEntries(OrderSide.Buy),
+                asks = getOrderBookEntries(OrderSide.Sell),
+                last = lastTrade(market, latestTradesWithTakerOrders, prevSnapshot.last),
+            )
+        }
+
+        fun lastTrade(market: MarketEntity, latestTradesWithTakerOrders: List<Pair<TradeEntity, OrderEntity>>, prevLastTrade: LastTrade): LastTrade {
+            val priceScale = market.priceScale()
+
             val latestTradesWithTakerOrdersForMarket = latestTradesWithTakerOrders
                 .filter { it.first.marketGuid.value == market.guid.value }
 
@@ -119,7 +129,7 @@ data class OrderBookSnapshot(
                         trades.map { it.amount.toBigDecimal() }.sum(),
                     )
 
-            val lastTrade = if (latestOrderIds.isNotEmpty()) {
+            return if (latestOrderIds.isNotEmpty()) {
                 val latestOrderId = latestOrderIds.last()
                 val lastTradePrice = weightedAvgPrice(
                     latestTradesWithTakerOrdersForMarket
@@ -135,7 +145,7 @@ data class OrderBookSnapshot(
                             .map { it.first },
                     )
                 } else {
-                    prevSnapshot.last.price
+                    prevLastTrade.price
                 }.setScale(priceScale, RoundingMode.HALF_EVEN)
 
                 LastTrade(
@@ -147,14 +157,8 @@ data class OrderBookSnapshot(
                     },
                 )
             } else {
-                LastTrade(prevSnapshot.last.price, prevSnapshot.last.direction)
+                LastTrade(prevLastTrade.price, prevLastTrade.direction)
             }
-
-            return OrderBookSnapshot(
-                bids = getOrderBookEntries(OrderSide.Buy),
-                asks = getOrderBookEntries(OrderSide.Sell),
-                last = lastTrade,
-            )
         }
     }
 
@@ -107,6 +107,12 @@ class WalletEntity(guid: EntityID<WalletId>) : GUIDEntity<WalletId>(guid) {
             }.firstOrNull()
         }
 
+        fun isAdmin(walletId: EntityID<WalletId>): Boolean {
+            return WalletTable.select(WalletTable.isAdmin).where {
+                WalletTable.id.eq(walletId)
+            }.singleOrNull()?.get(WalletTable.isAdmin) ?: false
+        }
+
         fun getAdminAddresses(): List<EvmAddress> {
             return WalletTable.select(listOf(WalletTable.address)).where {
                 WalletTable.isAdmin.eq(true)
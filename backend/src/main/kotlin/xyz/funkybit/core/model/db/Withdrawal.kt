@@ -41,6 +41,7 @@ value class WithdrawalId(override val value: String) : EntityId {
 @Serializable
 enum class WithdrawalStatus {
     Pending,
+    SentToSequencer,
     Sequenced,
     Settling,
     Complete,
@@ -129,10 +130,38 @@ class WithdrawalEntity(guid: EntityID<WithdrawalId>) : GUIDEntity<WithdrawalId>(
 
         fun findPending(): List<WithdrawalEntity> {
             return WithdrawalEntity.find {
-                WithdrawalTable.status.inList(listOf(WithdrawalStatus.Pending, WithdrawalStatus.Sequenced, WithdrawalStatus.Settling))
+                WithdrawalTable.status.inList(listOf(WithdrawalStatus.Pending, WithdrawalStatus.SentToSequencer, WithdrawalStatus.Sequenced, WithdrawalStatus.Settling))
             }.toList()
         }
 
+        // withdrawals requested on chain, which stay Pending until they have been sent to the sequencer
+        fun findPendingSovereign(chainId: ChainId): List<WithdrawalEntity> {
+            return WithdrawalTable
+                .join(SymbolTable, JoinType.INNER, WithdrawalTable.symbolGuid, SymbolTable.guid)
+                .selectAll()
+                .where {
+                    WithdrawalTable.status.eq(WithdrawalStatus.Pending) and
+                        WithdrawalTable.signature.eq(EvmSignature.emptySignature().value) and
+                        SymbolTable.chainId.eq(chainId)
+                }
+                .orderBy(Pair(WithdrawalTable.sequenceId, SortOrder.ASC))
+                .map { WithdrawalEntity.wrapRow(it) }
+                .toList()
+        }
+
+        // Updating like this in case SequencerResponseProcessor sets the status to Sequenced before this is committed
+        fun markAsSentToSequencer(withdrawalId: EntityID<WithdrawalId>) {
+            WithdrawalTable.update(
+                where = {
+                    WithdrawalTable.guid.eq(withdrawalId).and(WithdrawalTable.status.eq(WithdrawalStatus.Pending))
+                },
+                body = {
+                    it[status] = WithdrawalStatus.SentToSequencer
+                    it[updatedAt] = Clock.System.now()
+                },
+            )
+        }
+
         fun findSettling(chainId: ChainId): List<WithdrawalEntity> {
             return WithdrawalTable
                 .join(SymbolTable, JoinType.INNER, WithdrawalTable.symbolGuid, SymbolTable.guid)
@@ -0,0 +1,21 @@
+package xyz.funkybit.core.model.db.migrations
+
+import org.jetbrains.exposed.sql.SchemaUtils
+import org.jetbrains.exposed.sql.transactions.transaction
+import xyz.funkybit.core.db.Migration
+import xyz.funkybit.core.model.db.BroadcasterJobId
+import xyz.funkybit.core.model.db.GUIDTable
+
+@Suppress("ClassName")
+class V105_AddSequenceIdToBroadcasterJob : Migration() {
+
+    object V105_BroadcasterJobTable : GUIDTable<BroadcasterJobId>("broadcaster_job", ::BroadcasterJobId) {
+        val sequenceId = long("sequence_id").autoIncrement().uniqueIndex()
+    }
+
+    override fun run() {
+        transaction {
+            SchemaUtils.createMissingTablesAndColumns(V105_BroadcasterJobTable)
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package xyz.funkybit.core.model.db.migrations
+
+import org.jetbrains.exposed.sql.transactions.transaction
+import xyz.funkybit.core.db.Migration
+import xyz.funkybit.core.db.updateEnum
+import xyz.funkybit.core.model.db.GUIDTable
+import xyz.funkybit.core.model.db.PGEnum
+import xyz.funkybit.core.model.db.WithdrawalId
+
+@Suppress("ClassName")
+class V106_AddSentToSequencerStatusToWithdrawal : Migration() {
+
+    @Suppress("ClassName")
+    enum class V106_WithdrawalStatus {
+        Pending,
+        SentToSequencer,
+        Sequenced,
+        Settling,
+        Complete,
+        PendingRollback,
+        RollingBack,
+        Failed,
+    }
+
+    @Suppress("ClassName")
+    object V106_WithdrawalTable : GUIDTable<WithdrawalId>("withdrawal", ::WithdrawalId) {
+        val status = customEnumeration(
+            "status",
+            "WithdrawalStatus",
+            { value -> V106_WithdrawalStatus.valueOf(value as String) },
+            { PGEnum("WithdrawalStatus", it) },
+        ).index()
+    }
+
+    override fun run() {
+        transaction {
+            updateEnum<V106_WithdrawalStatus>(listOf(V106_WithdrawalTable.status), "WithdrawalStatus")
+        }
+    }
+}
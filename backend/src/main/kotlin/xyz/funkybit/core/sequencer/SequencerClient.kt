@@ -4,6 +4,12 @@ import io.github.oshai.kotlinlogging.KotlinLogging
 import io.grpc.ManagedChannel
 import io.grpc.ManagedChannelBuilder
 import io.opentelemetry.instrumentation.grpc.v1_6.GrpcTelemetry
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.receiveAsFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
 import xyz.funkybit.apps.api.middleware.ServerSpans
 import xyz.funkybit.apps.api.middleware.Tracer
 import xyz.funkybit.core.blockchain.evm.ECHelper
@@ -33,6 +39,8 @@ import xyz.funkybit.sequencer.core.Asset
 import xyz.funkybit.sequencer.core.toDecimalValue
 import xyz.funkybit.sequencer.core.toIntegerValue
 import xyz.funkybit.sequencer.proto.GatewayGrpcKt
+import xyz.funkybit.sequencer.proto.GatewayResponse
+import xyz.funkybit.sequencer.proto.OrderBatch
 import xyz.funkybit.sequencer.proto.SequencerResponse
 import xyz.funkybit.sequencer.proto.authorization
 import xyz.funkybit.sequencer.proto.authorizationProof
@@ -57,6 +65,8 @@ import xyz.funkybit.sequencer.proto.withdrawal
 import java.math.BigDecimal
 import java.math.BigInteger
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 fun OrderId.toSequencerId(): SequencerOrderId {
     return this.value.hashToLong().toSequencerOrderId()
@@ -116,7 +126,10 @@ fun Long.toSequencerWalletId(): SequencerWalletId {
     return SequencerWalletId(this)
 }
 
-open class SequencerClient {
+open class SequencerClient(
+    host: String = System.getenv("SEQUENCER_HOST_NAME") ?: "localhost",
+    port: Int = (System.getenv("SEQUENCER_PORT") ?: "5337").toInt(),
+) {
     private val logger = KotlinLogging.logger {}
 
     data class Order(
@@ -137,10 +150,7 @@ open class SequencerClient {
         val signature: String,
     )
 
-    protected val channel: ManagedChannel = ManagedChannelBuilder.forAddress(
-        System.getenv("SEQUENCER_HOST_NAME") ?: "localhost",
-        (System.getenv("SEQUENCER_PORT") ?: "5337").toInt(),
-    ).usePlaintext().build()
+    protected val channel: ManagedChannel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build()
 
     private val grpcTelemetry = GrpcTelemetry.create(openTelemetry)
 
@@ -177,6 +187,81 @@ open class SequencerClient {
         }.sequencerResponse
     }
 
+    fun openOrderBatchStream(scope: CoroutineScope): OrderBatchStream =
+        OrderBatchStream(scope)
+
+    // A long-lived ApplyOrderBatchStream call for clients that send many order batches, e.g. market makers
+    // repricing their quotes. Batches from concurrent callers are pipelined over the one call, each caller only
+    // waits for the response to its own batch. Guids are a per stream prefix and a counter. Once the call fails
+    // or is closed, waiting and later callers get an exception and a new stream has to be opened.
+    inner class OrderBatchStream internal constructor(scope: CoroutineScope) : AutoCloseable {
+        private val guidPrefix = UUID.randomUUID().toString()
+        private val guidCounter = AtomicLong(0)
+        private val requests = Channel<OrderBatch>(Channel.BUFFERED)
+        private val pending = ConcurrentHashMap<String, CompletableDeferred<GatewayResponse>>()
+
+        @Volatile
+        private var failure: Throwable? = null
+
+        val isOpen: Boolean
+            get() = failure == null
+
+        private val call = scope.launch {
+            try {
+                stub.applyOrderBatchStream(requests.receiveAsFlow()).collect { response ->
+                    pending.remove(response.guid)?.complete(response)
+                }
+                failure = IllegalStateException("Order batch stream closed")
+            } catch (e: Throwable) {
+                logger.warn(e) { "Order batch stream failed" }
+                failure = e
+            } finally {
+                requests.close()
+                pending.values.forEach { it.completeExceptionally(failure ?: IllegalStateException("Order batch stream closed")) }
+                pending.clear()
+            }
+        }
+
+        suspend fun orderBatch(
+            marketId: MarketId,
+            account: SequencerAccountId,
+            walletId: SequencerWalletId,
+            ordersToAdd: List<Order>,
+            ordersToCancel: List<OrderId>,
+            cancelAll: Boolean = false,
+        ): SequencerResponse {
+            failure?.let { throw it }
+            val guid = "$guidPrefix-${guidCounter.incrementAndGet()}"
+            val response = CompletableDeferred<GatewayResponse>().also { pending[guid] = it }
+            try {
+                requests.send(
+                    orderBatch {
+                        this.guid = guid
+                        this.marketId = marketId.value
+                        this.account = account.value
+                        this.wallet = walletId.value
+                        this.ordersToAdd.addAll(
+                            ordersToAdd.map { toOrderDSL(it) },
+                        )
+                        this.ordersToCancel.addAll(
+                            ordersToCancel.map { toCancelOrderDSL(it) },
+                        )
+                        this.cancelAll = cancelAll
+                    },
+                )
+                return response.await().sequencerResponse
+            } finally {
+                pending.remove(guid, response)
+            }
+        }
+
+        // stops sending and waits for the responses to the batches already sent
+        override fun close() {
+            requests.close()
+            runBlocking { call.join() }
+        }
+    }
+
     suspend fun backToBackOrder(
         marketIds: List<MarketId>,
         account: SequencerAccountId,
@@ -0,0 +1,137 @@
+package xyz.funkybit.core.services
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import org.jetbrains.exposed.sql.Database
+import org.jetbrains.exposed.sql.SortOrder
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.exposed.sql.transactions.transaction
+import xyz.funkybit.apps.api.model.Market
+import xyz.funkybit.core.db.notifyDbListener
+import xyz.funkybit.core.model.Address
+import xyz.funkybit.core.model.Symbol
+import xyz.funkybit.core.model.db.ChainEntity
+import xyz.funkybit.core.model.db.ChainId
+import xyz.funkybit.core.model.db.ChainTable
+import xyz.funkybit.core.model.db.DeployedSmartContractEntity
+import xyz.funkybit.core.model.db.FeeRates
+import xyz.funkybit.core.model.db.MarketEntity
+import xyz.funkybit.core.model.db.MarketId
+import xyz.funkybit.core.model.db.SymbolEntity
+import xyz.funkybit.core.model.db.SymbolTable
+import xyz.funkybit.core.utils.PgListener
+
+// Chains, symbols, markets, deployed contracts and fee rates, which are needed on every order but almost never change.
+// They are loaded all at once, and loaded again whenever a change is notified on the reference data channel, so code
+// changing any of them has to call notifyChanged in the same transaction. Lookups of a market or symbol that is not
+// known yet go to the database, in case the notification for it has not arrived yet.
+//
+// Entities are detached from the transaction that loaded them, only their columns can be read.
+object ReferenceDataCache {
+    private const val CHANNEL_NAME = "reference_data_ctl"
+
+    private val logger = KotlinLogging.logger {}
+
+    class ReferenceData(
+        val chains: List<ChainEntity>,
+        val symbols: List<SymbolEntity>,
+        // lastPrice is as of when the markets were loaded
+        val markets: List<Market>,
+        val validContractsByChain: Map<ChainId, List<DeployedSmartContractEntity>>,
+        val exchangeContractByChain: Map<ChainId, Address>,
+        val feeRates: FeeRates,
+    ) {
+        val symbolsByName = symbols.associateBy { it.name }
+        val marketsById = markets.associateBy { it.id }
+    }
+
+    @Volatile
+    private var data: ReferenceData? = null
+
+    private lateinit var pgListener: PgListener
+
+    fun start(db: Database) {
+        reload()
+
+        pgListener = PgListener(
+            db,
+            threadName = "reference-data-listener",
+            channel = CHANNEL_NAME,
+            onReconnect = {
+                reload()
+            },
+            onNotifyLogic = {
+                reload()
+            },
+        )
+        pgListener.start()
+    }
+
+    fun stop() {
+        if (this::pgListener.isInitialized) {
+            pgListener.stop()
+        }
+        data = null
+    }
+
+    fun current(): ReferenceData =
+        data ?: reload()
+
+    fun market(marketId: MarketId): Market? =
+        current().marketsById[marketId]
+            ?: readThrough { MarketEntity.findById(marketId) != null }?.marketsById?.get(marketId)
+
+    fun symbol(name: String): SymbolEntity? =
+        current().symbolsByName[name]
+            ?: readThrough { !SymbolEntity.find { SymbolTable.name.eq(name) }.empty() }?.symbolsByName?.get(name)
+
+    fun symbol(symbol: Symbol): SymbolEntity? =
+        symbol(symbol.value)
+
+    fun exchangeContract(chainId: ChainId): Address? =
+        current().exchangeContractByChain[chainId]
+            ?: readThrough { DeployedSmartContractEntity.latestExchangeContractAddress(chainId) != null }?.exchangeContractByChain?.get(chainId)
+
+    // to be called in the transaction that changes reference data, the notification is delivered on commit
+    fun notifyChanged() {
+        TransactionManager.current().notifyDbListener(CHANNEL_NAME)
+    }
+
+    // reloads everything if the item is in the database but not in the cache yet
+    private fun readThrough(existsInDb: () -> Boolean): ReferenceData? =
+        if (transaction { existsInDb() }) reload() else null
+
+    @Synchronized
+    private fun reload(): ReferenceData =
+        transaction {
+            val chains = ChainEntity.all().orderBy(ChainTable.id to SortOrder.ASC).toList()
+            val symbols = SymbolEntity.all().orderBy(SymbolTable.name to SortOrder.ASC).toList()
+            val symbolsById = symbols.associateBy { it.guid.value }
+
+            ReferenceData(
+                chains = chains,
+                symbols = symbols,
+                markets = MarketEntity.all().map { market ->
+                    val baseSymbol = symbolsById.getValue(market.baseSymbolGuid.value)
+                    val quoteSymbol = symbolsById.getValue(market.quoteSymbolGuid.value)
+                    Market(
+                        id = market.id.value,
+                        baseSymbol = Symbol(baseSymbol.name),
+                        baseDecimals = baseSymbol.decimals.toInt(),
+                        quoteSymbol = Symbol(quoteSymbol.name),
+                        quoteDecimals = quoteSymbol.decimals.toInt(),
+                        tickSize = market.tickSize,
+                        lastPrice = market.lastPrice,
+                        minFee = market.minFee,
+                    )
+                },
+                validContractsByChain = chains.associate { it.id.value to DeployedSmartContractEntity.validContracts(it.id.value) },
+                exchangeContractByChain = chains.mapNotNull { chain ->
+                    DeployedSmartContractEntity.latestExchangeContractAddress(chain.id.value)?.let { chain.id.value to it }
+                }.toMap(),
+                feeRates = FeeRates.fetch(),
+            )
+        }.also {
+            data = it
+            logger.debug { "Loaded ${it.chains.size} chains, ${it.symbols.size} symbols and ${it.markets.size} markets" }
+        }
+}
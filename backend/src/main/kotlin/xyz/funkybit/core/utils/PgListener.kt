@@ -23,12 +23,18 @@ class PgListener(
 
     private val listener = thread(start = false, name = threadName) {
         logger.debug { "TID [${Thread.currentThread().id}] starting for $channel" }
+        var reconnecting = false
         while (true) {
             try {
                 val listenerConn = (database.connector() as JdbcConnectionImpl).connection
                 val pgListenerConn = listenerConn.unwrap(PGConnection::class.java)
                 listenerConn.createStatement().also { it.execute("LISTEN $channel") }.close()
                 isRunning = true
+                // only once listening again, so that nothing notified while catching up is missed
+                if (reconnecting) {
+                    reconnecting = false
+                    onReconnect()
+                }
                 try {
                     while (true) {
                         if (Thread.interrupted()) {
@@ -61,7 +67,7 @@ class PgListener(
             } catch (t: Throwable) {
                 logger.error(t) { "Caught an exception" }
                 Thread.sleep(reconnectDebounceMs)
-                onReconnect()
+                reconnecting = true
             }
         }
     }
@@ -33,6 +33,28 @@ fun humanReadableNanoseconds(ns: Long): String {
     return "${ns}ns"
 }
 
+// the size of the string encoded as UTF-8, without encoding it. An unpaired surrogate counts as the one byte of the
+// '?' it is replaced with
+fun String.utf8Length(): Int {
+    var length = 0
+    var i = 0
+    while (i < this.length) {
+        val c = this[i]
+        length += when {
+            c.code < 0x80 -> 1
+            c.code < 0x800 -> 2
+            c.isHighSurrogate() && i + 1 < this.length && this[i + 1].isLowSurrogate() -> {
+                i++
+                4
+            }
+            c.isSurrogate() -> 1
+            else -> 3
+        }
+        i++
+    }
+    return length
+}
+
 fun generateHexString(length: Int = 64): String {
     val alphaChars = ('0'..'9').toList().toTypedArray() + ('a'..'f').toList().toTypedArray()
     return (1..length).map { alphaChars.random().toChar() }.toMutableList().joinToString("")
@@ -124,8 +124,12 @@ object ArchUtils {
         }
     }
 
-    fun handleTxStatusUpdate(txId: TxHash, onError: () -> Unit, onProcessed: () -> Unit): Boolean {
-        return ArchNetworkClient.getProcessedTransaction(txId)?.let {
+    fun handleTxStatusUpdate(txId: TxHash, onError: () -> Unit, onProcessed: () -> Unit): Boolean =
+        handleTxStatusUpdate(txId, ArchNetworkClient.getProcessedTransaction(txId), onError, onProcessed)
+
+    // for a transaction already fetched, e.g. as part of a batch
+    fun handleTxStatusUpdate(txId: TxHash, processedTx: ArchNetworkRpc.ProcessedTransaction?, onError: () -> Unit, onProcessed: () -> Unit): Boolean {
+        return processedTx?.let {
             when (it.statusInfo.status) {
                 ArchNetworkRpc.Status.Processed -> {
                     logger.debug { "$txId Processed" }
@@ -507,6 +511,14 @@ object ArchUtils {
     inline fun <reified T> getAccountState(pubkey: ArchNetworkRpc.Pubkey): T =
         ExchangeProgramProtocolFormat.decodeFromByteArray(ArchNetworkClient.readAccountInfo(pubkey).data.toByteArray())
 
+    @OptIn(ExperimentalUnsignedTypes::class)
+    inline fun <reified T> getAccountStates(pubkeys: List<ArchNetworkRpc.Pubkey>): Map<ArchNetworkRpc.Pubkey, T> =
+        pubkeys.distinct().let { distinctPubkeys ->
+            distinctPubkeys.zip(ArchNetworkClient.readAccountInfos(distinctPubkeys)).associate { (pubkey, accountInfo) ->
+                pubkey to ExchangeProgramProtocolFormat.decodeFromByteArray<T>(accountInfo.data.toByteArray())
+            }
+        }
+
     @OptIn(ExperimentalUnsignedTypes::class)
     fun signAndSendProgramInstruction(programPubkey: ArchNetworkRpc.Pubkey, accountMetas: List<ArchNetworkRpc.AccountMeta>, programInstruction: ProgramInstruction): TxHash {
         return signAndSendInstruction(
@@ -0,0 +1,43 @@
+package xyz.funkybit.core.websocket
+
+import xyz.funkybit.apps.api.model.websocket.SubscriptionTopic
+import xyz.funkybit.core.utils.humanReadableNanoseconds
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.LongAdder
+
+// Time spent serializing broadcast messages and the size of the payloads by kind of topic, so that the cost of
+// fanning out a message can be compared to the number of clients it was sent to
+class BroadcastStats {
+    private class TopicStats {
+        val messages = LongAdder()
+        val encodingNanos = LongAdder()
+        val bytes = LongAdder()
+        val deliveries = LongAdder()
+    }
+
+    // swapped for an empty map by the thread that logs the summary
+    private val statsByTopic = AtomicReference(ConcurrentHashMap<String, TopicStats>())
+
+    fun record(topic: SubscriptionTopic, encodingNanos: Long, bytes: Int, deliveries: Int) {
+        statsByTopic.get().getOrPut(topic::class.simpleName ?: "Unknown") { TopicStats() }.apply {
+            messages.increment()
+            this.encodingNanos.add(encodingNanos)
+            this.bytes.add(bytes.toLong())
+            this.deliveries.add(deliveries.toLong())
+        }
+    }
+
+    fun summaryAndReset(): String? {
+        val stats = statsByTopic.getAndSet(ConcurrentHashMap())
+        if (stats.isEmpty()) return null
+
+        return stats.entries.sortedBy { it.key }.joinToString("\n") { (topic, topicStats) ->
+            val messages = topicStats.messages.sum()
+            val encodingNanos = topicStats.encodingNanos.sum()
+            "$topic: $messages encoded in ${humanReadableNanoseconds(encodingNanos)} " +
+                "(${humanReadableNanoseconds(encodingNanos / messages)} each), " +
+                "${topicStats.bytes.sum()} bytes, ${topicStats.deliveries.sum()} sent"
+        }
+    }
+}
@@ -3,8 +3,10 @@ package xyz.funkybit.core.websocket
 import io.github.oshai.kotlinlogging.KotlinLogging
 import kotlinx.datetime.Clock
 import kotlinx.datetime.Instant
+import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
+import org.http4k.format.KotlinxSerialization
 import org.http4k.websocket.Websocket
 import org.http4k.websocket.WsMessage
 import org.jetbrains.exposed.sql.Database
@@ -24,13 +26,14 @@ import xyz.funkybit.apps.api.model.websocket.OrderBookDiff
 import xyz.funkybit.apps.api.model.websocket.OutgoingWSMessage
 import xyz.funkybit.apps.api.model.websocket.Prices
 import xyz.funkybit.apps.api.model.websocket.SubscriptionTopic
+import xyz.funkybit.apps.api.wsLagging
 import xyz.funkybit.apps.api.wsUnauthorized
 import xyz.funkybit.core.model.db.BalanceEntity
 import xyz.funkybit.core.model.db.BroadcasterJobEntity
 import xyz.funkybit.core.model.db.BroadcasterJobId
+import xyz.funkybit.core.model.db.BroadcasterJobPayload
 import xyz.funkybit.core.model.db.BroadcasterNotification
 import xyz.funkybit.core.model.db.LimitEntity
-import xyz.funkybit.core.model.db.MarketEntity
 import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.OHLCDuration
 import xyz.funkybit.core.model.db.OHLCEntity
@@ -41,11 +44,16 @@ import xyz.funkybit.core.model.db.OrderStatus
 import xyz.funkybit.core.model.db.UserId
 import xyz.funkybit.core.model.db.WalletEntity
 import xyz.funkybit.core.model.db.toOrderResponse
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.core.utils.PgListener
+import xyz.funkybit.core.utils.Timer
+import xyz.funkybit.core.utils.utf8Length
 import java.math.BigDecimal
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
 import kotlin.time.Duration.Companion.hours
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.toJavaDuration
 
 private val logger = KotlinLogging.logger {}
 
@@ -54,13 +62,40 @@ data class ConnectedClient(
     val principal: WalletEntity?,
     val authorizedUntil: Instant,
 ) : Websocket by websocket {
+    private val outbox = ClientOutbox(
+        write = websocket::send,
+        onLagging = {
+            logger.info { "Disconnecting websocket client that fell behind, principal=${principal?.guid?.value}" }
+            websocket.close(wsLagging)
+        },
+        isWritable = { (websocket as? FlowControlledWebsocket)?.isWritable ?: true },
+    )
+
+    init {
+        (websocket as? FlowControlledWebsocket)?.onWritable { outbox.resume() }
+    }
+
     fun send(message: OutgoingWSMessage) {
         if (authorizedUntil >= Clock.System.now()) {
-            websocket.send(WsMessage(Json.encodeToString(message)))
+            outbox.offer(WsMessage(Json.encodeToString(message)))
+        } else {
+            websocket.close(wsUnauthorized)
+        }
+    }
+
+    // for messages that were encoded once for all of their recipients. A queued message with the same conflation key
+    // is replaced by this one
+    fun sendEncoded(message: WsMessage, conflationKey: SubscriptionTopic? = null) {
+        if (authorizedUntil >= Clock.System.now()) {
+            outbox.offer(message, conflationKey)
         } else {
             websocket.close(wsUnauthorized)
         }
     }
+
+    fun disconnected() {
+        outbox.close()
+    }
 }
 
 typealias Subscriptions = CopyOnWriteArrayList<ConnectedClient>
@@ -75,6 +110,14 @@ class Broadcaster(val db: Database) {
     private val orderBooksByMarket = ConcurrentHashMap<MarketId, OrderBook>()
     private val pricesByMarketAndPeriod = ConcurrentHashMap<SubscriptionTopic.Prices, MutableList<OHLC>>()
     private val pricesDailyChangeByMarket = ConcurrentHashMap<MarketId, BigDecimal>()
+    private val stats = BroadcastStats()
+
+    // Only accessed on the listener thread. When the listener reconnects, the jobs created since shortly before the
+    // last one received are replayed, the overlap covering jobs that were committed late. Jobs sent recently are
+    // remembered so that the overlap, or jobs notified again while replaying, are not sent twice.
+    private var lastJobReceivedAt: Instant? = null
+    private val recentlySentJobs = LinkedHashMap<Long, Instant>()
+    private var statsTimer: Timer? = null
 
     private val pgListener = PgListener(
         db,
@@ -82,6 +125,7 @@ class Broadcaster(val db: Database) {
         channel = "broadcaster_ctl",
         onReconnect = {
             reloadPrices()
+            replayMissedJobs()
         },
         onNotifyLogic = { notification ->
             handleDbNotification(notification.parameter)
@@ -98,7 +142,7 @@ class Broadcaster(val db: Database) {
                 TopicSubscriptions()
             }.getOrPut(topic) {
                 // first check that the topic is valid
-                if (!transaction { topic.validate() }) {
+                if (!topic.validate()) {
                     throw InvalidSubscriptionException()
                 }
                 Subscriptions()
@@ -143,12 +187,17 @@ class Broadcaster(val db: Database) {
     fun start() {
         pgListener.start()
         reloadPrices()
+        statsTimer = Timer(logger).also {
+            it.scheduleAtFixedRate(statsInterval.toJavaDuration(), statsInterval.toJavaDuration(), stopOnError = false) {
+                stats.summaryAndReset()?.let { summary -> logger.info { "Broadcast stats for the last $statsInterval:\n$summary" } }
+            }
+        }
     }
 
     private fun reloadPrices() {
         transaction {
             // load historical prices once, later only updates will be delivered via notify
-            MarketEntity.all().map { it.guid.value }.forEach { market ->
+            ReferenceDataCache.current().markets.map { it.id }.forEach { market ->
                 OHLCDuration.entries.forEach { duration ->
                     // equivalent to 7 days of 5 minutes intervals
                     val startTime = Clock.System.now() - duration.interval() * 20 * 24 * 7
@@ -171,6 +220,7 @@ class Broadcaster(val db: Database) {
 
     fun stop() {
         pgListener.stop()
+        statsTimer?.cancel()
     }
 
     private fun sendPrices(topic: SubscriptionTopic.Prices, client: ConnectedClient) {
@@ -311,20 +361,56 @@ class Broadcaster(val db: Database) {
     private fun handleDbNotification(payload: String) {
         logger.debug { "received db notification with payload $payload" }
         try {
-            if (payload == "clear-cache") {
-                clearCache()
-            } else {
-                val notifications = transaction {
-                    BroadcasterJobEntity.findById(BroadcasterJobId(payload))?.notificationData ?: emptyList()
+            when {
+                payload == "clear-cache" -> clearCache()
+                payload.startsWith("{") -> {
+                    val job = KotlinxSerialization.json.decodeFromString<BroadcasterJobPayload>(payload)
+                    val notifications = job.notifications ?: transaction {
+                        BroadcasterJobEntity.findBySequenceId(job.sequenceId)?.notificationData
+                    } ?: emptyList()
+                    notifyJob(job.sequenceId, notifications)
+                }
+                else -> {
+                    // a job id, as published before notifications were sent in the payload
+                    transaction {
+                        BroadcasterJobEntity.findById(BroadcasterJobId(payload))?.let { Pair(it.sequenceId, it.notificationData) }
+                    }?.let { (sequenceId, notifications) -> notifyJob(sequenceId, notifications) }
                 }
-
-                notifications.forEach(::notify)
             }
         } catch (e: Exception) {
             logger.error(e) { "Broadcaster: Unhandled exception" }
         }
     }
 
+    private fun notifyJob(sequenceId: Long, notifications: List<BroadcasterNotification>) {
+        if (recentlySentJobs.containsKey(sequenceId)) {
+            return
+        }
+        notifications.forEach(::notify)
+
+        val now = Clock.System.now()
+        lastJobReceivedAt = now
+        recentlySentJobs[sequenceId] = now
+        // older jobs are out of reach of a replay, which starts one overlap before the last job received
+        val iterator = recentlySentJobs.values.iterator()
+        while (iterator.hasNext() && iterator.next() < now - jobReplayOverlap * 2) {
+            iterator.remove()
+        }
+    }
+
+    private fun replayMissedJobs() {
+        val since = lastJobReceivedAt?.let { it - jobReplayOverlap } ?: return
+        try {
+            val missedJobs = transaction {
+                BroadcasterJobEntity.listCreatedSince(since).map { Pair(it.sequenceId, it.notificationData) }
+            }.filterNot { (sequenceId, _) -> recentlySentJobs.containsKey(sequenceId) }
+            logger.info { "Replaying ${missedJobs.size} broadcaster jobs created since $since" }
+            missedJobs.forEach { (sequenceId, notifications) -> notifyJob(sequenceId, notifications) }
+        } catch (e: Exception) {
+            logger.error(e) { "Broadcaster: could not replay jobs created since $since" }
+        }
+    }
+
     private fun clearCache() {
         reloadPrices()
         orderBooksByMarket.clear()
@@ -348,21 +434,53 @@ class Broadcaster(val db: Database) {
             is Limits -> SubscriptionTopic.Limits
         }
 
-        val clients = if (notification.recipient == null) {
-            subscriptions.getOrPut(topic) { Subscriptions() }
-        } else {
-            findClients(notification.recipient, topic)
+        val message: OutgoingWSMessage = OutgoingWSMessage.Publish(topic, notification.message)
+        // for topics where each message carries the full state, a client that is behind only needs the latest one.
+        // Prices are not among them, their updates carry single candles that the client merges into its chart
+        val conflationKey = when (topic) {
+            is SubscriptionTopic.OrderBook, SubscriptionTopic.Balances, SubscriptionTopic.Limits -> topic
+            else -> null
         }
 
-        clients.forEach { client ->
-            try {
-                client.send(OutgoingWSMessage.Publish(topic, notification.message))
-            } catch (e: Exception) {
-                logger.warn(e) { "Error sending message. Recipient=${client.principal}, topic=$topic, message=${notification.message}" }
+        if (notification.recipient == null) {
+            // public topics are encoded once and the same payload is written to every subscriber
+            val clients = subscriptions.getOrPut(topic) { Subscriptions() }
+            if (clients.isEmpty()) return
+
+            val encoded = encode(topic, message, deliveries = clients.size)
+            clients.forEach { client ->
+                try {
+                    client.sendEncoded(encoded, conflationKey)
+                } catch (e: Exception) {
+                    logger.warn(e) { "Error sending message. Recipient=${client.principal}, topic=$topic, message=${notification.message}" }
+                }
+            }
+        } else {
+            findClients(notification.recipient, topic).forEach { client ->
+                try {
+                    client.sendEncoded(encode(topic, message, deliveries = 1), conflationKey)
+                } catch (e: Exception) {
+                    logger.warn(e) { "Error sending message. Recipient=${client.principal}, topic=$topic, message=${notification.message}" }
+                }
             }
         }
     }
 
+    private fun encode(topic: SubscriptionTopic, message: OutgoingWSMessage, deliveries: Int): WsMessage {
+        val startedAt = System.nanoTime()
+        val encoded = Json.encodeToString(message)
+        val encodingNanos = System.nanoTime() - startedAt
+        stats.record(topic, encodingNanos, encoded.utf8Length(), deliveries)
+        return WsMessage(encoded)
+    }
+
     private fun findClients(userId: UserId, topic: SubscriptionTopic): List<ConnectedClient> =
         subscriptionsByUser[userId]?.get(topic) ?: emptyList()
+
+    private companion object {
+        val statsInterval = 1.minutes
+
+        // allows for the delay between a job being created and committed, and for clock differences between nodes
+        val jobReplayOverlap = 1.minutes
+    }
 }
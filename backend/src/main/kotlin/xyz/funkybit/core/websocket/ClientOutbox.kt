@@ -0,0 +1,125 @@
+package xyz.funkybit.core.websocket
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.http4k.websocket.WsMessage
+import xyz.funkybit.apps.api.model.websocket.SubscriptionTopic
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+data class ClientOutboxConfig(
+    val capacity: Int = System.getenv("WS_CLIENT_QUEUE_CAPACITY")?.toIntOrNull() ?: 1000,
+    // a client whose oldest queued message has been waiting this long is disconnected
+    val maxLagMs: Long = System.getenv("WS_CLIENT_MAX_LAG_MS")?.toLongOrNull() ?: 10_000L,
+)
+
+// Messages waiting to be written to one client. They are written in order by the shared writer pool, at most one
+// writer per client at a time, so that the thread producing messages never waits for a client. Writes may return
+// before the client has read anything, so writing stops while isWritable is false and continues on resume, and the
+// messages the client has not caught up with stay here. Messages with a conflation key replace a queued message with
+// the same key instead of being queued behind it, so a client that falls behind gets the latest snapshot rather than
+// all of them. A client that exceeds the capacity or lags by more than the configured time is handed to onLagging.
+class ClientOutbox(
+    private val write: (WsMessage) -> Unit,
+    private val onLagging: () -> Unit,
+    private val isWritable: () -> Boolean = { true },
+    private val config: ClientOutboxConfig = defaultConfig,
+    private val writers: Executor = defaultWriters,
+) {
+    private val logger = KotlinLogging.logger {}
+
+    private class Entry(
+        var message: WsMessage,
+        val conflationKey: SubscriptionTopic?,
+        val enqueuedAt: Long,
+    )
+
+    private val queue = ArrayDeque<Entry>()
+    private val conflatable = mutableMapOf<SubscriptionTopic, Entry>()
+    private var draining = false
+    private var closed = false
+
+    fun offer(message: WsMessage, conflationKey: SubscriptionTopic? = null) {
+        val now = System.nanoTime()
+        var lagging = false
+        val startDrain = synchronized(this) {
+            if (closed) return
+
+            val conflated = conflationKey?.let { conflatable[it] }
+            when {
+                queue.firstOrNull()?.let { now - it.enqueuedAt > TimeUnit.MILLISECONDS.toNanos(config.maxLagMs) } == true -> lagging = true
+                conflated != null -> conflated.message = message
+                queue.size >= config.capacity -> lagging = true
+                else -> {
+                    val entry = Entry(message, conflationKey, now)
+                    queue.addLast(entry)
+                    conflationKey?.let { conflatable[it] = entry }
+                }
+            }
+
+            if (lagging) {
+                closed = true
+                queue.clear()
+                conflatable.clear()
+            }
+
+            (!lagging && !draining).also { if (it) draining = true }
+        }
+
+        if (lagging) {
+            onLagging()
+        } else if (startDrain) {
+            writers.execute(::drain)
+        }
+    }
+
+    // called once the client can take more messages after isWritable returned false
+    fun resume() {
+        val startDrain = synchronized(this) {
+            (!closed && !draining && queue.isNotEmpty()).also { if (it) draining = true }
+        }
+        if (startDrain) {
+            writers.execute(::drain)
+        }
+    }
+
+    fun close() {
+        synchronized(this) {
+            closed = true
+            queue.clear()
+            conflatable.clear()
+        }
+    }
+
+    private fun drain() {
+        while (true) {
+            // checked under the lock so that a resume for the change to writable cannot be missed
+            val entry = synchronized(this) {
+                queue.firstOrNull()?.takeIf { isWritable() }?.also { entry ->
+                    queue.removeFirst()
+                    entry.conflationKey?.let { conflatable.remove(it) }
+                } ?: run {
+                    draining = false
+                    null
+                }
+            } ?: return
+
+            try {
+                write(entry.message)
+            } catch (e: Exception) {
+                logger.warn(e) { "Error writing message to client" }
+            }
+        }
+    }
+
+    companion object {
+        private val defaultConfig = ClientOutboxConfig()
+
+        private val defaultWriters: ExecutorService = Executors.newFixedThreadPool(
+            System.getenv("WS_WRITER_THREADS")?.toIntOrNull() ?: Runtime.getRuntime().availableProcessors(),
+            BasicThreadFactory.Builder().namingPattern("ws-writer-%d").daemon(true).build(),
+        )
+    }
+}
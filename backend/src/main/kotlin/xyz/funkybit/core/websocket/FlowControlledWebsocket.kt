@@ -0,0 +1,12 @@
+package xyz.funkybit.core.websocket
+
+import org.http4k.websocket.Websocket
+
+// A websocket whose send only queues the message with the transport, which writes it when the client reads. While
+// it is not writable the transport is already holding more than it should for this client, so senders hold their
+// messages back and continue once onWritable is called.
+interface FlowControlledWebsocket : Websocket {
+    val isWritable: Boolean
+
+    fun onWritable(fn: () -> Unit)
+}
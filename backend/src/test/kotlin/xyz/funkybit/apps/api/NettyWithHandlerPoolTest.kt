@@ -0,0 +1,74 @@
+package xyz.funkybit.apps.api
+
+import kotlinx.datetime.Instant
+import org.http4k.websocket.WsMessage
+import org.http4k.websocket.WsResponse
+import org.http4k.websocket.WsStatus
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import xyz.funkybit.core.websocket.ConnectedClient
+import xyz.funkybit.core.websocket.FlowControlledWebsocket
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class NettyWithHandlerPoolTest {
+    private class RecordingWebsocket(
+        private val websocket: FlowControlledWebsocket,
+        val closedWith: CompletableFuture<WsStatus>,
+    ) : FlowControlledWebsocket by websocket {
+        override fun close(status: WsStatus) {
+            closedWith.complete(status)
+            websocket.close(status)
+        }
+    }
+
+    @Test
+    fun `websocket client that does not read is dropped instead of buffered`() {
+        val message = WsMessage("x".repeat(16 * 1024))
+        val closedWith = CompletableFuture<WsStatus>()
+
+        val server = NettyWithHandlerPool(0).toServer(
+            null,
+            { _ ->
+                WsResponse { websocket ->
+                    val client = ConnectedClient(RecordingWebsocket(websocket as FlowControlledWebsocket, closedWith), null, Instant.DISTANT_FUTURE)
+                    // off the event loop, which has to keep running for the channel to report its writability
+                    thread {
+                        repeat(5000) { client.sendEncoded(message) }
+                    }
+                }
+            },
+            null,
+        ).start()
+
+        try {
+            Socket().use { socket ->
+                // a small receive window, and nothing is read after the handshake
+                socket.receiveBufferSize = 1024
+                socket.connect(InetSocketAddress("localhost", server.port()))
+                socket.getOutputStream().write(
+                    (
+                        "GET /connect HTTP/1.1\r\n" +
+                            "Host: localhost:${server.port()}\r\n" +
+                            "Upgrade: websocket\r\n" +
+                            "Connection: Upgrade\r\n" +
+                            "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                            "Sec-WebSocket-Version: 13\r\n\r\n"
+                        ).toByteArray(),
+                )
+                val statusLine = socket.getInputStream().bufferedReader().readLine()
+                assertTrue(statusLine.startsWith("HTTP/1.1 101"), statusLine)
+
+                // the messages the client did not read piled up in its outbox until it exceeded the capacity, rather
+                // than all of them being queued on the channel
+                assertEquals(wsLagging, closedWith.get(30, TimeUnit.SECONDS))
+            }
+        } finally {
+            server.stop()
+        }
+    }
+}
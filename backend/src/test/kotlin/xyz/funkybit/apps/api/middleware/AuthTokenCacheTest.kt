@@ -0,0 +1,76 @@
+package xyz.funkybit.apps.api.middleware
+
+import kotlinx.datetime.Clock
+import org.jetbrains.exposed.dao.id.EntityID
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import xyz.funkybit.core.model.EvmAddress
+import xyz.funkybit.core.model.db.ChainId
+import xyz.funkybit.core.model.db.WalletEntity
+import xyz.funkybit.core.model.db.WalletId
+import xyz.funkybit.core.model.db.WalletTable
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.Duration.Companion.seconds
+
+class AuthTokenCacheTest {
+    private val address = EvmAddress("0x1c4A7F3Be4Fc58C3F4B9a5D0c2d7E8e4B4b7A3F1")
+    private val now = Clock.System.now()
+
+    private fun verifiedToken(expiresIn: Duration = 1.minutes) =
+        AuthTokenCache.VerifiedToken(
+            AuthResult.Success(
+                address = address,
+                expiresAt = now + expiresIn,
+                message = SignInMessage("sign in", address.value, ChainId(1337UL), now.toString()),
+                signature = "0x00",
+            ),
+            linkedSigner = null,
+        )
+
+    @Test
+    fun `verified tokens are kept until they expire`() {
+        val cache = AuthTokenCache()
+        val verified = verifiedToken()
+
+        cache.putToken("token", verified)
+        assertEquals(verified, cache.getToken("token", now))
+        assertNull(cache.getToken("other token", now))
+        assertNull(cache.getToken("token", now + 2.minutes))
+        // and expired ones are dropped
+        assertNull(cache.getToken("token", now))
+    }
+
+    @Test
+    fun `least recently used tokens are evicted`() {
+        val cache = AuthTokenCache(maxSize = 2)
+
+        cache.putToken("token 1", verifiedToken())
+        cache.putToken("token 2", verifiedToken())
+        cache.getToken("token 1", now)
+        cache.putToken("token 3", verifiedToken())
+
+        assertNull(cache.getToken("token 2", now))
+        assertEquals(verifiedToken(), cache.getToken("token 1", now))
+        assertEquals(verifiedToken(), cache.getToken("token 3", now))
+    }
+
+    @Test
+    fun `wallets are reloaded once their ttl is over`() {
+        val cache = AuthTokenCache(walletTtl = 30.seconds)
+        var loads = 0
+        val load = {
+            loads++
+            WalletEntity(EntityID(WalletId.generate(address), WalletTable))
+        }
+
+        val wallet = cache.getOrLoadWallet(address, now, load)
+        assertSame(wallet, cache.getOrLoadWallet(address, now + 10.seconds, load))
+        assertEquals(1, loads)
+
+        cache.getOrLoadWallet(address, now + 31.seconds, load)
+        assertEquals(2, loads)
+    }
+}
@@ -0,0 +1,200 @@
+package xyz.funkybit.apps.ring
+
+import io.grpc.Status
+import io.grpc.StatusException
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.every
+import io.mockk.mockk
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.abi.EventEncoder
+import org.web3j.abi.TypeEncoder
+import org.web3j.abi.datatypes.Address
+import org.web3j.abi.datatypes.generated.Uint256
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.Log
+import org.web3j.utils.Numeric
+import xyz.funkybit.contracts.generated.Exchange
+import xyz.funkybit.core.blockchain.evm.EvmClient
+import xyz.funkybit.core.blockchain.evm.EvmServerException
+import xyz.funkybit.core.model.EvmAddress
+import xyz.funkybit.core.model.TxHash
+import xyz.funkybit.core.model.db.BlockEntity
+import xyz.funkybit.core.model.db.BlockHash
+import xyz.funkybit.core.model.db.ChainId
+import xyz.funkybit.core.model.db.DepositEntity
+import xyz.funkybit.core.model.db.DepositStatus
+import xyz.funkybit.core.model.db.WithdrawalEntity
+import xyz.funkybit.core.model.db.WithdrawalStatus
+import xyz.funkybit.core.sequencer.SequencerClient
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import xyz.funkybit.testfixtures.DbTestHelpers.createChain
+import xyz.funkybit.testfixtures.DbTestHelpers.createNativeSymbol
+import xyz.funkybit.testfixtures.DbTestHelpers.createWallet
+import xyz.funkybit.testutils.TestWithDb
+import java.math.BigInteger
+import kotlin.test.assertEquals
+
+class EvmBlockProcessorTest : TestWithDb() {
+    private val chainId = ChainId(1337UL)
+    private val evmClient = mockk<EvmClient>()
+    private lateinit var depositTxHash: TxHash
+
+    @BeforeEach
+    fun setup() {
+        every { evmClient.chainId } returns chainId
+        every { evmClient.getBlockNumber() } returns BigInteger.valueOf(4)
+
+        transaction {
+            createChain(chainId, "test-chain")
+            val btc = createNativeSymbol("BTC", chainId, decimals = 18U)
+            BlockEntity.create(BlockHash("0x1"), BigInteger.ONE, BlockHash("0x0"), chainId)
+            BlockEntity.create(BlockHash("0x2"), BigInteger.TWO, BlockHash("0x1"), chainId)
+            depositTxHash = TxHash.generate()
+            DepositEntity.createOrUpdate(createWallet(), btc, BigInteger.TEN, BigInteger.TWO, depositTxHash)
+        }
+    }
+
+    @Test
+    fun `fork is handled when the first block of a range does not extend the last processed block`() {
+        every { evmClient.getBlocksWithExchangeContractLogs(BigInteger.valueOf(3), BigInteger.valueOf(4)) } returns
+            EvmClient.BlocksWithLogs(listOf(block(3, "0x3b", "0x2b"), block(4, "0x4b", "0x3b")), emptyList())
+        every { evmClient.getBlocks(any()) } answers {
+            firstArg<List<BigInteger>>().map { block(it.toLong(), if (it == BigInteger.ONE) "0x1" else "0x${it}b", "") }
+        }
+
+        assertEquals(0, processor().processNewBlocks())
+
+        transaction {
+            assertEquals(listOf("0x1"), processedBlockHashes())
+            DepositEntity.findByTxHash(depositTxHash)!!.also {
+                assertEquals(DepositStatus.Failed, it.status)
+                assertEquals("Fork rollback", it.error)
+            }
+        }
+    }
+
+    @Test
+    fun `processing stops at a block not extending its predecessor in the same range`() {
+        every { evmClient.getBlocksWithExchangeContractLogs(BigInteger.valueOf(3), BigInteger.valueOf(4)) } returns
+            EvmClient.BlocksWithLogs(listOf(block(3, "0x3", "0x2"), block(4, "0x4b", "0x3b")), emptyList())
+
+        assertEquals(1, processor().processNewBlocks())
+
+        transaction {
+            assertEquals(listOf("0x3", "0x2", "0x1"), processedBlockHashes())
+            assertEquals(DepositStatus.Pending, DepositEntity.findByTxHash(depositTxHash)!!.status)
+        }
+    }
+
+    @Test
+    fun `range is not processed when a log is not from one of its blocks`() {
+        every { evmClient.getBlocksWithExchangeContractLogs(BigInteger.valueOf(3), BigInteger.valueOf(4)) } returns
+            EvmClient.BlocksWithLogs(
+                listOf(block(3, "0x3", "0x2"), block(4, "0x4", "0x3")),
+                listOf(
+                    Log().apply {
+                        blockHash = "0x4b"
+                        setBlockNumber(Numeric.encodeQuantity(BigInteger.valueOf(4)))
+                    },
+                ),
+            )
+
+        assertThrows<EvmServerException> {
+            processor().processNewBlocks()
+        }
+
+        transaction {
+            assertEquals(listOf("0x2", "0x1"), processedBlockHashes())
+        }
+    }
+
+    @Test
+    fun `sovereign withdrawal is sent again when the sequencer was unavailable`() {
+        val from = EvmAddress.generate()
+        transaction { createWallet(from) }
+        every { evmClient.getBlocksWithExchangeContractLogs(BigInteger.valueOf(3), BigInteger.valueOf(4)) } returns
+            EvmClient.BlocksWithLogs(
+                listOf(block(3, "0x3", "0x2"), block(4, "0x4", "0x3")),
+                listOf(withdrawalRequestedLog(3, "0x3", from, BigInteger.ONE), withdrawalRequestedLog(4, "0x4", from, BigInteger.TWO)),
+            )
+
+        val sequencerClient = mockk<SequencerClient>()
+        val sentAmounts = mutableListOf<BigInteger>()
+        var calls = 0
+        coEvery { sequencerClient.withdraw(any(), any(), any(), any(), any(), any()) } answers {
+            if (calls++ == 0) throw StatusException(Status.UNAVAILABLE)
+            sentAmounts.add(thirdArg())
+            SequencerResponse.getDefaultInstance()
+        }
+        val processor = EvmBlockProcessor(evmClient, sequencerClient, batchSize = 10)
+
+        // the first withdrawal fails, the one after it is still sent
+        assertEquals(2, processor.processNewBlocks())
+        assertEquals(listOf(BigInteger.TWO), sentAmounts)
+        transaction {
+            assertEquals(listOf(WithdrawalStatus.Pending, WithdrawalStatus.SentToSequencer), withdrawalStatuses())
+        }
+
+        // and the next call sends the first one again, with no new blocks to process
+        assertEquals(0, processor.processNewBlocks())
+        assertEquals(listOf(BigInteger.TWO, BigInteger.ONE), sentAmounts)
+        transaction {
+            assertEquals(listOf(WithdrawalStatus.SentToSequencer, WithdrawalStatus.SentToSequencer), withdrawalStatuses())
+        }
+        coVerify(exactly = 3) { sequencerClient.withdraw(any(), any(), any(), any(), any(), any()) }
+    }
+
+    @Test
+    fun `sovereign withdrawal is not sent again when the sequencer may have received it`() {
+        val from = EvmAddress.generate()
+        transaction { createWallet(from) }
+        every { evmClient.getBlocksWithExchangeContractLogs(BigInteger.valueOf(3), BigInteger.valueOf(4)) } returns
+            EvmClient.BlocksWithLogs(
+                listOf(block(3, "0x3", "0x2"), block(4, "0x4", "0x3")),
+                listOf(withdrawalRequestedLog(3, "0x3", from, BigInteger.ONE)),
+            )
+
+        // as when the gateway times out waiting for the sequencer
+        val sequencerClient = mockk<SequencerClient>()
+        coEvery { sequencerClient.withdraw(any(), any(), any(), any(), any(), any()) } throws StatusException(Status.UNKNOWN)
+        val processor = EvmBlockProcessor(evmClient, sequencerClient, batchSize = 10)
+
+        assertEquals(2, processor.processNewBlocks())
+        assertEquals(0, processor.processNewBlocks())
+        transaction {
+            assertEquals(listOf(WithdrawalStatus.SentToSequencer), withdrawalStatuses())
+        }
+        coVerify(exactly = 1) { sequencerClient.withdraw(any(), any(), any(), any(), any(), any()) }
+    }
+
+    private fun processor() =
+        EvmBlockProcessor(evmClient, mockk<SequencerClient>(), batchSize = 10)
+
+    private fun processedBlockHashes(): List<String> =
+        BlockEntity.getRecentBlocksUpToNumber(BigInteger.ZERO, chainId).map { it.hash }
+
+    private fun withdrawalStatuses(): List<WithdrawalStatus> =
+        WithdrawalEntity.all().sortedBy { it.sequenceId }.map { it.status }
+
+    private fun withdrawalRequestedLog(blockNumber: Long, blockHash: String, from: EvmAddress, amount: BigInteger): Log =
+        Log().apply {
+            this.blockHash = blockHash
+            setBlockNumber(Numeric.encodeQuantity(BigInteger.valueOf(blockNumber)))
+            topics = listOf(
+                EventEncoder.encode(Exchange.WITHDRAWALREQUESTED_EVENT),
+                Numeric.prependHexPrefix(TypeEncoder.encode(Address(from.value))),
+            )
+            data = Numeric.prependHexPrefix(TypeEncoder.encode(Address(EvmAddress.zero.value)) + TypeEncoder.encode(Uint256(amount)))
+        }
+
+    private fun block(number: Long, hash: String, parentHash: String): EthBlock.Block =
+        EthBlock.Block().apply {
+            setNumber(Numeric.encodeQuantity(BigInteger.valueOf(number)))
+            this.hash = hash
+            this.parentHash = parentHash
+        }
+}
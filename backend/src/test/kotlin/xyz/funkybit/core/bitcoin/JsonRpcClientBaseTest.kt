@@ -0,0 +1,131 @@
+package xyz.funkybit.core.bitcoin
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.add
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.jsonArray
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import kotlinx.serialization.json.put
+import kotlinx.serialization.json.putJsonArray
+import kotlinx.serialization.json.putJsonObject
+import org.http4k.core.Request
+import org.http4k.core.Response
+import org.http4k.core.Status
+import org.http4k.server.Http4kServer
+import org.http4k.server.SunHttp
+import org.http4k.server.asServer
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import xyz.funkybit.core.blockchain.bitcoin.JsonRpcClientBase
+import xyz.funkybit.core.blockchain.bitcoin.JsonRpcException
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.test.assertEquals
+import kotlin.test.assertIs
+
+class JsonRpcClientBaseTest {
+    private val receivedBatchSizes = CopyOnWriteArrayList<Int>()
+    private var failingIds = setOf<String>()
+    private var rejectBatches = false
+
+    // echoes the first param of each request, answering a batch in reverse order
+    private val stubServer: Http4kServer = { request: Request ->
+        val batch = Json.parseToJsonElement(request.bodyString()).jsonArray.map { it.jsonObject }
+        receivedBatchSizes.add(batch.size)
+
+        if (rejectBatches) {
+            Response(Status.OK).body(errorResponse(null, -32600, "Batch too large").toString())
+        } else {
+            Response(Status.OK).body(
+                JsonArray(
+                    batch.reversed().map { rpcRequest ->
+                        val id = rpcRequest["id"]!!.jsonPrimitive.content
+                        if (failingIds.contains(id)) {
+                            errorResponse(id, 404, "Not found")
+                        } else {
+                            buildJsonObject {
+                                put("jsonrpc", "2.0")
+                                put("id", id)
+                                put("result", rpcRequest["params"]!!.jsonArray[0])
+                            }
+                        }
+                    },
+                ).toString(),
+            )
+        }
+    }.asServer(SunHttp(0))
+
+    private lateinit var client: JsonRpcClientBase
+
+    @BeforeEach
+    fun setup() {
+        stubServer.start()
+        client = JsonRpcClientBase("http://localhost:${stubServer.port()}", KotlinLogging.logger {}, maxBatchSize = 2)
+    }
+
+    @AfterEach
+    fun shutdown() {
+        stubServer.stop()
+    }
+
+    @Test
+    fun `batch results are in request order`() {
+        val results = client.callBatch((1..5).map { rpcRequest("$it") })
+
+        assertEquals((1..5).map { "value $it" }, results.map { it.getOrThrow().jsonPrimitive.content })
+        assertEquals(listOf(2, 2, 1), receivedBatchSizes)
+    }
+
+    @Test
+    fun `failing requests do not fail the rest of the batch`() {
+        failingIds = setOf("2")
+
+        val results = client.callBatch((1..3).map { rpcRequest("$it") })
+
+        assertEquals("value 1", results[0].getOrThrow().jsonPrimitive.content)
+        assertIs<JsonRpcException>(results[1].exceptionOrNull()).also {
+            assertEquals(404, it.error.code)
+        }
+        assertEquals("value 3", results[2].getOrThrow().jsonPrimitive.content)
+    }
+
+    @Test
+    fun `batch rejected as a whole fails`() {
+        rejectBatches = true
+
+        assertThrows<JsonRpcException> {
+            client.callBatch(listOf(rpcRequest("1")))
+        }.also {
+            assertEquals(-32600, it.error.code)
+        }
+    }
+
+    @Test
+    fun `empty batch is not sent`() {
+        assertEquals(emptyList(), client.callBatch(emptyList()))
+        assertEquals(emptyList(), receivedBatchSizes)
+    }
+
+    private fun rpcRequest(id: String): JsonObject =
+        buildJsonObject {
+            put("jsonrpc", "2.0")
+            put("id", id)
+            put("method", "echo")
+            putJsonArray("params") { add("value $id") }
+        }
+
+    private fun errorResponse(id: String?, code: Int, message: String): JsonObject =
+        buildJsonObject {
+            put("jsonrpc", "2.0")
+            put("id", id)
+            putJsonObject("error") {
+                put("code", code)
+                put("message", message)
+            }
+        }
+}
@@ -0,0 +1,98 @@
+package xyz.funkybit.core.model.db
+
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import xyz.funkybit.core.model.SequencerOrderId
+import xyz.funkybit.core.utils.toFundamentalUnits
+import xyz.funkybit.testfixtures.DbTestHelpers.createChain
+import xyz.funkybit.testfixtures.DbTestHelpers.createMarket
+import xyz.funkybit.testfixtures.DbTestHelpers.createNativeSymbol
+import xyz.funkybit.testfixtures.DbTestHelpers.createOrder
+import xyz.funkybit.testfixtures.DbTestHelpers.createSymbol
+import xyz.funkybit.testfixtures.DbTestHelpers.createWallet
+import xyz.funkybit.testutils.TestWithDb
+import java.math.BigDecimal
+
+class OrderBookLevelsTest : TestWithDb() {
+    private val btcEthMarket = MarketId("BTC:123/ETH:123")
+    private lateinit var wallet: WalletEntity
+
+    @BeforeEach
+    fun setup() {
+        transaction {
+            val chain = createChain(ChainId(123UL), "test-chain")
+            val btc = createNativeSymbol("BTC", chain.id.value, decimals = 18U)
+            val eth = createSymbol("ETH", chain.id.value, decimals = 18U)
+            createMarket(btc, eth, tickSize = "0.05".toBigDecimal(), lastPrice = "17.525".toBigDecimal())
+            wallet = createWallet()
+        }
+    }
+
+    @Test
+    fun `levels follow order changes`() {
+        transaction {
+            val market = MarketEntity[btcEthMarket]
+            val orders = listOf(
+                Triple(OrderSide.Buy, "17.45", "1.2"),
+                Triple(OrderSide.Buy, "17.45", "0.3"),
+                Triple(OrderSide.Buy, "17.40", "2"),
+                Triple(OrderSide.Sell, "17.60", "1"),
+                Triple(OrderSide.Sell, "17.65", "0.5"),
+            ).mapIndexed { i, (side, price, amount) ->
+                createOrder(market, wallet, side, OrderType.Limit, amount.toBigDecimal(), price.toBigDecimal(), OrderStatus.Open, SequencerOrderId(i.toLong()))
+            }
+            TransactionManager.current().commit()
+
+            val levels = OrderBookLevels.load(market, OrderBookSnapshot.empty(market).last)
+            assertEquals(OrderBookSnapshot.calculate(market, emptyList(), OrderBookSnapshot.empty(market)), levels.snapshot())
+
+            // one bid is cancelled, one ask is reduced and a new ask level appears
+            orders[0].cancel()
+            orders[3].update(amount = "0.4".toBigDecimal().toFundamentalUnits(market.baseSymbol.decimals), price = orders[3].price)
+            createOrder(market, wallet, OrderSide.Sell, OrderType.Limit, "0.7".toBigDecimal(), "17.70".toBigDecimal(), OrderStatus.Open, SequencerOrderId(5L))
+            TransactionManager.current().commit()
+
+            val diff = levels.update(
+                OrderBookLevels.changedOrders(listOf(0L, 3L, 5L)).getValue(btcEthMarket),
+                emptyList(),
+                market,
+            )
+
+            assertEquals(
+                OrderBookSnapshot.Diff(
+                    bids = listOf(OrderBookSnapshot.Entry("17.450".toBigDecimal(), "0.3".toBigDecimal())),
+                    asks = listOf(
+                        OrderBookSnapshot.Entry("17.700".toBigDecimal(), "0.7".toBigDecimal()),
+                        OrderBookSnapshot.Entry("17.600".toBigDecimal(), "0.4".toBigDecimal()),
+                    ),
+                    last = null,
+                ),
+                diff,
+            )
+            assertEquals(OrderBookSnapshot.calculate(market, emptyList(), OrderBookSnapshot.empty(market)), levels.snapshot())
+
+            // applying orders that are already reflected changes nothing
+            assertEquals(
+                OrderBookSnapshot.Diff(bids = emptyList(), asks = emptyList(), last = null),
+                levels.update(OrderBookLevels.changedOrders(listOf(0L, 3L, 5L)).getValue(btcEthMarket), emptyList(), market),
+            )
+
+            // a level whose last order is cancelled is reported with a size of zero
+            orders[2].cancel()
+            TransactionManager.current().commit()
+
+            assertEquals(
+                OrderBookSnapshot.Diff(
+                    bids = listOf(OrderBookSnapshot.Entry("17.400".toBigDecimal(), BigDecimal.ZERO.setScale(3))),
+                    asks = emptyList(),
+                    last = null,
+                ),
+                levels.update(OrderBookLevels.changedOrders(listOf(2L)).getValue(btcEthMarket), emptyList(), market),
+            )
+            assertEquals(OrderBookSnapshot.calculate(market, emptyList(), OrderBookSnapshot.empty(market)), levels.snapshot())
+        }
+    }
+}
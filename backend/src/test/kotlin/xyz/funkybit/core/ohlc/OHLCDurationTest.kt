@@ -7,8 +7,11 @@ import org.junit.jupiter.api.Test
 import xyz.funkybit.apps.api.model.websocket.OHLC
 import xyz.funkybit.core.model.db.ChainId
 import xyz.funkybit.core.model.db.MarketEntity
+import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.OHLCDuration
 import xyz.funkybit.core.model.db.OHLCEntity
+import xyz.funkybit.core.model.db.OHLCTable
+import xyz.funkybit.core.model.db.OHLCTrade
 import xyz.funkybit.testfixtures.DbTestHelpers.createChain
 import xyz.funkybit.testfixtures.DbTestHelpers.createMarket
 import xyz.funkybit.testfixtures.DbTestHelpers.createNativeSymbol
@@ -253,4 +256,40 @@ class OHLCDurationTest : TestWithDb() {
             )
         }
     }
+
+    @Test
+    fun `OHLC periods updated with several trades at once match trades applied one by one`() {
+        transaction {
+            val (market, otherMarket) = MarketEntity.all().map { it.guid.value }
+
+            val trades = listOf(
+                Triple("2024-04-20T07:51:56Z", "5", "100"),
+                Triple("2024-04-20T07:51:57Z", "6", "50"),
+                Triple("2024-04-20T07:51:57Z", "5.5", "20"),
+                Triple("2024-04-20T07:51:58Z", "4", "100"),
+                Triple("2024-04-20T07:52:57Z", "4.5", "10"),
+                Triple("2024-04-20T07:57:57Z", "6", "100"),
+            ).map { (timestamp, price, amount) ->
+                OHLCTrade(market, Instant.parse(timestamp), BigDecimal(price), BigInteger(amount))
+            }
+
+            // one batch is applied on top of an existing candle
+            OHLCEntity.updateWith(market, Instant.parse("2024-04-20T07:51:00Z"), BigDecimal("5.25"), BigInteger("1"))
+            OHLCEntity.updateWith(otherMarket, Instant.parse("2024-04-20T07:51:00Z"), BigDecimal("5.25"), BigInteger("1"))
+
+            trades.forEach { OHLCEntity.updateWith(it.market, it.timestamp, it.price, it.amount) }
+            val updated = OHLCEntity.updateWith(trades.map { it.copy(market = otherMarket) })
+
+            // one record per duration and start
+            assertEquals(
+                OHLCDuration.entries.sumOf { duration -> trades.map { duration.durationStart(it.timestamp) }.distinct().size },
+                updated.size,
+            )
+
+            fun ohlcOf(marketId: MarketId) =
+                OHLCEntity.find { OHLCTable.marketGuid.eq(marketId) }.map { Pair(it.toWSResponse(), it.volume.toBigInteger()) }.toSet()
+
+            assertEquals(ohlcOf(market), ohlcOf(otherMarket))
+        }
+    }
 }
@@ -0,0 +1,145 @@
+package xyz.funkybit.core.sequencer
+
+import io.grpc.Server
+import io.grpc.ServerBuilder
+import io.grpc.Status
+import io.grpc.StatusException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.awaitility.kotlin.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import xyz.funkybit.core.model.SequencerAccountId
+import xyz.funkybit.core.model.SequencerWalletId
+import xyz.funkybit.core.model.db.MarketId
+import xyz.funkybit.core.model.db.OrderId
+import xyz.funkybit.sequencer.proto.GatewayGrpcKt
+import xyz.funkybit.sequencer.proto.GatewayResponse
+import xyz.funkybit.sequencer.proto.OrderBatch
+import xyz.funkybit.sequencer.proto.gatewayResponse
+import xyz.funkybit.sequencer.proto.sequencerResponse
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class OrderBatchStreamTest {
+    private val receivedBatches = AtomicInteger(0)
+
+    // how the stub gateway answers a stream, set by each test
+    private var answer: (Flow<OrderBatch>) -> Flow<GatewayResponse> = { flow { } }
+
+    private val stubGateway = object : GatewayGrpcKt.GatewayCoroutineImplBase() {
+        override fun applyOrderBatchStream(requests: Flow<OrderBatch>): Flow<GatewayResponse> =
+            answer(requests.onEach { receivedBatches.incrementAndGet() })
+    }
+
+    private lateinit var server: Server
+    private lateinit var client: SequencerClient
+    private val scope = CoroutineScope(Dispatchers.IO)
+
+    @BeforeEach
+    fun setup() {
+        server = ServerBuilder.forPort(0).addService(stubGateway).build().start()
+        client = SequencerClient(host = "localhost", port = server.port)
+    }
+
+    @AfterEach
+    fun shutdown() {
+        scope.cancel()
+        server.shutdownNow()
+    }
+
+    @Test
+    fun `responses are matched to their batches by guid`() {
+        // answered in reverse order once all batches arrived
+        answer = { requests ->
+            flow {
+                requests.take(3).toList().reversed().forEach { emit(response(it)) }
+            }
+        }
+
+        val stream = client.openOrderBatchStream(scope)
+        val responses = runBlocking {
+            (1..3).map { cancels -> async(Dispatchers.IO) { stream.orderBatch(cancels) } }.awaitAll()
+        }
+
+        assertEquals(listOf(1L, 2L, 3L), responses.map { it.sequence })
+    }
+
+    @Test
+    fun `failure of the stream is propagated to waiting and later callers`() {
+        answer = { requests ->
+            flow {
+                requests.first()
+                throw StatusException(Status.UNAVAILABLE)
+            }
+        }
+
+        val stream = client.openOrderBatchStream(scope)
+        val failure = assertFailsWith<StatusException> {
+            runBlocking { stream.orderBatch(1) }
+        }
+        assertEquals(Status.Code.UNAVAILABLE, failure.status.code)
+
+        await.atMost(Duration.ofSeconds(5)).until { !stream.isOpen }
+        assertEquals(
+            Status.Code.UNAVAILABLE,
+            assertFailsWith<StatusException> { runBlocking { stream.orderBatch(2) } }.status.code,
+        )
+    }
+
+    @Test
+    fun `close waits for the responses to the batches already sent`() {
+        // answered only once the client stops sending
+        answer = { requests ->
+            flow {
+                requests.toList().forEach { emit(response(it)) }
+            }
+        }
+
+        val stream = client.openOrderBatchStream(scope)
+        val responses = (1..2).map { cancels -> scope.async { stream.orderBatch(cancels) } }
+        await.atMost(Duration.ofSeconds(5)).until { receivedBatches.get() == 2 }
+        assertTrue(responses.none { it.isCompleted })
+
+        stream.close()
+
+        assertEquals(listOf(1L, 2L), runBlocking { responses.awaitAll() }.map { it.sequence })
+        assertFalse(stream.isOpen)
+        assertFailsWith<IllegalStateException> { runBlocking { stream.orderBatch(3) } }
+    }
+
+    // the number of cancelled orders identifies a batch in the response, which echoes it as the sequence
+    private suspend fun SequencerClient.OrderBatchStream.orderBatch(cancels: Int) =
+        orderBatch(
+            MarketId("BTC/ETH"),
+            SequencerAccountId(1L),
+            SequencerWalletId(1L),
+            ordersToAdd = emptyList(),
+            ordersToCancel = (1..cancels).map { OrderId("order_$it") },
+        )
+
+    private fun response(batch: OrderBatch): GatewayResponse =
+        gatewayResponse {
+            this.guid = batch.guid
+            this.success = true
+            this.sequencerResponse = sequencerResponse {
+                this.guid = batch.guid
+                this.sequence = batch.ordersToCancelCount.toLong()
+            }
+        }
+}
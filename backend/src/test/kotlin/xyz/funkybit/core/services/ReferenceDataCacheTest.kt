@@ -0,0 +1,80 @@
+package xyz.funkybit.core.services
+
+import org.awaitility.kotlin.await
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import xyz.funkybit.core.model.db.ChainId
+import xyz.funkybit.core.model.db.MarketEntity
+import xyz.funkybit.core.model.db.MarketId
+import xyz.funkybit.core.model.db.SymbolEntity
+import xyz.funkybit.testfixtures.DbTestHelpers.createChain
+import xyz.funkybit.testfixtures.DbTestHelpers.createMarket
+import xyz.funkybit.testfixtures.DbTestHelpers.createNativeSymbol
+import xyz.funkybit.testfixtures.DbTestHelpers.createSymbol
+import xyz.funkybit.testutils.TestWithDb
+import java.math.BigInteger
+import java.time.Duration
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class ReferenceDataCacheTest : TestWithDb() {
+    private val chainId = ChainId(123UL)
+    private val btcEthMarket = MarketId("BTC:123/ETH:123")
+
+    @BeforeEach
+    fun setup() {
+        transaction {
+            createChain(chainId, "test-chain")
+            val btc = createNativeSymbol("BTC", chainId, decimals = 18U)
+            val eth = createSymbol("ETH", chainId, decimals = 18U)
+            createMarket(btc, eth, tickSize = "0.05".toBigDecimal(), lastPrice = "17.525".toBigDecimal())
+        }
+        ReferenceDataCache.start(TransactionManager.defaultDatabase!!)
+    }
+
+    @AfterEach
+    fun shutdown() {
+        ReferenceDataCache.stop()
+    }
+
+    @Test
+    fun `reference data is loaded at start`() {
+        val referenceData = ReferenceDataCache.current()
+        assertEquals(listOf(chainId), referenceData.chains.map { it.id.value })
+        assertEquals(listOf("BTC:123", "ETH:123"), referenceData.symbols.map { it.name })
+        assertEquals(BigInteger.ZERO, ReferenceDataCache.market(btcEthMarket)?.minFee)
+        assertNull(ReferenceDataCache.market(MarketId("ETH:123/BTC:123")))
+    }
+
+    @Test
+    fun `changes are picked up when notified`() {
+        transaction {
+            MarketEntity[btcEthMarket].minFee = BigInteger.TEN
+            ReferenceDataCache.notifyChanged()
+        }
+
+        await
+            .pollInSameThread()
+            .pollDelay(Duration.ofMillis(10))
+            .pollInterval(Duration.ofMillis(10))
+            .atMost(Duration.ofMillis(1000L))
+            .until {
+                ReferenceDataCache.market(btcEthMarket)?.minFee == BigInteger.TEN
+            }
+    }
+
+    @Test
+    fun `unknown markets and symbols are read through`() {
+        transaction {
+            val usdc = createSymbol("USDC", chainId, decimals = 6U)
+            createMarket(SymbolEntity.forName("BTC:123"), usdc, tickSize = "0.05".toBigDecimal(), lastPrice = "60000".toBigDecimal())
+        }
+
+        assertNotNull(ReferenceDataCache.symbol("USDC:123"))
+        assertNotNull(ReferenceDataCache.market(MarketId("BTC:123/USDC:123")))
+    }
+}
@@ -0,0 +1,20 @@
+package xyz.funkybit.core.utils
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class TestUtf8Length {
+
+    @Test
+    fun `test utf8 length matches the encoded size`() {
+        listOf(
+            "",
+            """{"type":"Publish","topic":{"type":"OrderBook","marketId":"BTC/ETH"}}""",
+            "µs and €",
+            "funky 🎉 bit",
+            "unpaired \uD83C surrogate \uDF89",
+        ).forEach { s ->
+            assertEquals(s.encodeToByteArray().size, s.utf8Length(), s)
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package xyz.funkybit.core.websocket
+
+import org.http4k.websocket.WsMessage
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import xyz.funkybit.apps.api.model.websocket.SubscriptionTopic
+import xyz.funkybit.core.model.db.MarketId
+import java.util.concurrent.Executor
+
+class ClientOutboxTest {
+    // runs the writer only when asked to, so that messages pile up as they would for a slow client
+    private class ManualExecutor : Executor {
+        private val tasks = mutableListOf<Runnable>()
+
+        override fun execute(command: Runnable) {
+            tasks.add(command)
+        }
+
+        fun runAll() {
+            while (tasks.isNotEmpty()) {
+                tasks.removeFirst().run()
+            }
+        }
+    }
+
+    private val written = mutableListOf<String>()
+    private var laggingCount = 0
+    private val writers = ManualExecutor()
+
+    private fun outbox(capacity: Int = 10, maxLagMs: Long = 60_000, isWritable: () -> Boolean = { true }) =
+        ClientOutbox(
+            write = { written.add(it.bodyString()) },
+            onLagging = { laggingCount++ },
+            isWritable = isWritable,
+            config = ClientOutboxConfig(capacity = capacity, maxLagMs = maxLagMs),
+            writers = writers,
+        )
+
+    @Test
+    fun `messages are written in order and snapshots are conflated`() {
+        val outbox = outbox()
+        val orderBook = SubscriptionTopic.OrderBook(MarketId("BTC/ETH"))
+
+        outbox.offer(WsMessage("trade 1"))
+        outbox.offer(WsMessage("book 1"), orderBook)
+        outbox.offer(WsMessage("balances 1"), SubscriptionTopic.Balances)
+        outbox.offer(WsMessage("book 2"), orderBook)
+        outbox.offer(WsMessage("trade 2"))
+        outbox.offer(WsMessage("book 3"), orderBook)
+        writers.runAll()
+
+        assertEquals(listOf("trade 1", "book 3", "balances 1", "trade 2"), written)
+
+        // once written, a snapshot is queued again rather than replacing anything
+        outbox.offer(WsMessage("book 4"), orderBook)
+        outbox.offer(WsMessage("book 5"), orderBook)
+        writers.runAll()
+
+        assertEquals(listOf("trade 1", "book 3", "balances 1", "trade 2", "book 5"), written)
+        assertEquals(0, laggingCount)
+    }
+
+    @Test
+    fun `client is dropped when its queue is full`() {
+        val outbox = outbox(capacity = 2)
+
+        outbox.offer(WsMessage("trade 1"))
+        outbox.offer(WsMessage("limits 1"), SubscriptionTopic.Limits)
+        // conflated messages do not take up more room
+        outbox.offer(WsMessage("limits 2"), SubscriptionTopic.Limits)
+        assertEquals(0, laggingCount)
+
+        outbox.offer(WsMessage("trade 2"))
+        assertEquals(1, laggingCount)
+
+        // nothing is written once dropped
+        outbox.offer(WsMessage("trade 3"))
+        writers.runAll()
+        assertEquals(emptyList<String>(), written)
+        assertEquals(1, laggingCount)
+    }
+
+    @Test
+    fun `messages are held back while the client is not writable`() {
+        var writable = true
+        val outbox = outbox(capacity = 3, isWritable = { writable })
+        val orderBook = SubscriptionTopic.OrderBook(MarketId("BTC/ETH"))
+
+        outbox.offer(WsMessage("trade 1"))
+        writers.runAll()
+        assertEquals(listOf("trade 1"), written)
+
+        writable = false
+        outbox.offer(WsMessage("trade 2"))
+        outbox.offer(WsMessage("book 1"), orderBook)
+        outbox.offer(WsMessage("book 2"), orderBook)
+        writers.runAll()
+        assertEquals(listOf("trade 1"), written)
+
+        writable = true
+        outbox.resume()
+        writers.runAll()
+        assertEquals(listOf("trade 1", "trade 2", "book 2"), written)
+
+        // held back messages count towards the capacity
+        writable = false
+        outbox.offer(WsMessage("trade 3"))
+        outbox.offer(WsMessage("trade 4"))
+        outbox.offer(WsMessage("trade 5"))
+        assertEquals(0, laggingCount)
+        outbox.offer(WsMessage("trade 6"))
+        assertEquals(1, laggingCount)
+
+        writable = true
+        outbox.resume()
+        writers.runAll()
+        assertEquals(listOf("trade 1", "trade 2", "book 2"), written)
+    }
+
+    @Test
+    fun `client is dropped when its oldest message waited too long`() {
+        val outbox = outbox(maxLagMs = 10)
+
+        outbox.offer(WsMessage("trade 1"))
+        Thread.sleep(20)
+        outbox.offer(WsMessage("trade 2"))
+
+        assertEquals(1, laggingCount)
+    }
+}
@@ -47,6 +47,30 @@ class AdminRouteTest {
         assertEquals(Role.User, apiClient.getAccountConfiguration().role)
     }
 
+    @Test
+    fun `test removed admin is rejected immediately`() {
+        val apiClient = TestApiClient()
+        val apiClient2 = TestApiClient()
+        transaction {
+            WalletEntity.getOrCreateWithUser(apiClient.address).first.isAdmin = true
+        }
+        apiClient.addAdmin(apiClient2.address)
+
+        // both wallets have made requests as admins, so their principals are cached
+        assertEquals(setOf(apiClient.address, apiClient2.address), apiClient2.listAdmins().toSet())
+        assertEquals(Role.Admin, apiClient.getAccountConfiguration().role)
+
+        apiClient2.removeAdmin(apiClient.address)
+        apiClient.tryListAdmins().assertError(ApiError(ReasonCode.AuthenticationError, "Access denied"))
+        assertEquals(Role.User, apiClient.getAccountConfiguration().role)
+
+        // and so is an admin removed directly in the database, as by another API node
+        transaction {
+            WalletEntity.getOrCreateWithUser(apiClient2.address).first.isAdmin = false
+        }
+        apiClient2.tryListAdmins().assertError(ApiError(ReasonCode.AuthenticationError, "Access denied"))
+    }
+
     @Test
     fun `test set fee rates`() {
         val apiClient = TestApiClient()
@@ -14,6 +14,8 @@ repositories {
 val log4j2Version = "2.23.1"
 val http4kVersion = "5.14.1.0"
 val kotlinxSerializationVersion = "1.6.3"
+val exposedVersion = "0.48.0"
+val protobufKotlinVersion = "4.26.0"
 
 dependencies {
     testImplementation("org.jetbrains.kotlin:kotlin-test")
@@ -40,8 +42,15 @@ dependencies {
     implementation("org.apache.logging.log4j:log4j-slf4j2-impl:$log4j2Version")
     implementation("io.arrow-kt:arrow-core:1.2.1")
     implementation("de.fxlae:typeid-java:0.2.0")
+    implementation("org.jetbrains.kotlinx:kotlinx-coroutines-core:1.8.0")
+    // for makers entering orders directly with the sequencer, see SequencerOrderEntry
+    implementation("org.jetbrains.exposed:exposed-core:$exposedVersion")
+    implementation("org.jetbrains.exposed:exposed-dao:$exposedVersion")
+    implementation("org.jetbrains.exposed:exposed-jdbc:$exposedVersion")
+    implementation("com.google.protobuf:protobuf-kotlin:$protobufKotlinVersion")
     implementation(project(":backend"))
     implementation(project(":integrationtests"))
+    implementation(project(":sequencercommon"))
     testImplementation("org.awaitility:awaitility-kotlin:4.2.0")
 }
 
@@ -122,7 +122,7 @@ fun main() {
     timer.cancel()
 }
 
-fun startMaker(market: Market, marketPriceOverride: BigDecimal?, liquidityPlacement: LiquidityPlacement, baseAssetAmount: BigDecimal, quoteAssetAmount: BigDecimal, keyPair: WalletKeyPair = WalletKeyPair.EVM.generate(), usePriceFeed: Boolean = false, maxOrdersBatchSize: Int = 100): Maker {
+fun startMaker(market: Market, marketPriceOverride: BigDecimal?, liquidityPlacement: LiquidityPlacement, baseAssetAmount: BigDecimal, quoteAssetAmount: BigDecimal, keyPair: WalletKeyPair = WalletKeyPair.EVM.generate(), usePriceFeed: Boolean = false, maxOrdersBatchSize: Int = 100, useSequencerStream: Boolean = false): Maker {
     val baseAssetBtc = market.baseSymbol.value.startsWith("BTC")
     val quoteAssetBtc = market.quoteSymbol.value.startsWith("BTC")
     val baseAsset = market.baseSymbol.value to baseAssetAmount.toFundamentalUnits(market.baseDecimals)
@@ -147,7 +147,8 @@ fun startMaker(market: Market, marketPriceOverride: BigDecimal?, liquidityPlacem
         },
         keyPair = keyPair,
         usePriceFeed = usePriceFeed,
-        maxOrdersBatchSize = maxOrdersBatchSize
+        maxOrdersBatchSize = maxOrdersBatchSize,
+        useSequencerStream = useSequencerStream
     )
     maker.start()
     return maker
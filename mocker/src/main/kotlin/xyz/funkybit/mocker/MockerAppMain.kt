@@ -146,7 +146,8 @@ class MockerApp(
                         quoteAssetAmount = params.initialBaseBalance * params.priceBaseline * BigDecimal(100),
                         keyPair = WalletKeyPair.EVM.fromPrivateKeyHex(params.makerPrivateKeyHex),
                         usePriceFeed = System.getenv("MAKER_USE_PRICE_FEED")?.toBoolean() ?: false,
-                        maxOrdersBatchSize = System.getenv("BATCH_ORDERS_MAX_SIZE")?.toIntOrNull() ?: 100
+                        maxOrdersBatchSize = System.getenv("BATCH_ORDERS_MAX_SIZE")?.toIntOrNull() ?: 100,
+                        useSequencerStream = System.getenv("MAKER_USE_SEQUENCER_STREAM")?.toBoolean() ?: false
                     )
                 )
             }
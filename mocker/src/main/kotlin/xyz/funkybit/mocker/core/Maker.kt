@@ -43,6 +43,7 @@ import xyz.funkybit.apps.api.model.websocket.MyOrdersCreated
 import xyz.funkybit.apps.api.model.websocket.MyOrdersUpdated
 import xyz.funkybit.core.utils.PriceFeed
 import xyz.funkybit.integrationtests.utils.WalletKeyPair
+import xyz.funkybit.sequencer.proto.SequencerError
 
 sealed class LiquidityPlacement {
     data class Absolute(val amount: BigInteger) : LiquidityPlacement()
@@ -64,6 +65,7 @@ class Maker(
     keyPair: WalletKeyPair = WalletKeyPair.EVM.generate(),
     private val usePriceFeed: Boolean = false,
     private val maxOrdersBatchSize: Int,
+    useSequencerStream: Boolean = false,
 ) : Actor(marketIds, nativeAssets, assets, keyPair) {
     private val marketPriceOverrideFunction: PriceFunction? = marketPriceOverride?.let { PriceFunction.generateDeterministicHarmonicMovement(initialValue = it.toDouble(), maxFluctuation = 0.01) }
     override val id: String = "mm_${keyPair.address().canonicalize()}"
@@ -72,6 +74,8 @@ class Maker(
     private var quotesCreated = false
 
     private var priceFeed: PriceFeed? = null
+    // quote updates bypass the API and are pipelined to the sequencer when set
+    private val sequencerOrderEntry: SequencerOrderEntry? = if (useSequencerStream) SequencerOrderEntry(keyPair.address()) else null
 
     override fun start() {
         super.start()
@@ -335,21 +339,33 @@ class Maker(
 
         // split into multiple batch requests if exceeding batch size.
         // cancellations are processed first as they influence limits
-        val allOrders = (cancelOrders + createOrders).chunked(maxOrdersBatchSize)
-        for (chunk in allOrders) {
-            val cancelOrdersChunk = chunk.filterIsInstance<CancelOrderApiRequest>()
-            val createOrdersChunk = chunk.filterIsInstance<CreateOrderApiRequest.Limit>()
-
-            apiClient.tryBatchOrders(
-                BatchOrdersApiRequest(
-                    marketId = marketId,
-                    createOrders = createOrdersChunk,
-                    cancelOrders = cancelOrdersChunk,
-                )
-            ).onLeft {
-                logger.warn { "$id could not apply batch: ${it.error?.message}" }
-            }.onRight {
-                logger.info { "$id: applied update batch: created ${createOrdersChunk.size}, cancelled ${cancelOrdersChunk.size}" }
+        val batches = (cancelOrders + createOrders).chunked(maxOrdersBatchSize).map { chunk ->
+            BatchOrdersApiRequest(
+                marketId = marketId,
+                createOrders = chunk.filterIsInstance<CreateOrderApiRequest.Limit>(),
+                cancelOrders = chunk.filterIsInstance<CancelOrderApiRequest>(),
+            )
+        }
+        if (sequencerOrderEntry != null) {
+            sequencerOrderEntry.applyOrderBatches(market, batches).forEachIndexed { ix, result ->
+                val batch = batches[ix]
+                result.onFailure {
+                    logger.warn(it) { "$id could not apply batch" }
+                }.onSuccess { response ->
+                    if (response.error != SequencerError.None) {
+                        logger.warn { "$id could not apply batch: ${response.error}" }
+                    } else {
+                        logger.info { "$id: applied update batch: created ${batch.createOrders.size}, cancelled ${batch.cancelOrders.size}" }
+                    }
+                }
+            }
+        } else {
+            for (batch in batches) {
+                apiClient.tryBatchOrders(batch).onLeft {
+                    logger.warn { "$id could not apply batch: ${it.error?.message}" }
+                }.onRight {
+                    logger.info { "$id: applied update batch: created ${batch.createOrders.size}, cancelled ${batch.cancelOrders.size}" }
+                }
             }
         }
     }
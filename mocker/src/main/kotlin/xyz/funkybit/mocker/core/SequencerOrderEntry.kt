@@ -0,0 +1,89 @@
+package xyz.funkybit.mocker.core
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.jetbrains.exposed.sql.Database
+import org.jetbrains.exposed.sql.transactions.transaction
+import xyz.funkybit.apps.api.model.BatchOrdersApiRequest
+import xyz.funkybit.apps.api.model.CreateOrderApiRequest
+import xyz.funkybit.apps.api.model.Market
+import xyz.funkybit.core.db.DbConfig
+import xyz.funkybit.core.db.connect
+import xyz.funkybit.core.model.Address
+import xyz.funkybit.core.model.SequencerAccountId
+import xyz.funkybit.core.model.db.OrderId
+import xyz.funkybit.core.model.db.OrderSide
+import xyz.funkybit.core.model.db.WalletEntity
+import xyz.funkybit.core.sequencer.SequencerClient
+import xyz.funkybit.core.sequencer.toSequencerId
+import xyz.funkybit.core.utils.toHexBytes
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import java.math.BigInteger
+
+// Sends a maker's order batches straight to the sequencer gateway over one long-lived order batch stream instead
+// of through the API, so that the batches of a reprice are pipelined rather than sent one HTTP request after the
+// other. Orders still end up in the database through the sequencer response processor, but the API's checks are
+// skipped, and the database has to be reachable to look up the maker's sequencer account.
+class SequencerOrderEntry(private val walletAddress: Address) {
+    private val sequencerClient = SequencerClient()
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private var stream = sequencerClient.openOrderBatchStream(scope)
+    private val wallet = walletAddress.toSequencerId()
+    private val account: SequencerAccountId by lazy {
+        transaction(database) {
+            WalletEntity.getByAddress(walletAddress).userGuid.value.toSequencerId()
+        }
+    }
+
+    // batches are sequenced in the given order, results are in the same order
+    fun applyOrderBatches(market: Market, batches: List<BatchOrdersApiRequest>): List<Result<SequencerResponse>> {
+        val stream = currentStream()
+        return runBlocking {
+            batches.map { batch ->
+                async {
+                    runCatching {
+                        stream.orderBatch(
+                            marketId = market.id,
+                            account = account,
+                            walletId = wallet,
+                            ordersToAdd = batch.createOrders.filterIsInstance<CreateOrderApiRequest.Limit>().map { it.toSequencerOrder(market) },
+                            ordersToCancel = batch.cancelOrders.map { it.orderId }
+                        )
+                    }
+                }
+            }.awaitAll()
+        }
+    }
+
+    @Synchronized
+    private fun currentStream(): SequencerClient.OrderBatchStream {
+        if (!stream.isOpen) {
+            stream = sequencerClient.openOrderBatchStream(scope)
+        }
+        return stream
+    }
+
+    private fun CreateOrderApiRequest.Limit.toSequencerOrder(market: Market): SequencerClient.Order {
+        val orderId = OrderId.generate()
+        return SequencerClient.Order(
+            sequencerOrderId = orderId.toSequencerId().value,
+            amount = amount.fixedAmount(),
+            levelIx = price.divideToIntegralValue(market.tickSize).toInt(),
+            orderType = if (side == OrderSide.Buy) xyz.funkybit.sequencer.proto.Order.Type.LimitBuy else xyz.funkybit.sequencer.proto.Order.Type.LimitSell,
+            nonce = BigInteger(1, nonce.toHexBytes()),
+            signature = signature,
+            orderId = orderId,
+            clientOrderId = clientOrderId,
+            chainId = verifyingChainId,
+            percentage = null
+        )
+    }
+
+    companion object {
+        private val database by lazy { Database.connect(DbConfig()) }
+    }
+}
@@ -0,0 +1,169 @@
+package xyz.funkybit.mocker.loadtest
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import xyz.funkybit.apps.api.model.CancelOrderApiRequest
+import xyz.funkybit.apps.api.model.CreateOrderApiRequest
+import xyz.funkybit.apps.api.model.Market
+import xyz.funkybit.apps.api.model.OrderAmount
+import xyz.funkybit.apps.api.model.RequestStatus
+import xyz.funkybit.core.model.EvmSignature
+import xyz.funkybit.core.model.db.ChainId
+import xyz.funkybit.core.model.db.MarketId
+import xyz.funkybit.core.model.db.OrderSide
+import xyz.funkybit.core.utils.generateOrderNonce
+import xyz.funkybit.core.utils.toFundamentalUnits
+import xyz.funkybit.integrationtests.utils.ApiClient
+import xyz.funkybit.integrationtests.utils.Wallet
+import java.math.BigDecimal
+import java.math.RoundingMode
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+
+// Measures order entry throughput of the API at increasing numbers of concurrent clients. Each client places a
+// limit order far below the market and cancels it again, in a loop, so every request makes a round trip to the
+// sequencer. Wallets are not funded, so orders may be rejected for exceeding limits. The sequencer still
+// processes those requests, and they are reported separately.
+//
+// If the API tier is bounded by the sequencer, throughput keeps growing with concurrency until the sequencer is
+// saturated. If it is bounded by threads, throughput flattens as soon as the API's threads are all waiting on the
+// sequencer, while latency grows.
+
+private val logger = KotlinLogging.logger {}
+
+private val concurrencyLevels = (System.getenv("LOADTEST_CONCURRENCY_LEVELS") ?: "1,8,32,128").split(",").map { it.trim().toInt() }
+private val stepDuration = System.getenv("LOADTEST_STEP_DURATION")?.let { Duration.parse(it) } ?: 30.seconds
+private val marketId = MarketId(System.getenv("LOADTEST_MARKET") ?: "USDC:1337/DAI:1337")
+
+private class StepStats {
+    val latenciesNanos: MutableList<Long> = Collections.synchronizedList(mutableListOf())
+    val accepted = AtomicLong()
+    val rejected = AtomicLong()
+    val failuresByHttpCode = ConcurrentHashMap<Int, AtomicLong>()
+
+    fun record(startNanos: Long) {
+        latenciesNanos.add(System.nanoTime() - startNanos)
+    }
+
+    fun failed(httpCode: Int) {
+        failuresByHttpCode.getOrPut(httpCode) { AtomicLong() }.incrementAndGet()
+    }
+}
+
+private class Client(val market: Market) {
+    val apiClient = ApiClient()
+    val wallet = Wallet(apiClient)
+
+    // far enough below the market to never be filled
+    private val price = (market.lastPrice / BigDecimal(2)).divide(market.tickSize, 0, RoundingMode.FLOOR).multiply(market.tickSize)
+    private val amount = BigDecimal("0.01").toFundamentalUnits(market.baseDecimals)
+
+    fun placeAndCancel(stats: StepStats) {
+        val createStart = System.nanoTime()
+        val created = apiClient.tryCreateOrder(
+            wallet.signOrder(
+                CreateOrderApiRequest.Limit(
+                    nonce = generateOrderNonce(),
+                    marketId = market.id,
+                    side = OrderSide.Buy,
+                    amount = OrderAmount.Fixed(amount),
+                    price = price,
+                    signature = EvmSignature.emptySignature(),
+                    verifyingChainId = ChainId.empty,
+                ),
+            ),
+        )
+        stats.record(createStart)
+
+        created.fold(
+            { failure ->
+                stats.failed(failure.httpCode)
+            },
+            { response ->
+                if (response.requestStatus == RequestStatus.Accepted) {
+                    stats.accepted.incrementAndGet()
+
+                    val cancelStart = System.nanoTime()
+                    apiClient.tryCancelOrder(
+                        wallet.signCancelOrder(
+                            CancelOrderApiRequest(
+                                orderId = response.orderId,
+                                marketId = market.id,
+                                amount = amount,
+                                side = OrderSide.Buy,
+                                nonce = generateOrderNonce(),
+                                signature = EvmSignature.emptySignature(),
+                                verifyingChainId = ChainId.empty,
+                            ),
+                        ),
+                    ).onLeft { stats.failed(it.httpCode) }
+                    stats.record(cancelStart)
+                } else {
+                    stats.rejected.incrementAndGet()
+                }
+            },
+        )
+    }
+}
+
+fun main() {
+    val market = ApiClient().getConfiguration().markets.first { it.id == marketId }
+    val clients = (1..concurrencyLevels.max()).map { Client(market) }
+
+    val results = concurrencyLevels.map { concurrency ->
+        logger.info { "Running with $concurrency concurrent clients for $stepDuration" }
+        concurrency to runStep(clients.take(concurrency))
+    }
+
+    logger.info {
+        "Order entry load test results for $marketId:\n" +
+            results.joinToString("\n") { (concurrency, stats) ->
+                val latencies = stats.latenciesNanos.sorted()
+                val requestsPerSecond = latencies.size / stepDuration.inWholeMilliseconds.toDouble() * 1000
+                "concurrency $concurrency: ${latencies.size} requests, ${"%.1f".format(requestsPerSecond)} req/s, " +
+                    "p50 ${percentileMs(latencies, 0.5)}ms, p99 ${percentileMs(latencies, 0.99)}ms, " +
+                    "${stats.accepted.get()} orders accepted, ${stats.rejected.get()} rejected, " +
+                    "failures by http code: ${stats.failuresByHttpCode.mapValues { it.value.get() }}"
+            }
+    }
+}
+
+private fun runStep(clients: List<Client>): StepStats {
+    val stats = StepStats()
+    val stopped = AtomicBoolean(false)
+    val done = CountDownLatch(clients.size)
+
+    clients.forEachIndexed { ix, client ->
+        thread(name = "load-test-client-$ix") {
+            try {
+                while (!stopped.get()) {
+                    try {
+                        client.placeAndCancel(stats)
+                    } catch (e: Exception) {
+                        logger.warn(e) { "Request failed" }
+                        stats.failed(0)
+                    }
+                }
+            } finally {
+                done.countDown()
+            }
+        }
+    }
+
+    Thread.sleep(stepDuration.inWholeMilliseconds)
+    stopped.set(true)
+    done.await()
+    return stats
+}
+
+private fun percentileMs(sortedNanos: List<Long>, percentile: Double): Long =
+    if (sortedNanos.isEmpty()) {
+        0
+    } else {
+        sortedNanos[((sortedNanos.size - 1) * percentile).toInt()] / 1_000_000
+    }
@@ -62,6 +62,7 @@ dependencies {
     implementation("com.google.protobuf:protobuf-kotlin:$protobufKotlinVersion")
     implementation("io.grpc:grpc-netty:$grpcProtobufVersion")
     implementation("net.openhft:chronicle-queue:5.22.28")
+    implementation("org.jetbrains.kotlinx:kotlinx-coroutines-core:1.8.0")
     implementation(project(":sequencercommon"))
 
     implementation(project(":backend"))
@@ -3,8 +3,14 @@ package xyz.funkybit.sequencer.apps
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.grpc.Server
 import io.grpc.ServerBuilder
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withTimeoutOrNull
 import net.openhft.chronicle.queue.ChronicleQueue
-import net.openhft.chronicle.queue.ExcerptTailer
 import xyz.funkybit.sequencer.proto.AuthorizeWalletRequest
 import xyz.funkybit.sequencer.proto.BackToBackOrderRequest
 import xyz.funkybit.sequencer.proto.BalanceBatch
@@ -21,16 +27,21 @@ import xyz.funkybit.sequencer.proto.SetFeeRatesRequest
 import xyz.funkybit.sequencer.proto.SetMarketMinFeesRequest
 import xyz.funkybit.sequencer.proto.SetWithdrawalFeesRequest
 import xyz.funkybit.sequencer.proto.gatewayResponse
-import xyz.funkybit.sequencer.proto.sequenced
 import xyz.funkybit.sequencer.proto.sequencerRequest
-import java.util.UUID
-import kotlin.concurrent.getOrSet
-import kotlin.system.measureNanoTime
+import java.util.concurrent.TimeoutException
 import xyz.funkybit.sequencer.core.inputQueue as defaultInputQueue
 import xyz.funkybit.sequencer.core.outputQueue as defaultOutputQueue
 import xyz.funkybit.sequencer.core.sequencedQueue as defaultSequencedQueue
 
-data class GatewayConfig(val port: Int = 5337)
+data class GatewayConfig(
+    val port: Int = 5337,
+    // order and balance batches arriving within this many microseconds of each other are written to the input
+    // queue as one Batch request, 0 to write every request on its own
+    val batchWindowMicros: Long = System.getenv("GATEWAY_BATCH_WINDOW_MICROS")?.toLongOrNull() ?: 0L,
+    val maxBatchSize: Int = System.getenv("GATEWAY_MAX_BATCH_SIZE")?.toIntOrNull() ?: 100,
+    // calls not answered by the sequencer within this many milliseconds fail rather than wait forever
+    val responseTimeoutMillis: Long = System.getenv("GATEWAY_RESPONSE_TIMEOUT_MS")?.toLongOrNull() ?: 30_000L,
+)
 
 class GatewayApp(
     private val config: GatewayConfig = GatewayConfig(),
@@ -40,14 +51,29 @@ class GatewayApp(
 ) : BaseApp() {
     override val logger = KotlinLogging.logger {}
 
+    private val responseDispatcher = ResponseDispatcher(outputQueue)
+    private val requestBatcher = if (config.batchWindowMicros > 0) {
+        RequestBatcher(
+            inputQueue,
+            sequencedQueue,
+            responseDispatcher,
+            windowNanos = config.batchWindowMicros * 1000,
+            maxBatchSize = config.maxBatchSize,
+        )
+    } else {
+        null
+    }
+
     private val server: Server =
         ServerBuilder
             .forPort(config.port)
-            .addService(GatewayService(inputQueue, outputQueue, sequencedQueue))
+            .addService(GatewayService(inputQueue, sequencedQueue, responseDispatcher, requestBatcher, config.responseTimeoutMillis))
             .build()
 
     override fun start() {
-        logger.info { "Starting" }
+        logger.info { "Starting${requestBatcher?.let { " with a batch window of ${config.batchWindowMicros}us" } ?: ""}" }
+        responseDispatcher.start()
+        requestBatcher?.start()
         server.start()
         logger.info { "gRPC server started, listening on ${this.config.port}" }
         Runtime.getRuntime().addShutdownHook(
@@ -63,6 +89,8 @@ class GatewayApp(
     override fun stop() {
         logger.info { "Shutting down Gateway App" }
         server.shutdown()
+        requestBatcher?.stop()
+        responseDispatcher.stop()
         logger.info { "Gateway App shut down" }
     }
 
@@ -73,55 +101,55 @@ class GatewayApp(
 
     internal class GatewayService(
         private val inputQueue: ChronicleQueue,
-        private val outputQueue: ChronicleQueue,
         private val sequencedQueue: ChronicleQueue,
+        private val responseDispatcher: ResponseDispatcher,
+        private val requestBatcher: RequestBatcher? = null,
+        private val responseTimeoutMillis: Long = 30_000L,
     ) : GatewayGrpcKt.GatewayCoroutineImplBase() {
-        private val outputTailer = ThreadLocal<ExcerptTailer>()
         private val logger = KotlinLogging.logger {}
 
-        private fun toSequencer(requestBuilder: SequencerRequestKt.Dsl.() -> Unit): GatewayResponse {
-            var index: Long
-            val inputAppender = inputQueue.acquireAppender()
-            val sequencedAppender = sequencedQueue.acquireAppender()
-            val localTailer = outputTailer.getOrSet { outputQueue.createTailer().toEnd() }
-            val sequencerRequest = sequencerRequest(requestBuilder)
-            var sequencerResponse: SequencerResponse? = null
-            val processingTime = measureNanoTime {
-                val guid = UUID.randomUUID().toString()
+        private suspend fun toSequencer(requestBuilder: SequencerRequestKt.Dsl.() -> Unit): GatewayResponse =
+            toSequencer(sequencerRequest(requestBuilder))
+
+        private suspend fun toSequencer(sequencerRequest: SequencerRequest): GatewayResponse {
+            val startTime = System.nanoTime()
+            return awaitResponse(sequencerRequest, submit(sequencerRequest), startTime)
+        }
+
+        // registers for the response and then writes the request, or hands it to the batcher. Returns null if the
+        // request could not be written
+        private fun submit(sequencerRequest: SequencerRequest): CompletableDeferred<SequencerResponse>? {
+            val response = responseDispatcher.register(sequencerRequest.guid)
+            return try {
+                when {
+                    requestBatcher != null && sequencerRequest.type in batchableTypes -> requestBatcher.submit(sequencerRequest)
+                    else -> writeSequencerRequest(inputQueue, sequencedQueue, sequencerRequest)
+                }
+                response
+            } catch (e: Throwable) {
+                responseDispatcher.unregister(sequencerRequest.guid, response)
+                logger.error(e) { "Could not process transaction" }
+                null
+            }
+        }
+
+        private suspend fun awaitResponse(sequencerRequest: SequencerRequest, response: CompletableDeferred<SequencerResponse>?, startTime: Long): GatewayResponse {
+            val sequencerResponse = response?.let {
                 try {
-                    inputAppender.writingDocument().use {
-                        it.wire()?.write()?.bytes(
-                            sequencerRequest.toByteArray(),
-                        )
-                        it.close()
-                        index = inputAppender.lastIndexAppended()
-                    }
-                    sequencedAppender.writingDocument().use {
-                        it.wire()?.write()?.bytes(
-                            sequenced {
-                                this.guid = guid
-                                this.index = index
-                            }.toByteArray(),
-                        )
-                    }
-                    while (sequencerResponse == null) {
-                        localTailer.readingDocument().use {
-                            if (it.isPresent) {
-                                it.wire()?.read()?.bytes { bytes ->
-                                    val response = SequencerResponse.parseFrom(bytes.toByteArray())
-                                    if (response.guid == sequencerRequest.guid) {
-                                        sequencerResponse = response
-                                    }
-                                }
-                            }
-                        }
-                    }
+                    withTimeoutOrNull(responseTimeoutMillis) { it.await() }
+                        ?: throw TimeoutException("No response to ${sequencerRequest.guid} within ${responseTimeoutMillis}ms")
+                } catch (e: CancellationException) {
+                    responseDispatcher.unregister(sequencerRequest.guid, it)
+                    throw e
                 } catch (e: Throwable) {
+                    responseDispatcher.unregister(sequencerRequest.guid, it)
                     logger.error(e) { "Could not process transaction" }
+                    null
                 }
             }
             return gatewayResponse {
-                this.processingTime = processingTime
+                this.guid = sequencerRequest.guid
+                this.processingTime = System.nanoTime() - startTime
                 sequencerResponse?.let {
                     this.success = true
                     this.sequencerResponse = it
@@ -140,12 +168,35 @@ class GatewayApp(
         }
 
         override suspend fun applyOrderBatch(request: OrderBatch): GatewayResponse {
-            return toSequencer {
+            return toSequencer(orderBatchRequest(request))
+        }
+
+        override fun applyOrderBatchStream(requests: Flow<OrderBatch>): Flow<GatewayResponse> = channelFlow {
+            // once a stream has this many batches in flight no more are read from it, so that gRPC flow control
+            // holds back a client that sends faster than the sequencer responds
+            val inFlight = Semaphore(MAX_IN_FLIGHT_PER_STREAM)
+            requests.collect { request ->
+                inFlight.acquire()
+                val startTime = System.nanoTime()
+                val sequencerRequest = orderBatchRequest(request)
+                // submitted here rather than in the coroutine below, so that batches are sequenced in stream order
+                val response = submit(sequencerRequest)
+                launch {
+                    try {
+                        send(awaitResponse(sequencerRequest, response, startTime))
+                    } finally {
+                        inFlight.release()
+                    }
+                }
+            }
+        }
+
+        private fun orderBatchRequest(request: OrderBatch): SequencerRequest =
+            sequencerRequest {
                 this.guid = request.guid
                 this.type = SequencerRequest.Type.ApplyOrderBatch
                 this.orderBatch = request
             }
-        }
 
         override suspend fun applyBalanceBatch(request: BalanceBatch): GatewayResponse {
             return toSequencer {
@@ -208,5 +259,10 @@ class GatewayApp(
                 this.authorizeWallet = request.authorization
             }
         }
+
+        private companion object {
+            val batchableTypes = setOf(SequencerRequest.Type.ApplyOrderBatch, SequencerRequest.Type.ApplyBalanceBatch)
+            const val MAX_IN_FLIGHT_PER_STREAM = 256
+        }
     }
 }
@@ -0,0 +1,129 @@
+package xyz.funkybit.sequencer.apps
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import net.openhft.chronicle.queue.ChronicleQueue
+import xyz.funkybit.sequencer.core.writeProto
+import xyz.funkybit.sequencer.proto.SequencerRequest
+import xyz.funkybit.sequencer.proto.sequenced
+import xyz.funkybit.sequencer.proto.sequencerRequest
+import java.util.UUID
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+// Writes a request to the input queue and records its index in the sequenced queue, returns the index
+internal fun writeSequencerRequest(inputQueue: ChronicleQueue, sequencedQueue: ChronicleQueue, request: SequencerRequest): Long {
+    val inputAppender = inputQueue.acquireAppender()
+    val index = inputAppender.writingDocument().use {
+        it.wire()?.write()?.writeProto(request)
+        it.close()
+        inputAppender.lastIndexAppended()
+    }
+    sequencedQueue.acquireAppender().writingDocument().use {
+        it.wire()?.write()?.writeProto(
+            sequenced {
+                this.guid = UUID.randomUUID().toString()
+                this.index = index
+            },
+        )
+    }
+    return index
+}
+
+// Coalesces requests submitted within `window` of the first one into a single Batch request, so that a burst of
+// order and balance batches costs one input and one sequenced document instead of one each. Callers register for
+// their response with the ResponseDispatcher before submitting, the sequencer replies to every request in the batch.
+internal class RequestBatcher(
+    private val inputQueue: ChronicleQueue,
+    private val sequencedQueue: ChronicleQueue,
+    private val responseDispatcher: ResponseDispatcher,
+    private val windowNanos: Long,
+    private val maxBatchSize: Int,
+) {
+    private val logger = KotlinLogging.logger {}
+    private val submitted = LinkedBlockingQueue<SequencerRequest>()
+
+    // only used by the batcher thread, including its uncaught exception handler
+    private val batch = ArrayList<SequencerRequest>(maxBatchSize)
+
+    @Volatile
+    private var stop = false
+    private lateinit var batcherThread: Thread
+
+    // set if the batcher thread died, submitting from then on fails right away instead of waiting for a batch that
+    // is never written
+    @Volatile
+    private var failure: Throwable? = null
+
+    fun submit(request: SequencerRequest) {
+        failure?.let { throw IllegalStateException("Request batcher is not running", it) }
+        submitted.put(request)
+        // checked after adding, the batcher thread sets it before failing everything submitted. If the request was
+        // already taken from the queue, it was failed along with the others
+        failure?.let {
+            if (submitted.remove(request)) {
+                throw IllegalStateException("Request batcher is not running", it)
+            }
+        }
+    }
+
+    fun start() {
+        stop = false
+        failure = null
+        batch.clear()
+        batcherThread = thread(start = false, name = "request-batcher", isDaemon = true) {
+            while (!stop) {
+                val first = submitted.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS) ?: continue
+                batch.add(first)
+                val deadline = System.nanoTime() + windowNanos
+                while (batch.size < maxBatchSize) {
+                    val remaining = deadline - System.nanoTime()
+                    if (remaining <= 0) {
+                        submitted.drainTo(batch, maxBatchSize - batch.size)
+                        break
+                    }
+                    batch.add(submitted.poll(remaining, TimeUnit.NANOSECONDS) ?: break)
+                }
+                write(batch)
+                batch.clear()
+            }
+        }
+        batcherThread.uncaughtExceptionHandler = Thread.UncaughtExceptionHandler { _, throwable ->
+            logger.error(throwable) { "Error in request batcher" }
+            failure = throwable
+            submitted.drainTo(batch)
+            batch.forEach { responseDispatcher.fail(it.guid, throwable) }
+            batch.clear()
+        }
+        batcherThread.start()
+    }
+
+    fun stop() {
+        stop = true
+        if (::batcherThread.isInitialized) {
+            batcherThread.join(1000)
+        }
+    }
+
+    private fun write(batch: List<SequencerRequest>) {
+        try {
+            writeSequencerRequest(
+                inputQueue,
+                sequencedQueue,
+                // a lone request is written as is
+                batch.singleOrNull() ?: sequencerRequest {
+                    this.guid = UUID.randomUUID().toString()
+                    this.type = SequencerRequest.Type.Batch
+                    this.batch.addAll(batch)
+                },
+            )
+        } catch (e: Throwable) {
+            logger.error(e) { "Could not write batch of ${batch.size} requests" }
+            batch.forEach { responseDispatcher.fail(it.guid, e) }
+        }
+    }
+
+    private companion object {
+        const val IDLE_POLL_MILLIS = 100L
+    }
+}
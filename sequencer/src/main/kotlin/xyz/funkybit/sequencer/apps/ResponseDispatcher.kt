@@ -0,0 +1,106 @@
+package xyz.funkybit.sequencer.apps
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import kotlinx.coroutines.CompletableDeferred
+import net.openhft.chronicle.queue.ChronicleQueue
+import xyz.funkybit.sequencer.core.readProto
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.LockSupport
+import kotlin.concurrent.thread
+
+// Tails the output queue on a single thread and hands every response to whoever registered for its guid, so that
+// callers waiting for their response suspend instead of each scanning the output queue themselves.
+internal class ResponseDispatcher(
+    private val outputQueue: ChronicleQueue,
+) {
+    private val logger = KotlinLogging.logger {}
+    private val pending = ConcurrentHashMap<String, CompletableDeferred<SequencerResponse>>()
+
+    @Volatile
+    private var stop = false
+    private lateinit var dispatcherThread: Thread
+
+    // set if the dispatcher thread died, callers registering from then on fail right away instead of waiting for a
+    // response that is never dispatched
+    @Volatile
+    private var failure: Throwable? = null
+
+    // register before the request is written, so that the response cannot be missed. Callers using the same guid
+    // share the first response written for it
+    fun register(guid: String): CompletableDeferred<SequencerResponse> =
+        pending.computeIfAbsent(guid) { CompletableDeferred() }.also { deferred ->
+            // checked after adding, the dispatcher sets it before failing everything pending
+            failure?.let { fail(guid, it) }
+        }
+
+    fun unregister(guid: String, deferred: CompletableDeferred<SequencerResponse>) {
+        pending.remove(guid, deferred)
+    }
+
+    // for requests that could not be written, so that their callers stop waiting
+    fun fail(guid: String, cause: Throwable) {
+        pending.remove(guid)?.completeExceptionally(cause)
+    }
+
+    fun start() {
+        stop = false
+        failure = null
+        // only responses to requests written from now on are of interest
+        val tailer = outputQueue.createTailer().toEnd()
+        dispatcherThread = thread(start = false, name = "response-dispatcher", isDaemon = true) {
+            var idleCount = 0
+            while (!stop) {
+                val wasPresent = try {
+                    tailer.readingDocument().use { dc ->
+                        if (dc.isPresent) {
+                            dc.wire()?.read()?.bytes { bytes ->
+                                dispatch(bytes.readProto(SequencerResponse.parser()))
+                            }
+                        }
+                        dc.isPresent
+                    }
+                } catch (e: Exception) {
+                    // a document that cannot be read only fails the calls waiting for it, by timing out on the
+                    // caller's side, rather than everything dispatched from here on
+                    logger.error(e) { "Failed to dispatch response at index ${tailer.index()}" }
+                    true
+                }
+                if (wasPresent) {
+                    idleCount = 0
+                } else if (++idleCount > SPIN_COUNT) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS)
+                }
+            }
+        }
+        dispatcherThread.uncaughtExceptionHandler = Thread.UncaughtExceptionHandler { _, throwable ->
+            logger.error(throwable) { "Error in response dispatcher" }
+            failure = throwable
+            pending.values.forEach { it.completeExceptionally(throwable) }
+        }
+        dispatcherThread.start()
+    }
+
+    private fun dispatch(response: SequencerResponse) {
+        if (response.batchCount > 0) {
+            response.batchList.forEach { pending.remove(it.guid)?.complete(it) }
+        } else {
+            pending.remove(response.guid)?.complete(response)
+        }
+    }
+
+    fun stop() {
+        stop = true
+        if (::dispatcherThread.isInitialized) {
+            dispatcherThread.join(1000)
+        }
+        pending.values.forEach { it.cancel() }
+        pending.clear()
+    }
+
+    private companion object {
+        // spin briefly while responses are flowing, then back off so that an idle gateway does not burn a core
+        const val SPIN_COUNT = 1000
+        const val IDLE_PARK_NANOS = 50_000L
+    }
+}
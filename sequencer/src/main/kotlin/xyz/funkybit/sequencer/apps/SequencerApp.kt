@@ -6,20 +6,23 @@ import net.openhft.chronicle.queue.impl.RollingChronicleQueue
 import xyz.funkybit.core.model.Symbol
 import xyz.funkybit.core.model.db.OrderSide
 import xyz.funkybit.core.utils.fromFundamentalUnits
+import xyz.funkybit.core.utils.humanReadableNanoseconds
 import xyz.funkybit.core.utils.toFundamentalUnits
 import xyz.funkybit.sequencer.core.AccountGuid
+import xyz.funkybit.sequencer.core.ArithmeticMode
 import xyz.funkybit.sequencer.core.Asset
 import xyz.funkybit.sequencer.core.BaseAmount
 import xyz.funkybit.sequencer.core.Clock
 import xyz.funkybit.sequencer.core.FeeRate
 import xyz.funkybit.sequencer.core.FeeRates
+import xyz.funkybit.sequencer.core.LevelIndexType
 import xyz.funkybit.sequencer.core.Market
 import xyz.funkybit.sequencer.core.MarketId
 import xyz.funkybit.sequencer.core.QuoteAmount
 import xyz.funkybit.sequencer.core.SequencerState
 import xyz.funkybit.sequencer.core.asBalanceChangesList
-import xyz.funkybit.sequencer.core.notional
 import xyz.funkybit.sequencer.core.notionalPlusFee
+import xyz.funkybit.sequencer.core.readProto
 import xyz.funkybit.sequencer.core.sumBaseAmounts
 import xyz.funkybit.sequencer.core.sumBigIntegers
 import xyz.funkybit.sequencer.core.sumQuoteAmounts
@@ -28,15 +31,13 @@ import xyz.funkybit.sequencer.core.toAsset
 import xyz.funkybit.sequencer.core.toBaseAmount
 import xyz.funkybit.sequencer.core.toBigDecimal
 import xyz.funkybit.sequencer.core.toBigInteger
-import xyz.funkybit.sequencer.core.toDecimalValue
 import xyz.funkybit.sequencer.core.toIntegerValue
-import xyz.funkybit.sequencer.core.toOrderGuid
 import xyz.funkybit.sequencer.core.toQuoteAmount
+import xyz.funkybit.sequencer.core.writeProto
 import xyz.funkybit.sequencer.proto.BackToBackOrder
 import xyz.funkybit.sequencer.proto.LimitsUpdate
 import xyz.funkybit.sequencer.proto.Order
 import xyz.funkybit.sequencer.proto.OrderBatch
-import xyz.funkybit.sequencer.proto.OrderChangeRejected
 import xyz.funkybit.sequencer.proto.OrderChanged
 import xyz.funkybit.sequencer.proto.OrderDisposition
 import xyz.funkybit.sequencer.proto.SequencerError
@@ -55,6 +56,11 @@ import xyz.funkybit.sequencer.proto.withdrawalCreated
 import java.lang.Thread.UncaughtExceptionHandler
 import java.math.BigDecimal
 import java.math.BigInteger
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
 import kotlin.concurrent.thread
 import kotlin.system.exitProcess
 import xyz.funkybit.sequencer.core.checkpointsQueue as defaultCheckpointsQueue
@@ -69,12 +75,50 @@ class SequencerApp(
     val inSandboxMode: Boolean = System.getenv("SANDBOX_MODE").toBoolean(),
     private val strictReplayValidation: Boolean = System.getenv("STRICT_REPLAY_VALIDATION").toBoolean(),
     private val ecoMode: Boolean = System.getenv("ECO_MODE").toBoolean(),
+    private val arithmeticMode: ArithmeticMode = if (System.getenv("FIXED_POINT_ARITHMETIC").toBoolean()) ArithmeticMode.FixedPoint else ArithmeticMode.Decimal,
+    // comma separated list of market ids which keep their levels in a price ladder
+    private val priceLadderMarkets: Set<MarketId> = System.getenv("PRICE_LADDER_MARKETS")?.split(",")?.filter { it.isNotBlank() }?.map { MarketId(it.trim()) }?.toSet() ?: emptySet(),
+    // every n-th checkpoint contains the complete state, the ones in between only what changed since the previous one
+    private val fullCheckpointInterval: Int = System.getenv("FULL_CHECKPOINT_INTERVAL")?.toIntOrNull() ?: 24,
+    // threads used to decode and rebuild balances and markets when restoring from a checkpoint
+    private val checkpointRestoreParallelism: Int = System.getenv("CHECKPOINT_RESTORE_PARALLELISM")?.toIntOrNull() ?: Runtime.getRuntime().availableProcessors(),
+    // Number of threads matching order batches. With 0 all requests are processed one by one on the sequencer thread,
+    // otherwise consecutive order batches for different markets and accounts form a matching epoch: they are checked
+    // against balances as of the start of the epoch and matched in parallel, then their results are applied in input
+    // order. A batch only joins an epoch if no account it can affect, its own or one with orders in its market, can
+    // be affected by another batch of the epoch, so the responses are the same as when processing one by one. The
+    // number of batches in an epoch is recorded in the first response so that replays form the same epochs.
+    private val marketShards: Int = System.getenv("MARKET_SHARDS")?.toIntOrNull() ?: 0,
 ) : BaseApp() {
     override val logger = KotlinLogging.logger {}
     private var stop = false
     private lateinit var sequencerThread: Thread
     private val state = SequencerState()
 
+    // checkpoints are snapshotted on the sequencer thread but serialized and written by this one
+    private lateinit var checkpointWriter: ExecutorService
+
+    // Owned by the checkpoint writer: set when a write failed, deltas are then skipped until a base checkpoint has
+    // been written, as they would apply on top of the missing one.
+    @Volatile
+    private var checkpointChainBroken = false
+
+    // incremented by the checkpoint writer on every failed write, the sequencer thread requires a base checkpoint
+    // whenever it changed since the last time it looked
+    @Volatile
+    private var checkpointWriteFailures = 0L
+    private var checkpointWriteFailuresSeen = 0L
+
+    private val matchingShardsDelegate = lazy {
+        (0 until marketShards).map { shard ->
+            Executors.newSingleThreadExecutor { runnable ->
+                thread(start = false, name = "matching-shard-$shard", isDaemon = true) { runnable.run() }
+            }
+        }
+    }
+    private val matchingShards by matchingShardsDelegate
+    private val maxMatchingEpochSize = marketShards * 4
+
     fun processRequest(request: SequencerRequest, sequence: Long = 0L, startTime: Long = 0L): SequencerResponse {
         return when (request.type) {
             SequencerRequest.Type.AddMarket -> {
@@ -98,6 +142,8 @@ class SequencerApp(
                             baseDecimals = market.baseDecimals,
                             quoteDecimals = market.quoteDecimals,
                             minFee = if (market.hasMinFee()) market.minFee.toQuoteAmount() else QuoteAmount.ZERO,
+                            arithmeticMode = arithmeticMode,
+                            levelIndexType = levelIndexType(marketId),
                         ),
                     )
                 }
@@ -282,53 +328,9 @@ class SequencerApp(
             }
 
             SequencerRequest.Type.ApplyOrderBatch -> {
-                val ordersChanged: MutableList<OrderChanged> = mutableListOf()
-                var ordersChangeRejected: List<OrderChangeRejected> = emptyList()
-                var trades: List<TradeCreated> = emptyList()
-                val balanceChanges = mutableMapOf<Pair<AccountGuid, Asset>, BigInteger>()
-                val accountsAndAssetsWithBalanceChanges: MutableSet<Pair<AccountGuid, Asset>> = mutableSetOf()
-                val accountsWithLimitChanges: MutableSet<Pair<AccountGuid, MarketId>> = mutableSetOf()
-                val orderBatch = request.orderBatch!!
-                val error: SequencerError?
-                val marketId = MarketId(orderBatch.marketId)
-                val market = state.markets[marketId]
-                if (market == null) {
-                    error = SequencerError.UnknownMarket
-                } else {
-                    val adjustedOrderBatch = adjustBatchForPercentageMarketOrders(market, orderBatch)
-                    error = checkLimits(market, adjustedOrderBatch)
-                    if (error == null) {
-                        val result = market.applyOrderBatch(adjustedOrderBatch, state.feeRates)
-                        ordersChanged.addAll(result.ordersChanged)
-                        ordersChangeRejected = result.ordersChangeRejected
-                        trades = result.createdTrades
-                        applyBalanceAndConsumptionChanges(
-                            market.id,
-                            result,
-                            accountsAndAssetsWithBalanceChanges,
-                            balanceChanges,
-                            accountsWithLimitChanges,
-                        )
-                        ordersChanged.addAll(autoReduce(accountsAndAssetsWithBalanceChanges, accountsWithLimitChanges))
-                    }
-                }
-                sequencerResponse {
-                    this.sequence = sequence
-                    this.guid = orderBatch.guid
-                    this.ordersChanged.addAll(ordersChanged)
-                    this.tradesCreated.addAll(trades)
-                    this.balancesChanged.addAll(balanceChanges.asBalanceChangesList())
-                    this.limitsUpdated.addAll(calculateLimits(accountsWithLimitChanges))
-                    error?.let {
-                        this.error = it
-                    }
-                    this.ordersChangeRejected.addAll(ordersChangeRejected)
-                    market?.let {
-                        this.bidOfferState = market.getBidOfferState()
-                    }
-                    this.createdAt = clock.currentTimeMillis()
-                    this.processingTime = clock.nanoTime() - startTime
-                }
+                val execution = prepareOrderBatch(request.orderBatch!!)
+                matchOrderBatch(execution)
+                completeOrderBatch(execution, sequence, startTime)
             }
 
             SequencerRequest.Type.ApplyBalanceBatch -> {
@@ -374,8 +376,7 @@ class SequencerApp(
                         val baseAsset = market.id.baseAsset()
                         val quoteAsset = market.id.quoteAsset()
                         val baseAmount = failedSettlement.trade.amount.toBaseAmount()
-                        val price = market.price(failedSettlement.trade.levelIx)
-                        val notional = notional(baseAmount, price, market.baseDecimals, market.quoteDecimals)
+                        val notional = market.notionalAtLevel(baseAmount, failedSettlement.trade.levelIx)
 
                         val sellAccount = failedSettlement.sellAccount.toAccountGuid()
                         val sellerBaseRefund = baseAmount
@@ -400,6 +401,7 @@ class SequencerApp(
                 }
 
                 balancesChanged.keys.forEach { (account, asset) ->
+                    state.accountChanged(account)
                     state
                         .getMarketIdsByAsset(asset)
                         .forEach { marketId ->
@@ -475,6 +477,32 @@ class SequencerApp(
                 }
             }
 
+            SequencerRequest.Type.Batch -> {
+                // requests coalesced by the gateway are processed one after the other, as if they had been written
+                // to the input queue separately, but their responses share the sequence of the batch document
+                sequencerResponse {
+                    this.sequence = sequence
+                    this.guid = request.guid
+                    request.batchList.forEach { batched ->
+                        this.batch.add(
+                            when (batched.type) {
+                                SequencerRequest.Type.ApplyOrderBatch, SequencerRequest.Type.ApplyBalanceBatch ->
+                                    processRequest(batched, sequence, startTime)
+                                else -> sequencerResponse {
+                                    this.sequence = sequence
+                                    this.guid = batched.guid
+                                    this.error = SequencerError.UnknownRequest
+                                    this.createdAt = clock.currentTimeMillis()
+                                    this.processingTime = clock.nanoTime() - startTime
+                                }
+                            },
+                        )
+                    }
+                    this.createdAt = clock.currentTimeMillis()
+                    this.processingTime = clock.nanoTime() - startTime
+                }
+            }
+
             null, SequencerRequest.Type.Unparseable, SequencerRequest.Type.UNRECOGNIZED -> {
                 sequencerResponse {
                     this.sequence = sequence
@@ -487,6 +515,77 @@ class SequencerApp(
         }
     }
 
+    // An order batch is checked against the balances of its account, matched in its market and then its results
+    // are applied to the balances. With market shards the matching step of a group of batches runs on the
+    // matching threads of their markets while the other two steps stay on the sequencer thread, see
+    // processMatchingEpoch.
+    private class OrderBatchExecution(
+        val orderBatch: OrderBatch,
+        val market: Market?,
+    ) {
+        var adjustedOrderBatch: OrderBatch? = null
+        var error: SequencerError? = null
+        var result: Market.AddOrdersResult? = null
+    }
+
+    private fun prepareOrderBatch(orderBatch: OrderBatch): OrderBatchExecution {
+        val market = state.markets[MarketId(orderBatch.marketId)]
+        return OrderBatchExecution(orderBatch, market).apply {
+            if (market == null) {
+                error = SequencerError.UnknownMarket
+            } else {
+                val adjustedOrderBatch = adjustBatchForPercentageMarketOrders(market, orderBatch)
+                error = checkLimits(market, adjustedOrderBatch)
+                this.adjustedOrderBatch = adjustedOrderBatch
+            }
+        }
+    }
+
+    // only touches the batch's market, so batches for different markets can be matched concurrently
+    private fun matchOrderBatch(execution: OrderBatchExecution) {
+        val market = execution.market
+        if (market != null && execution.error == null) {
+            execution.result = market.applyOrderBatch(execution.adjustedOrderBatch!!, state.feeRates)
+        }
+    }
+
+    private fun completeOrderBatch(execution: OrderBatchExecution, sequence: Long, startTime: Long): SequencerResponse {
+        val ordersChanged: MutableList<OrderChanged> = mutableListOf()
+        val balanceChanges = mutableMapOf<Pair<AccountGuid, Asset>, BigInteger>()
+        val accountsAndAssetsWithBalanceChanges: MutableSet<Pair<AccountGuid, Asset>> = mutableSetOf()
+        val accountsWithLimitChanges: MutableSet<Pair<AccountGuid, MarketId>> = mutableSetOf()
+        val market = execution.market
+        val result = execution.result
+        if (market != null && result != null) {
+            ordersChanged.addAll(result.ordersChanged)
+            applyBalanceAndConsumptionChanges(
+                market.id,
+                result,
+                accountsAndAssetsWithBalanceChanges,
+                balanceChanges,
+                accountsWithLimitChanges,
+            )
+            ordersChanged.addAll(autoReduce(accountsAndAssetsWithBalanceChanges, accountsWithLimitChanges))
+        }
+        return sequencerResponse {
+            this.sequence = sequence
+            this.guid = execution.orderBatch.guid
+            this.ordersChanged.addAll(ordersChanged)
+            this.tradesCreated.addAll(result?.createdTrades ?: emptyList())
+            this.balancesChanged.addAll(balanceChanges.asBalanceChangesList())
+            this.limitsUpdated.addAll(calculateLimits(accountsWithLimitChanges))
+            execution.error?.let {
+                this.error = it
+            }
+            this.ordersChangeRejected.addAll(result?.ordersChangeRejected ?: emptyList())
+            market?.let {
+                this.bidOfferState = market.getBidOfferState()
+            }
+            this.createdAt = clock.currentTimeMillis()
+            this.processingTime = clock.nanoTime() - startTime
+        }
+    }
+
     private fun applyBalanceAndConsumptionChanges(
         marketId: MarketId,
         result: Market.AddOrdersResult,
@@ -503,6 +602,7 @@ class SequencerApp(
 
             balanceChanges.merge(accountAndAsset, delta, ::sumBigIntegers)
 
+            state.accountChanged(account)
             state
                 .balances
                 .getOrPut(account) { mutableMapOf() }
@@ -520,6 +620,7 @@ class SequencerApp(
         // apply consumption changes
         result.consumptionChanges.forEach {
             if (it.delta != BigInteger.ZERO) {
+                state.accountChanged(it.account)
                 state.consumed.getOrPut(it.account) {
                     mutableMapOf()
                 }.getOrPut(it.asset) {
@@ -869,6 +970,7 @@ class SequencerApp(
                 if (amount > balance) {
                     val changedOrders = state.markets[marketId]?.autoReduce(account, asset, balance) ?: emptyList()
                     state.consumed.getValue(account).getValue(asset)[marketId] = balance
+                    state.accountChanged(account)
                     accountsWithLimitChanges.add(Pair(account, marketId))
                     changedOrders
                 } else {
@@ -906,7 +1008,7 @@ class SequencerApp(
             }
         }
         orderBatch.ordersToCancelList.forEach { cancelOrder ->
-            market.ordersByGuid[cancelOrder.guid.toOrderGuid()]?.let { order ->
+            market.ordersByGuid[cancelOrder.guid]?.let { order ->
                 val (baseAssets, quoteAssets) = market.assetsReservedForOrder(order)
                 if (baseAssets > BaseAmount.ZERO) {
                     baseAssetsRequired.merge(order.account, -baseAssets, ::sumBaseAmounts)
@@ -963,11 +1065,11 @@ class SequencerApp(
             val remainingQuantity = order.amount.toBaseAmount() - availableQuantity
 
             val marketChunkNotional = notionalPlusFee(availableQuantity, clearingPrice, market.baseDecimals, market.quoteDecimals, state.feeRates.taker)
-            val limitChunkNotional = notionalPlusFee(remainingQuantity, orderPrice, market.baseDecimals, market.quoteDecimals, state.feeRates.maker)
+            val limitChunkNotional = market.notionalPlusFeeAtLevel(remainingQuantity, order.levelIx, state.feeRates.maker, orderPrice)
 
             marketChunkNotional + limitChunkNotional
         } else {
-            notionalPlusFee(order.amount, orderPrice.toDecimalValue(), market.baseDecimals, market.quoteDecimals, state.feeRates.maker)
+            market.notionalPlusFeeAtLevel(order.amount.toBaseAmount(), order.levelIx, state.feeRates.maker, orderPrice)
         }
     }
 
@@ -975,6 +1077,12 @@ class SequencerApp(
         logger.info { "Starting${if (inSandboxMode) " in sandbox mode" else ""}" }
 
         stop = false
+        checkpointChainBroken = false
+        checkpointWriteFailures = 0L
+        checkpointWriteFailuresSeen = 0L
+        checkpointWriter = Executors.newSingleThreadExecutor { runnable ->
+            thread(start = false, name = "checkpoint-writer", isDaemon = true) { runnable.run() }
+        }
         sequencerThread = thread(start = false, name = "sequencer", isDaemon = false) {
             val inputTailer = inputQueue.createTailer("sequencer")
 
@@ -985,6 +1093,36 @@ class SequencerApp(
 
             val outputAppender = outputQueue.acquireAppender()
             var inputTailerPrevCycle = inputTailer.cycle()
+            // read but left for the next matching epoch
+            var pendingRequest: SequencedRequest? = null
+
+            fun handleResponse(request: SequencerRequest, response: SequencerResponse) {
+                if (strictReplayValidation && response.sequence <= lastSequenceNumberProcessedBeforeRestart) {
+                    // validate actual response matches expected while replaying requests
+                    loadResponseFromOutputQueue(response.sequence)?.let {
+                        val expectedResponse = it.withTimingsOf(response)
+
+                        if (request.type != SequencerRequest.Type.GetState && response != expectedResponse) {
+                            logger.error { "Actual response did not match expected, exiting. Sequence: ${response.sequence}, requests processed since start: $requestsProcessedSinceStarted, request: $request, expected response: $expectedResponse, actual response: $response" }
+                            exitProcess(1)
+                        }
+                    }
+                    if (requestsProcessedSinceStarted.toInt() % 1000 == 0) {
+                        logger.info { "Replayed and validated $requestsProcessedSinceStarted requests" }
+                    }
+                }
+
+                requestsProcessedSinceStarted += 1
+                if (response.sequence == lastSequenceNumberProcessedBeforeRestart) {
+                    logger.info { "Caught up after re-processing $requestsProcessedSinceStarted requests" }
+                }
+                if (response.sequence > lastSequenceNumberProcessedBeforeRestart) {
+                    outputAppender.writingDocument().use {
+                        it.wire()?.write()?.writeProto(response)
+                    }
+                }
+            }
+
             while (!stop) {
                 val inputTailerCurrentCycle = inputTailer.cycle()
                 if (inputTailerCurrentCycle > inputTailerPrevCycle) {
@@ -994,49 +1132,40 @@ class SequencerApp(
                     inputTailerPrevCycle = inputTailerCurrentCycle
                 }
 
-                inputTailer.readingDocument().use { dc ->
-                    if (dc.isPresent) {
-                        val startTime = clock.nanoTime()
-                        dc.wire()?.read()?.bytes { bytes ->
-                            val request = runCatching {
-                                SequencerRequest.parseFrom(bytes.toByteArray())
-                            }.getOrDefault(
-                                sequencerRequest {
-                                    type = SequencerRequest.Type.Unparseable
-                                    guid = ""
-                                },
-                            )
-                            val response = processRequest(request, dc.index(), startTime)
-
-                            if (strictReplayValidation && response.sequence <= lastSequenceNumberProcessedBeforeRestart) {
-                                // validate actual response matches expected while replaying requests
-                                loadResponseFromOutputQueue(response.sequence)?.let {
-                                    val expectedResponse = it.toBuilder()
-                                        .setProcessingTime(response.processingTime)
-                                        .setCreatedAt(response.createdAt)
-                                        .build()
-
-                                    if (request.type != SequencerRequest.Type.GetState && response != expectedResponse) {
-                                        logger.error { "Actual response did not match expected, exiting. Sequence: ${dc.index()}, requests processed since start: $requestsProcessedSinceStarted, request: $request, expected response: $expectedResponse, actual response: $response" }
-                                        exitProcess(1)
-                                    }
-                                }
-                                if (requestsProcessedSinceStarted.toInt() % 1000 == 0) {
-                                    logger.info { "Replayed and validated $requestsProcessedSinceStarted requests" }
-                                }
+                if (marketShards > 0) {
+                    val first = pendingRequest?.also { pendingRequest = null } ?: readRequest(inputTailer)
+                    if (first != null) {
+                        if (canJoinMatchingEpoch(emptyList(), emptySet(), first.request)) {
+                            // while replaying, epochs are formed as recorded, otherwise from what is available
+                            val epochSize = if (first.sequence <= lastSequenceNumberProcessedBeforeRestart) {
+                                loadResponseFromOutputQueue(first.sequence)?.let { if (it.hasMatchingEpochSize()) it.matchingEpochSize else 1 } ?: 1
+                            } else {
+                                maxMatchingEpochSize
                             }
-
-                            requestsProcessedSinceStarted += 1
-                            if (response.sequence == lastSequenceNumberProcessedBeforeRestart) {
-                                logger.info { "Caught up after re-processing $requestsProcessedSinceStarted requests" }
-                            }
-                            if (response.sequence > lastSequenceNumberProcessedBeforeRestart) {
-                                outputAppender.writingDocument().use {
-                                    it.wire()?.write()?.bytes(response.toByteArray())
+                            val epoch = mutableListOf(first)
+                            val epochAccounts = accountsAffectedBy(first.request.orderBatch).toMutableSet()
+                            val epochCycle = inputQueue.rollCycle().toCycle(first.sequence)
+                            while (epoch.size < epochSize) {
+                                val next = readRequest(inputTailer) ?: break
+                                // checkpoints are taken between cycles, so an epoch must not span two of them
+                                if (inputQueue.rollCycle().toCycle(next.sequence) != epochCycle || !canJoinMatchingEpoch(epoch.map { it.request }, epochAccounts, next.request)) {
+                                    pendingRequest = next
+                                    break
                                 }
+                                epoch.add(next)
+                                epochAccounts.addAll(accountsAffectedBy(next.request.orderBatch))
+                            }
+                            processMatchingEpoch(epoch).forEachIndexed { i, response ->
+                                handleResponse(epoch[i].request, response)
                             }
+                        } else {
+                            handleResponse(first.request, processRequest(first.request, first.sequence, first.startTime))
                         }
                     }
+                } else {
+                    readRequest(inputTailer)?.let { sequenced ->
+                        handleResponse(sequenced.request, processRequest(sequenced.request, sequenced.sequence, sequenced.startTime))
+                    }
                 }
 
                 if (ecoMode) {
@@ -1053,6 +1182,84 @@ class SequencerApp(
         logger.info { "Started" }
     }
 
+    private class SequencedRequest(
+        val request: SequencerRequest,
+        val sequence: Long,
+        val startTime: Long,
+    )
+
+    private fun readRequest(inputTailer: ExcerptTailer): SequencedRequest? =
+        inputTailer.readingDocument().use { dc ->
+            if (dc.isPresent) {
+                val startTime = clock.nanoTime()
+                var request: SequencerRequest? = null
+                dc.wire()?.read()?.bytes { bytes ->
+                    request = runCatching {
+                        bytes.readProto(SequencerRequest.parser())
+                    }.getOrDefault(
+                        sequencerRequest {
+                            type = SequencerRequest.Type.Unparseable
+                            guid = ""
+                        },
+                    )
+                }
+                request?.let { SequencedRequest(it, dc.index(), startTime) }
+            } else {
+                null
+            }
+        }
+
+    // batches in an epoch are checked against balances as of the start of the epoch and settle or auto-reduce
+    // accounts in other markets only after all of them are matched, so each market can only be matched once per
+    // epoch and the accounts a batch can affect must not be affected by any other batch of the epoch
+    private fun canJoinMatchingEpoch(epoch: List<SequencerRequest>, epochAccounts: Set<Long>, request: SequencerRequest): Boolean =
+        request.type == SequencerRequest.Type.ApplyOrderBatch &&
+            state.markets.containsKey(MarketId(request.orderBatch.marketId)) &&
+            epoch.none { it.orderBatch.marketId == request.orderBatch.marketId } &&
+            accountsAffectedBy(request.orderBatch).none { epochAccounts.contains(it) }
+
+    // the account submitting the batch and every account with orders in its market, which fills can settle
+    private fun accountsAffectedBy(orderBatch: OrderBatch): Set<Long> =
+        buildSet {
+            add(orderBatch.account)
+            state.markets[MarketId(orderBatch.marketId)]?.let { market ->
+                market.buyOrdersByAccount.forEach { account, _ -> add(account) }
+                market.sellOrdersByAccount.forEach { account, _ -> add(account) }
+            }
+        }
+
+    private fun processMatchingEpoch(epoch: List<SequencedRequest>): List<SequencerResponse> {
+        val executions = epoch.map { prepareOrderBatch(it.request.orderBatch) }
+        if (executions.size == 1) {
+            matchOrderBatch(executions.single())
+        } else {
+            executions
+                .map { execution ->
+                    matchingShards[Math.floorMod(execution.orderBatch.marketId.hashCode(), matchingShards.size)].submit(
+                        Callable { matchOrderBatch(execution) },
+                    )
+                }
+                .forEach { it.get() }
+        }
+        return executions.mapIndexed { i, execution ->
+            completeOrderBatch(execution, epoch[i].sequence, epoch[i].startTime).let { response ->
+                if (i == 0 && epoch.size > 1) response.copy { this.matchingEpochSize = epoch.size } else response
+            }
+        }
+    }
+
+    // processing time and creation time differ between runs, including those of the responses in a batch
+    private fun SequencerResponse.withTimingsOf(actual: SequencerResponse): SequencerResponse =
+        toBuilder()
+            .setProcessingTime(actual.processingTime)
+            .setCreatedAt(actual.createdAt)
+            .apply {
+                if (batchCount == actual.batchCount) {
+                    actual.batchList.forEachIndexed { i, batched -> setBatch(i, getBatch(i).withTimingsOf(batched)) }
+                }
+            }
+            .build()
+
     private fun getLastSequenceNumberInOutputQueue(): Long =
         outputQueue.createTailer().let { outputTailer ->
             var result = -1L
@@ -1060,7 +1267,7 @@ class SequencerApp(
             outputTailer.readingDocument().use {
                 if (it.isPresent) {
                     it.wire()?.read()?.bytes { bytes ->
-                        result = SequencerResponse.parseFrom(bytes.toByteArray()).sequence
+                        result = bytes.readProto(SequencerResponse.parser()).sequence
                     }
                 }
             }
@@ -1078,7 +1285,7 @@ class SequencerApp(
         outputTailer.readingDocument().use {
             if (it.isPresent) {
                 it.wire()?.read()?.bytes { bytes ->
-                    result = SequencerResponse.parseFrom(bytes.toByteArray())
+                    result = bytes.readProto(SequencerResponse.parser())
                 }
             }
         }
@@ -1087,16 +1294,52 @@ class SequencerApp(
 
     private fun saveCheckpoint(checkpointsQueue: RollingChronicleQueue, currentCycle: Int) {
         logger.debug { "Saving checkpoint for cycle $currentCycle" }
-        state.persist(checkpointsQueue, currentCycle)
-        logger.debug { "Saved checkpoint" }
+        val writeFailures = checkpointWriteFailures
+        if (writeFailures != checkpointWriteFailuresSeen) {
+            state.requireBaseCheckpoint()
+            checkpointWriteFailuresSeen = writeFailures
+        }
+        val snapshot = state.checkpointSnapshot(currentCycle, fullCheckpointInterval)
+        checkpointWriter.execute {
+            if (checkpointChainBroken && !snapshot.isBase) {
+                logger.warn { "Skipping delta checkpoint for cycle $currentCycle after a failed checkpoint write" }
+                return@execute
+            }
+            try {
+                snapshot.write(checkpointsQueue)
+                if (snapshot.isBase) {
+                    checkpointChainBroken = false
+                }
+                logger.debug { "Saved checkpoint for cycle $currentCycle" }
+            } catch (e: Exception) {
+                logger.error(e) { "Failed to write checkpoint for cycle $currentCycle" }
+                checkpointChainBroken = true
+                checkpointWriteFailures += 1
+            }
+        }
     }
 
+    private fun levelIndexType(marketId: MarketId): LevelIndexType =
+        if (priceLadderMarkets.contains(marketId)) LevelIndexType.Ladder else LevelIndexType.Tree
+
     private fun restoreFromCheckpoint(inputTailer: ExcerptTailer, checkpointsQueue: RollingChronicleQueue) {
-        val restoredFromCycle = state.load(checkpointsQueue)
+        val pool = ForkJoinPool(checkpointRestoreParallelism)
+        val restoredFromCycle = try {
+            state.load(checkpointsQueue, arithmeticMode, ::levelIndexType, pool)
+        } finally {
+            pool.shutdown()
+        }
 
         if (restoredFromCycle != null) {
             inputTailer.moveToCycle(restoredFromCycle)
-            logger.debug { "Restored from checkpoint" }
+            state.lastLoadTimings?.let { timings ->
+                logger.info {
+                    "Restored from checkpoint of cycle $restoredFromCycle in ${humanReadableNanoseconds(timings.total)} " +
+                        "(read ${humanReadableNanoseconds(timings.read)}, decode ${humanReadableNanoseconds(timings.decode)}, " +
+                        "balances ${humanReadableNanoseconds(timings.balances)}, markets ${humanReadableNanoseconds(timings.markets)}) " +
+                        "using $checkpointRestoreParallelism threads"
+                }
+            }
         } else {
             inputTailer.toStart()
             logger.debug { "No checkpoints found, moved to start" }
@@ -1108,6 +1351,14 @@ class SequencerApp(
         stop = true
         sequencerThread.join(100)
         sequencerThread.stop()
+        if (matchingShardsDelegate.isInitialized()) {
+            matchingShards.forEach { it.shutdown() }
+        }
+        // let checkpoints which were already taken reach the queue
+        checkpointWriter.shutdown()
+        if (!checkpointWriter.awaitTermination(10, TimeUnit.SECONDS)) {
+            logger.warn { "Timed out waiting for checkpoint writes to complete" }
+        }
         logger.info { "Stopped" }
     }
 
@@ -8,6 +8,7 @@ import xyz.funkybit.apps.api.BaseApp
 import xyz.funkybit.core.db.DbConfig
 import xyz.funkybit.core.model.db.KeyValueStore
 import xyz.funkybit.sequencer.apps.services.SequencerResponseProcessorService
+import xyz.funkybit.sequencer.core.readProto
 import xyz.funkybit.sequencer.proto.SequencerRequest
 import xyz.funkybit.sequencer.proto.SequencerResponse
 import java.lang.Thread.UncaughtExceptionHandler
@@ -21,6 +22,8 @@ class SequencerResponseProcessorApp(
     val outputQueue: RollingChronicleQueue,
     val onAbnormalStop: () -> Unit,
     private val ecoMode: Boolean = System.getenv("ECO_MODE").toBoolean(),
+    // up to this many responses that are already in the output queue are processed in one transaction
+    private val batchSize: Int = System.getenv("RESPONSE_PROCESSOR_BATCH_SIZE")?.toIntOrNull() ?: 1,
 ) : BaseApp(dbConfig) {
     override val logger = KotlinLogging.logger {}
     private var stop = false
@@ -44,28 +47,39 @@ class SequencerResponseProcessorApp(
             outputTailer.moveToIndex(lastIndex + 1)
             logger.debug { "Moving index to ${lastIndex + 1}" }
 
+            val batch = ArrayList<ResponseToProcess>(batchSize)
             while (!stop) {
-                var response: SequencerResponse? = null
-                outputTailer.readingDocument().use {
-                    if (it.isPresent) {
-                        it.wire()?.read()?.bytes { bytes ->
-                            response = SequencerResponse.parseFrom(bytes.toByteArray())
+                while (batch.size < batchSize) {
+                    var response: SequencerResponse? = null
+                    val wasPresent = outputTailer.readingDocument().use {
+                        if (it.isPresent) {
+                            it.wire()?.read()?.bytes { bytes ->
+                                response = bytes.readProto(SequencerResponse.parser())
+                            }
                         }
+                        it.isPresent
+                    }
+                    if (!wasPresent) {
+                        break
                     }
-                }
 
-                response?.let { resp ->
-                    inputTailer.moveToIndex(resp.sequence)
-                    inputTailer.readingDocument().use { dc ->
-                        if (dc.isPresent) {
-                            dc.wire()?.read()?.bytes { bytes ->
-                                val lastReadIndex = outputTailer.lastReadIndex()
-                                processResponseWithRetries(bytes.toByteArray(), resp, lastReadIndex)
+                    response?.let { resp ->
+                        inputTailer.moveToIndex(resp.sequence)
+                        inputTailer.readingDocument().use { dc ->
+                            if (dc.isPresent) {
+                                dc.wire()?.read()?.bytes { bytes ->
+                                    batch.add(ResponseToProcess(bytes.readProto(SequencerRequest.parser()), resp, outputTailer.lastReadIndex()))
+                                }
                             }
                         }
                     }
                 }
 
+                if (batch.isNotEmpty()) {
+                    processResponsesWithRetries(batch)
+                    batch.clear()
+                }
+
                 if (ecoMode) {
                     Thread.sleep(10)
                 }
@@ -97,7 +111,15 @@ class SequencerResponseProcessorApp(
         processorThread.join()
     }
 
-    private fun processResponseWithRetries(requestBytes: ByteArray, response: SequencerResponse, lastReadIndex: Long) {
+    private class ResponseToProcess(
+        val request: SequencerRequest,
+        val response: SequencerResponse,
+        val outputIndex: Long,
+    )
+
+    // responses are processed in output queue order in one transaction, which also stores the index of the last one.
+    // If the transaction fails, the whole batch is retried
+    private fun processResponsesWithRetries(batch: List<ResponseToProcess>) {
         val startedAt = Clock.System.now()
         val alertAfterDuration = 1.minutes
         var attempt = 0L
@@ -107,21 +129,24 @@ class SequencerResponseProcessorApp(
             runCatching {
                 attempt += 1
                 transaction {
-                    val request = SequencerRequest.parseFrom(requestBytes)
-
-                    logger.debug { "Processing sequence ${response.sequence}: attempt=$attempt, request=<$request>, response=<$response>" }
-                    SequencerResponseProcessorService.processResponse(response, request)
+                    batch.forEach {
+                        logger.debug { "Processing sequence ${it.response.sequence}: attempt=$attempt, request=<${it.request}>, response=<${it.response}>" }
+                    }
+                    SequencerResponseProcessorService.processResponses(batch.map { it.response to it.request })
 
-                    logger.debug { "Storing last processed index $lastReadIndex" }
-                    updateLastProcessedIndex(lastReadIndex)
+                    val lastProcessedIndex = batch.last().outputIndex
+                    logger.debug { "Storing last processed index $lastProcessedIndex" }
+                    updateLastProcessedIndex(lastProcessedIndex)
                 }
             }.onSuccess {
                 return
             }.onFailure { error ->
+                // the order book levels may hold changes of the rolled back transaction
+                SequencerResponseProcessorService.discardOrderBooks()
                 Thread.sleep(100)
                 val timeSinceStarted = Clock.System.now() - startedAt
                 if (timeSinceStarted > alertAfterDuration && !notified) {
-                    logger.error(error) { "Can't process sequencer response after retrying for $timeSinceStarted" }
+                    logger.error(error) { "Can't process ${batch.size} sequencer responses after retrying for $timeSinceStarted" }
                     notified = true
                 }
             }
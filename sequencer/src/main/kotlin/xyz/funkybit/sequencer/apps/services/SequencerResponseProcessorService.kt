@@ -33,6 +33,8 @@ import xyz.funkybit.core.model.db.MarketEntity
 import xyz.funkybit.core.model.db.MarketId
 import xyz.funkybit.core.model.db.OHLCDuration
 import xyz.funkybit.core.model.db.OHLCEntity
+import xyz.funkybit.core.model.db.OHLCTrade
+import xyz.funkybit.core.model.db.OrderBookLevels
 import xyz.funkybit.core.model.db.OrderBookSnapshot
 import xyz.funkybit.core.model.db.OrderEntity
 import xyz.funkybit.core.model.db.OrderExecutionEntity
@@ -57,6 +59,7 @@ import xyz.funkybit.core.sequencer.toOrderId
 import xyz.funkybit.core.sequencer.toSequencerOrderId
 import xyz.funkybit.core.sequencer.toSequencerWalletId
 import xyz.funkybit.core.sequencer.toWithdrawalId
+import xyz.funkybit.core.services.ReferenceDataCache
 import xyz.funkybit.sequencer.core.toBigInteger
 import xyz.funkybit.sequencer.proto.BackToBackOrder
 import xyz.funkybit.sequencer.proto.LimitsUpdate
@@ -80,6 +83,62 @@ object SequencerResponseProcessorService {
     private val symbolMap = mutableMapOf<String, SymbolEntity>()
     private val marketMap = mutableMapOf<MarketId, MarketEntity>()
 
+    // open limit orders by price level for the markets that had order changes since the processor started. The
+    // levels are updated in the processing transaction, so they have to be dropped when it does not commit
+    private val orderBooks = mutableMapOf<MarketId, OrderBookLevels>()
+
+    fun discardOrderBooks() {
+        orderBooks.clear()
+    }
+
+    // close of the first one-minute candle at or after 24 hours ago by market, along with the start it was looked
+    // up for. Only complete candles are kept, so a cached close is valid until the next minute
+    private val h24ClosePrices = mutableMapOf<MarketId, Pair<Instant, BigDecimal>>()
+
+    // set while processResponses runs, collects the trades of all responses to merge them into the candles at once
+    private var batchOhlcTrades: MutableList<OHLCTrade>? = null
+
+    // set while processResponses runs, collects the broadcaster notifications of all responses
+    private var batchNotifications: MutableList<BroadcasterNotification>? = null
+
+    // set while processResponses runs, collects the balance deltas of all responses to apply them with one update
+    private var batchBalanceChanges: MutableList<Pair<UserId, BalanceChange.Delta>>? = null
+
+    // set while processResponses runs, collects the limits of all responses to write them with one upsert
+    private var batchLimitsUpdates: MutableList<LimitsUpdated>? = null
+
+    private data class LimitsUpdated(
+        val limits: List<Pair<UserId, MarketLimits>>,
+        val usersToNotify: Set<UserId>,
+    )
+
+    // processes the responses in order in the current transaction. Nothing read while processing a response depends
+    // on balances or limits, so the balance deltas and limits of all responses are written once the last one was
+    // processed, together with merging their trades into the candles. The broadcaster notifications of all of them
+    // are published as one broadcaster job
+    fun processResponses(responsesWithRequests: List<Pair<SequencerResponse, SequencerRequest>>) {
+        val notifications = mutableListOf<BroadcasterNotification>()
+        val ohlcTrades = mutableListOf<OHLCTrade>()
+        val balanceChanges = mutableListOf<Pair<UserId, BalanceChange.Delta>>()
+        val limitsUpdates = mutableListOf<LimitsUpdated>()
+        batchNotifications = notifications
+        batchOhlcTrades = ohlcTrades
+        batchBalanceChanges = balanceChanges
+        batchLimitsUpdates = limitsUpdates
+        try {
+            responsesWithRequests.forEach { (response, request) -> processResponse(response, request) }
+        } finally {
+            batchNotifications = null
+            batchOhlcTrades = null
+            batchBalanceChanges = null
+            batchLimitsUpdates = null
+        }
+        notifications.addAll(applyBalanceChanges(balanceChanges))
+        notifications.addAll(applyLimitsUpdates(limitsUpdates))
+        notifications.addAll(mergeIntoOhlc(ohlcTrades))
+        publishBroadcasterNotifications(notifications)
+    }
+
     fun processResponse(response: SequencerResponse, request: SequencerRequest) {
         when (request.type) {
             SequencerRequest.Type.ApplyBalanceBatch -> {
@@ -163,6 +222,7 @@ object SequencerResponseProcessorService {
                         maker = FeeRate(response.feeRatesSet.maker),
                         taker = FeeRate(response.feeRatesSet.taker),
                     ).persist()
+                    ReferenceDataCache.notifyChanged()
                 }
             }
 
@@ -175,6 +235,7 @@ object SequencerResponseProcessorService {
                             updatedBy = "seq:${response.sequence}"
                         }
                     }
+                    ReferenceDataCache.notifyChanged()
                 }
             }
 
@@ -187,6 +248,7 @@ object SequencerResponseProcessorService {
                             updatedBy = "seq:${response.sequence}"
                         }
                     }
+                    ReferenceDataCache.notifyChanged()
                 }
             }
 
@@ -199,6 +261,18 @@ object SequencerResponseProcessorService {
                             updatedBy = "seq:${response.sequence}"
                         }
                     }
+                    ReferenceDataCache.notifyChanged()
+                }
+            }
+
+            SequencerRequest.Type.Reset -> {
+                discardOrderBooks()
+                h24ClosePrices.clear()
+            }
+
+            SequencerRequest.Type.Batch -> {
+                request.batchList.zip(response.batchList).forEach { (batchedRequest, batchedResponse) ->
+                    processResponse(batchedResponse, batchedRequest)
                 }
             }
 
@@ -206,6 +280,10 @@ object SequencerResponseProcessorService {
         }
     }
 
+    private fun publish(notifications: List<BroadcasterNotification>) {
+        batchNotifications?.addAll(notifications) ?: publishBroadcasterNotifications(notifications)
+    }
+
     private fun error(response: SequencerResponse, defaultMessage: String = "Rejected by sequencer") =
         if (response.error != SequencerError.None) response.error.name else defaultMessage
 
@@ -230,7 +308,7 @@ object SequencerResponseProcessorService {
 
             val createdOrders = OrderEntity.listOrdersWithExecutions(createAssignments.map { it.orderId }).map { it.toOrderResponse() }
 
-            publishBroadcasterNotifications(
+            publish(
                 listOf(BroadcasterNotification(MyOrdersCreated(createdOrders), wallet.userGuid.value)),
             )
         }
@@ -258,7 +336,7 @@ object SequencerResponseProcessorService {
 
         val createdOrder = OrderEntity.listOrdersWithExecutions(listOf(createAssignment.orderId)).map { it.toOrderResponse() }.first()
 
-        publishBroadcasterNotifications(
+        publish(
             listOf(BroadcasterNotification(MyOrdersCreated(listOf(createdOrder)), wallet.userGuid.value)),
         )
     }
@@ -279,7 +357,7 @@ object SequencerResponseProcessorService {
         updateOhlc(tradesWithTakerOrder, broadcasterNotifications)
         handleLimitsUpdates(response.limitsUpdatedList, broadcasterNotifications)
 
-        publishBroadcasterNotifications(broadcasterNotifications)
+        publish(broadcasterNotifications)
     }
 
     private fun handleTrades(createdTrades: List<TradeCreated>, responseSequence: Long, orderIdsInRequest: List<Long> = listOf(), timestamp: Instant, broadcasterNotifications: MutableList<BroadcasterNotification>): List<Pair<TradeEntity, OrderEntity>> {
@@ -325,7 +403,6 @@ object SequencerResponseProcessorService {
                         responseSequence = responseSequence,
                     )
 
-                    execution.refresh(flush = true)
                     executionsCreatedByUser
                         .getOrPut(execution.order.wallet.userGuid.value) { mutableListOf() }
                         .add(execution)
@@ -338,6 +415,12 @@ object SequencerResponseProcessorService {
             }
         }
 
+        // the trades and executions of the response are inserted with one batch insert per table, which also
+        // assigns the trade sequence ids used below
+        if (executionsCreatedByUser.isNotEmpty()) {
+            TransactionManager.current().entityCache.flush()
+        }
+
         executionsCreatedByUser.forEach { (userId, executions) ->
             logger.debug { "Sending TradesCreated to user $userId" }
             broadcasterNotifications.add(
@@ -449,41 +532,72 @@ object SequencerResponseProcessorService {
                 balanceChanges.map { SequencerAccountId(it.account) }.toSet(),
             ).toMap().mapKeys { (user, _) -> user.sequencerId.value }
 
-            val userIdsWithUpdatedBalances = mutableSetOf<UserId>()
-            BalanceEntity.updateBalances(
-                balanceChanges.mapNotNull { change ->
-                    val symbol = getSymbol(change.asset)
+            val deltas = balanceChanges.mapNotNull { change ->
+                val symbol = getSymbol(change.asset)
 
-                    userWalletsMap[change.account]?.let { userWallets ->
-                        userWallets.find { it.networkType == symbol.chain.networkType }?.let { wallet ->
-                            userIdsWithUpdatedBalances.add(wallet.userGuid.value)
+                userWalletsMap[change.account]?.let { userWallets ->
+                    userWallets.find { it.networkType == symbol.chain.networkType }?.let { wallet ->
+                        Pair(
+                            wallet.userGuid.value,
                             BalanceChange.Delta(
                                 walletId = wallet.guid.value,
                                 symbolId = symbol.guid.value,
                                 amount = change.delta.toBigInteger(),
-                            )
-                        }
+                            ),
+                        )
                     }
-                },
-                BalanceType.Available,
-            )
-
-            userIdsWithUpdatedBalances.forEach {
-                broadcasterNotifications.add(BroadcasterNotification.walletBalances(it))
+                }
             }
+
+            batchBalanceChanges?.addAll(deltas) ?: broadcasterNotifications.addAll(applyBalanceChanges(deltas))
         }
     }
 
+    // the deltas are summed up by wallet and symbol, since one update statement can change a balance only once
+    private fun applyBalanceChanges(changes: List<Pair<UserId, BalanceChange.Delta>>): List<BroadcasterNotification> {
+        if (changes.isEmpty()) return emptyList()
+
+        BalanceEntity.updateBalances(
+            changes
+                .groupBy({ (_, delta) -> Pair(delta.walletId, delta.symbolId) }, { (_, delta) -> delta.amount })
+                .map { (walletAndSymbol, amounts) ->
+                    BalanceChange.Delta(
+                        walletId = walletAndSymbol.first,
+                        symbolId = walletAndSymbol.second,
+                        amount = amounts.reduce(BigInteger::add),
+                    )
+                },
+            BalanceType.Available,
+        )
+
+        return changes.map { it.first }.toSet().map { BroadcasterNotification.walletBalances(it) }
+    }
+
     private fun updateOrderBookSnapshot(ordersChanged: List<OrderChanged>, tradesWithTakerOrder: List<Pair<TradeEntity, OrderEntity>>, broadcasterNotifications: MutableList<BroadcasterNotification>) {
-        val marketsWithOrderChanges = OrderEntity
-            .getOrdersMarkets(ordersChanged.map { it.guid })
-            .sortedBy { it.guid }
-
-        marketsWithOrderChanges.forEach { market ->
-            val prevSnapshot = OrderBookSnapshot.get(market)
-            val newSnapshot = OrderBookSnapshot.calculate(market, tradesWithTakerOrder, prevSnapshot)
-            val diff = newSnapshot.diff(prevSnapshot)
-            newSnapshot.save(market)
+        val changedOrdersByMarket = OrderBookLevels
+            .changedOrders(ordersChanged.map { it.guid })
+            .entries
+            .sortedBy { it.key.value }
+
+        changedOrdersByMarket.forEach { (marketId, changedOrders) ->
+            val market = getMarket(marketId)
+            val orderBook = orderBooks[marketId]
+            val diff = if (orderBook != null) {
+                orderBook.update(changedOrders, tradesWithTakerOrder, market)
+            } else {
+                // the levels are loaded after this response's changes were written, so on first use the diff is
+                // taken against the last persisted snapshot
+                val prevSnapshot = OrderBookSnapshot.get(market)
+                OrderBookLevels.load(market, prevSnapshot.last).let { loaded ->
+                    orderBooks[marketId] = loaded
+                    loaded.update(changedOrders, tradesWithTakerOrder, market)
+                    loaded.snapshot().diff(prevSnapshot)
+                }
+            }
+            val newSnapshot = orderBooks.getValue(marketId).snapshot()
+            if (diff.bids.isNotEmpty() || diff.asks.isNotEmpty() || diff.last != null) {
+                newSnapshot.save(market)
+            }
             val seqNumber = KeyValueStore.incrementLong("WebsocketMsgSeqNumber:OrderBookDiff:${market.id.value.value}")
 
             broadcasterNotifications.add(
@@ -502,47 +616,62 @@ object SequencerResponseProcessorService {
     }
 
     private fun updateOhlc(tradesWithTakerOrder: List<Pair<TradeEntity, OrderEntity>>, broadcasterNotifications: MutableList<BroadcasterNotification>) {
-        val lastPriceByMarket = mutableMapOf<MarketId, BigDecimal>()
-        val ohlcNotifications = tradesWithTakerOrder
-            .fold(mutableMapOf<OrderId, MutableList<TradeEntity>>()) { acc, pair ->
-                val trade = pair.first
-                val orderId = pair.second.id.value
-                acc[orderId] = acc.getOrDefault(orderId, mutableListOf()).also { it.add(trade) }
-                acc
-            }
-            .forEach { (_, trades) ->
+        val ohlcTrades = tradesWithTakerOrder
+            .groupBy({ it.second.id.value }, { it.first })
+            .values
+            .map { trades ->
                 val market = trades.first().market
                 val marketPriceScale = market.tickSize.stripTrailingZeros().scale() + 1
                 val sumOfAmounts = trades.sumOf { it.amount }
                 val sumOfPricesByAmount = trades.sumOf { it.price * it.amount.toBigDecimal() }
                 val weightedPrice = (sumOfPricesByAmount / sumOfAmounts.toBigDecimal()).setScale(marketPriceScale, RoundingMode.HALF_UP)
 
-                val h24ClosePrice = OHLCEntity.findSingleByClosestStartTime(market.guid.value, OHLCDuration.P1M, OHLCDuration.P1M.durationStart(Clock.System.now() - 24.hours))?.close
+                OHLCTrade(market.guid.value, trades.first().timestamp, weightedPrice, sumOfAmounts)
+            }
 
-                lastPriceByMarket[market.id.value] = weightedPrice
+        batchOhlcTrades?.addAll(ohlcTrades) ?: broadcasterNotifications.addAll(mergeIntoOhlc(ohlcTrades))
+    }
 
-                OHLCEntity.updateWith(market.guid.value, trades.first().timestamp, weightedPrice, sumOfAmounts).forEach {
-                    broadcasterNotifications.add(
-                        BroadcasterNotification.pricesForMarketPeriods(
-                            marketId = market.guid.value,
-                            duration = it.duration,
-                            ohlc = listOf(it),
-                            full = false,
-                            dailyChange = h24ClosePrice?.let { closePrice -> (weightedPrice - closePrice) / closePrice } ?: BigDecimal.ZERO,
-                        ),
-                    )
-                }
-            }
+    // merges the trades into the candles with one upsert and notifies about the updated candles
+    private fun mergeIntoOhlc(ohlcTrades: List<OHLCTrade>): List<BroadcasterNotification> {
+        if (ohlcTrades.isEmpty()) return emptyList()
+
+        val lastPriceByMarket = ohlcTrades.associate { it.market to it.price }
+        val h24ClosePriceByMarket = lastPriceByMarket.keys.associateWith { h24ClosePrice(it) }
+
+        val notifications = OHLCEntity.updateWith(ohlcTrades).map { ohlc ->
+            val marketId = ohlc.marketGuid.value
+            val lastPrice = lastPriceByMarket.getValue(marketId)
+            BroadcasterNotification.pricesForMarketPeriods(
+                marketId = marketId,
+                duration = ohlc.duration,
+                ohlc = listOf(ohlc),
+                full = false,
+                dailyChange = h24ClosePriceByMarket[marketId]?.let { closePrice -> (lastPrice - closePrice) / closePrice } ?: BigDecimal.ZERO,
+            )
+        }
 
-        val markets = MarketEntity.all().toList()
+        lastPriceByMarket.forEach { (marketId, lastPrice) ->
+            MarketEntity[marketId].lastPrice = lastPrice
+        }
 
-        markets.forEach { m ->
-            lastPriceByMarket[m.id.value]?.let {
-                m.lastPrice = it
-            }
+        return notifications
+    }
+
+    private fun h24ClosePrice(marketId: MarketId): BigDecimal? {
+        val now = Clock.System.now()
+        val referenceStart = OHLCDuration.P1M.durationStart(now - 24.hours)
+        h24ClosePrices[marketId]?.let { (start, closePrice) ->
+            if (start == referenceStart) return closePrice
         }
 
-        return ohlcNotifications
+        return OHLCEntity.findSingleByClosestStartTime(marketId, OHLCDuration.P1M, referenceStart)?.let { ohlc ->
+            // the candle of the current minute still changes
+            if (ohlc.start < OHLCDuration.P1M.durationStart(now)) {
+                h24ClosePrices[marketId] = Pair(referenceStart, ohlc.close)
+            }
+            ohlc.close
+        }
     }
 
     private fun handleLimitsUpdates(limitsUpdates: List<LimitsUpdate>, broadcasterNotifications: MutableList<BroadcasterNotification>) {
@@ -551,8 +680,8 @@ object SequencerResponseProcessorService {
         ).associateBy { it.first.sequencerId.value }
 
         val usersToNotifyAboutLimitsChanges = mutableSetOf<UserId>()
-        LimitEntity.update(
-            limitsUpdates.map {
+        val limitsUpdated = LimitsUpdated(
+            limits = limitsUpdates.map {
                 val marketId = MarketId(it.marketId)
                 val (user, userWallets) = userWalletsMap[it.account]!!
 
@@ -569,13 +698,27 @@ object SequencerResponseProcessorService {
                     ),
                 )
             },
+            usersToNotify = usersToNotifyAboutLimitsChanges,
         )
 
-        usersToNotifyAboutLimitsChanges.forEach { wallet ->
-            broadcasterNotifications.add(
-                BroadcasterNotification.limits(wallet),
-            )
-        }
+        batchLimitsUpdates?.add(limitsUpdated) ?: broadcasterNotifications.addAll(applyLimitsUpdates(listOf(limitsUpdated)))
+    }
+
+    // only the last limits of a user in a market are written, since one upsert statement can change a row only once
+    private fun applyLimitsUpdates(limitsUpdates: List<LimitsUpdated>): List<BroadcasterNotification> {
+        val limits = limitsUpdates
+            .flatMap { it.limits }
+            .associateBy { (userId, marketLimits) -> Pair(userId, marketLimits.marketId) }
+            .values
+            .toList()
+        if (limits.isEmpty()) return emptyList()
+
+        LimitEntity.update(limits)
+
+        return limitsUpdates
+            .flatMap { it.usersToNotify }
+            .toSet()
+            .map { BroadcasterNotification.limits(it) }
     }
 
     private fun getSymbol(asset: String): SymbolEntity {
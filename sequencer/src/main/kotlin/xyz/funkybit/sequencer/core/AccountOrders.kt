@@ -0,0 +1,81 @@
+package xyz.funkybit.sequencer.core
+
+// Orders of a single account on one side of a market. Orders are linked through their own prevForAccount and
+// nextForAccount fields, so adding and removing doesn't copy or allocate. Orders are kept in price priority
+// (ascending level index for sells, descending for buys) and in time priority within a level.
+class AccountOrders(val side: BookSide) {
+    var first: LevelOrder? = null
+        private set
+    var last: LevelOrder? = null
+        private set
+    var size: Int = 0
+        private set
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun add(order: LevelOrder) {
+        // orders usually go either to the front or to the end of the list
+        val head = first
+        var after = last
+        if (head != null && hasPriority(order, head)) {
+            after = null
+        } else {
+            while (after != null && hasPriority(order, after)) {
+                after = after.prevForAccount
+            }
+        }
+
+        val before = if (after == null) first else after.nextForAccount
+        order.prevForAccount = after
+        order.nextForAccount = before
+        if (after == null) first = order else after.nextForAccount = order
+        if (before == null) last = order else before.prevForAccount = order
+        size++
+    }
+
+    fun remove(order: LevelOrder) {
+        val prev = order.prevForAccount
+        val next = order.nextForAccount
+        if (prev == null) first = next else prev.nextForAccount = next
+        if (next == null) last = prev else next.prevForAccount = prev
+        order.prevForAccount = null
+        order.nextForAccount = null
+        size--
+    }
+
+    inline fun forEach(action: (LevelOrder) -> Unit) {
+        var order = first
+        while (order != null) {
+            val next = order.nextForAccount
+            action(order)
+            order = next
+        }
+    }
+
+    private fun hasPriority(order: LevelOrder, other: LevelOrder): Boolean =
+        when (side) {
+            BookSide.Sell -> order.level.ix < other.level.ix
+            BookSide.Buy -> order.level.ix > other.level.ix
+        }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is AccountOrders) return false
+        if (side != other.side || size != other.size) return false
+
+        var thisOrder = first
+        var otherOrder = other.first
+        while (thisOrder != null && otherOrder != null) {
+            if (thisOrder != otherOrder) return false
+            thisOrder = thisOrder.nextForAccount
+            otherOrder = otherOrder.nextForAccount
+        }
+        return thisOrder == null && otherOrder == null
+    }
+
+    override fun hashCode(): Int {
+        var result = side.hashCode()
+        forEach { result = 31 * result + it.hashCode() }
+        return result
+    }
+}
@@ -0,0 +1,69 @@
+package xyz.funkybit.sequencer.core
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import net.openhft.chronicle.queue.impl.RollingChronicleQueue
+import xyz.funkybit.core.utils.humanReadableNanoseconds
+import xyz.funkybit.sequencer.proto.BalancesCheckpoint
+import xyz.funkybit.sequencer.proto.MarketCheckpoint
+import xyz.funkybit.sequencer.proto.WithdrawalFee
+import xyz.funkybit.sequencer.proto.balancesCheckpoint
+import kotlin.system.measureNanoTime
+
+// A market's part of a checkpoint. Market fields and levels are immutable protobuf messages, the levels are shared
+// with the market's level checkpoint cache, so the snapshot stays valid while the market keeps changing.
+class MarketCheckpointSnapshot(
+    private val fields: MarketCheckpoint,
+    private val levels: List<MarketCheckpoint.OrderBookLevel>,
+    private val removedLevels: IntArray,
+) {
+    val levelIxs: List<Int>
+        get() = levels.map { it.levelIx }.sorted()
+
+    val removedLevelIxs: List<Int>
+        get() = removedLevels.toList()
+
+    fun toCheckpoint(): MarketCheckpoint =
+        fields.toBuilder()
+            .addAllLevels(levels.sortedBy { it.levelIx })
+            .addAllRemovedLevels(removedLevels.asList())
+            .build()
+}
+
+// Point-in-time copy of the sequencer state taken on the sequencer thread by SequencerState.checkpointSnapshot.
+// It only references immutable messages, so building the checkpoint document and writing it can be done on
+// another thread while requests continue to be processed.
+class CheckpointSnapshot(
+    val cycle: Int,
+    val isBase: Boolean,
+    private val feeRates: FeeRates,
+    private val withdrawalFees: List<WithdrawalFee>,
+    private val balances: List<BalancesCheckpoint.Balance>,
+    val markets: List<MarketCheckpointSnapshot>,
+) {
+    private val logger = KotlinLogging.logger {}
+
+    fun write(checkpointsQueue: RollingChronicleQueue) {
+        measureNanoTime {
+            val balancesCheckpoint = balancesCheckpoint {
+                this.balances.addAll(this@CheckpointSnapshot.balances)
+            }
+            checkpointsQueue.acquireAppender().writingDocument().use { docCtx ->
+                docCtx.wire()!!
+                    .write(if (isBase) SequencerState.BASE_CYCLE_FIELD else SequencerState.DELTA_CYCLE_FIELD)
+                    .int32(cycle)
+                    .write("makerFeeRate")!!
+                    .int64(feeRates.maker.value)
+                    .write("takerFeeRate")
+                    .int64(feeRates.taker.value)
+                    .write("withdrawalFees")
+                    .sequence(withdrawalFees.map { it.toByteArray() })
+                    .write("balances")
+                    .bytes(balancesCheckpoint.toByteArray())
+                    .write("markets")
+                    .sequence(markets.map { it.toCheckpoint().toByteArray() })
+            }
+        }.let {
+            logger.debug { "write of ${if (isBase) "base" else "delta"} checkpoint for cycle $cycle took ${humanReadableNanoseconds(it)}" }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package xyz.funkybit.sequencer.core
+
+import java.math.BigDecimal
+import java.math.BigInteger
+
+// Reusable, growable list of executions owned by a Market. It is cleared before every order is matched, so sweeping
+// through many levels reuses the same Execution instances instead of allocating new ones for every fill.
+// Contents are only valid until the next order is matched.
+class ExecutionBuffer(initialCapacity: Int) : AbstractList<Execution>() {
+    private val placeholderOrder = OrderBookLevel.empty(1).orders[0]
+    private var executions = Array(initialCapacity) { newExecution() }
+
+    override var size: Int = 0
+        private set
+
+    override fun get(index: Int): Execution {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index $index out of bounds for size $size")
+        }
+        return executions[index]
+    }
+
+    fun add(counterOrder: LevelOrder, amount: BaseAmount, levelIx: Int, price: BigDecimal, counterOrderExhausted: Boolean) {
+        if (size == executions.size) {
+            val grown = Array(executions.size * 2) { ix -> if (ix < executions.size) executions[ix] else newExecution() }
+            executions = grown
+        }
+        executions[size].apply {
+            this.counterOrder = counterOrder
+            this.amount = amount
+            this.levelIx = levelIx
+            this.price = price
+            this.counterOrderExhausted = counterOrderExhausted
+        }
+        size++
+    }
+
+    fun clear() {
+        for (i in 0 until size) {
+            executions[i].counterOrder = placeholderOrder
+        }
+        size = 0
+    }
+
+    // sum of executed amounts, iterating by index to avoid allocating an iterator
+    fun totalAmount(): BaseAmount {
+        var total = BigInteger.ZERO
+        for (i in 0 until size) {
+            total += executions[i].amount.value
+        }
+        return BaseAmount(total)
+    }
+
+    fun capacity(): Int = executions.size
+
+    private fun newExecution() = Execution(
+        counterOrder = placeholderOrder,
+        amount = BaseAmount.ZERO,
+        levelIx = 0,
+        price = BigDecimal.ZERO,
+        counterOrderExhausted = false,
+    )
+}
@@ -3,10 +3,14 @@ package xyz.funkybit.sequencer.core
 import io.github.oshai.kotlinlogging.KotlinLogging
 import xyz.funkybit.core.model.Percentage
 import xyz.funkybit.sequencer.core.datastructure.AVLTree
+import xyz.funkybit.sequencer.core.datastructure.LongObjectMap
 import xyz.funkybit.sequencer.core.datastructure.ObjectPool
+import xyz.funkybit.sequencer.core.datastructure.PriceLadder
+import xyz.funkybit.sequencer.core.datastructure.SortedIndex
 import xyz.funkybit.sequencer.proto.BalanceChange
 import xyz.funkybit.sequencer.proto.BidOfferState
 import xyz.funkybit.sequencer.proto.MarketCheckpoint
+import xyz.funkybit.sequencer.proto.MarketCheckpointKt
 import xyz.funkybit.sequencer.proto.Order
 import xyz.funkybit.sequencer.proto.OrderBatch
 import xyz.funkybit.sequencer.proto.OrderChangeRejected
@@ -21,7 +25,21 @@ import xyz.funkybit.sequencer.proto.orderChanged
 import xyz.funkybit.sequencer.proto.tradeCreated
 import java.math.BigDecimal
 import java.math.BigInteger
-import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ForkJoinPool
+
+// Decimal computes notionals and fees with BigDecimal, FixedPoint computes them with primitive longs from the level
+// index and tick size, falling back to BigDecimal on overflow. Both produce identical results.
+enum class ArithmeticMode {
+    Decimal,
+    FixedPoint,
+}
+
+// Tree keeps levels in an AVL tree, Ladder keeps levels around the best bid and offer in a direct-indexed
+// window, see PriceLadder
+enum class LevelIndexType {
+    Tree,
+    Ladder,
+}
 
 data class Market(
     val id: MarketId,
@@ -30,13 +48,49 @@ data class Market(
     val baseDecimals: Int,
     val quoteDecimals: Int,
     var minFee: QuoteAmount = QuoteAmount.ZERO,
+    val arithmeticMode: ArithmeticMode = ArithmeticMode.Decimal,
+    val levelIndexType: LevelIndexType = LevelIndexType.Tree,
 ) {
 
     private val logger = KotlinLogging.logger { }
 
     fun price(levelIx: Int): BigDecimal = tickSize.multiply(levelIx.toBigDecimal())
 
-    val levels = AVLTree<OrderBookLevel>()
+    private val tickSizeUnscaled = tickSize.unscaledValue().toLongOrOverflow()
+    private val tickSizeScale = tickSize.scale()
+
+    // price can be passed in by callers who already have it to avoid recalculating it in Decimal mode
+    fun notionalAtLevel(amount: BaseAmount, levelIx: Int, price: BigDecimal? = null): QuoteAmount {
+        if (arithmeticMode == ArithmeticMode.FixedPoint) {
+            val result = notionalFixedPoint(
+                amount.value.toLongOrOverflow(),
+                multiplyOrOverflow(tickSizeUnscaled, levelIx.toLong()),
+                tickSizeScale,
+                baseDecimals,
+                quoteDecimals,
+            )
+            if (result != FIXED_POINT_OVERFLOW) return QuoteAmount(BigInteger.valueOf(result))
+        }
+        return notional(amount, price ?: this.price(levelIx), baseDecimals, quoteDecimals)
+    }
+
+    fun feeForNotional(notional: QuoteAmount, feeRate: FeeRate): QuoteAmount {
+        if (arithmeticMode == ArithmeticMode.FixedPoint) {
+            val result = notionalFeeFixedPoint(notional.value.toLongOrOverflow(), feeRate)
+            if (result != FIXED_POINT_OVERFLOW) return QuoteAmount(BigInteger.valueOf(result))
+        }
+        return notionalFee(notional, feeRate)
+    }
+
+    fun notionalPlusFeeAtLevel(amount: BaseAmount, levelIx: Int, feeRate: FeeRate, price: BigDecimal? = null): QuoteAmount =
+        notionalAtLevel(amount, levelIx, price).let { notional ->
+            notional + feeForNotional(notional, feeRate)
+        }
+
+    val levels: SortedIndex<OrderBookLevel> = when (levelIndexType) {
+        LevelIndexType.Tree -> AVLTree()
+        LevelIndexType.Ladder -> PriceLadder()
+    }
 
     private val levelPool = ObjectPool(
         create = { OrderBookLevel.empty(maxOrdersPerLevel) },
@@ -44,6 +98,10 @@ data class Market(
         initialSize = 1000,
     )
 
+    // reused for every order to keep the matching path allocation free, see ExecutionBuffer
+    private val executionBuffer = ExecutionBuffer(initialCapacity = 256)
+    private val exhaustedLevels = ArrayList<OrderBookLevel>(64)
+
     var maxOfferIx: Int = -1
         private set
     var bestOfferIx: Int = -1
@@ -53,10 +111,16 @@ data class Market(
     var minBidIx: Int = -1
         private set
 
-    // TODO - change these mutable maps to a HashMap that pre-allocates
-    val buyOrdersByAccount = mutableMapOf<AccountGuid, CopyOnWriteArrayList<LevelOrder>>()
-    val sellOrdersByAccount = mutableMapOf<AccountGuid, CopyOnWriteArrayList<LevelOrder>>()
-    val ordersByGuid = mutableMapOf<OrderGuid, LevelOrder>()
+    // keyed by account and order guid values
+    val buyOrdersByAccount = LongObjectMap<AccountOrders>(initialCapacity = 256)
+    val sellOrdersByAccount = LongObjectMap<AccountOrders>(initialCapacity = 256)
+    val ordersByGuid = LongObjectMap<LevelOrder>(initialCapacity = 4096)
+
+    // ixs of levels which were changed or removed since the last checkpoint snapshot, and the checkpoints of
+    // the levels as of that snapshot, see checkpointSnapshot
+    private val changedLevelIxs = LongObjectMap<Unit>(initialCapacity = 64)
+    private val levelCheckpoints = LongObjectMap<MarketCheckpoint.OrderBookLevel>(initialCapacity = 1024)
+    private var levelCheckpointsComplete = false
 
     data class ConsumptionChange(
         val account: AccountGuid,
@@ -118,7 +182,7 @@ data class Market(
             )
             if (orderResult.disposition == OrderDisposition.Accepted || orderResult.disposition == OrderDisposition.PartiallyFilled) {
                 // immediately filled limit order's amount should not count to consumption
-                val filledAmount = BaseAmount(orderResult.executions.sumOf { it.amount.value })
+                val filledAmount = orderResult.executions.totalAmount()
 
                 val feeRateInBps = when (orderResult.disposition) {
                     OrderDisposition.Accepted -> feeRates.maker
@@ -131,7 +195,7 @@ data class Market(
                         orderBatch.account.toAccountGuid(),
                         Pair(
                             BaseAmount.ZERO,
-                            notionalPlusFee(order.amount.toBaseAmount() - filledAmount, price(order.levelIx), baseDecimals, quoteDecimals, feeRateInBps),
+                            notionalPlusFeeAtLevel(order.amount.toBaseAmount() - filledAmount, order.levelIx, feeRateInBps),
                         ),
                         ::sumBaseQuoteAmountPair,
                     )
@@ -150,17 +214,18 @@ data class Market(
             // be decremented and the remaining available will be passed in. Any remaining dust after applying
             // the balances changes from last trade will then be swept into the buyer fee of the last trade.
             val remainingAvailable = if (order.hasMaxAvailable()) order.maxAvailable.toQuoteAmount() else null
-            orderResult.executions.forEachIndexed { index, execution ->
+            val executionsCount = orderResult.executions.size
+            for (index in 0 until executionsCount) {
                 processExecution(
                     account = orderBatch.account.toAccountGuid(),
                     takerOrder = order,
-                    execution = execution,
+                    execution = orderResult.executions[index],
                     createdTrades = createdTrades,
                     ordersChanged = ordersChanged,
                     balanceChanges = balanceChanges,
                     consumptionChanges = consumptionChanges,
                     feeRates = feeRates,
-                    remainingAvailable = if (remainingAvailable != null && index + 1 == orderResult.executions.size) {
+                    remainingAvailable = if (remainingAvailable != null && index + 1 == executionsCount) {
                         remainingAvailable + (balanceChanges[Pair(orderBatch.account.toAccountGuid(), id.quoteAsset())]?.toQuoteAmount() ?: QuoteAmount.ZERO)
                     } else {
                         null
@@ -213,7 +278,7 @@ data class Market(
         feeRates: FeeRates,
         remainingAvailable: QuoteAmount?,
     ) {
-        val notional = notional(execution.amount, execution.price, baseDecimals, quoteDecimals)
+        val notional = notionalAtLevel(execution.amount, execution.levelIx, execution.price)
 
         val base = id.baseAsset()
         val quote = id.quoteAsset()
@@ -229,7 +294,7 @@ data class Market(
         if (takerOrder.type == Order.Type.MarketBuy || takerOrder.type == Order.Type.LimitBuy) {
             buyOrderGuid = takerOrder.guid
             buyer = account
-            buyerFee = notionalFee(notional, feeRates.taker)
+            buyerFee = feeForNotional(notional, feeRates.taker)
 
             // remainingAvailable should only be non null for Market Buy
             if (remainingAvailable != null && takerOrder.type == Order.Type.MarketBuy) {
@@ -239,7 +304,7 @@ data class Market(
                 // the dust threshold is set as 2 units of the base asset at the price of the order (since both the
                 // notional and buyerFee could have been rounded down) + 1 unit (since our notional calculation could be
                 // rounded down too).
-                val dustThreshold = BigInteger.ONE.toQuoteAmount() + notional(BigInteger.TWO.toBaseAmount(), execution.price, baseDecimals, quoteDecimals)
+                val dustThreshold = BigInteger.ONE.toQuoteAmount() + notionalAtLevel(BigInteger.TWO.toBaseAmount(), execution.levelIx, execution.price)
                 if (dust <= dustThreshold) {
                     logger.debug { "Order ${takerOrder.guid}: Increasing buyer fee by $dust" }
                     buyerFee += dust
@@ -248,17 +313,17 @@ data class Market(
 
             sellOrderGuid = execution.counterOrder.guid.value
             seller = execution.counterOrder.account
-            sellerFee = notionalFee(notional, execution.counterOrder.feeRate)
+            sellerFee = feeForNotional(notional, execution.counterOrder.feeRate)
 
             consumptionChanges.merge(seller, Pair(-execution.amount, QuoteAmount.ZERO), ::sumBaseQuoteAmountPair)
         } else {
             buyOrderGuid = execution.counterOrder.guid.value
             buyer = execution.counterOrder.account
-            buyerFee = notionalFee(notional, execution.counterOrder.feeRate)
+            buyerFee = feeForNotional(notional, execution.counterOrder.feeRate)
 
             sellOrderGuid = takerOrder.guid
             seller = account
-            sellerFee = notionalFee(notional, feeRates.taker)
+            sellerFee = feeForNotional(notional, feeRates.taker)
 
             consumptionChanges.merge(buyer, Pair(BaseAmount.ZERO, -(notional + buyerFee)), ::sumBaseQuoteAmountPair)
         }
@@ -298,69 +363,83 @@ data class Market(
         return if (asset == id.baseAsset()) {
             var total = BaseAmount.ZERO
             val baseLimit = limit.toBaseAmount()
-            sellOrdersByAccount[account]?.let { sellOrders ->
-                sellOrders.sortedBy { it.level.ix }.mapNotNull { levelOrder ->
-                    if (levelOrder.quantity <= baseLimit - total) {
-                        total += levelOrder.quantity
-                        null
-                    } else {
-                        levelOrder.quantity = baseLimit - total
-                        total += levelOrder.quantity
+            val ordersChanged = mutableListOf<OrderChanged>()
+            // sell orders are kept in ascending level order
+            sellOrdersByAccount[account.value]?.forEach { levelOrder ->
+                if (levelOrder.quantity <= baseLimit - total) {
+                    total += levelOrder.quantity
+                } else {
+                    levelOrder.quantity = baseLimit - total
+                    levelChanged(levelOrder.level.ix)
+                    total += levelOrder.quantity
+                    ordersChanged.add(
                         orderChanged {
                             this.guid = levelOrder.guid.value
                             this.disposition = OrderDisposition.AutoReduced
                             this.newQuantity = levelOrder.quantity.toIntegerValue()
-                        }
-                    }
+                        },
+                    )
                 }
-            } ?: emptyList()
+            }
+            ordersChanged
         } else {
             var total = QuoteAmount.ZERO
             val quoteLimit = limit.toQuoteAmount()
-            buyOrdersByAccount[account]?.let { buyOrders ->
-                buyOrders.sortedByDescending { it.level.ix }.mapNotNull { levelOrder ->
-                    val price = levelOrder.level.price
-                    val notionalAmount = notionalPlusFee(levelOrder.quantity, price, baseDecimals, quoteDecimals, levelOrder.feeRate)
-                    if (notionalAmount + total <= quoteLimit) {
-                        total += notionalAmount
-                        null
-                    } else {
-                        // invert the notional calculation using the remaining notional amount
-                        val remainingNotionalPlusFee = (quoteLimit - total)
-
-                        // Reduce remainingNotionalPlusFee by the expected fee
-                        // Example calculation: when remainingNotionalPlusFee is 204 and fee is 2% we should end up with remainingNotional=200
-                        // Formula is: remainingNotional = (204 / (100 + 2)) * 2
-                        val feeRateInPercents = levelOrder.feeRate.inPercents().toBigDecimal()
-                        val fee = ((remainingNotionalPlusFee.toBigDecimal() / (BigDecimal(100).setScale(10) + feeRateInPercents)) * feeRateInPercents).toQuoteAmount()
-                        val remainingNotional = remainingNotionalPlusFee - fee
-
-                        levelOrder.quantity = (remainingNotional.toBigDecimal() / price).movePointRight(baseDecimals - quoteDecimals).toBaseAmount()
-                        total += remainingNotionalPlusFee
+            val ordersChanged = mutableListOf<OrderChanged>()
+            // buy orders are kept in descending level order
+            buyOrdersByAccount[account.value]?.forEach { levelOrder ->
+                val price = levelOrder.level.price
+                val notionalAmount = notionalPlusFeeAtLevel(levelOrder.quantity, levelOrder.level.ix, levelOrder.feeRate, price)
+                if (notionalAmount + total <= quoteLimit) {
+                    total += notionalAmount
+                } else {
+                    // invert the notional calculation using the remaining notional amount
+                    val remainingNotionalPlusFee = (quoteLimit - total)
+
+                    // Reduce remainingNotionalPlusFee by the expected fee
+                    // Example calculation: when remainingNotionalPlusFee is 204 and fee is 2% we should end up with remainingNotional=200
+                    // Formula is: remainingNotional = (204 / (100 + 2)) * 2
+                    val feeRateInPercents = levelOrder.feeRate.inPercents().toBigDecimal()
+                    val fee = ((remainingNotionalPlusFee.toBigDecimal() / (BigDecimal(100).setScale(10) + feeRateInPercents)) * feeRateInPercents).toQuoteAmount()
+                    val remainingNotional = remainingNotionalPlusFee - fee
+
+                    levelOrder.quantity = (remainingNotional.toBigDecimal() / price).movePointRight(baseDecimals - quoteDecimals).toBaseAmount()
+                    levelChanged(levelOrder.level.ix)
+                    total += remainingNotionalPlusFee
+                    ordersChanged.add(
                         orderChanged {
                             this.guid = levelOrder.guid.value
                             this.disposition = OrderDisposition.AutoReduced
                             this.newQuantity = levelOrder.quantity.toIntegerValue()
-                        }
-                    }
+                        },
+                    )
                 }
-            } ?: emptyList()
+            }
+            ordersChanged
         }
     }
 
-    fun baseAssetsRequired(account: AccountGuid): BaseAmount =
-        sellOrdersByAccount[account]?.map { it.quantity }?.reduceOrNull(::sumBaseAmounts) ?: BaseAmount.ZERO
+    fun baseAssetsRequired(account: AccountGuid): BaseAmount {
+        var total = BaseAmount.ZERO
+        sellOrdersByAccount[account.value]?.forEach { order ->
+            total += order.quantity
+        }
+        return total
+    }
 
-    fun quoteAssetsRequired(account: AccountGuid): QuoteAmount =
-        buyOrdersByAccount[account]?.map { order ->
-            notionalPlusFee(order.quantity, order.level.price, baseDecimals, quoteDecimals, order.feeRate)
-        }?.reduceOrNull(::sumQuoteAmounts) ?: QuoteAmount.ZERO
+    fun quoteAssetsRequired(account: AccountGuid): QuoteAmount {
+        var total = QuoteAmount.ZERO
+        buyOrdersByAccount[account.value]?.forEach { order ->
+            total += notionalPlusFeeAtLevel(order.quantity, order.level.ix, order.feeRate, order.level.price)
+        }
+        return total
+    }
 
     private fun handleCrossingOrder(order: Order, stopAtLevelIx: Int? = null): AddOrderResult {
         val originalAmount = order.amount.toBaseAmount()
         var remainingAmount = originalAmount
-        val executions = mutableListOf<Execution>()
-        val exhaustedLevels = mutableListOf<OrderBookLevel>()
+        val executions = executionBuffer
+        exhaustedLevels.clear()
 
         val isBuyOrder = order.type == Order.Type.MarketBuy || order.type == Order.Type.LimitBuy
         val isSellOrder = order.type == Order.Type.MarketSell || order.type == Order.Type.LimitSell
@@ -381,53 +460,47 @@ data class Market(
                     }
                 }
 
-                val orderBookLevelFill = currentLevel.fillOrder(remainingAmount)
-                remainingAmount = orderBookLevelFill.remainingAmount
-                executions.addAll(orderBookLevelFill.executions)
+                remainingAmount = currentLevel.fillOrder(remainingAmount, executions)
+                levelChanged(levelIx)
 
                 // schedule removal for later, still might need to resolve prev or next level
                 if (currentLevel.totalQuantity == BaseAmount.ZERO) exhaustedLevels.add(currentLevel)
 
                 if (remainingAmount == BaseAmount.ZERO) break
 
-                currentLevel = if (isBuyOrder) currentLevel.next() else currentLevel.prev()
+                currentLevel = if (isBuyOrder) levels.next(currentLevel) else levels.prev(currentLevel)
             }
 
             if (isBuyOrder) {
                 bestOfferIx = currentLevel?.let {
-                    if (it.totalQuantity > BaseAmount.ZERO) it.ix else it.next()?.ix
+                    if (it.totalQuantity > BaseAmount.ZERO) it.ix else levels.next(it)?.ix
                 } ?: -1
                 // also reset maxOfferIx in case when sell side is fully exhausted
                 if (bestOfferIx == -1) maxOfferIx = -1
             } else {
                 bestBidIx = currentLevel?.let {
-                    if (it.totalQuantity > BaseAmount.ZERO) it.ix else it.prev()?.ix
+                    if (it.totalQuantity > BaseAmount.ZERO) it.ix else levels.prev(it)?.ix
                 } ?: -1
                 // also reset minBidIx in case when buy side is fully exhausted
                 if (bestBidIx == -1) minBidIx = -1
             }
 
-            exhaustedLevels.forEach {
-                levels.remove(it.ix)
-                levelPool.release(it)
+            for (i in 0 until exhaustedLevels.size) {
+                val level = exhaustedLevels[i]
+                levels.remove(level.ix)
+                levelPool.release(level)
             }
+            exhaustedLevels.clear()
         }
 
         return if (remainingAmount < originalAmount) {
             // remove from buy/sell
-            executions.forEach { execution ->
+            for (i in 0 until executions.size) {
+                val execution = executions[i]
                 if (execution.counterOrderExhausted) {
-                    val ordersByAccount =
-                        (if (order.type == Order.Type.MarketBuy || order.type == Order.Type.LimitBuy) sellOrdersByAccount else buyOrdersByAccount)
-
-                    ordersByAccount[execution.counterOrder.account]?.let { orders ->
-                        orders.remove(execution.counterOrder)
-                        if (orders.isEmpty()) {
-                            ordersByAccount.remove(execution.counterOrder.account)
-                        }
-                    }
-
-                    ordersByGuid.remove(execution.counterOrder.guid)
+                    // counter order's level might have been released already, so its side is taken from the order
+                    removeFromAccountOrders(execution.counterOrder, if (isBuyOrder) BookSide.Sell else BookSide.Buy)
+                    ordersByGuid.remove(execution.counterOrder.guid.value)
                 }
             }
 
@@ -438,10 +511,10 @@ data class Market(
             }
         } else {
             if (order.type == Order.Type.LimitSell || order.type == Order.Type.LimitBuy) {
-                AddOrderResult(OrderDisposition.Accepted, noExecutions)
+                AddOrderResult(OrderDisposition.Accepted, executions)
             } else {
                 logger.debug { "Order ${order.guid}: Market order rejected due to no match" }
-                AddOrderResult(OrderDisposition.Rejected, noExecutions)
+                AddOrderResult(OrderDisposition.Rejected, executions)
             }
         }
     }
@@ -449,32 +522,22 @@ data class Market(
     // if the order is found, returns account and how much of the base asset and quote asset it was consuming; null otherwise
     private fun removeOrder(guid: OrderGuid): RemoveOrderResult? {
         var ret: RemoveOrderResult? = null
-        ordersByGuid[guid]?.let { levelOrder ->
+        ordersByGuid[guid.value]?.let { levelOrder ->
             val level = levelOrder.level
+            removeFromAccountOrders(levelOrder, level.side)
             ret = if (level.side == BookSide.Buy) {
-                buyOrdersByAccount[levelOrder.account]?.let {
-                    it.remove(levelOrder)
-                    if (it.isEmpty()) {
-                        buyOrdersByAccount.remove(levelOrder.account)
-                    }
-                }
-                RemoveOrderResult(levelOrder.account, BaseAmount.ZERO, notionalPlusFee(levelOrder.quantity, level.price, baseDecimals, quoteDecimals, levelOrder.feeRate))
+                RemoveOrderResult(levelOrder.account, BaseAmount.ZERO, notionalPlusFeeAtLevel(levelOrder.quantity, level.ix, levelOrder.feeRate, level.price))
             } else {
-                sellOrdersByAccount[levelOrder.account]?.let {
-                    it.remove(levelOrder)
-                    if (it.isEmpty()) {
-                        sellOrdersByAccount.remove(levelOrder.account)
-                    }
-                }
                 RemoveOrderResult(levelOrder.account, levelOrder.quantity, QuoteAmount.ZERO)
             }
             level.removeLevelOrder(levelOrder)
+            levelChanged(level.ix)
             // if we exhausted this level, we may need to adjust bid/offer values
             // and also remove level from the book
             if (level.totalQuantity == BaseAmount.ZERO) {
                 if (level.side == BookSide.Buy) {
                     if (level.ix == minBidIx) {
-                        val nextLevel = level.next()
+                        val nextLevel = levels.next(level)
                         if (nextLevel == null || nextLevel.ix > bestBidIx) {
                             minBidIx = -1
                             bestBidIx = -1
@@ -482,7 +545,7 @@ data class Market(
                             minBidIx = nextLevel.ix
                         }
                     } else if (level.ix == bestBidIx) {
-                        val prevLevel = level.prev()
+                        val prevLevel = levels.prev(level)
                         if (prevLevel == null) {
                             minBidIx = -1
                             bestBidIx = -1
@@ -492,7 +555,7 @@ data class Market(
                     }
                 } else {
                     if (level.ix == bestOfferIx) {
-                        val nextLevel = level.next()
+                        val nextLevel = levels.next(level)
                         if (nextLevel == null) {
                             bestOfferIx = -1
                             maxOfferIx = -1
@@ -500,7 +563,7 @@ data class Market(
                             bestOfferIx = nextLevel.ix
                         }
                     } else if (level.ix == maxOfferIx) {
-                        val prevLevel = level.prev()
+                        val prevLevel = levels.prev(level)
                         if (prevLevel == null || prevLevel.ix < bestOfferIx) {
                             bestOfferIx = -1
                             maxOfferIx = -1
@@ -512,21 +575,39 @@ data class Market(
                 levels.remove(level.ix)
                 levelPool.release(level)
             }
-            ordersByGuid.remove(guid)
+            ordersByGuid.remove(guid.value)
         }
         return ret
     }
 
+    private fun addToAccountOrders(levelOrder: LevelOrder, side: BookSide) {
+        val ordersByAccount = if (side == BookSide.Buy) buyOrdersByAccount else sellOrdersByAccount
+        val accountOrders = ordersByAccount[levelOrder.account.value]
+            ?: AccountOrders(side).also { ordersByAccount[levelOrder.account.value] = it }
+        accountOrders.add(levelOrder)
+    }
+
+    private fun removeFromAccountOrders(levelOrder: LevelOrder, side: BookSide) {
+        val ordersByAccount = if (side == BookSide.Buy) buyOrdersByAccount else sellOrdersByAccount
+        ordersByAccount[levelOrder.account.value]?.let { accountOrders ->
+            accountOrders.remove(levelOrder)
+            if (accountOrders.isEmpty()) {
+                ordersByAccount.remove(levelOrder.account.value)
+            }
+        }
+    }
+
     fun addOrder(account: Long, order: Order, feeRates: FeeRates): AddOrderResult {
+        executionBuffer.clear()
         return if (isBelowMinFee(order, feeRates)) {
             logger.debug { "Order ${order.guid} rejected since fee below min fee" }
-            AddOrderResult(OrderDisposition.Rejected, noExecutions)
+            AddOrderResult(OrderDisposition.Rejected, executionBuffer)
         } else if (order.type == Order.Type.LimitSell) {
             val levelIx = order.levelIx
             if (bestBidIx != -1 && levelIx <= bestBidIx) {
                 // in case when crossing market execute as market sell order until `levelIx`
                 val crossingOrderResult = handleCrossingOrder(order, stopAtLevelIx = levelIx)
-                val filledAmount = crossingOrderResult.executions.sumOf { it.amount.value }
+                val filledAmount = crossingOrderResult.executions.totalAmount().value
                 val remainingAmount = order.amount.toBigInteger() - filledAmount
 
                 if (remainingAmount > BigInteger.ZERO) {
@@ -557,14 +638,14 @@ data class Market(
                 }
                 // or just create a limit order
                 val disposition = createLimitSellOrder(levelIx, account, order, feeRates.maker)
-                AddOrderResult(disposition, noExecutions)
+                AddOrderResult(disposition, executionBuffer)
             }
         } else if (order.type == Order.Type.LimitBuy) {
             val levelIx = order.levelIx
             if (bestOfferIx != -1 && levelIx >= bestOfferIx) {
                 // in case when crossing market execute as market buy order until `levelIx`
                 val crossingOrderResult = handleCrossingOrder(order, stopAtLevelIx = levelIx)
-                val filledAmount = crossingOrderResult.executions.sumOf { it.amount.value }
+                val filledAmount = crossingOrderResult.executions.totalAmount().value
                 val remainingAmount = order.amount.toBigInteger() - filledAmount
 
                 if (remainingAmount > BigInteger.ZERO) {
@@ -597,7 +678,7 @@ data class Market(
 
                 // or just create a limit order
                 val disposition = createLimitBuyOrder(levelIx, account, order, feeRates.maker)
-                AddOrderResult(disposition, noExecutions)
+                AddOrderResult(disposition, executionBuffer)
             }
         } else if (order.type == Order.Type.MarketBuy) {
             handleCrossingOrder(order)
@@ -605,7 +686,7 @@ data class Market(
             handleCrossingOrder(order)
         } else {
             logger.error { "Order ${order.guid}: Unknown order type ${order.type} rejected" }
-            AddOrderResult(OrderDisposition.Rejected, noExecutions)
+            AddOrderResult(OrderDisposition.Rejected, executionBuffer)
         }
     }
 
@@ -634,14 +715,15 @@ data class Market(
         // in case of empty book let it proceed, order will be rejected anyway
         if (levelIx == -1) return false
 
-        return notionalFee(notional(order.amount.toBaseAmount(), price(levelIx), baseDecimals, quoteDecimals), feeRate) < minFee
+        return feeForNotional(notionalAtLevel(order.amount.toBaseAmount(), levelIx), feeRate) < minFee
     }
 
     private fun createLimitBuyOrder(levelIx: Int, account: Long, order: Order, feeRate: FeeRate): OrderDisposition {
         val (disposition, levelOrder) = getOrCreateLevel(levelIx, BookSide.Buy).addOrder(account, order, feeRate)
+        levelChanged(levelIx)
         if (disposition == OrderDisposition.Accepted) {
-            buyOrdersByAccount.getOrPut(levelOrder!!.account) { CopyOnWriteArrayList() }.add(levelOrder)
-            ordersByGuid[levelOrder.guid] = levelOrder
+            addToAccountOrders(levelOrder!!, BookSide.Buy)
+            ordersByGuid[levelOrder.guid.value] = levelOrder
             if (bestBidIx == -1 || levelIx > bestBidIx) {
                 bestBidIx = levelIx
             }
@@ -653,9 +735,10 @@ data class Market(
 
     private fun createLimitSellOrder(levelIx: Int, account: Long, order: Order, feeRate: FeeRate): OrderDisposition {
         val (disposition, levelOrder) = getOrCreateLevel(levelIx, BookSide.Sell).addOrder(account, order, feeRate)
+        levelChanged(levelIx)
         if (disposition == OrderDisposition.Accepted) {
-            sellOrdersByAccount.getOrPut(levelOrder!!.account) { CopyOnWriteArrayList() }.add(levelOrder)
-            ordersByGuid[levelOrder.guid] = levelOrder
+            addToAccountOrders(levelOrder!!, BookSide.Sell)
+            ordersByGuid[levelOrder.guid.value] = levelOrder
             if (bestOfferIx == -1 || levelIx < bestOfferIx) {
                 bestOfferIx = levelIx
             }
@@ -685,7 +768,7 @@ data class Market(
 
             if (remainingAmount == BaseAmount.ZERO) break
 
-            currentLevel = currentLevel.next()
+            currentLevel = levels.next(currentLevel)
         }
 
         val availableQuantity = amount - remainingAmount
@@ -703,7 +786,7 @@ data class Market(
             val quantityAtLevel = currentLevel.totalQuantity
 
             if (quantityAtLevel > BaseAmount.ZERO) {
-                val notionalCalculated = notional(quantityAtLevel, currentLevel.price, baseDecimals, quoteDecimals)
+                val notionalCalculated = notionalAtLevel(quantityAtLevel, currentLevel.ix, currentLevel.price)
                 val notionalAtLevel = remainingNotional.min(notionalCalculated)
 
                 if (notionalAtLevel == remainingNotional) {
@@ -719,7 +802,7 @@ data class Market(
                 remainingNotional -= notionalAtLevel
             }
 
-            currentLevel = currentLevel.next()
+            currentLevel = levels.next(currentLevel)
         }
 
         return baseAmount
@@ -736,7 +819,7 @@ data class Market(
 
             if (remainingAmount == BaseAmount.ZERO) break
 
-            currentLevel = currentLevel.prev()
+            currentLevel = levels.prev(currentLevel)
         }
 
         return amount - remainingAmount
@@ -758,14 +841,14 @@ data class Market(
     fun assetsReservedForOrder(levelOrder: LevelOrder): Pair<BaseAmount, QuoteAmount> {
         val level = levelOrder.level
         return if (level.side == BookSide.Buy) {
-            BaseAmount.ZERO to notionalPlusFee(levelOrder.quantity, level.price, baseDecimals, quoteDecimals, levelOrder.feeRate)
+            BaseAmount.ZERO to notionalPlusFeeAtLevel(levelOrder.quantity, level.ix, levelOrder.feeRate, level.price)
         } else {
             levelOrder.quantity to QuoteAmount.ZERO
         }
     }
 
     private fun validateOrderForAccount(account: Long, orderGuid: Long): OrderChangeRejected.Reason {
-        return ordersByGuid[orderGuid.toOrderGuid()]?.let { order ->
+        return ordersByGuid[orderGuid]?.let { order ->
             if (account == order.account.value) {
                 OrderChangeRejected.Reason.None
             } else {
@@ -812,7 +895,62 @@ data class Market(
         return result
     }
 
+    private fun levelChanged(levelIx: Int) {
+        changedLevelIxs[levelIx.toLong()] = Unit
+    }
+
     fun toCheckpoint(): MarketCheckpoint {
+        return toCheckpoint {
+            this@Market.levels.traverse { level ->
+                this.levels.add(level.toCheckpoint())
+            }
+        }
+    }
+
+    // Takes the market's part of a checkpoint without serializing the book: checkpoints of individual levels are
+    // immutable and cached, so only levels changed since the previous snapshot are converted again and the others
+    // are shared with it. A full snapshot contains all levels, a delta only the changed ones and the ixs of levels
+    // which no longer exist. Serializing the snapshot can then happen on another thread, see CheckpointSnapshot.
+    fun checkpointSnapshot(full: Boolean): MarketCheckpointSnapshot {
+        val changedIxs = IntArray(changedLevelIxs.size)
+        var i = 0
+        changedLevelIxs.forEach { ix, _ -> changedIxs[i++] = ix.toInt() }
+        changedIxs.sort()
+        changedLevelIxs.clear()
+
+        if (levelCheckpointsComplete) {
+            changedIxs.forEach { ix ->
+                val level = levels.get(ix)
+                if (level != null) {
+                    levelCheckpoints[ix.toLong()] = level.toCheckpoint()
+                } else {
+                    levelCheckpoints.remove(ix.toLong())
+                }
+            }
+        } else {
+            // e.g. restored from a checkpoint, so levels were not tracked as changed when they were created
+            levelCheckpoints.clear()
+            levels.traverse { level -> levelCheckpoints[level.ix.toLong()] = level.toCheckpoint() }
+            levelCheckpointsComplete = true
+        }
+
+        val fields = toCheckpoint { }
+        return if (full) {
+            val levelsInSnapshot = ArrayList<MarketCheckpoint.OrderBookLevel>(levelCheckpoints.size)
+            levelCheckpoints.forEach { _, level -> levelsInSnapshot.add(level) }
+            MarketCheckpointSnapshot(fields, levelsInSnapshot, IntArray(0))
+        } else {
+            val levelsInSnapshot = ArrayList<MarketCheckpoint.OrderBookLevel>(changedIxs.size)
+            val removedIxs = changedIxs.filter { ix ->
+                val level = levelCheckpoints[ix.toLong()]
+                if (level != null) levelsInSnapshot.add(level)
+                level == null
+            }
+            MarketCheckpointSnapshot(fields, levelsInSnapshot, removedIxs.toIntArray())
+        }
+    }
+
+    private inline fun toCheckpoint(crossinline addLevels: MarketCheckpointKt.Dsl.() -> Unit): MarketCheckpoint {
         return marketCheckpoint {
             this.id = this@Market.id.value
             this.tickSize = this@Market.tickSize.toDecimalValue()
@@ -824,9 +962,7 @@ data class Market(
             this.bestOfferIx = this@Market.bestOfferIx
             this.maxOfferIx = this@Market.maxOfferIx
             this.minFee = this@Market.minFee.toIntegerValue()
-            this@Market.levels.traverse { level ->
-                this.levels.add(level.toCheckpoint())
-            }
+            addLevels()
         }
     }
 
@@ -846,7 +982,15 @@ data class Market(
     }
 
     companion object {
-        fun fromCheckpoint(checkpoint: MarketCheckpoint): Market {
+        private const val LEVELS_PER_RESTORE_TASK = 16
+
+        fun fromCheckpoint(
+            checkpoint: MarketCheckpoint,
+            arithmeticMode: ArithmeticMode = ArithmeticMode.Decimal,
+            levelIndexType: LevelIndexType = LevelIndexType.Tree,
+            // when given, levels (and the order slots they allocate) are built on the pool
+            pool: ForkJoinPool? = null,
+        ): Market {
             val tickSize = checkpoint.tickSize.toBigDecimal()
             return Market(
                 id = checkpoint.id.toMarketId(),
@@ -855,40 +999,47 @@ data class Market(
                 baseDecimals = checkpoint.baseDecimals,
                 quoteDecimals = checkpoint.quoteDecimals,
                 minFee = if (checkpoint.hasMinFee()) checkpoint.minFee.toBigInteger().toQuoteAmount() else QuoteAmount.ZERO,
+                arithmeticMode = arithmeticMode,
+                levelIndexType = levelIndexType,
             ).apply {
                 maxOfferIx = checkpoint.maxOfferIx
                 bestOfferIx = checkpoint.bestOfferIx
                 bestBidIx = checkpoint.bestBidIx
                 minBidIx = checkpoint.minBidIx
 
-                checkpoint.levelsList.forEach { levelCheckpoint ->
-                    val level = OrderBookLevel(
+                val restoreLevel = { levelCheckpoint: MarketCheckpoint.OrderBookLevel ->
+                    OrderBookLevel(
                         ix = levelCheckpoint.levelIx,
                         side = BookSide.Buy,
                         price = levelCheckpoint.price.toBigDecimal(),
                         maxOrderCount = checkpoint.maxOrdersPerLevel,
-                    )
-                    level.fromCheckpoint(levelCheckpoint)
-
-                    this.levels.add(level)
+                    ).also { it.fromCheckpoint(levelCheckpoint) }
+                }
+                val restoredLevels = if (pool == null) {
+                    checkpoint.levelsList.map(restoreLevel)
+                } else {
+                    pool.mapInParallel(checkpoint.levelsList.chunked(LEVELS_PER_RESTORE_TASK)) { it.map(restoreLevel) }.flatten()
                 }
+                restoredLevels.forEach { this.levels.add(it) }
 
+                // inflate order caches, visiting levels in price priority so that orders are appended to account lists
                 levels.traverse { level ->
-                    // inflate order cache respecting level's circular buffer
-                    var currentIndex = level.orderHead
-                    while (currentIndex != level.orderTail) {
-                        val order = level.orders[currentIndex]
-                        this.ordersByGuid[order.guid] = order
-
-                        when (level.side) {
-                            BookSide.Buy -> buyOrdersByAccount
-                            BookSide.Sell -> sellOrdersByAccount
-                        }.apply {
-                            getOrPut(order.account) { CopyOnWriteArrayList<LevelOrder>() }.add(order)
+                    if (level.side == BookSide.Sell) {
+                        level.forEachOrder { order ->
+                            this.ordersByGuid[order.guid.value] = order
+                            addToAccountOrders(order, BookSide.Sell)
+                        }
+                    }
+                }
+                var level = levels.last()
+                while (level != null) {
+                    if (level.side == BookSide.Buy) {
+                        level.forEachOrder { order ->
+                            this.ordersByGuid[order.guid.value] = order
+                            addToAccountOrders(order, BookSide.Buy)
                         }
-
-                        currentIndex = (currentIndex + 1) % level.maxOrderCount
                     }
+                    level = levels.prev(level)
                 }
             }
         }
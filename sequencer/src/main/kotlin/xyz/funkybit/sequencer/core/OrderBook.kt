@@ -13,13 +13,6 @@ enum class BookSide {
     Sell,
 }
 
-val noExecutions = listOf<Execution>()
-
-data class OrderBookLevelFill(
-    val remainingAmount: BaseAmount,
-    val executions: List<Execution>,
-)
-
 data class LevelOrder(
     var guid: OrderGuid,
     var account: AccountGuid,
@@ -27,7 +20,16 @@ data class LevelOrder(
     var feeRate: FeeRate,
     var level: OrderBookLevel,
     var originalQuantity: BaseAmount = quantity,
+    val slot: Int = 0,
 ) {
+    // links to the neighbouring orders of the level in time priority
+    var prevSlot: Int = OrderBookLevel.NO_SLOT
+    var nextSlot: Int = OrderBookLevel.NO_SLOT
+
+    // links to the neighbouring orders of the same account, see AccountOrders
+    var prevForAccount: LevelOrder? = null
+    var nextForAccount: LevelOrder? = null
+
     fun update(account: Long, order: Order, feeRate: FeeRate) {
         this.guid = order.guid.toOrderGuid()
         this.account = account.toAccountGuid()
@@ -51,6 +53,7 @@ data class LevelOrder(
             this.quantity = this@LevelOrder.quantity.toIntegerValue()
             this.originalQuantity = this@LevelOrder.originalQuantity.toIntegerValue()
             this.feeRate = this@LevelOrder.feeRate.value
+            this.slot = this@LevelOrder.slot
         }
     }
 
@@ -91,16 +94,32 @@ data class LevelOrder(
 }
 
 // price is used for notional calculation
+// Orders occupy stable slots of the `orders` array and are chained in time priority through their prevSlot/nextSlot
+// links, so that any order can be removed in constant time without moving other orders.
 class OrderBookLevel(ix: Int, var side: BookSide, var price: BigDecimal, val maxOrderCount: Int) : AVLTree.Node<OrderBookLevel>(ix) {
 
-    val orders = Array(maxOrderCount) { _ ->
-        LevelOrder(guid = 0L.toOrderGuid(), account = 0L.toAccountGuid(), quantity = BaseAmount.ZERO, feeRate = FeeRate.zero, level = this)
+    val orders = Array(maxOrderCount) { slot ->
+        LevelOrder(guid = 0L.toOrderGuid(), account = 0L.toAccountGuid(), quantity = BaseAmount.ZERO, feeRate = FeeRate.zero, level = this, slot = slot)
     }
     var totalQuantity = BaseAmount.ZERO
-    var orderHead = 0
-    var orderTail = 0
+
+    // slots of the oldest and the newest order on the level, NO_SLOT when the level is empty
+    var orderHead = NO_SLOT
+        private set
+    var orderTail = NO_SLOT
+        private set
+    var orderCount = 0
+        private set
+
+    // free slots are handed out in the order they were released, so slots of orders that were just filled
+    // are not overwritten while their executions are still being processed
+    private val freeSlots = IntArray(maxOrderCount) { it }
+    private var freeSlotsHead = 0
+    private var freeSlotsCount = maxOrderCount
 
     companion object {
+        const val NO_SLOT = -1
+
         fun empty(maxOrderCount: Int): OrderBookLevel {
             return OrderBookLevel(0, BookSide.Sell, BigDecimal.ZERO, maxOrderCount)
         }
@@ -121,6 +140,15 @@ class OrderBookLevel(ix: Int, var side: BookSide, var price: BigDecimal, val max
         super.reset()
     }
 
+    inline fun forEachOrder(action: (LevelOrder) -> Unit) {
+        var slot = orderHead
+        while (slot != NO_SLOT) {
+            val order = orders[slot]
+            slot = order.nextSlot
+            action(order)
+        }
+    }
+
     fun toCheckpoint(): MarketCheckpoint.OrderBookLevel {
         return orderBookLevel {
             this.levelIx = this@OrderBookLevel.ix
@@ -131,116 +159,146 @@ class OrderBookLevel(ix: Int, var side: BookSide, var price: BigDecimal, val max
             this.price = this@OrderBookLevel.price.toDecimalValue()
             this.maxOrderCount = this@OrderBookLevel.maxOrderCount
             this.totalQuantity = this@OrderBookLevel.totalQuantity.toIntegerValue()
-            this.orderHead = this@OrderBookLevel.orderHead
-            this.orderTail = this@OrderBookLevel.orderTail
-
-            // store orders respecting level's circular buffer
-            var currentIndex = this@OrderBookLevel.orderHead
-            while (currentIndex != this@OrderBookLevel.orderTail) {
-                val order = this@OrderBookLevel.orders[currentIndex]
+            // head and tail keep their circular buffer meaning, so that checkpoints without order slots
+            // can still be restored as a contiguous range of slots
+            val head = maxOf(this@OrderBookLevel.orderHead, 0)
+            this.orderHead = head
+            this.orderTail = (head + this@OrderBookLevel.orderCount) % this@OrderBookLevel.maxOrderCount
+
+            // store orders in time priority
+            this@OrderBookLevel.forEachOrder { order ->
                 this.orders.add(order.toCheckpoint())
-                currentIndex = (currentIndex + 1) % this@OrderBookLevel.maxOrderCount
             }
         }
     }
 
     fun fromCheckpoint(checkpoint: MarketCheckpoint.OrderBookLevel) {
-        orderHead = checkpoint.orderHead
-        orderTail = checkpoint.orderTail
         side = when (checkpoint.side) {
             MarketCheckpoint.BookSide.Buy -> BookSide.Buy
             MarketCheckpoint.BookSide.Sell -> BookSide.Sell
             else -> throw IllegalStateException("Unexpected level book side '${checkpoint.side}'")
         }
 
-        // restore orders respecting level's circular buffer
+        orderHead = NO_SLOT
+        orderTail = NO_SLOT
+        orderCount = 0
+        val usedSlots = BooleanArray(maxOrderCount)
         val checkpointOrdersCount = checkpoint.ordersList.size
         for (i in 0 until checkpointOrdersCount) {
             val orderCheckpoint = checkpoint.ordersList[i]
-            val index = (orderHead + i) % maxOrderCount
-            orders[index].fromCheckpoint(orderCheckpoint, level = this)
+            // checkpoints without order slots store orders contiguously starting from orderHead
+            val slot = if (orderCheckpoint.hasSlot()) orderCheckpoint.slot else (checkpoint.orderHead + i) % maxOrderCount
+            val levelOrder = orders[slot]
+            levelOrder.fromCheckpoint(orderCheckpoint, level = this)
+            linkLast(levelOrder)
+            usedSlots[slot] = true
+        }
+
+        // hand out remaining slots starting right after the newest order, same as the circular buffer would
+        freeSlotsHead = 0
+        freeSlotsCount = 0
+        val firstFreeSlot = if (orderTail == NO_SLOT) checkpoint.orderTail % maxOrderCount else (orderTail + 1) % maxOrderCount
+        for (i in 0 until maxOrderCount) {
+            val slot = (firstFreeSlot + i) % maxOrderCount
+            if (!usedSlots[slot]) {
+                releaseSlot(slot)
+            }
         }
         totalQuantity = checkpoint.totalQuantity.toBaseAmount()
     }
 
     fun addOrder(account: Long, order: Order, feeRate: FeeRate): Pair<OrderDisposition, LevelOrder?> {
-        val nextTail = (orderTail + 1) % maxOrderCount
-        return if (nextTail == orderHead) {
+        // one slot is always kept free, which also keeps the capacity of the former circular buffer layout
+        return if (orderCount >= maxOrderCount - 1) {
             OrderDisposition.Rejected to null
         } else {
-            val levelOrder = orders[orderTail]
+            val levelOrder = orders[acquireSlot()]
             levelOrder.update(account, order, feeRate)
+            linkLast(levelOrder)
             totalQuantity += levelOrder.quantity
-            orderTail = nextTail
             OrderDisposition.Accepted to levelOrder
         }
     }
 
-    fun fillOrder(requestedAmount: BaseAmount): OrderBookLevelFill {
-        var orderIx = orderHead
-        val executions = mutableListOf<Execution>()
+    // appends executions to the provided buffer and returns the amount that could not be filled at this level
+    fun fillOrder(requestedAmount: BaseAmount, executions: ExecutionBuffer): BaseAmount {
         var remainingAmount = requestedAmount
-        while (orderIx != orderTail && remainingAmount > BaseAmount.ZERO) {
-            val curOrder = orders[orderIx]
+        while (orderHead != NO_SLOT && remainingAmount > BaseAmount.ZERO) {
+            val curOrder = orders[orderHead]
             if (remainingAmount >= curOrder.quantity) {
                 executions.add(
-                    Execution(
-                        counterOrder = curOrder,
-                        amount = curOrder.quantity,
-                        levelIx = this.ix,
-                        price = this.price,
-                        counterOrderExhausted = true,
-                    ),
+                    counterOrder = curOrder,
+                    amount = curOrder.quantity,
+                    levelIx = this.ix,
+                    price = this.price,
+                    counterOrderExhausted = true,
                 )
                 totalQuantity -= curOrder.quantity
                 remainingAmount -= curOrder.quantity
-                orderIx = (orderIx + 1) % maxOrderCount
+                // consumed order is not reset since executions still refer to it, its slot is reused later
+                unlink(curOrder)
             } else {
                 executions.add(
-                    Execution(
-                        counterOrder = curOrder,
-                        amount = remainingAmount,
-                        levelIx = this.ix,
-                        price = this.price,
-                        counterOrderExhausted = false,
-                    ),
+                    counterOrder = curOrder,
+                    amount = remainingAmount,
+                    levelIx = this.ix,
+                    price = this.price,
+                    counterOrderExhausted = false,
                 )
                 totalQuantity -= remainingAmount
                 curOrder.quantity -= remainingAmount
                 remainingAmount = BaseAmount.ZERO
             }
         }
-        // remove consumed orders
-        orderHead = orderIx // TODO: CHAIN-274 Also reset consumed orders
 
-        return OrderBookLevelFill(
-            remainingAmount,
-            executions,
-        )
+        return remainingAmount
     }
 
     fun removeLevelOrder(levelOrder: LevelOrder) {
-        val orderIx = orders.indexOf(levelOrder)
         totalQuantity -= levelOrder.quantity
+        unlink(levelOrder)
         levelOrder.reset()
-        if (orderIx == (orderTail - 1 + maxOrderCount) % maxOrderCount) {
-            orderTail = (orderTail - 1 + maxOrderCount) % maxOrderCount
-        } else if (orderIx < orderHead) {
-            // copy from after orderIx to orderTail, and decrement orderTail
-            if (orderIx < orderTail) {
-                val orderIxRef = orders[orderIx]
-                System.arraycopy(orders, orderIx + 1, orders, orderIx, orderTail - orderIx)
-                orders[orderTail] = orderIxRef
-            }
-            orderTail = (orderTail - 1 + maxOrderCount) % maxOrderCount
+    }
+
+    private fun linkLast(levelOrder: LevelOrder) {
+        levelOrder.prevSlot = orderTail
+        levelOrder.nextSlot = NO_SLOT
+        if (orderTail == NO_SLOT) {
+            orderHead = levelOrder.slot
         } else {
-            if (orderIx > orderHead) {
-                val orderIxRef = orders[orderIx]
-                System.arraycopy(orders, orderHead, orders, orderHead + 1, orderIx - orderHead)
-                orders[orderHead] = orderIxRef
-            }
-            orderHead = (orderHead + 1) % maxOrderCount
+            orders[orderTail].nextSlot = levelOrder.slot
+        }
+        orderTail = levelOrder.slot
+        orderCount++
+    }
+
+    private fun unlink(levelOrder: LevelOrder) {
+        if (levelOrder.prevSlot == NO_SLOT) {
+            orderHead = levelOrder.nextSlot
+        } else {
+            orders[levelOrder.prevSlot].nextSlot = levelOrder.nextSlot
+        }
+        if (levelOrder.nextSlot == NO_SLOT) {
+            orderTail = levelOrder.prevSlot
+        } else {
+            orders[levelOrder.nextSlot].prevSlot = levelOrder.prevSlot
         }
+        levelOrder.prevSlot = NO_SLOT
+        levelOrder.nextSlot = NO_SLOT
+        orderCount--
+        releaseSlot(levelOrder.slot)
+    }
+
+    private fun acquireSlot(): Int {
+        val slot = freeSlots[freeSlotsHead]
+        freeSlotsHead = (freeSlotsHead + 1) % maxOrderCount
+        freeSlotsCount--
+        return slot
+    }
+
+    private fun releaseSlot(slot: Int) {
+        freeSlots[(freeSlotsHead + freeSlotsCount) % maxOrderCount] = slot
+        freeSlotsCount++
     }
 
     // equals and hashCode are overridden because of orders are stored in array
@@ -255,21 +313,19 @@ class OrderBookLevel(ix: Int, var side: BookSide, var price: BigDecimal, val max
         if (side != other.side) return false
         if (maxOrderCount != other.maxOrderCount) return false
         if (totalQuantity != other.totalQuantity) return false
+        if (orderCount != other.orderCount) return false
 
-        // Compare orders between orderHead and orderTail
-        var thisOrderIndex = this.orderHead
-        var otherOrderIndex = other.orderHead
+        // compare orders in time priority, slots they occupy do not matter
+        var thisSlot = this.orderHead
+        var otherSlot = other.orderHead
 
-        while (thisOrderIndex != this.orderTail && otherOrderIndex != other.orderTail) {
-            if (this.orders[thisOrderIndex] != other.orders[otherOrderIndex]) return false
-            thisOrderIndex = (thisOrderIndex + 1) % this.maxOrderCount
-            otherOrderIndex = (otherOrderIndex + 1) % other.maxOrderCount
+        while (thisSlot != NO_SLOT && otherSlot != NO_SLOT) {
+            if (this.orders[thisSlot] != other.orders[otherSlot]) return false
+            thisSlot = this.orders[thisSlot].nextSlot
+            otherSlot = other.orders[otherSlot].nextSlot
         }
 
-        // Check if both iterated to their respective tails
-        if (thisOrderIndex != this.orderTail || otherOrderIndex != other.orderTail) return false
-
-        return true
+        return thisSlot == NO_SLOT && otherSlot == NO_SLOT
     }
 
     override fun hashCode(): Int {
@@ -277,31 +333,28 @@ class OrderBookLevel(ix: Int, var side: BookSide, var price: BigDecimal, val max
         result = 31 * result + side.hashCode()
         result = 31 * result + maxOrderCount
         result = 31 * result + totalQuantity.hashCode()
-        result = 31 * result + orderHead
-        result = 31 * result + orderTail
-
-        // include orders between head and tail
-        var currentIndex = orderHead
-        while (currentIndex != orderTail) {
-            result = 31 * result + orders[currentIndex].hashCode()
-            currentIndex = (currentIndex + 1) % maxOrderCount
+        result = 31 * result + orderCount
+
+        forEachOrder { order ->
+            result = 31 * result + order.hashCode()
         }
 
         return result
     }
 }
 
+// mutable so that instances can be reused by ExecutionBuffer
 data class Execution(
-    val counterOrder: LevelOrder,
-    val amount: BaseAmount,
-    val levelIx: Int,
-    val price: BigDecimal,
-    val counterOrderExhausted: Boolean,
+    var counterOrder: LevelOrder,
+    var amount: BaseAmount,
+    var levelIx: Int,
+    var price: BigDecimal,
+    var counterOrderExhausted: Boolean,
 )
 
 data class AddOrderResult(
     val disposition: OrderDisposition,
-    val executions: List<Execution>,
+    val executions: ExecutionBuffer,
 )
 
 data class RemoveOrderResult(
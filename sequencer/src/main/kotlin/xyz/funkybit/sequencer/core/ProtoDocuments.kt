@@ -0,0 +1,56 @@
+package xyz.funkybit.sequencer.core
+
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.MessageLite
+import com.google.protobuf.Parser
+import net.openhft.chronicle.bytes.Bytes
+import net.openhft.chronicle.bytes.BytesIn
+import net.openhft.chronicle.wire.ValueOut
+import net.openhft.chronicle.wire.WireOut
+
+// Requests and responses are stored in queue documents as a single bytes field. Instead of copying each of them
+// into a new byte array on the way in and out (toByteArray/parseFrom), they are decoded from and encoded into a
+// buffer owned by the calling thread, so that reading or writing a document does not allocate anything besides
+// the message itself.
+private class ProtoScratch {
+    var array = ByteArray(INITIAL_SIZE)
+        private set
+
+    // a Bytes view of the array, so that it can be appended to a document without another copy
+    var bytes: Bytes<ByteArray> = Bytes.wrapForRead(array)
+        private set
+
+    fun ensureCapacity(size: Int) {
+        if (array.size < size) {
+            array = ByteArray(Integer.highestOneBit(size) shl 1)
+            bytes = Bytes.wrapForRead(array)
+        }
+    }
+
+    companion object {
+        const val INITIAL_SIZE = 16 * 1024
+    }
+}
+
+private val protoScratch: ThreadLocal<ProtoScratch> = ThreadLocal.withInitial { ProtoScratch() }
+
+fun <T : MessageLite> BytesIn<*>.readProto(parser: Parser<T>): T {
+    val size = readRemaining().toInt()
+    val scratch = protoScratch.get()
+    scratch.ensureCapacity(size)
+    read(scratch.array, 0, size)
+    // aliasing stays disabled, so the message does not reference the scratch array once parsed
+    return parser.parseFrom(CodedInputStream.newInstance(scratch.array, 0, size))
+}
+
+fun ValueOut.writeProto(message: MessageLite): WireOut {
+    val size = message.serializedSize
+    val scratch = protoScratch.get()
+    scratch.ensureCapacity(size)
+    CodedOutputStream.newInstance(scratch.array, 0, size).also {
+        message.writeTo(it)
+        it.checkNoSpaceLeft()
+    }
+    return bytes(scratch.bytes.readPosition(0).readLimit(size.toLong()))
+}
@@ -1,9 +1,13 @@
 package xyz.funkybit.sequencer.core
 
 import io.github.oshai.kotlinlogging.KotlinLogging
+import net.openhft.chronicle.queue.ExcerptTailer
+import net.openhft.chronicle.queue.TailerDirection
 import net.openhft.chronicle.queue.impl.RollingChronicleQueue
+import net.openhft.chronicle.wire.WireIn
 import xyz.funkybit.core.model.Symbol
 import xyz.funkybit.core.utils.humanReadableNanoseconds
+import xyz.funkybit.sequencer.core.datastructure.LongObjectMap
 import xyz.funkybit.sequencer.proto.BalancesCheckpoint
 import xyz.funkybit.sequencer.proto.BalancesCheckpointKt.BalanceKt.consumption
 import xyz.funkybit.sequencer.proto.BalancesCheckpointKt.balance
@@ -15,6 +19,9 @@ import xyz.funkybit.sequencer.proto.feeRates
 import xyz.funkybit.sequencer.proto.stateDump
 import xyz.funkybit.sequencer.proto.withdrawalFee
 import java.math.BigInteger
+import java.util.TreeMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
 import kotlin.system.measureNanoTime
 
 typealias BalanceByAsset = MutableMap<Asset, BigInteger>
@@ -43,6 +50,15 @@ data class SequencerState(
     private val logger = KotlinLogging.logger {}
     private val marketIdsByAsset = mutableMapOf<Asset, MutableList<MarketId>>()
 
+    // accounts whose balances or consumptions changed since the last checkpoint, keyed by account value
+    private val changedAccounts = LongObjectMap<Unit>(initialCapacity = 1024)
+
+    // balance checkpoints per account as of the last checkpoint snapshot, shared by consecutive snapshots
+    private val balanceCheckpoints = LongObjectMap<List<BalancesCheckpoint.Balance>>(initialCapacity = 1024)
+    private var balanceCheckpointsComplete = false
+    private var baseCheckpointRequired = true
+    private var deltasSinceBaseCheckpoint = 0
+
     fun addMarket(market: Market) {
         markets[market.id] = market
         val (baseAsset, quoteAsset) = market.id.assets()
@@ -53,115 +69,242 @@ data class SequencerState(
     fun getMarketIdsByAsset(asset: Asset): List<MarketId> =
         marketIdsByAsset.getOrElse(asset) { mutableListOf() }.toList()
 
+    fun accountChanged(account: AccountGuid) {
+        changedAccounts[account.value] = Unit
+    }
+
+    // the next checkpoint has to be a base one, e.g. because a previous checkpoint could not be written
+    fun requireBaseCheckpoint() {
+        baseCheckpointRequired = true
+    }
+
     fun clear() {
         balances.clear()
         markets.clear()
         consumed.clear()
         feeRates = FeeRates(maker = FeeRate.zero, taker = FeeRate.zero)
         withdrawalFees.clear()
+        changedAccounts.clear()
+        balanceCheckpoints.clear()
+        balanceCheckpointsComplete = false
+        baseCheckpointRequired = true
     }
 
-    fun load(checkpointsQueue: RollingChronicleQueue): Int? {
-        var cycle: Int?
-        measureNanoTime {
-            val checkpointsTailer = checkpointsQueue.createTailer()
-            checkpointsTailer.moveToIndex(checkpointsQueue.lastIndex())
-            checkpointsTailer.readingDocument().use { docCtx ->
-                val wire = docCtx.wire()!!
-                cycle = wire.read("cycle").readInt()
-
-                logger.debug { "Restoring from checkpoint for cycle $cycle" }
+    // durations of the phases of the last load, see CheckpointLoadTimings
+    var lastLoadTimings: CheckpointLoadTimings? = null
+        private set
 
-                measureNanoTime {
-                    feeRates = FeeRates(
-                        maker = FeeRate(wire.read("makerFeeRate").readLong()),
-                        taker = FeeRate(wire.read("takerFeeRate").readLong()),
-                    )
+    // Documents are read from the queue in sequence, but decoding balances and market checkpoints and rebuilding
+    // account balances and order books is spread over the given pool: markets are independent of each other and
+    // so are accounts, and the levels of a market are built in parallel as well, see Market.fromCheckpoint.
+    fun load(
+        checkpointsQueue: RollingChronicleQueue,
+        arithmeticMode: ArithmeticMode = ArithmeticMode.Decimal,
+        levelIndexType: (MarketId) -> LevelIndexType = { LevelIndexType.Tree },
+        pool: ForkJoinPool = ForkJoinPool.commonPool(),
+    ): Int? {
+        val startTime = System.nanoTime()
+        val checkpointsTailer = checkpointsQueue.createTailer()
+        val baseCheckpointIndex = findBaseCheckpointIndex(checkpointsTailer, checkpointsQueue.lastIndex())
+        if (baseCheckpointIndex == null) {
+            logger.debug { "No base checkpoint found" }
+            return null
+        }
 
-                    wire.read("withdrawalFees").sequence(withdrawalFees) { map, v ->
-                        while (v.hasNextSequenceItem()) {
-                            val fees = WithdrawalFee.parseFrom(v.bytes())
-                            map[Symbol(fees.asset)] = fees.value.toBigInteger()
-                        }
+        val documents = mutableListOf<CheckpointDocument>()
+        val readTime = measureNanoTime {
+            checkpointsTailer.moveToIndex(baseCheckpointIndex)
+            while (true) {
+                val wasPresent = checkpointsTailer.readingDocument().use { docCtx ->
+                    if (docCtx.isPresent) {
+                        documents.add(readCheckpoint(docCtx.wire()!!))
                     }
-                }.let {
-                    logger.debug { "load of fee rates took ${humanReadableNanoseconds(it)}" }
+                    docCtx.isPresent
                 }
+                if (!wasPresent) break
+            }
+        }
+        logger.debug { "read of ${documents.size} checkpoint documents took ${humanReadableNanoseconds(readTime)}" }
 
-                measureNanoTime {
-                    val balancesCheckpoint = BalancesCheckpoint.parseFrom(wire.read("balances").bytes())
-                    balancesCheckpoint.balancesList.forEach { balanceCheckpoint ->
-                        val accountGuid = balanceCheckpoint.account.toAccountGuid()
-                        val asset = balanceCheckpoint.asset.toAsset()
-                        balances.getOrPut(accountGuid) { mutableMapOf() }[asset] = balanceCheckpoint.amount.toBigInteger()
-                        if (balanceCheckpoint.consumedCount > 0) {
-                            consumed.getOrPut(accountGuid) { mutableMapOf() }.getOrPut(asset) { mutableMapOf() }.putAll(
-                                balanceCheckpoint.consumedList.associate {
-                                    it.marketId.toMarketId() to it.consumed.toBigInteger()
-                                },
-                            )
-                        }
-                    }
-                }.let {
-                    logger.debug { "load of balances took ${humanReadableNanoseconds(it)}" }
+        val balancesCheckpoints: List<BalancesCheckpoint>
+        val marketCheckpoints: List<MarketCheckpoint>
+        val decodeTime = measureNanoTime {
+            balancesCheckpoints = pool.mapInParallel(documents) { BalancesCheckpoint.parseFrom(it.balances) }
+            marketCheckpoints = pool.mapInParallel(documents.flatMap { it.markets }) { MarketCheckpoint.parseFrom(it) }
+        }
+        logger.debug { "decode of balances and ${marketCheckpoints.size} market checkpoints took ${humanReadableNanoseconds(decodeTime)}" }
+
+        val balancesTime = measureNanoTime {
+            // balances are replaced per account by every delta written after the base
+            val balancesByAccount = mutableMapOf<Long, List<BalancesCheckpoint.Balance>>()
+            balancesCheckpoints.forEach { balancesByAccount.putAll(it.balancesList.groupBy { balance -> balance.account }) }
+
+            pool.mapInParallel(balancesByAccount.values.chunked(ACCOUNTS_PER_RESTORE_TASK)) { shard ->
+                shard.map { restoreAccount(it) }
+            }.forEach { shard ->
+                shard.forEach { account ->
+                    balances[account.account] = account.balances
+                    account.consumed?.let { consumed[account.account] = it }
                 }
+            }
+        }
+        logger.debug { "load of ${balances.size} accounts took ${humanReadableNanoseconds(balancesTime)}" }
 
+        val marketsTime = measureNanoTime {
+            // markets are replaced per level by every delta written after the base
+            val checkpointsByMarket = marketCheckpoints.groupBy { it.id }.toSortedMap()
+            pool.mapInParallel(checkpointsByMarket.values.toList()) { checkpoints ->
+                var market: Market
                 measureNanoTime {
-                    wire.read("markets").sequence(markets) { _, v ->
-                        while (v.hasNextSequenceItem()) {
-                            var market: Market
-                            measureNanoTime {
-                                val marketCheckpoint = MarketCheckpoint.parseFrom(v.bytes())
-                                market = Market.fromCheckpoint(marketCheckpoint)
-                                addMarket(market)
-                            }.let {
-                                logger.debug { "load of market ${market.id} took ${humanReadableNanoseconds(it)}" }
-                            }
-                        }
-                    }
+                    val accumulator = MarketCheckpointAccumulator(checkpoints.first())
+                    checkpoints.drop(1).forEach { accumulator.apply(it) }
+                    val marketCheckpoint = accumulator.build()
+                    market = Market.fromCheckpoint(marketCheckpoint, arithmeticMode, levelIndexType(marketCheckpoint.id.toMarketId()), pool)
                 }.let {
-                    logger.debug { "load all ${markets.size} markets took ${humanReadableNanoseconds(it)}" }
+                    logger.debug { "load of market ${market.id} took ${humanReadableNanoseconds(it)}" }
                 }
+                market
+            }.forEach { addMarket(it) }
+        }
+        logger.debug { "load all ${markets.size} markets took ${humanReadableNanoseconds(marketsTime)}" }
+
+        val totalTime = System.nanoTime() - startTime
+        lastLoadTimings = CheckpointLoadTimings(
+            read = readTime,
+            decode = decodeTime,
+            balances = balancesTime,
+            markets = marketsTime,
+            total = totalTime,
+        )
+        logger.debug { "load of checkpoint took ${humanReadableNanoseconds(totalTime)}" }
+
+        return documents.last().cycle
+    }
+
+    private fun restoreAccount(accountBalances: List<BalancesCheckpoint.Balance>): RestoredAccount {
+        val accountBalance: BalanceByAsset = mutableMapOf()
+        var accountConsumed: ConsumedByAsset? = null
+        accountBalances.forEach { balanceCheckpoint ->
+            val asset = balanceCheckpoint.asset.toAsset()
+            accountBalance[asset] = balanceCheckpoint.amount.toBigInteger()
+            if (balanceCheckpoint.consumedCount > 0) {
+                val consumedByAsset = accountConsumed ?: mutableMapOf<Asset, MutableMap<MarketId, BigInteger>>().also { accountConsumed = it }
+                consumedByAsset.getOrPut(asset) { mutableMapOf() }.putAll(
+                    balanceCheckpoint.consumedList.associate {
+                        it.marketId.toMarketId() to it.consumed.toBigInteger()
+                    },
+                )
             }
-        }.let {
-            logger.debug { "load of checkpoint took ${humanReadableNanoseconds(it)}" }
         }
-        return cycle
+        return RestoredAccount(accountBalances.first().account.toAccountGuid(), accountBalance, accountConsumed)
     }
 
-    fun persist(checkpointsQueue: RollingChronicleQueue, currentCycle: Int) {
+    // the most recent base checkpoint, delta checkpoints are only meaningful on top of it
+    private fun findBaseCheckpointIndex(tailer: ExcerptTailer, lastIndex: Long): Long? {
+        if (lastIndex < 0) return null
+        val fieldName = StringBuilder()
+        tailer.direction(TailerDirection.BACKWARD)
+        try {
+            if (!tailer.moveToIndex(lastIndex)) return null
+            while (true) {
+                tailer.readingDocument().use { docCtx ->
+                    if (!docCtx.isPresent) return null
+                    docCtx.wire()!!.readEventName(fieldName)
+                    if (fieldName.contentEquals(BASE_CYCLE_FIELD)) return docCtx.index()
+                }
+            }
+        } finally {
+            tailer.direction(TailerDirection.FORWARD)
+        }
+    }
+
+    // fee rates only have to be taken from the last checkpoint, so they are applied right away, while balances and
+    // markets are returned undecoded
+    private fun readCheckpoint(wire: WireIn): CheckpointDocument {
+        val fieldName = StringBuilder()
+        val cycle = wire.readEventName(fieldName).readInt()
+        val isDelta = fieldName.contentEquals(DELTA_CYCLE_FIELD)
+
+        logger.debug { "Restoring from ${if (isDelta) "delta" else "base"} checkpoint for cycle $cycle" }
+
+        feeRates = FeeRates(
+            maker = FeeRate(wire.read("makerFeeRate").readLong()),
+            taker = FeeRate(wire.read("takerFeeRate").readLong()),
+        )
+
+        withdrawalFees.clear()
+        wire.read("withdrawalFees").sequence(withdrawalFees) { map, v ->
+            while (v.hasNextSequenceItem()) {
+                val fees = WithdrawalFee.parseFrom(v.bytes())
+                map[Symbol(fees.asset)] = fees.value.toBigInteger()
+            }
+        }
+
+        val balances = wire.read("balances").bytes()
+        val markets = mutableListOf<ByteArray>()
+        wire.read("markets").sequence(markets) { list, v ->
+            while (v.hasNextSequenceItem()) {
+                list.add(v.bytes())
+            }
+        }
+
+        return CheckpointDocument(cycle, balances, markets)
+    }
+
+    // Writes a base checkpoint with the complete state every fullCheckpointInterval checkpoints (and on the first
+    // one and after a reset), and in between delta checkpoints with only the accounts and market levels which
+    // changed since the previous checkpoint, so that the time spent here does not grow with the size of the state.
+    fun persist(checkpointsQueue: RollingChronicleQueue, currentCycle: Int, fullCheckpointInterval: Int = 1) {
+        checkpointSnapshot(currentCycle, fullCheckpointInterval).write(checkpointsQueue)
+    }
+
+    // The part of persist which has to run on the sequencer thread: balances of changed accounts and changed
+    // market levels are converted to their checkpoint messages, everything else is shared with the previous
+    // snapshot. The returned snapshot does not reference mutable state and can be written from another thread.
+    fun checkpointSnapshot(currentCycle: Int, fullCheckpointInterval: Int = 1): CheckpointSnapshot {
+        val isBase = baseCheckpointRequired || deltasSinceBaseCheckpoint >= fullCheckpointInterval - 1
+        val snapshot: CheckpointSnapshot
         measureNanoTime {
-            val checkpointsAppender = checkpointsQueue.acquireAppender()
-
-            checkpointsAppender.writingDocument().use { docCtx ->
-                docCtx.wire()!!
-                    .write("cycle")
-                    .int32(currentCycle)
-                    .write("makerFeeRate")!!
-                    .int64(feeRates.maker.value)
-                    .write("takerFeeRate")
-                    .int64(feeRates.taker.value)
-                    .write("withdrawalFees")
-                    .sequence(
-                        this@SequencerState.withdrawalFees.map {
-                            withdrawalFee {
-                                this.asset = it.key.value
-                                this.value = it.value.toIntegerValue()
-                            }.toByteArray()
-                        },
-                    )
-                    .write("balances")
-                    .bytes(getBalancesCheckpoint().toByteArray())
-                    .write("markets")
-                    .sequence(
-                        this@SequencerState.markets.values.sortedBy { it.id.value }.map { market ->
-                            market.toCheckpoint().toByteArray()
-                        },
-                    )
+            val accounts = changedAccounts()
+            changedAccounts.clear()
+            if (balanceCheckpointsComplete) {
+                accounts.forEach { account ->
+                    balanceCheckpoints[account.value] = getBalancesCheckpoint(listOf(account)).balancesList
+                }
+            } else {
+                balanceCheckpoints.clear()
+                balances.keys.forEach { account ->
+                    balanceCheckpoints[account.value] = getBalancesCheckpoint(listOf(account)).balancesList
+                }
+                balanceCheckpointsComplete = true
+            }
+
+            snapshot = CheckpointSnapshot(
+                cycle = currentCycle,
+                isBase = isBase,
+                feeRates = feeRates,
+                withdrawalFees = withdrawalFees.map {
+                    withdrawalFee {
+                        this.asset = it.key.value
+                        this.value = it.value.toIntegerValue()
+                    }
+                },
+                balances = (if (isBase) balances.keys else accounts).flatMap { account ->
+                    balanceCheckpoints[account.value] ?: emptyList()
+                },
+                markets = markets.values.sortedBy { it.id.value }.map { it.checkpointSnapshot(full = isBase) },
+            )
+
+            if (isBase) {
+                baseCheckpointRequired = false
+                deltasSinceBaseCheckpoint = 0
+            } else {
+                deltasSinceBaseCheckpoint += 1
             }
         }.let {
-            logger.debug { "persist took ${humanReadableNanoseconds(it)}" }
+            logger.debug { "snapshot of ${if (isBase) "base" else "delta"} checkpoint took ${humanReadableNanoseconds(it)}" }
         }
+        return snapshot
     }
 
     fun getDump(): StateDump {
@@ -186,12 +329,18 @@ data class SequencerState(
         }
     }
 
-    private fun getBalancesCheckpoint(): BalancesCheckpoint {
+    private fun changedAccounts(): List<AccountGuid> {
+        val accounts = ArrayList<AccountGuid>(changedAccounts.size)
+        changedAccounts.forEach { account, _ -> accounts.add(AccountGuid(account)) }
+        return accounts.sortedBy { it.value }
+    }
+
+    private fun getBalancesCheckpoint(accounts: Iterable<AccountGuid> = balances.keys): BalancesCheckpoint {
         val balancesMap = balances
 
         return balancesCheckpoint {
-            balancesMap.forEach { (account, accountBalances) ->
-                accountBalances.forEach { (asset, amount) ->
+            accounts.forEach { account ->
+                balancesMap[account]?.forEach { (asset, amount) ->
                     this.balances.add(
                         balance {
                             this.account = account.value
@@ -211,4 +360,63 @@ data class SequencerState(
             }
         }
     }
+
+    // a checkpoint document as read from the queue, with balances and markets still encoded
+    private class CheckpointDocument(
+        val cycle: Int,
+        val balances: ByteArray,
+        val markets: List<ByteArray>,
+    )
+
+    private class RestoredAccount(
+        val account: AccountGuid,
+        val balances: BalanceByAsset,
+        val consumed: ConsumedByAsset?,
+    )
+
+    companion object {
+        const val BASE_CYCLE_FIELD = "cycle"
+        const val DELTA_CYCLE_FIELD = "deltaCycle"
+
+        private const val ACCOUNTS_PER_RESTORE_TASK = 1024
+    }
+}
+
+// durations of the phases of SequencerState.load in nanoseconds: reading the checkpoint documents from the queue,
+// decoding their balances and markets, rebuilding the balances and rebuilding the markets
+data class CheckpointLoadTimings(
+    val read: Long,
+    val decode: Long,
+    val balances: Long,
+    val markets: Long,
+    val total: Long,
+)
+
+// maps the items on the pool, results are in the order of the items
+internal fun <T, R> ForkJoinPool.mapInParallel(items: List<T>, transform: (T) -> R): List<R> =
+    when (items.size) {
+        0 -> emptyList()
+        1 -> listOf(transform(items[0]))
+        else -> invokeAll(items.map { Callable { transform(it) } }).map { it.get() }
+    }
+
+// assembles a market checkpoint from a base checkpoint and the deltas written after it
+private class MarketCheckpointAccumulator(private val base: MarketCheckpoint) {
+    private var fields: MarketCheckpoint = base
+    private var levels: TreeMap<Int, MarketCheckpoint.OrderBookLevel>? = null
+
+    fun apply(delta: MarketCheckpoint) {
+        val levels = levels ?: TreeMap<Int, MarketCheckpoint.OrderBookLevel>().also { levels ->
+            fields.levelsList.forEach { levels[it.levelIx] = it }
+            this.levels = levels
+        }
+        fields = delta
+        delta.removedLevelsList.forEach { levels.remove(it) }
+        delta.levelsList.forEach { levels[it.levelIx] = it }
+    }
+
+    fun build(): MarketCheckpoint =
+        levels?.let {
+            fields.toBuilder().clearLevels().clearRemovedLevels().addAllLevels(it.values).build()
+        } ?: base
 }
@@ -1,6 +1,6 @@
 package xyz.funkybit.sequencer.core.datastructure
 
-class AVLTree<T : AVLTree.Node<T>> {
+class AVLTree<T : AVLTree.Node<T>> : SortedIndex<T> {
 
     abstract class Node<T : Node<T>>(
         var ix: Int,
@@ -49,6 +49,11 @@ class AVLTree<T : AVLTree.Node<T>> {
 
         open fun reset() {
             ix = 0
+            detach()
+        }
+
+        // clears links to other nodes so that the node can be inserted into a tree again
+        fun detach() {
             height = 1
             left = null
             right = null
@@ -58,7 +63,7 @@ class AVLTree<T : AVLTree.Node<T>> {
 
     private var root: T? = null
 
-    fun add(value: T): T {
+    override fun add(value: T): T {
         root = add(root, value)
         return value
     }
@@ -81,7 +86,7 @@ class AVLTree<T : AVLTree.Node<T>> {
         return balance(parent)
     }
 
-    fun get(ix: Int): T? {
+    override fun get(ix: Int): T? {
         return get(root, ix)
     }
 
@@ -95,7 +100,7 @@ class AVLTree<T : AVLTree.Node<T>> {
         }
     }
 
-    fun remove(ix: Int) {
+    override fun remove(ix: Int) {
         root = remove(root, ix)
     }
 
@@ -166,9 +171,9 @@ class AVLTree<T : AVLTree.Node<T>> {
         return balance(parent)
     }
 
-    fun first(): T? = root?.let { minValueNode(it) }
+    override fun first(): T? = root?.let { minValueNode(it) }
 
-    fun last(): T? {
+    override fun last(): T? {
         var current = root ?: return null
         while (current.right != null) {
             current = current.right!!
@@ -244,7 +249,7 @@ class AVLTree<T : AVLTree.Node<T>> {
         return y
     }
 
-    fun traverse(action: (T) -> Unit) {
+    override fun traverse(action: (T) -> Unit) {
         traverse(root, action)
     }
 
@@ -256,25 +261,11 @@ class AVLTree<T : AVLTree.Node<T>> {
         }
     }
 
-    override fun equals(other: Any?): Boolean {
-        if (this === other) return true
-        if (other !is AVLTree<*>) return false
-
-        var thisNode = this.first()
-        var otherNode = other.first()
+    override fun next(node: T): T? = node.next()
 
-        while (thisNode != null && otherNode != null) {
-            if (thisNode != otherNode) return false
-            thisNode = thisNode.next()
-            otherNode = otherNode.next()
-        }
+    override fun prev(node: T): T? = node.prev()
 
-        return thisNode == null && otherNode == null
-    }
+    override fun equals(other: Any?): Boolean = contentEquals(other)
 
-    override fun hashCode(): Int {
-        var result = 1
-        traverse { result = 31 * result + it.hashCode() }
-        return result
-    }
+    override fun hashCode(): Int = contentHashCode()
 }
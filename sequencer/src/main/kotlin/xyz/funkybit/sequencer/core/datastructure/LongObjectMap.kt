@@ -0,0 +1,143 @@
+package xyz.funkybit.sequencer.core.datastructure
+
+// Hash map with primitive long keys using open addressing with linear probing. Keys are not boxed and entries
+// are kept in flat arrays, so lookups, inserts and removals don't allocate unless the map has to grow.
+// Removal shifts following entries back instead of leaving tombstones, so probe sequences stay short.
+class LongObjectMap<V : Any>(initialCapacity: Int = 16) {
+    private var keys: LongArray
+    private var values: Array<Any?>
+    private var mask: Int
+    private var resizeThreshold: Int
+
+    var size: Int = 0
+        private set
+
+    init {
+        require(initialCapacity > 0) { "Initial capacity must be positive" }
+        // keep the table at most half full
+        val tableSize = Integer.highestOneBit(initialCapacity * 2 - 1) shl 1
+        keys = LongArray(tableSize)
+        values = arrayOfNulls(tableSize)
+        mask = tableSize - 1
+        resizeThreshold = tableSize / 2
+    }
+
+    fun isEmpty(): Boolean = size == 0
+
+    operator fun get(key: Long): V? {
+        val ix = find(key)
+        return if (ix == -1) null else value(ix)
+    }
+
+    fun containsKey(key: Long): Boolean = find(key) != -1
+
+    operator fun set(key: Long, value: V) {
+        put(key, value)
+    }
+
+    // returns the previous value for the key
+    fun put(key: Long, value: V): V? {
+        var ix = home(key)
+        while (true) {
+            if (values[ix] == null) {
+                keys[ix] = key
+                values[ix] = value
+                if (++size > resizeThreshold) grow()
+                return null
+            }
+            if (keys[ix] == key) {
+                val previous = value(ix)
+                values[ix] = value
+                return previous
+            }
+            ix = (ix + 1) and mask
+        }
+    }
+
+    fun remove(key: Long): V? {
+        val ix = find(key)
+        if (ix == -1) return null
+        val removed = value(ix)
+
+        var gap = ix
+        var next = (gap + 1) and mask
+        while (values[next] != null) {
+            // an entry can fill the gap if the gap lies between its home slot and its current slot
+            val home = home(keys[next])
+            if (((next - home) and mask) >= ((next - gap) and mask)) {
+                keys[gap] = keys[next]
+                values[gap] = values[next]
+                gap = next
+            }
+            next = (next + 1) and mask
+        }
+        values[gap] = null
+        size--
+
+        return removed
+    }
+
+    fun clear() {
+        values.fill(null)
+        size = 0
+    }
+
+    fun forEach(action: (Long, V) -> Unit) {
+        for (ix in values.indices) {
+            if (values[ix] != null) {
+                action(keys[ix], value(ix))
+            }
+        }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is LongObjectMap<*>) return false
+        if (size != other.size) return false
+
+        for (ix in values.indices) {
+            if (values[ix] != null && values[ix] != other[keys[ix]]) return false
+        }
+        return true
+    }
+
+    // same as for java.util.Map, independent of the order of entries in the table
+    override fun hashCode(): Int {
+        var result = 0
+        forEach { key, value -> result += key.hashCode() xor value.hashCode() }
+        return result
+    }
+
+    private fun find(key: Long): Int {
+        var ix = home(key)
+        while (values[ix] != null) {
+            if (keys[ix] == key) return ix
+            ix = (ix + 1) and mask
+        }
+        return -1
+    }
+
+    private fun home(key: Long): Int {
+        val hash = key * -7046029254386353131L
+        return (hash xor (hash ushr 32)).toInt() and mask
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun value(ix: Int): V = values[ix] as V
+
+    private fun grow() {
+        val oldKeys = keys
+        val oldValues = values
+        keys = LongArray(oldKeys.size * 2)
+        values = arrayOfNulls(oldValues.size * 2)
+        mask = keys.size - 1
+        resizeThreshold = keys.size / 2
+        size = 0
+        for (ix in oldValues.indices) {
+            oldValues[ix]?.let {
+                @Suppress("UNCHECKED_CAST")
+                put(oldKeys[ix], it as V)
+            }
+        }
+    }
+}
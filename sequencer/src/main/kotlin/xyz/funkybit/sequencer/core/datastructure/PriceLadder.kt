@@ -0,0 +1,181 @@
+package xyz.funkybit.sequencer.core.datastructure
+
+// Sorted index for nodes with dense integer indices clustered around a moving center, such as price levels
+// around the best bid and offer. Nodes within a window of windowSize consecutive indices are stored directly
+// in an array with an occupancy bitmap, so lookups are a single array access and next/prev scan 64 indices
+// at a time. Nodes outside the window are kept in AVL trees below and above it. Once most of the nodes are
+// outside, the window is re-centered on the median node index.
+class PriceLadder<T : AVLTree.Node<T>>(
+    val windowSize: Int = 4096,
+    private val recenterAfterMisses: Int = 64,
+) : SortedIndex<T> {
+    init {
+        require(windowSize > 0 && windowSize % 64 == 0) { "Window size must be a positive multiple of 64" }
+    }
+
+    private val slots = arrayOfNulls<AVLTree.Node<*>>(windowSize)
+    private val occupied = LongArray(windowSize / 64)
+    private var below = AVLTree<T>()
+    private var above = AVLTree<T>()
+
+    var windowStart: Int = 0
+        private set
+    private var windowCount = 0
+    private var outsideCount = 0
+    private var missesSinceRecenter = 0
+
+    val size: Int
+        get() = windowCount + outsideCount
+
+    override fun add(value: T): T {
+        if (size == 0) {
+            windowStart = value.ix - windowSize / 2
+        }
+        if (get(value.ix) != null) return value
+
+        val offset = offset(value.ix)
+        if (offset != -1) {
+            putInWindow(offset, value)
+        } else {
+            putOutside(value)
+            missesSinceRecenter++
+            if (outsideCount > windowCount && missesSinceRecenter >= recenterAfterMisses) {
+                recenter()
+            }
+        }
+        return value
+    }
+
+    override fun get(ix: Int): T? {
+        val offset = offset(ix)
+        return when {
+            offset != -1 -> slot(offset)
+            ix < windowStart -> below.get(ix)
+            else -> above.get(ix)
+        }
+    }
+
+    override fun remove(ix: Int) {
+        val offset = offset(ix)
+        if (offset != -1) {
+            if (slots[offset] != null) {
+                slots[offset] = null
+                occupied[offset ushr 6] = occupied[offset ushr 6] and (1L shl (offset and 63)).inv()
+                windowCount--
+            }
+        } else {
+            val tree = if (ix < windowStart) below else above
+            if (tree.get(ix) != null) {
+                tree.remove(ix)
+                outsideCount--
+            }
+        }
+    }
+
+    override fun first(): T? = below.first() ?: nextInWindow(0) ?: above.first()
+
+    override fun last(): T? = above.last() ?: prevInWindow(windowSize - 1) ?: below.last()
+
+    override fun next(node: T): T? {
+        val offset = offset(node.ix)
+        return when {
+            offset != -1 -> nextInWindow(offset + 1) ?: above.first()
+            node.ix < windowStart -> node.next() ?: nextInWindow(0) ?: above.first()
+            else -> node.next()
+        }
+    }
+
+    override fun prev(node: T): T? {
+        val offset = offset(node.ix)
+        return when {
+            offset != -1 -> prevInWindow(offset - 1) ?: below.last()
+            node.ix < windowStart -> node.prev()
+            else -> node.prev() ?: prevInWindow(windowSize - 1) ?: below.last()
+        }
+    }
+
+    override fun traverse(action: (T) -> Unit) {
+        below.traverse(action)
+        var node = nextInWindow(0)
+        while (node != null) {
+            action(node)
+            node = nextInWindow(offset(node.ix) + 1)
+        }
+        above.traverse(action)
+    }
+
+    // moves the window so that it is centered on the median node, nodes are redistributed between the window
+    // and the trees accordingly
+    fun recenter() {
+        val nodes = ArrayList<T>(size)
+        traverse { nodes.add(it) }
+
+        slots.fill(null)
+        occupied.fill(0L)
+        below = AVLTree()
+        above = AVLTree()
+        windowCount = 0
+        outsideCount = 0
+        missesSinceRecenter = 0
+
+        if (nodes.isEmpty()) return
+
+        windowStart = nodes[nodes.size / 2].ix - windowSize / 2
+        nodes.forEach { node ->
+            node.detach()
+            val offset = offset(node.ix)
+            if (offset != -1) {
+                putInWindow(offset, node)
+            } else {
+                putOutside(node)
+            }
+        }
+    }
+
+    override fun equals(other: Any?): Boolean = contentEquals(other)
+
+    override fun hashCode(): Int = contentHashCode()
+
+    private fun putInWindow(offset: Int, value: T) {
+        slots[offset] = value
+        occupied[offset ushr 6] = occupied[offset ushr 6] or (1L shl (offset and 63))
+        windowCount++
+    }
+
+    private fun putOutside(value: T) {
+        value.detach()
+        if (value.ix < windowStart) below.add(value) else above.add(value)
+        outsideCount++
+    }
+
+    // offset of the index within the window or -1 if it is outside of the window
+    private fun offset(ix: Int): Int {
+        val offset = ix.toLong() - windowStart
+        return if (offset >= 0 && offset < windowSize) offset.toInt() else -1
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun slot(offset: Int): T? = slots[offset] as T?
+
+    private fun nextInWindow(fromOffset: Int): T? {
+        if (fromOffset >= windowSize) return null
+        var wordIx = fromOffset ushr 6
+        var word = occupied[wordIx] and (-1L shl (fromOffset and 63))
+        while (true) {
+            if (word != 0L) return slot((wordIx shl 6) + word.countTrailingZeroBits())
+            if (++wordIx == occupied.size) return null
+            word = occupied[wordIx]
+        }
+    }
+
+    private fun prevInWindow(fromOffset: Int): T? {
+        if (fromOffset < 0) return null
+        var wordIx = fromOffset ushr 6
+        var word = occupied[wordIx] and (-1L ushr (63 - (fromOffset and 63)))
+        while (true) {
+            if (word != 0L) return slot((wordIx shl 6) + 63 - word.countLeadingZeroBits())
+            if (--wordIx < 0) return null
+            word = occupied[wordIx]
+        }
+    }
+}
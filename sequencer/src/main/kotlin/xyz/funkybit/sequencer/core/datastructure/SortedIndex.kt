@@ -0,0 +1,40 @@
+package xyz.funkybit.sequencer.core.datastructure
+
+// Nodes ordered by their index. Navigation goes through the index rather than the node itself,
+// since not every implementation links nodes to each other.
+interface SortedIndex<T : AVLTree.Node<T>> {
+    fun add(value: T): T
+    fun get(ix: Int): T?
+    fun remove(ix: Int)
+    fun first(): T?
+    fun last(): T?
+    fun next(node: T): T?
+    fun prev(node: T): T?
+    fun traverse(action: (T) -> Unit)
+}
+
+// indices are equal when they hold equal nodes in the same order, regardless of how nodes are stored
+internal fun <T : AVLTree.Node<T>> SortedIndex<T>.contentEquals(other: Any?): Boolean {
+    if (this === other) return true
+    if (other !is SortedIndex<*>) return false
+
+    @Suppress("UNCHECKED_CAST")
+    val otherIndex = other as SortedIndex<T>
+
+    var thisNode = this.first()
+    var otherNode = otherIndex.first()
+
+    while (thisNode != null && otherNode != null) {
+        if (thisNode != otherNode) return false
+        thisNode = this.next(thisNode)
+        otherNode = otherIndex.next(otherNode)
+    }
+
+    return thisNode == null && otherNode == null
+}
+
+internal fun <T : AVLTree.Node<T>> SortedIndex<T>.contentHashCode(): Int {
+    var result = 1
+    traverse { result = 31 * result + it.hashCode() }
+    return result
+}
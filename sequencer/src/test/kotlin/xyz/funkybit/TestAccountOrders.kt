@@ -0,0 +1,64 @@
+package xyz.funkybit
+
+import org.junit.jupiter.api.Test
+import xyz.funkybit.sequencer.core.AccountOrders
+import xyz.funkybit.sequencer.core.BookSide
+import xyz.funkybit.sequencer.core.FeeRate
+import xyz.funkybit.sequencer.core.LevelOrder
+import xyz.funkybit.sequencer.core.OrderBookLevel
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.order
+import java.math.BigDecimal
+import java.math.BigInteger
+import kotlin.test.assertEquals
+
+class TestAccountOrders {
+    private var nextOrderId = 1L
+
+    @Test
+    fun `sell orders are kept in ascending level order`() {
+        val accountOrders = AccountOrders(BookSide.Sell)
+        val levels = (0..5).associateWith { OrderBookLevel(100 + it, BookSide.Sell, BigDecimal.ONE, 10) }
+
+        val orders = listOf(3, 5, 3, 0, 4, 0, 1).map { levels.getValue(it).addOrder() }
+        orders.forEach { accountOrders.add(it) }
+        assertEquals(listOf(4L, 6L, 7L, 1L, 3L, 5L, 2L), accountOrders.guids())
+        assertEquals(7, accountOrders.size)
+
+        accountOrders.remove(orders[3])
+        accountOrders.remove(orders[1])
+        accountOrders.remove(orders[6])
+        assertEquals(listOf(6L, 1L, 3L, 5L), accountOrders.guids())
+        assertEquals(4, accountOrders.size)
+    }
+
+    @Test
+    fun `buy orders are kept in descending level order`() {
+        val accountOrders = AccountOrders(BookSide.Buy)
+        val levels = (0..5).associateWith { OrderBookLevel(100 + it, BookSide.Buy, BigDecimal.ONE, 10) }
+
+        val orders = listOf(3, 5, 3, 0, 4, 0, 1).map { levels.getValue(it).addOrder() }
+        orders.forEach { accountOrders.add(it) }
+        assertEquals(listOf(2L, 5L, 1L, 3L, 7L, 4L, 6L), accountOrders.guids())
+
+        orders.forEach { accountOrders.remove(it) }
+        assertEquals(emptyList(), accountOrders.guids())
+        assertEquals(0, accountOrders.size)
+    }
+
+    private fun OrderBookLevel.addOrder(): LevelOrder =
+        addOrder(
+            0L,
+            order {
+                this.guid = nextOrderId++
+                this.amount = BigInteger.ONE.toIntegerValue()
+                this.levelIx = this@addOrder.ix
+                this.type = if (this@addOrder.side == BookSide.Buy) Order.Type.LimitBuy else Order.Type.LimitSell
+            },
+            FeeRate.zero,
+        ).second!!
+
+    private fun AccountOrders.guids(): List<Long> =
+        mutableListOf<Long>().also { guids -> forEach { guids.add(it.guid.value) } }
+}
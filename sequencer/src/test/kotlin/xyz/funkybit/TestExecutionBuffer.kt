@@ -0,0 +1,54 @@
+package xyz.funkybit
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import xyz.funkybit.sequencer.core.BaseAmount
+import xyz.funkybit.sequencer.core.BookSide
+import xyz.funkybit.sequencer.core.ExecutionBuffer
+import xyz.funkybit.sequencer.core.FeeRate
+import xyz.funkybit.sequencer.core.OrderBookLevel
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.order
+import java.math.BigDecimal
+import java.math.BigInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TestExecutionBuffer {
+
+    @Test
+    fun `buffer grows and reuses executions`() {
+        val level = OrderBookLevel(300, BookSide.Sell, BigDecimal.ONE, 100)
+        val buffer = ExecutionBuffer(initialCapacity = 2)
+
+        (1..5).forEach { level.addOrder(0L, sellOrder(it.toLong(), it.toBigInteger()), FeeRate.zero) }
+
+        assertEquals(BaseAmount(BigInteger.ZERO), level.fillOrder(BaseAmount(BigInteger.valueOf(12)), buffer))
+        assertEquals(5, buffer.size)
+        assertTrue(buffer.capacity() >= 5)
+        assertEquals(BaseAmount(BigInteger.valueOf(12)), buffer.totalAmount())
+        assertEquals(listOf(true, true, true, true, false), buffer.map { it.counterOrderExhausted })
+        assertEquals(BaseAmount(BigInteger.valueOf(2)), buffer[4].amount)
+
+        val firstExecution = buffer[0]
+        val capacity = buffer.capacity()
+        buffer.clear()
+        assertEquals(0, buffer.size)
+        assertThrows<IndexOutOfBoundsException> { buffer[0] }
+
+        assertEquals(BaseAmount(BigInteger.ONE), level.fillOrder(BaseAmount(BigInteger.valueOf(4)), buffer))
+        assertEquals(1, buffer.size)
+        assertSame(firstExecution, buffer[0])
+        assertEquals(capacity, buffer.capacity())
+        assertEquals(BaseAmount(BigInteger.valueOf(3)), buffer.totalAmount())
+    }
+
+    private fun sellOrder(guid: Long, amount: BigInteger) = order {
+        this.guid = guid
+        this.amount = amount.toIntegerValue()
+        this.levelIx = 300
+        this.type = Order.Type.LimitSell
+    }
+}
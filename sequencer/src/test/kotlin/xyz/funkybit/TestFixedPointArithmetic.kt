@@ -0,0 +1,121 @@
+package xyz.funkybit
+
+import org.junit.jupiter.api.Test
+import xyz.funkybit.sequencer.core.AccountGuid
+import xyz.funkybit.sequencer.core.ArithmeticMode
+import xyz.funkybit.sequencer.core.BaseAmount
+import xyz.funkybit.sequencer.core.FIXED_POINT_OVERFLOW
+import xyz.funkybit.sequencer.core.FeeRate
+import xyz.funkybit.sequencer.core.FeeRates
+import xyz.funkybit.sequencer.core.Market
+import xyz.funkybit.sequencer.core.MarketId
+import xyz.funkybit.sequencer.core.QuoteAmount
+import xyz.funkybit.sequencer.core.notional
+import xyz.funkybit.sequencer.core.notionalFee
+import xyz.funkybit.sequencer.core.notionalFeeFixedPoint
+import xyz.funkybit.sequencer.core.notionalFixedPoint
+import xyz.funkybit.sequencer.core.toBaseAmount
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.core.toQuoteAmount
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.cancelOrder
+import xyz.funkybit.sequencer.proto.order
+import xyz.funkybit.sequencer.proto.orderBatch
+import java.math.BigDecimal
+import java.math.BigInteger
+import kotlin.random.Random
+import kotlin.test.assertEquals
+
+class TestFixedPointArithmetic {
+    private val random = Random(42)
+
+    @Test
+    fun `fixed point notional matches decimal notional`() {
+        listOf(
+            Triple(BigDecimal("0.05"), 18, 18),
+            Triple(BigDecimal("1"), 8, 6),
+            Triple(BigDecimal("0.000001"), 6, 8),
+            Triple(BigDecimal("25"), 8, 18),
+            Triple(BigDecimal("0.001"), 18, 6),
+        ).forEach { (tickSize, baseDecimals, quoteDecimals) ->
+            repeat(10_000) {
+                val amount = random.nextLong(0, Long.MAX_VALUE shr random.nextInt(0, 62))
+                val levelIx = random.nextInt(1, 1_000_000)
+                val price = tickSize.multiply(levelIx.toBigDecimal())
+                val expected = notional(amount.toBigInteger().toBaseAmount(), price, baseDecimals, quoteDecimals)
+                val actual = notionalFixedPoint(amount, tickSize.unscaledValue().toLong() * levelIx, tickSize.scale(), baseDecimals, quoteDecimals)
+                if (actual != FIXED_POINT_OVERFLOW) {
+                    assertEquals(expected.value, actual.toBigInteger(), "amount=$amount, price=$price")
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `fixed point fee matches decimal fee`() {
+        repeat(100_000) {
+            val notional = random.nextLong(-Long.MAX_VALUE, Long.MAX_VALUE) shr random.nextInt(0, 63)
+            val feeRate = FeeRate(random.nextLong(FeeRate.MIN_VALUE, FeeRate.MAX_VALUE + 1))
+            assertEquals(
+                notionalFee(notional.toBigInteger().toQuoteAmount(), feeRate).value,
+                notionalFeeFixedPoint(notional, feeRate).toBigInteger(),
+                "notional=$notional, feeRate=${feeRate.value}",
+            )
+        }
+    }
+
+    @Test
+    fun `fixed point mode produces identical market results`() {
+        val decimalMarket = createMarket(ArithmeticMode.Decimal)
+        val fixedPointMarket = createMarket(ArithmeticMode.FixedPoint)
+        val feeRates = FeeRates.fromPercents(maker = 1.0, taker = 2.0)
+        var nextGuid = 1L
+
+        val orderTypes = listOf(Order.Type.MarketBuy, Order.Type.MarketSell, Order.Type.LimitBuy, Order.Type.LimitSell)
+
+        repeat(2_000) { batchIx ->
+            val account = random.nextLong(1, 20)
+            val batch = orderBatch {
+                this.guid = "batch-$batchIx"
+                this.marketId = decimalMarket.id.value
+                this.account = account
+                repeat(random.nextInt(1, 5)) {
+                    val type = orderTypes.random(random)
+                    this.ordersToAdd.add(
+                        order {
+                            this.guid = nextGuid++
+                            this.type = type
+                            this.amount = BigInteger.valueOf(random.nextLong(1, 5_000_000_000_000_000_000)).toIntegerValue()
+                            this.levelIx = random.nextInt(300, 400)
+                        },
+                    )
+                }
+                if (nextGuid > 10) {
+                    this.ordersToCancel.add(cancelOrder { this.guid = random.nextLong(1, nextGuid) })
+                }
+            }
+
+            assertEquals(decimalMarket.applyOrderBatch(batch, feeRates), fixedPointMarket.applyOrderBatch(batch, feeRates))
+            assertEquals(decimalMarket.getBidOfferState(), fixedPointMarket.getBidOfferState())
+
+            val accountGuid = AccountGuid(account)
+            assertEquals(decimalMarket.baseAssetsRequired(accountGuid), fixedPointMarket.baseAssetsRequired(accountGuid))
+            assertEquals(decimalMarket.quoteAssetsRequired(accountGuid), fixedPointMarket.quoteAssetsRequired(accountGuid))
+        }
+
+        val notional = QuoteAmount(BigInteger.TEN.pow(30))
+        assertEquals(decimalMarket.feeForNotional(notional, feeRates.taker), fixedPointMarket.feeForNotional(notional, feeRates.taker))
+        val amount = BaseAmount(BigInteger.TEN.pow(30))
+        assertEquals(decimalMarket.notionalAtLevel(amount, 350), fixedPointMarket.notionalAtLevel(amount, 350))
+    }
+
+    private fun createMarket(arithmeticMode: ArithmeticMode) = Market(
+        id = MarketId("BTC/ETH"),
+        tickSize = BigDecimal("0.05"),
+        maxOrdersPerLevel = 100,
+        baseDecimals = 18,
+        quoteDecimals = 18,
+        minFee = QuoteAmount.ZERO,
+        arithmeticMode = arithmeticMode,
+    )
+}
@@ -0,0 +1,278 @@
+package xyz.funkybit
+
+import io.grpc.ManagedChannelBuilder
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.test.runTest
+import net.openhft.chronicle.queue.ChronicleQueue
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import xyz.funkybit.sequencer.apps.GatewayApp
+import xyz.funkybit.sequencer.apps.GatewayConfig
+import xyz.funkybit.sequencer.apps.SequencerApp
+import xyz.funkybit.sequencer.core.Asset
+import xyz.funkybit.sequencer.core.Clock
+import xyz.funkybit.sequencer.core.MarketId
+import xyz.funkybit.sequencer.core.queueHome
+import xyz.funkybit.sequencer.core.toAccountGuid
+import xyz.funkybit.sequencer.core.toDecimalValue
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.proto.GatewayGrpcKt
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.OrderDisposition
+import xyz.funkybit.sequencer.proto.SequencerRequest
+import xyz.funkybit.sequencer.proto.balanceBatch
+import xyz.funkybit.sequencer.proto.cancelOrder
+import xyz.funkybit.sequencer.proto.deposit
+import xyz.funkybit.sequencer.proto.market
+import xyz.funkybit.sequencer.proto.order
+import xyz.funkybit.sequencer.proto.orderBatch
+import xyz.funkybit.sequencer.proto.sequencerRequest
+import xyz.funkybit.testutils.freePort
+import xyz.funkybit.testutils.inSats
+import xyz.funkybit.testutils.inWei
+import xyz.funkybit.testutils.testQueue
+import xyz.funkybit.testutils.waitForResponses
+import java.math.BigDecimal
+import java.nio.file.Path
+import java.util.UUID
+import kotlin.random.Random
+
+class TestGateway {
+    private val testDirPath = Path.of(queueHome, "test-gateway")
+
+    private val account1 = 123456789L.toAccountGuid()
+    private val account2 = 555111555L.toAccountGuid()
+    private val btc = Asset("BTC")
+
+    private val btcEthMarketId = MarketId("BTC/ETH")
+    private val btcEthMarketTickSize = "0.05".toBigDecimal()
+
+    private lateinit var inputQueue: ChronicleQueue
+    private lateinit var outputQueue: ChronicleQueue
+    private lateinit var sequencedQueue: ChronicleQueue
+
+    @BeforeEach
+    fun beforeEach() {
+        testDirPath.toFile().deleteRecursively()
+        inputQueue = testQueue(testDirPath, "input")
+        outputQueue = testQueue(testDirPath, "output")
+        sequencedQueue = testQueue(testDirPath, "sequenced")
+    }
+
+    @Test
+    fun `test gateway batches are answered per request and replayed`() = runTest {
+        val port = freePort()
+        // a long window, so that concurrent calls end up in the same batch
+        val gatewayApp = GatewayApp(GatewayConfig(port = port, batchWindowMicros = 200_000), inputQueue, outputQueue, sequencedQueue)
+        val sequencerApp = SequencerApp(Clock(), inputQueue, outputQueue, checkpointsQueue = null)
+
+        try {
+            sequencerApp.start()
+            gatewayApp.start()
+
+            val gateway = gatewayStub(port)
+            addBtcEthMarket(gateway)
+
+            val depositBatches = listOf(
+                Triple(account1, btcEthMarketId.baseAsset(), BigDecimal("1").inSats()),
+                Triple(account2, btcEthMarketId.quoteAsset(), BigDecimal("10").inWei()),
+            ).map { (account, asset, amount) ->
+                balanceBatch {
+                    this.guid = UUID.randomUUID().toString()
+                    this.deposits.add(
+                        deposit {
+                            this.account = account.value
+                            this.asset = asset.value
+                            this.amount = amount.toIntegerValue()
+                        },
+                    )
+                }
+            }
+            depositBatches
+                .map { async { gateway.applyBalanceBatch(it) } }
+                .awaitAll()
+                .forEachIndexed { i, response ->
+                    assertTrue(response.success)
+                    assertEquals(depositBatches[i].guid, response.sequencerResponse.guid)
+                    assertEquals(1, response.sequencerResponse.balancesChangedCount)
+                }
+
+            val orderBatches = listOf(
+                orderBatch {
+                    this.guid = UUID.randomUUID().toString()
+                    this.marketId = btcEthMarketId.value
+                    this.account = account1.value
+                    this.ordersToAdd.add(
+                        order {
+                            this.guid = Random.nextLong()
+                            this.amount = BigDecimal("0.5").inSats().toIntegerValue()
+                            this.levelIx = "17.550".levelIx(btcEthMarketTickSize)
+                            this.type = Order.Type.LimitSell
+                        },
+                    )
+                },
+                orderBatch {
+                    this.guid = UUID.randomUUID().toString()
+                    this.marketId = btcEthMarketId.value
+                    this.account = account2.value
+                    this.ordersToAdd.add(
+                        order {
+                            this.guid = Random.nextLong()
+                            this.amount = BigDecimal("0.1").inSats().toIntegerValue()
+                            this.levelIx = "17.500".levelIx(btcEthMarketTickSize)
+                            this.type = Order.Type.LimitBuy
+                        },
+                    )
+                },
+            )
+            orderBatches
+                .map { async { gateway.applyOrderBatch(it) } }
+                .awaitAll()
+                .forEachIndexed { i, response ->
+                    assertTrue(response.success)
+                    assertEquals(orderBatches[i].guid, response.sequencerResponse.guid)
+                    assertEquals(OrderDisposition.Accepted, response.sequencerResponse.ordersChangedList.single().disposition)
+                }
+        } finally {
+            gatewayApp.stop()
+            sequencerApp.stop()
+        }
+
+        // one document for the market and one per group of concurrent calls, answered by one response each
+        val responses = waitForResponses(outputQueue, 3)
+        assertEquals(listOf(0, 2, 2), responses.map { it.batchCount })
+        responses.forEach { response -> assertTrue(response.batchList.all { it.sequence == response.sequence }) }
+
+        // replaying the batches gives the same responses, otherwise validation would stop the sequencer
+        val replayingSequencerApp = SequencerApp(
+            Clock(),
+            inputQueue,
+            outputQueue,
+            checkpointsQueue = ChronicleQueue.singleBuilder(Path.of(testDirPath.toString(), "checkpoints")).build(),
+            strictReplayValidation = true,
+        )
+        try {
+            replayingSequencerApp.start()
+            inputQueue.acquireAppender().writingDocument().use {
+                it.wire()?.write()?.bytes(
+                    sequencerRequest {
+                        this.guid = UUID.randomUUID().toString()
+                        this.type = SequencerRequest.Type.ApplyOrderBatch
+                        this.orderBatch = orderBatch {
+                            this.guid = UUID.randomUUID().toString()
+                            this.marketId = btcEthMarketId.value
+                            this.account = account1.value
+                            this.ordersToAdd.add(
+                                order {
+                                    this.guid = Random.nextLong()
+                                    this.amount = BigDecimal("0.1").inSats().toIntegerValue()
+                                    this.levelIx = "18".levelIx(btcEthMarketTickSize)
+                                    this.type = Order.Type.LimitSell
+                                },
+                            )
+                        }
+                    }.toByteArray(),
+                )
+            }
+            assertEquals(1, waitForResponses(outputQueue, 4).last().ordersChangedCount)
+        } finally {
+            replayingSequencerApp.stop()
+        }
+    }
+
+    @Test
+    fun `test order batches pipelined over a stream`() = runTest {
+        val port = freePort()
+        val gatewayApp = GatewayApp(GatewayConfig(port = port), inputQueue, outputQueue, sequencedQueue)
+        val sequencerApp = SequencerApp(Clock(), inputQueue, outputQueue, checkpointsQueue = null)
+
+        try {
+            sequencerApp.start()
+            gatewayApp.start()
+
+            val gateway = gatewayStub(port)
+            addBtcEthMarket(gateway)
+            assertTrue(
+                gateway.applyBalanceBatch(
+                    balanceBatch {
+                        this.guid = UUID.randomUUID().toString()
+                        this.deposits.add(
+                            deposit {
+                                this.account = account1.value
+                                this.asset = btc.value
+                                this.amount = BigDecimal("1").inSats().toIntegerValue()
+                            },
+                        )
+                    },
+                ).success,
+            )
+
+            // the second half of the batches cancels the orders added by the first half, which only works if the
+            // batches are sequenced in the order they were sent
+            val orderGuids = (1..10).map { Random.nextLong() }
+            val batches = orderGuids.mapIndexed { i, orderGuid ->
+                orderBatch {
+                    this.guid = "stream-$i"
+                    this.marketId = btcEthMarketId.value
+                    this.account = account1.value
+                    this.ordersToAdd.add(
+                        order {
+                            this.guid = orderGuid
+                            this.amount = BigDecimal("0.01").inSats().toIntegerValue()
+                            this.levelIx = "17.550".levelIx(btcEthMarketTickSize) + i
+                            this.type = Order.Type.LimitSell
+                        },
+                    )
+                }
+            } + orderGuids.mapIndexed { i, orderGuid ->
+                orderBatch {
+                    this.guid = "stream-${i + orderGuids.size}"
+                    this.marketId = btcEthMarketId.value
+                    this.account = account1.value
+                    this.ordersToCancel.add(cancelOrder { this.guid = orderGuid })
+                }
+            }
+
+            val responses = gateway.applyOrderBatchStream(batches.asFlow()).toList()
+            assertEquals(batches.map { it.guid }.toSet(), responses.map { it.guid }.toSet())
+            assertTrue(responses.all { it.success && it.sequencerResponse.guid == it.guid })
+            val dispositions = responses.associate { it.guid to it.sequencerResponse.ordersChangedList.single().disposition }
+            assertEquals(
+                batches.indices.map { if (it < orderGuids.size) OrderDisposition.Accepted else OrderDisposition.Canceled },
+                batches.map { dispositions.getValue(it.guid) },
+            )
+        } finally {
+            gatewayApp.stop()
+            sequencerApp.stop()
+        }
+    }
+
+    private fun gatewayStub(port: Int) =
+        GatewayGrpcKt.GatewayCoroutineStub(
+            ManagedChannelBuilder.forAddress("localhost", port).usePlaintext().build(),
+        )
+
+    private suspend fun addBtcEthMarket(gateway: GatewayGrpcKt.GatewayCoroutineStub) {
+        assertTrue(
+            gateway.addMarket(
+                market {
+                    this.guid = UUID.randomUUID().toString()
+                    this.marketId = btcEthMarketId.value
+                    this.tickSize = btcEthMarketTickSize.toDecimalValue()
+                    this.maxOrdersPerLevel = 1000
+                    this.baseDecimals = 8
+                    this.quoteDecimals = 18
+                },
+            ).success,
+        )
+    }
+
+    private fun String.levelIx(tickSize: BigDecimal): Int {
+        return BigDecimal(this).divideToIntegralValue(tickSize).toInt()
+    }
+}
@@ -6,6 +6,7 @@ import xyz.funkybit.sequencer.core.AccountGuid
 import xyz.funkybit.sequencer.core.BaseAmount
 import xyz.funkybit.sequencer.core.FeeRate
 import xyz.funkybit.sequencer.core.FeeRates
+import xyz.funkybit.sequencer.core.LevelIndexType
 import xyz.funkybit.sequencer.core.Market
 import xyz.funkybit.sequencer.core.MarketId
 import xyz.funkybit.sequencer.core.QuoteAmount
@@ -20,6 +21,7 @@ import xyz.funkybit.sequencer.proto.orderBatch
 import xyz.funkybit.testutils.toFundamentalUnits
 import java.math.BigDecimal
 import java.math.BigInteger
+import kotlin.random.Random
 import kotlin.test.assertEquals
 import kotlin.test.assertNotNull
 import kotlin.test.assertNull
@@ -612,6 +614,52 @@ class TestMarket {
         assertNull(market.levels.get("36".levelIx(market)))
     }
 
+    @Test
+    fun `price ladder levels produce same results as tree levels`() {
+        val random = Random(11)
+        val markets = listOf(LevelIndexType.Tree, LevelIndexType.Ladder).map { levelIndexType ->
+            Market(
+                id = MarketId("BTC/ETH"),
+                tickSize = BigDecimal("0.05"),
+                maxOrdersPerLevel = 100,
+                baseDecimals = 18,
+                quoteDecimals = 18,
+                levelIndexType = levelIndexType,
+            )
+        }
+        val feeRates = FeeRates.fromPercents(maker = 1.0, taker = 2.0)
+        val orderTypes = listOf(Order.Type.MarketBuy, Order.Type.MarketSell, Order.Type.LimitBuy, Order.Type.LimitSell)
+        var nextGuid = 1L
+
+        repeat(3_000) { batchIx ->
+            // wide and drifting range of levels so that some of them fall outside of the ladder's window
+            val center = 10_000 + batchIx * 2
+            val batch = orderBatch {
+                this.guid = "batch-$batchIx"
+                this.marketId = markets[0].id.value
+                this.account = random.nextLong(1, 10)
+                repeat(random.nextInt(1, 5)) {
+                    this.ordersToAdd.add(
+                        order {
+                            this.guid = nextGuid++
+                            this.type = orderTypes.random(random)
+                            this.amount = BigInteger.valueOf(random.nextLong(1, 1_000_000)).toIntegerValue()
+                            this.levelIx = center + random.nextInt(-3_000, 3_000)
+                        },
+                    )
+                }
+                if (nextGuid > 10) {
+                    this.ordersToCancel.add(xyz.funkybit.sequencer.proto.cancelOrder { this.guid = random.nextLong(1, nextGuid) })
+                }
+            }
+
+            assertEquals(markets[0].applyOrderBatch(batch, feeRates), markets[1].applyOrderBatch(batch, feeRates))
+            assertEquals(markets[0].getBidOfferState(), markets[1].getBidOfferState())
+        }
+        assertEquals(markets[0], markets[1])
+        assertEquals(markets[0].toCheckpoint(), markets[1].toCheckpoint())
+    }
+
     private fun cancelOrders(guids: List<Long>) {
         assertEquals(
             setOf(OrderDisposition.Canceled),
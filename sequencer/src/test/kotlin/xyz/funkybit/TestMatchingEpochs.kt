@@ -0,0 +1,242 @@
+package xyz.funkybit
+
+import net.openhft.chronicle.queue.ChronicleQueue
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import xyz.funkybit.sequencer.apps.SequencerApp
+import xyz.funkybit.sequencer.core.Asset
+import xyz.funkybit.sequencer.core.Clock
+import xyz.funkybit.sequencer.core.MarketId
+import xyz.funkybit.sequencer.core.queueHome
+import xyz.funkybit.sequencer.core.toDecimalValue
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.SequencerError
+import xyz.funkybit.sequencer.proto.SequencerRequest
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import xyz.funkybit.sequencer.proto.balanceBatch
+import xyz.funkybit.sequencer.proto.deposit
+import xyz.funkybit.sequencer.proto.market
+import xyz.funkybit.sequencer.proto.order
+import xyz.funkybit.sequencer.proto.orderBatch
+import xyz.funkybit.sequencer.proto.sequencerRequest
+import xyz.funkybit.testutils.inSats
+import xyz.funkybit.testutils.inWei
+import xyz.funkybit.testutils.testQueue
+import xyz.funkybit.testutils.waitForResponses
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.nio.file.Path
+import java.util.UUID
+import kotlin.random.Random
+
+// Order batches for different markets and accounts matched in parallel epochs with MARKET_SHARDS, against the same
+// input processed one batch at a time.
+class TestMatchingEpochs {
+    private val testDirPath = Path.of(queueHome, "test-matching-epochs")
+
+    // a fixed time, so that the queues of different runs roll the same way and their responses have equal sequences
+    private val queueTime = System.currentTimeMillis()
+
+    private val btcEthMarketId = MarketId("BTC/ETH")
+    private val btcEthMarketTickSize = "0.05".toBigDecimal()
+
+    private val btcUsdcMarketId = MarketId("BTC/USDC")
+    private val btcUsdcMarketTickSize = "1".toBigDecimal()
+
+    private val account1 = 1L
+    private val account2 = 2L
+    private val account3 = 3L
+    private val account4 = 4L
+    private val account5 = 5L
+
+    @BeforeEach
+    fun beforeEach() {
+        testDirPath.toFile().deleteRecursively()
+    }
+
+    @Test
+    fun `test sharded and unsharded matching give the same responses`() {
+        val requests = requests()
+
+        val unshardedResponses = process(requests, "unsharded", marketShards = 0)
+        val shardedResponses = process(requests, "sharded", marketShards = 2)
+
+        assertTrue(shardedResponses.all { !it.hasError() || it.error == SequencerError.None })
+        assertEquals(List(requests.size) { 0 }, unshardedResponses.map { it.matchingEpochSize })
+        // the two sells form one epoch, the two buys the next one since their markets were already matched
+        assertEquals(listOf(0, 0, 0, 2, 0, 2, 0), shardedResponses.map { it.matchingEpochSize })
+        assertEquals(listOf(0, 0, 0, 0, 0, 1, 1), shardedResponses.map { it.tradesCreatedCount })
+        assertEquals(unshardedResponses.map { it.withoutTimings() }, shardedResponses.map { it.withoutTimings() })
+    }
+
+    @Test
+    fun `test batches for markets sharing an account are not matched in the same epoch`() {
+        // account5 offers its only bitcoin in both markets, so the fill in the first one auto-reduces its order in
+        // the second one before the buy there is matched
+        val requests = addMarketRequests() + listOf(
+            depositRequest(
+                Triple(account5, btcEthMarketId.baseAsset(), BigDecimal("0.5").inSats()),
+                Triple(account2, btcEthMarketId.quoteAsset(), BigDecimal("10").inWei()),
+                Triple(account3, btcUsdcMarketId.quoteAsset(), BigDecimal("100000").inWei()),
+            ),
+            orderBatchRequest(btcEthMarketId, account5, limitSell("17.550".levelIx(btcEthMarketTickSize))),
+            orderBatchRequest(btcUsdcMarketId, account5, limitSell("60000".levelIx(btcUsdcMarketTickSize))),
+            orderBatchRequest(btcEthMarketId, account2, marketBuy()),
+            orderBatchRequest(btcUsdcMarketId, account3, marketBuy()),
+        )
+
+        val unshardedResponses = process(requests, "unsharded", marketShards = 0)
+        val shardedResponses = process(requests, "sharded", marketShards = 2)
+
+        assertEquals(List(requests.size) { 0 }, shardedResponses.map { it.matchingEpochSize })
+        assertEquals(listOf(0, 0, 0, 0, 0, 1, 0), shardedResponses.map { it.tradesCreatedCount })
+        assertEquals(unshardedResponses.map { it.withoutTimings() }, shardedResponses.map { it.withoutTimings() })
+    }
+
+    @Test
+    fun `test matching epochs are recorded and replayed`() {
+        val requests = requests()
+        val inputQueue = testQueue(testDirPath, "input") { queueTime }
+        val outputQueue = testQueue(testDirPath, "output") { queueTime }
+
+        // all requests are in the queue before the sequencer starts, so epochs are as large as the rules allow
+        val inputAppender = inputQueue.acquireAppender()
+        requests.forEach { request ->
+            inputAppender.writingDocument().use { it.wire()?.write()?.bytes(request.toByteArray()) }
+        }
+
+        val sequencerApp = SequencerApp(Clock(), inputQueue, outputQueue, checkpointsQueue = null, marketShards = 2)
+        try {
+            sequencerApp.start()
+            assertEquals(listOf(0, 0, 0, 2, 0, 2, 0), waitForResponses(outputQueue, requests.size).map { it.matchingEpochSize })
+        } finally {
+            sequencerApp.stop()
+        }
+
+        // replaying from the start forms the same epochs, otherwise validation would stop the sequencer
+        val replayingSequencerApp = SequencerApp(
+            Clock(),
+            inputQueue,
+            outputQueue,
+            checkpointsQueue = ChronicleQueue.singleBuilder(Path.of(testDirPath.toString(), "checkpoints")).build(),
+            strictReplayValidation = true,
+            marketShards = 2,
+        )
+        try {
+            replayingSequencerApp.start()
+            inputAppender.writingDocument().use {
+                it.wire()?.write()?.bytes(orderBatchRequest(btcEthMarketId, account1, limitSell("18".levelIx(btcEthMarketTickSize))).toByteArray())
+            }
+            val responses = waitForResponses(outputQueue, requests.size + 1)
+            assertEquals(1, responses.last().ordersChangedCount)
+        } finally {
+            replayingSequencerApp.stop()
+        }
+    }
+
+    // writes all requests before the sequencer starts and returns its responses to them
+    private fun process(requests: List<SequencerRequest>, name: String, marketShards: Int): List<SequencerResponse> {
+        val inputQueue = testQueue(testDirPath, "$name-input") { queueTime }
+        val outputQueue = testQueue(testDirPath, "$name-output") { queueTime }
+
+        val inputAppender = inputQueue.acquireAppender()
+        requests.forEach { request ->
+            inputAppender.writingDocument().use { it.wire()?.write()?.bytes(request.toByteArray()) }
+        }
+
+        val sequencerApp = SequencerApp(Clock(), inputQueue, outputQueue, checkpointsQueue = null, marketShards = marketShards)
+        try {
+            sequencerApp.start()
+            return waitForResponses(outputQueue, requests.size)
+        } finally {
+            sequencerApp.stop()
+        }
+    }
+
+    // two markets, four accounts that each trade in only one of them
+    private fun requests(): List<SequencerRequest> =
+        addMarketRequests() + listOf(
+            depositRequest(
+                Triple(account1, btcEthMarketId.baseAsset(), BigDecimal("1").inSats()),
+                Triple(account4, btcUsdcMarketId.baseAsset(), BigDecimal("1").inSats()),
+                Triple(account2, btcEthMarketId.quoteAsset(), BigDecimal("10").inWei()),
+                Triple(account3, btcUsdcMarketId.quoteAsset(), BigDecimal("100000").inWei()),
+            ),
+            orderBatchRequest(btcEthMarketId, account1, limitSell("17.550".levelIx(btcEthMarketTickSize))),
+            orderBatchRequest(btcUsdcMarketId, account4, limitSell("60000".levelIx(btcUsdcMarketTickSize))),
+            orderBatchRequest(btcEthMarketId, account2, marketBuy()),
+            orderBatchRequest(btcUsdcMarketId, account3, marketBuy()),
+        )
+
+    private fun addMarketRequests(): List<SequencerRequest> =
+        listOf(btcEthMarketId to btcEthMarketTickSize, btcUsdcMarketId to btcUsdcMarketTickSize).map { (marketId, tickSize) ->
+            sequencerRequest {
+                this.guid = UUID.randomUUID().toString()
+                this.type = SequencerRequest.Type.AddMarket
+                this.addMarket = market {
+                    this.guid = UUID.randomUUID().toString()
+                    this.marketId = marketId.value
+                    this.tickSize = tickSize.toDecimalValue()
+                    this.maxOrdersPerLevel = 1000
+                    this.baseDecimals = 8
+                    this.quoteDecimals = 18
+                }
+            }
+        }
+
+    private fun depositRequest(vararg amounts: Triple<Long, Asset, BigInteger>) = sequencerRequest {
+        this.guid = UUID.randomUUID().toString()
+        this.type = SequencerRequest.Type.ApplyBalanceBatch
+        this.balanceBatch = balanceBatch {
+            this.guid = UUID.randomUUID().toString()
+            amounts.forEach { (account, asset, amount) ->
+                this.deposits.add(
+                    deposit {
+                        this.account = account
+                        this.asset = asset.value
+                        this.amount = amount.toIntegerValue()
+                    },
+                )
+            }
+        }
+    }
+
+    private fun orderBatchRequest(marketId: MarketId, account: Long, order: Order) = sequencerRequest {
+        this.guid = UUID.randomUUID().toString()
+        this.type = SequencerRequest.Type.ApplyOrderBatch
+        this.orderBatch = orderBatch {
+            this.guid = UUID.randomUUID().toString()
+            this.marketId = marketId.value
+            this.account = account
+            this.ordersToAdd.add(order)
+        }
+    }
+
+    private fun limitSell(levelIx: Int) = order {
+        this.guid = Random.nextLong()
+        this.amount = BigDecimal("0.5").inSats().toIntegerValue()
+        this.levelIx = levelIx
+        this.type = Order.Type.LimitSell
+    }
+
+    private fun marketBuy() = order {
+        this.guid = Random.nextLong()
+        this.amount = BigDecimal("0.5").inSats().toIntegerValue()
+        this.type = Order.Type.MarketBuy
+    }
+
+    // processing time and creation time differ between runs, the epoch size is only recorded with shards
+    private fun SequencerResponse.withoutTimings(): SequencerResponse =
+        toBuilder()
+            .clearProcessingTime()
+            .clearCreatedAt()
+            .clearMatchingEpochSize()
+            .build()
+
+    private fun String.levelIx(tickSize: BigDecimal): Int {
+        return BigDecimal(this).divideToIntegralValue(tickSize).toInt()
+    }
+}
@@ -2,6 +2,7 @@ package xyz.funkybit
 
 import xyz.funkybit.sequencer.core.BaseAmount
 import xyz.funkybit.sequencer.core.BookSide
+import xyz.funkybit.sequencer.core.ExecutionBuffer
 import xyz.funkybit.sequencer.core.FeeRate
 import xyz.funkybit.sequencer.core.LevelOrder
 import xyz.funkybit.sequencer.core.OrderBookLevel
@@ -29,18 +30,20 @@ class TestOrderBookLevel {
             assertEquals(obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).first, OrderDisposition.Accepted, "failed at $nextOrderId")
         }
         assertEquals(obl.orderHead, 0)
-        assertEquals(obl.orderTail, 100)
+        assertEquals(obl.orderTail, 99)
         verifyOrders(obl)
 
         // remove some in middle, tail and head
         (50 until 55).forEach {
             obl.removeLevelOrder(obl.orders[it])
         }
-        obl.removeLevelOrder(obl.orders[obl.orderTail - 1])
-        obl.removeLevelOrder(obl.orders[obl.orderTail - 1])
+        obl.removeLevelOrder(obl.orders[obl.orderTail])
+        obl.removeLevelOrder(obl.orders[obl.orderTail])
         obl.removeLevelOrder(obl.orders[obl.orderHead])
         expectedOrderIdSet.removeAll(setOf(1000, 1050, 1051, 1052, 1053, 1054, 1098, 1099))
         verifyOrders(obl)
+        assertEquals(1, obl.orderHead)
+        assertEquals(97, obl.orderTail)
 
         // fill up to max orders which is obl.maxOrderCount - 1
         (0 until obl.maxOrderCount - 100 + 7).forEach { _ ->
@@ -49,44 +52,45 @@ class TestOrderBookLevel {
         // make sure we fail if we hit the max
         assertEquals(obl.addOrder(0L, getNextOrder(false), feeRate = FeeRate.zero).first, OrderDisposition.Rejected)
         assertEquals(expectedOrderIdSet.size, obl.maxOrderCount - 1)
-        assertEquals(5, obl.orderTail)
-        assertEquals(6, obl.orderHead)
+        assertEquals(expectedOrderIdSet.size, obl.orderCount)
+        // freed slots are reused in the order they were released
+        assertEquals(1, obl.orderHead)
+        assertEquals(98, obl.orderTail)
+        verifyOrders(obl)
 
         // remove some in the middle
         expectedOrderIdSet.remove(obl.orders[obl.orderHead + 1].guid.value)
-        expectedOrderIdSet.remove(obl.orders[obl.orderTail - 3].guid.value)
+        expectedOrderIdSet.remove(obl.orders[55].guid.value)
         obl.removeLevelOrder(obl.orders[obl.orderHead + 1])
-        obl.removeLevelOrder(obl.orders[obl.orderTail - 3])
+        obl.removeLevelOrder(obl.orders[55])
         verifyOrders(obl)
 
         // remove head and tail
         expectedOrderIdSet.remove(obl.orders[obl.orderHead].guid.value)
-        expectedOrderIdSet.remove(obl.orders[obl.orderTail - 1].guid.value)
+        expectedOrderIdSet.remove(obl.orders[obl.orderTail].guid.value)
         obl.removeLevelOrder(obl.orders[obl.orderHead])
-        obl.removeLevelOrder(obl.orders[obl.orderTail - 1])
+        obl.removeLevelOrder(obl.orders[obl.orderTail])
         verifyOrders(obl)
 
-        assertEquals(3, obl.orderTail)
-        assertEquals(8, obl.orderHead)
+        assertEquals(3, obl.orderHead)
+        assertEquals(99, obl.orderTail)
+
+        // the slot that was kept free is handed out first
+        assertEquals(0, obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).second!!.slot)
+        assertEquals(0, obl.orderTail)
+        verifyOrders(obl)
     }
 
     private fun verifyOrders(obl: OrderBookLevel) {
-        val orderIdsFromBookLevel =
-            if (obl.orderTail > obl.orderHead) {
-                (obl.orderHead until obl.orderTail).map {
-                    obl.orders[it].guid.value
-                }
-            } else {
-                (obl.orderHead until obl.maxOrderCount).map {
-                    obl.orders[it].guid.value
-                } +
-                    (0 until obl.orderTail).map {
-                        obl.orders[it].guid.value
-                    }
-            }
+        val orderIdsFromBookLevel = mutableListOf<Long>()
+        obl.forEachOrder { orderIdsFromBookLevel.add(it.guid.value) }
 
         // make sure no duplicates in list - list size should be same as set size.
         assertEquals(orderIdsFromBookLevel.size, orderIdsFromBookLevel.toSet().size)
+        assertEquals(obl.orderCount, orderIdsFromBookLevel.size)
+
+        // orders are kept in time priority
+        assertEquals(orderIdsFromBookLevel.sorted(), orderIdsFromBookLevel)
 
         assertEquals(
             expectedOrderIdSet,
@@ -110,16 +114,16 @@ class TestOrderBookLevel {
             obl.removeLevelOrder(order)
         }
         assertEquals(95, obl.orderHead)
-        assertEquals(99, obl.orderTail)
+        assertEquals(98, obl.orderTail)
         verifyOrders(obl)
 
-        // add 20 orders so that buffer wraps around
+        // add 20 orders so that slots wrap around
         (99 until 119).forEach { _ ->
             val addOrderResult = obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero)
             assertEquals(addOrderResult.first, OrderDisposition.Accepted, "failed at $nextOrderId")
         }
         assertEquals(95, obl.orderHead)
-        assertEquals(19, obl.orderTail)
+        assertEquals(18, obl.orderTail)
         verifyOrders(obl)
 
         // remove 20 orders
@@ -130,7 +134,7 @@ class TestOrderBookLevel {
             obl.removeLevelOrder(order)
         }
         assertEquals(15, obl.orderHead)
-        assertEquals(19, obl.orderTail)
+        assertEquals(18, obl.orderTail)
         verifyOrders(obl)
     }
 
@@ -150,10 +154,10 @@ class TestOrderBookLevel {
             obl.removeLevelOrder(order)
         }
         assertEquals(90, obl.orderHead)
-        assertEquals(95, obl.orderTail)
+        assertEquals(94, obl.orderTail)
         verifyOrders(obl)
 
-        // add 20 orders to let buffer wrap around
+        // add 20 orders to let slots wrap around
         val twentyOrders = (0 until 20).map {
             val addOrderResult = obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero)
             assertEquals(addOrderResult.first, OrderDisposition.Accepted, "failed at $nextOrderId")
@@ -161,7 +165,7 @@ class TestOrderBookLevel {
         }
 
         assertEquals(90, obl.orderHead)
-        assertEquals(15, obl.orderTail)
+        assertEquals(14, obl.orderTail)
         verifyOrders(obl)
 
         // remove orders from the end to unwrap
@@ -172,7 +176,7 @@ class TestOrderBookLevel {
                 obl.removeLevelOrder(levelOrder)
             }
         assertEquals(90, obl.orderHead)
-        assertEquals(95, obl.orderTail)
+        assertEquals(94, obl.orderTail)
         verifyOrders(obl)
     }
 
@@ -204,71 +208,149 @@ class TestOrderBookLevel {
             assertEquals(addOrderResult.first, OrderDisposition.Accepted, "failed at $nextOrderId")
         }
         assertEquals(0, obl.orderHead)
+        assertEquals(98, obl.orderTail)
+        verifyOrders(obl)
+
+        // order number 100 is rejected, level keeps the same capacity as before
+        assertEquals(obl.addOrder(0L, getNextOrder(false), feeRate = FeeRate.zero).first, OrderDisposition.Rejected, "failed at $nextOrderId")
+
+        // cancelling an order in the middle frees capacity
+        expectedOrderIdSet.remove(obl.orders[50].guid.value)
+        obl.removeLevelOrder(obl.orders[50])
+        assertEquals(obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).first, OrderDisposition.Accepted, "failed at $nextOrderId")
         assertEquals(99, obl.orderTail)
         verifyOrders(obl)
+        assertEquals(obl.addOrder(0L, getNextOrder(false), feeRate = FeeRate.zero).first, OrderDisposition.Rejected, "failed at $nextOrderId")
+    }
+
+    @Test
+    fun fillOrderRespectsTimePriorityAfterRemovals() {
+        val obl = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100)
+        val levelOrders = (0 until 10).map { obl.addOrder(0L, getNextOrder(amount = BigInteger.TWO), feeRate = FeeRate.zero).second!! }
+        listOf(1, 2, 5).forEach {
+            expectedOrderIdSet.remove(levelOrders[it].guid.value)
+            obl.removeLevelOrder(levelOrders[it])
+        }
+        verifyOrders(obl)
+
+        val executions = ExecutionBuffer(initialCapacity = 4)
+        assertEquals(BaseAmount.ZERO, obl.fillOrder(BigInteger.valueOf(7).toBaseAmount(), executions))
+        assertEquals(
+            listOf(0, 3, 4, 6).map { levelOrders[it].guid },
+            executions.map { it.counterOrder.guid },
+        )
+        assertEquals(listOf(true, true, true, false), executions.map { it.counterOrderExhausted })
 
-        // order number 100 is rejected. Otherwise head and tail will have same value (empty level)
-        assertEquals(obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).first, OrderDisposition.Rejected, "failed at $nextOrderId")
+        listOf(0, 3, 4).forEach { expectedOrderIdSet.remove(levelOrders[it].guid.value) }
+        verifyOrders(obl)
+        assertEquals(levelOrders[6].slot, obl.orderHead)
+        assertEquals(BigInteger.valueOf(7).toBaseAmount(), obl.totalQuantity)
     }
 
     @Test
-    fun equalsComparesOrdersBetweenHeadAndTail() {
+    fun equalsComparesOrdersInTimePriority() {
         val obl1 = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100)
-        assertEquals(0, obl1.orderHead)
-        assertEquals(0, obl1.orderTail)
+        assertEquals(OrderBookLevel.NO_SLOT, obl1.orderHead)
+        assertEquals(OrderBookLevel.NO_SLOT, obl1.orderTail)
 
         val obl2 = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100)
         (0..40)
             .map { obl2.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).second!! }
             .forEach { obl2.removeLevelOrder(it) }
-        assertEquals(40, obl2.orderHead)
-        assertEquals(40, obl2.orderTail)
+        assertEquals(OrderBookLevel.NO_SLOT, obl2.orderHead)
+        assertEquals(OrderBookLevel.NO_SLOT, obl2.orderTail)
 
-        // empty levels are equal despite head/tail position
+        // empty levels are equal despite the slots used previously
         assertEquals(obl1, obl2)
 
         val fourtyOrders = (40..80).map { getNextOrder(amount = it.toBigInteger()) }
         val obl1Orders = fourtyOrders.map { obl1.addOrder(0L, it, feeRate = FeeRate.zero).second!! }.also {
             assertEquals(0, obl1.orderHead)
-            assertEquals(41, obl1.orderTail)
+            assertEquals(40, obl1.orderTail)
         }
         val obl2Orders = fourtyOrders.map { obl2.addOrder(0L, it, feeRate = FeeRate.zero).second!! }.also {
-            assertEquals(40, obl2.orderHead)
+            assertEquals(41, obl2.orderHead)
             assertEquals(81, obl2.orderTail)
         }
 
-        // only orders between head/tail are compared
+        // only order sequence is compared
         assertEquals(obl1, obl2)
+        assertEquals(obl1.hashCode(), obl2.hashCode())
 
-        obl1Orders.forEach { obl1.removeLevelOrder(it) }.also {
-            assertEquals(40, obl1.orderHead)
-            assertEquals(40, obl1.orderTail)
-        }
-        obl2Orders.forEach { obl2.removeLevelOrder(it) }.also {
-            assertEquals(80, obl2.orderHead)
-            assertEquals(80, obl2.orderTail)
-        }
+        obl1Orders.forEach { obl1.removeLevelOrder(it) }
+        obl2Orders.forEach { obl2.removeLevelOrder(it) }
 
         // back to empty
         assertEquals(obl1, obl2)
 
         fourtyOrders.map { obl1.addOrder(0L, it, feeRate = FeeRate.zero).second!! }.also {
-            assertEquals(40, obl1.orderHead)
+            assertEquals(41, obl1.orderHead)
             assertEquals(81, obl1.orderTail)
         }
         fourtyOrders.map { obl2.addOrder(0L, it, feeRate = FeeRate.zero).second!! }.also {
-            assertEquals(80, obl2.orderHead)
-            assertEquals(21, obl2.orderTail)
+            assertEquals(82, obl2.orderHead)
+            assertEquals(22, obl2.orderTail)
         }
 
-        // buffer can also wrap around
+        // slots can also wrap around
         assertEquals(obl1, obl2)
 
-        // orders between head and tail should match
+        // orders sequences should match
         obl2.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero)
         assertNotEquals(obl1, obl2)
     }
 
+    @Test
+    fun checkpointRestoresSlots() {
+        val obl = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100)
+        val levelOrders = (0 until 99).map { obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).second!! }
+        (10 until 20).forEach { obl.removeLevelOrder(levelOrders[it]) }
+        (0 until 5).forEach { obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero) }
+
+        val checkpoint = obl.toCheckpoint()
+        val restored = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100).apply { fromCheckpoint(checkpoint) }
+        assertEquals(obl, restored)
+        (0 until 100).forEach { slot ->
+            assertEquals(obl.orders[slot].guid, restored.orders[slot].guid)
+        }
+        assertEquals(obl.orderHead, restored.orderHead)
+        assertEquals(obl.orderTail, restored.orderTail)
+
+        // both levels hand out the same slots after restore
+        (0 until 5).forEach { _ ->
+            val order = getNextOrder()
+            assertEquals(
+                obl.addOrder(0L, order, feeRate = FeeRate.zero).second!!.slot,
+                restored.addOrder(0L, order, feeRate = FeeRate.zero).second!!.slot,
+            )
+        }
+        assertEquals(obl, restored)
+    }
+
+    @Test
+    fun checkpointWithoutSlotsIsRestoredContiguously() {
+        val obl = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100)
+        (0 until 90).forEach { _ -> obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero) }
+        (0 until 80).forEach { obl.removeLevelOrder(obl.orders[it]) }
+        (0 until 20).forEach { _ -> obl.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero) }
+
+        // checkpoints written by the circular buffer layout store orders from head to tail without slots
+        val checkpoint = obl.toCheckpoint().toBuilder().apply {
+            this.orderHead = 80
+            this.orderTail = 10
+            this.ordersBuilderList.forEach { it.clearSlot() }
+        }.build()
+
+        val restored = OrderBookLevel(300, BookSide.Buy, BigDecimal.ONE, 100).apply { fromCheckpoint(checkpoint) }
+        assertEquals(obl, restored)
+        assertEquals(80, restored.orderHead)
+        assertEquals(9, restored.orderTail)
+        assertEquals(30, restored.orderCount)
+
+        // new orders continue after the last restored order
+        assertEquals(10, restored.addOrder(0L, getNextOrder(), feeRate = FeeRate.zero).second!!.slot)
+    }
+
     private fun getNextOrder(addToSet: Boolean = true, amount: BigInteger = BigInteger.ONE): Order {
         return order {
             this.guid = nextOrderId++
@@ -6,6 +6,7 @@ import net.openhft.chronicle.queue.ChronicleQueue
 import net.openhft.chronicle.queue.RollCycles
 import net.openhft.chronicle.queue.impl.single.SingleChronicleQueue
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Assumptions
 import org.junit.jupiter.api.BeforeEach
@@ -15,6 +16,7 @@ import xyz.funkybit.sequencer.apps.GatewayApp
 import xyz.funkybit.sequencer.apps.GatewayConfig
 import xyz.funkybit.sequencer.apps.SequencerApp
 import xyz.funkybit.sequencer.core.Asset
+import xyz.funkybit.sequencer.core.CheckpointSnapshot
 import xyz.funkybit.sequencer.core.Clock
 import xyz.funkybit.sequencer.core.FeeRates
 import xyz.funkybit.sequencer.core.Market
@@ -55,8 +57,10 @@ import java.math.BigInteger
 import java.nio.file.Files
 import java.nio.file.Path
 import java.util.UUID
+import java.util.concurrent.ForkJoinPool
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.random.Random
+import kotlin.test.assertNotNull
 import kotlin.test.assertNull
 import kotlin.time.Duration.Companion.seconds
 
@@ -485,15 +489,20 @@ class TestSequencerCheckpoints {
         }
     }
 
+    // checkpoints are written by a background thread, so wait a bit for the expected count to be reached
     private fun assertCheckpointsCount(checkpointsQueue: ChronicleQueue, expectedCount: Long) {
-        assertEquals(
-            expectedCount,
+        fun count(): Long =
             if (checkpointsQueue.lastIndex() == -1L) {
                 0
             } else {
                 (checkpointsQueue as SingleChronicleQueue).countExcerpts(checkpointsQueue.firstIndex(), checkpointsQueue.lastIndex()) + 1
-            },
-        )
+            }
+
+        val deadline = System.currentTimeMillis() + 5000
+        while (count() < expectedCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(expectedCount, count())
     }
 
     private fun assertOutputQueueContainsNoDuplicates(outputQueue: ChronicleQueue, expectedMessagesCount: Int) {
@@ -899,7 +908,7 @@ class TestSequencerCheckpoints {
                             )
                         }
 
-                        // add 20 more orders to wrap level's buffer
+                        // add 20 more orders to wrap level's slots
                         (991..1010).map {
                             order {
                                 this.guid = it.toLong()
@@ -914,7 +923,8 @@ class TestSequencerCheckpoints {
                         // verify setup
                         val targetLevel = market.levels.get(levelIx)!!
                         assertEquals(990, targetLevel.orderHead)
-                        assertEquals(11, targetLevel.orderTail)
+                        assertEquals(10, targetLevel.orderTail)
+                        assertEquals(21, targetLevel.orderCount)
                     },
                 ),
             ),
@@ -984,6 +994,118 @@ class TestSequencerCheckpoints {
         )
     }
 
+    @Test
+    fun `test state storing and loading - delta checkpoints`() {
+        val deltaCheckpointsQueue = ChronicleQueue.singleBuilder(Path.of(testDirPath.toString(), "delta-checkpoints")).build()
+        val feeRates = FeeRates.fromPercents(maker = 1.0, taker = 2.0)
+        val market = Market(
+            id = btcEthMarketId,
+            tickSize = BigDecimal("0.05"),
+            maxOrdersPerLevel = 1000,
+            baseDecimals = 18,
+            quoteDecimals = 18,
+        )
+        val state = SequencerState(
+            feeRates = feeRates,
+            balances = mutableMapOf(
+                account1 to mutableMapOf(
+                    btc to BigDecimal("1").inSats(),
+                    eth to BigDecimal("2").inWei(),
+                ),
+                account2 to mutableMapOf(
+                    btc to BigDecimal("3").inSats(),
+                    eth to BigDecimal("4").inWei(),
+                ),
+            ),
+        ).apply { addMarket(market) }
+
+        fun applyOrders(account: Long, orders: List<Order> = emptyList(), cancels: List<Long> = emptyList()) {
+            market.applyOrderBatch(
+                orderBatch {
+                    guid = UUID.randomUUID().toString()
+                    marketId = btcEthMarketId.value
+                    this.account = account
+                    ordersToAdd.addAll(orders)
+                    ordersToCancel.addAll(cancels.map { cancelOrder { this.guid = it } })
+                },
+                feeRates,
+            )
+        }
+
+        fun limitOrder(guid: Long, levelIx: Int, type: Type) = order {
+            this.guid = guid
+            this.amount = BigDecimal("0.0005").inSats().toIntegerValue()
+            this.levelIx = levelIx
+            this.type = type
+        }
+
+        val restorePool = ForkJoinPool(4)
+
+        fun persistAndVerify(cycle: Int, expectedField: String, snapshot: CheckpointSnapshot = state.checkpointSnapshot(cycle, fullCheckpointInterval = 3)) {
+            snapshot.write(deltaCheckpointsQueue)
+            assertEquals(expectedField, lastCheckpointField(deltaCheckpointsQueue))
+            val restoredState = SequencerState().apply {
+                assertEquals(cycle, load(deltaCheckpointsQueue, pool = restorePool))
+                assertNotNull(lastLoadTimings)
+            }
+            assertEquals(state, restoredState)
+        }
+
+        applyOrders(account1.value, (0..9).map { limitOrder(it + 1L, 400 + it, Type.LimitSell) })
+        applyOrders(account1.value, (0..9).map { limitOrder(it + 11L, 300 + it, Type.LimitBuy) })
+        persistAndVerify(1, "cycle")
+
+        // a level removed by a cancel, a level partially filled, a new level and a changed account
+        applyOrders(account1.value, listOf(limitOrder(21, 410, Type.LimitSell)), cancels = listOf(1))
+        applyOrders(
+            account2.value,
+            listOf(
+                order {
+                    this.guid = 22
+                    this.amount = BigDecimal("0.0002").inSats().toIntegerValue()
+                    this.type = Type.MarketBuy
+                },
+            ),
+        )
+        state.balances.getValue(account2)[btc] = BigDecimal("3.0002").inSats()
+        state.accountChanged(account2)
+        state.checkpointSnapshot(2, fullCheckpointInterval = 3).also { snapshot ->
+            assertEquals(listOf(401, 410), snapshot.markets.single().levelIxs)
+            assertEquals(listOf(400), snapshot.markets.single().removedLevelIxs)
+            persistAndVerify(2, "deltaCycle", snapshot)
+        }
+
+        // a buy level swept and a new account
+        applyOrders(account2.value, listOf(limitOrder(23, 309, Type.LimitSell)))
+        val account3 = 777L.toAccountGuid()
+        state.balances[account3] = mutableMapOf(usdc to BigDecimal("100").inWei())
+        state.accountChanged(account3)
+        val snapshot = state.checkpointSnapshot(3, fullCheckpointInterval = 3)
+
+        // changes made after the snapshot was taken are not part of it but of the next checkpoint
+        applyOrders(account1.value, listOf(limitOrder(24, 420, Type.LimitSell)))
+        snapshot.write(deltaCheckpointsQueue)
+        SequencerState().apply {
+            assertEquals(3, load(deltaCheckpointsQueue))
+            assertFalse(markets.getValue(btcEthMarketId).ordersByGuid.containsKey(24))
+        }
+
+        // the interval is reached, so the complete state is written again
+        applyOrders(account1.value, cancels = listOf(2, 3))
+        persistAndVerify(4, "cycle")
+
+        deltaCheckpointsQueue.close()
+        restorePool.shutdown()
+    }
+
+    private fun lastCheckpointField(queue: ChronicleQueue): String {
+        val tailer = queue.createTailer()
+        tailer.moveToIndex(queue.lastIndex())
+        return tailer.readingDocument().use { docCtx ->
+            StringBuilder().also { docCtx.wire()!!.readEventName(it) }.toString()
+        }
+    }
+
     private fun verifySerialization(initialState: SequencerState) {
         verifyMarketsCheckpoints(initialState)
 
@@ -1021,8 +1143,8 @@ class TestSequencerCheckpoints {
                 }
 
                 // Move to the next node
-                initialNode = initialNode.next()
-                restoredNode = restoredNode.next()
+                initialNode = initialStateMarket.levels.next(initialNode)
+                restoredNode = restoredStateMarket.levels.next(restoredNode)
             }
 
             // Ensure both iterators are fully consumed, indicating both structures are of the same size
@@ -1046,7 +1168,7 @@ class TestSequencerCheckpoints {
 
             // verify checkpoint contains exact number of orders
             assertEquals(
-                market.ordersByGuid.map { (_, v) -> v.guid }.toSet(),
+                mutableSetOf<OrderGuid>().also { guids -> market.ordersByGuid.forEach { _, order -> guids.add(order.guid) } },
                 marketCheckpoint.levelsList.map { level ->
                     level.ordersList.map {
                         OrderGuid(it.guid)
@@ -0,0 +1,59 @@
+package xyz.funkybit.datastructure
+
+import org.junit.jupiter.api.Test
+import xyz.funkybit.sequencer.core.datastructure.LongObjectMap
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class TestLongObjectMap {
+
+    @Test
+    fun matchesHashMap() {
+        val random = Random(3)
+        val map = LongObjectMap<String>(initialCapacity = 4)
+        val expected = HashMap<Long, String>()
+
+        repeat(200_000) { step ->
+            // small key range so that keys collide and get removed often, plus some negative and large keys
+            val key = when (random.nextInt(10)) {
+                0 -> random.nextLong()
+                else -> random.nextLong(-500, 5_000)
+            }
+            when (random.nextInt(3)) {
+                0 -> assertEquals(expected.remove(key), map.remove(key))
+                else -> assertEquals(expected.put(key, "v$step"), map.put(key, "v$step"))
+            }
+            assertEquals(expected.size, map.size)
+
+            val probe = random.nextLong(-500, 5_000)
+            assertEquals(expected[probe], map[probe])
+            assertEquals(expected.containsKey(probe), map.containsKey(probe))
+        }
+
+        val entries = mutableMapOf<Long, String>()
+        map.forEach { key, value -> entries[key] = value }
+        assertEquals(expected, entries)
+        assertEquals(expected.hashCode(), map.hashCode())
+    }
+
+    @Test
+    fun equalityDoesNotDependOnInsertionOrder() {
+        val map1 = LongObjectMap<Int>(initialCapacity = 2)
+        val map2 = LongObjectMap<Int>(initialCapacity = 64)
+        (0L until 100L).forEach { map1[it] = it.toInt() }
+        (99L downTo 0L).forEach { map2[it] = it.toInt() }
+        assertEquals(map1, map2)
+        assertEquals(map1.hashCode(), map2.hashCode())
+
+        map2[100L] = 100
+        assertTrue(map1 != map2)
+        map2.remove(100L)
+        assertEquals(map1, map2)
+
+        map1.clear()
+        assertTrue(map1.isEmpty())
+        assertNull(map1[1L])
+    }
+}
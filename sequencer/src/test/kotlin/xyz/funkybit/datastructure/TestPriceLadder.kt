@@ -0,0 +1,117 @@
+package xyz.funkybit.datastructure
+
+import org.junit.jupiter.api.Test
+import xyz.funkybit.sequencer.core.datastructure.AVLTree
+import xyz.funkybit.sequencer.core.datastructure.PriceLadder
+import xyz.funkybit.sequencer.core.datastructure.SortedIndex
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class TestPriceLadder {
+
+    class TestLevel(ix: Int) : AVLTree.Node<TestLevel>(ix) {
+        override fun equals(other: Any?): Boolean = other is TestLevel && other.ix == ix
+        override fun hashCode(): Int = ix
+    }
+
+    @Test
+    fun navigationWithinWindow() {
+        val ladder = PriceLadder<TestLevel>(windowSize = 128)
+        listOf(100, 50, 63, 64, 127, 128, 0).forEach { ladder.add(TestLevel(it)) }
+        // window is centered on the first added index
+        assertEquals(36, ladder.windowStart)
+
+        assertEquals(listOf(0, 50, 63, 64, 100, 127, 128), ladder.ascending())
+        assertEquals(listOf(128, 127, 100, 64, 63, 50, 0), ladder.descending())
+        assertEquals(63, ladder.get(63)?.ix)
+        assertNull(ladder.get(62))
+
+        ladder.remove(63)
+        ladder.remove(0)
+        ladder.remove(128)
+        assertEquals(listOf(50, 64, 100, 127), ladder.ascending())
+        assertEquals(listOf(127, 100, 64, 50), ladder.descending())
+        assertEquals(4, ladder.size)
+    }
+
+    @Test
+    fun windowIsRecenteredWhenLevelsDrift() {
+        val ladder = PriceLadder<TestLevel>(windowSize = 64, recenterAfterMisses = 4)
+        ladder.add(TestLevel(1000))
+        assertEquals(968, ladder.windowStart)
+
+        // levels drift upwards until most of them are above the window, window moves to the median level
+        (1040 until 1045).forEach { ladder.add(TestLevel(it)) }
+        assertEquals(1041 - 32, ladder.windowStart)
+        assertEquals(listOf(1000, 1040, 1041, 1042, 1043, 1044), ladder.ascending())
+
+        // empty ladder is centered on the next added level
+        ladder.ascending().forEach { ladder.remove(it) }
+        ladder.add(TestLevel(5))
+        assertEquals(5 - 32, ladder.windowStart)
+        assertSame(ladder.get(5), ladder.first())
+    }
+
+    @Test
+    fun matchesAVLTree() {
+        val random = Random(7)
+        val tree = AVLTree<TestLevel>()
+        val ladder = PriceLadder<TestLevel>(windowSize = 256, recenterAfterMisses = 8)
+        val present = mutableSetOf<Int>()
+
+        repeat(20_000) { step ->
+            // random walk of the center to make the window drift
+            val center = 5_000 + step / 10
+            val ix = center + (random.nextDouble() * random.nextDouble() * 600).toInt() * (if (random.nextBoolean()) 1 else -1)
+            if (present.contains(ix)) {
+                tree.remove(ix)
+                ladder.remove(ix)
+                present.remove(ix)
+            } else {
+                tree.add(TestLevel(ix))
+                ladder.add(TestLevel(ix))
+                present.add(ix)
+            }
+
+            assertEquals(tree.first()?.ix, ladder.first()?.ix)
+            assertEquals(tree.last()?.ix, ladder.last()?.ix)
+            val probe = center + random.nextInt(-700, 700)
+            assertEquals(tree.get(probe)?.ix, ladder.get(probe)?.ix)
+            ladder.get(ix)?.let { node ->
+                assertEquals(tree.next(tree.get(ix)!!)?.ix, ladder.next(node)?.ix)
+                assertEquals(tree.prev(tree.get(ix)!!)?.ix, ladder.prev(node)?.ix)
+            }
+
+            if (step % 1000 == 0) {
+                assertEquals(tree.ascending(), ladder.ascending())
+                assertEquals(tree.descending(), ladder.descending())
+                assertEquals(tree, ladder)
+                assertEquals(tree.hashCode(), ladder.hashCode())
+            }
+        }
+        assertEquals(present.size, ladder.size)
+    }
+
+    private fun SortedIndex<TestLevel>.ascending(): List<Int> {
+        val result = mutableListOf<Int>()
+        var node = first()
+        while (node != null) {
+            result.add(node.ix)
+            node = next(node)
+        }
+        assertEquals(result, mutableListOf<Int>().also { list -> traverse { list.add(it.ix) } })
+        return result
+    }
+
+    private fun SortedIndex<TestLevel>.descending(): List<Int> {
+        val result = mutableListOf<Int>()
+        var node = last()
+        while (node != null) {
+            result.add(node.ix)
+            node = prev(node)
+        }
+        return result
+    }
+}
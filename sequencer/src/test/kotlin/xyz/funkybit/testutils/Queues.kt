@@ -0,0 +1,41 @@
+package xyz.funkybit.testutils
+
+import net.openhft.chronicle.queue.ChronicleQueue
+import net.openhft.chronicle.queue.RollCycles
+import org.junit.jupiter.api.Assertions.assertEquals
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import java.net.ServerSocket
+import java.nio.file.Path
+
+fun testQueue(dirPath: Path, name: String, timeProvider: () -> Long = System::currentTimeMillis): ChronicleQueue =
+    ChronicleQueue.singleBuilder(Path.of(dirPath.toString(), name))
+        .rollCycle(RollCycles.MINUTELY)
+        .timeProvider { timeProvider() }
+        .build()
+
+// responses are written by the sequencer thread, so wait a bit for the expected count to be reached
+fun waitForResponses(outputQueue: ChronicleQueue, expectedCount: Int): List<SequencerResponse> {
+    val deadline = System.currentTimeMillis() + 5000
+    while (true) {
+        val responses = mutableListOf<SequencerResponse>()
+        val tailer = outputQueue.createTailer()
+        while (true) {
+            val wasPresent = tailer.readingDocument().use { dc ->
+                if (dc.isPresent) {
+                    dc.wire()?.read()?.bytes { bytes -> responses.add(SequencerResponse.parseFrom(bytes.toByteArray())) }
+                }
+                dc.isPresent
+            }
+            if (!wasPresent) break
+        }
+        if (responses.size >= expectedCount || System.currentTimeMillis() > deadline) {
+            assertEquals(expectedCount, responses.size)
+            return responses
+        }
+        Thread.sleep(10)
+    }
+}
+
+// so that gateways of tests running on the same host do not compete for a port
+fun freePort(): Int =
+    ServerSocket(0).use { it.localPort }
@@ -0,0 +1,56 @@
+plugins {
+    kotlin("jvm")
+    id("me.champeau.jmh") version "0.7.2"
+    id("org.jmailen.kotlinter") version "4.2.0"
+}
+
+group = "co.censo"
+version = "1.0"
+
+repositories {
+    mavenCentral()
+}
+
+val jmhLibVersion = "1.37"
+val protobufKotlinVersion = "4.26.0"
+
+// the sequencer opens Chronicle queues when it is created
+val chronicleJvmArgs = listOf(
+    "--add-exports=java.base/jdk.internal.ref=ALL-UNNAMED",
+    "--add-exports=java.base/sun.nio.ch=ALL-UNNAMED",
+    "--add-exports=jdk.unsupported/sun.misc=ALL-UNNAMED",
+    "--add-exports=jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED",
+    "--add-opens=jdk.compiler/com.sun.tools.javac=ALL-UNNAMED",
+    "--add-opens=java.base/java.lang=ALL-UNNAMED",
+    "--add-opens=java.base/java.lang.reflect=ALL-UNNAMED",
+    "--add-opens=java.base/java.io=ALL-UNNAMED",
+    "--add-opens=java.base/java.util=ALL-UNNAMED"
+)
+
+dependencies {
+    jmh(project(":sequencer"))
+    jmh(project(":sequencercommon"))
+    jmh("com.google.protobuf:protobuf-kotlin:$protobufKotlinVersion")
+    jmh("net.openhft:chronicle-queue:5.22.28")
+    jmh("org.openjdk.jmh:jmh-core:$jmhLibVersion")
+    jmh("org.openjdk.jmh:jmh-generator-annprocess:$jmhLibVersion")
+}
+
+jmh {
+    jmhVersion.set(jmhLibVersion)
+    // e.g. ./gradlew :sequencerbench:jmh -PjmhIncludes=LevelIndexBenchmark
+    (project.findProperty("jmhIncludes") as String?)?.let { includes.set(listOf(it)) }
+    resultFormat.set("JSON")
+    // allocation rate per operation next to the throughput and latency percentiles
+    profilers.set(listOf("gc"))
+    jvmArgsAppend.set(chronicleJvmArgs)
+}
+
+kotlin {
+    jvmToolchain(17)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
@@ -0,0 +1,117 @@
+package xyz.funkybit.sequencerbench
+
+import net.openhft.chronicle.queue.ChronicleQueue
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueue
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import xyz.funkybit.sequencer.core.Asset
+import xyz.funkybit.sequencer.core.FeeRates
+import xyz.funkybit.sequencer.core.Market
+import xyz.funkybit.sequencer.core.MarketId
+import xyz.funkybit.sequencer.core.SequencerState
+import xyz.funkybit.sequencer.core.toAccountGuid
+import xyz.funkybit.sequencer.proto.Order
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+
+// Cold start of the sequencer: SequencerState.load of a base checkpoint holding `orders` resting orders spread
+// evenly over `markets` markets, with `parallelism` threads in the restore pool (0 for one per available processor).
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = ["-Xmx8g"])
+open class CheckpointRestoreBenchmark {
+    @State(Scope.Benchmark)
+    open class Checkpoint {
+        @Param("1000000")
+        var orders: Int = 0
+
+        @Param("20")
+        var markets: Int = 0
+
+        @Param("1", "0")
+        var parallelism: Int = 0
+
+        lateinit var directory: Path
+        lateinit var queue: SingleChronicleQueue
+        lateinit var pool: ForkJoinPool
+
+        @Setup(Level.Trial)
+        fun setup() {
+            directory = Files.createTempDirectory("checkpoint-restore-benchmark")
+            // a checkpoint of this size does not fit into the default block size of a queue
+            queue = ChronicleQueue.singleBuilder(directory).blockSize(1L shl 30).build()
+            pool = ForkJoinPool(if (parallelism == 0) Runtime.getRuntime().availableProcessors() else parallelism)
+
+            val feeRates = FeeRates.fromPercents(maker = 0.01, taker = 0.02)
+            val state = SequencerState(feeRates = feeRates)
+            (1L..ACCOUNTS).forEach { account ->
+                state.balances[account.toAccountGuid()] = mutableMapOf(
+                    Asset("ETH") to BigDecimal("1000000").movePointRight(18).toBigIntegerExact(),
+                )
+            }
+
+            val ordersPerMarket = orders / markets
+            var guid = 0L
+            (0 until markets).forEach { m ->
+                val market = Market(
+                    id = MarketId("M$m/ETH"),
+                    tickSize = BigDecimal("0.05"),
+                    maxOrdersPerLevel = 1000,
+                    baseDecimals = 8,
+                    quoteDecimals = 18,
+                )
+                state.addMarket(market)
+                state.balances.values.forEach { it[Asset("M$m")] = BigDecimal("1000000").movePointRight(8).toBigIntegerExact() }
+
+                // half of the orders on bid levels below MID, half on offer levels above it
+                (0 until ordersPerMarket / ORDERS_PER_LEVEL).forEach { l ->
+                    val (type, levelIx) = if (l % 2 == 0) Order.Type.LimitBuy to MID - 1 - l / 2 else Order.Type.LimitSell to MID + 1 + l / 2
+                    market.applyOrderBatch(
+                        MarketBenchmark.newBatch(
+                            account = l % ACCOUNTS + 1L,
+                            adds = (0 until ORDERS_PER_LEVEL).map { MarketBenchmark.newOrder(++guid, type, AMOUNT, levelIx) },
+                        ).toBuilder().setMarketId(market.id.value).build(),
+                        feeRates,
+                    )
+                }
+            }
+
+            state.persist(queue, currentCycle = 1)
+        }
+
+        @TearDown(Level.Trial)
+        fun tearDown() {
+            pool.shutdown()
+            queue.close()
+            directory.toFile().deleteRecursively()
+        }
+    }
+
+    @Benchmark
+    fun restore(checkpoint: Checkpoint): SequencerState =
+        SequencerState().also { it.load(checkpoint.queue, pool = checkpoint.pool) }
+
+    companion object {
+        const val ACCOUNTS = 1000L
+        const val ORDERS_PER_LEVEL = 200
+        const val MID = 100_000
+        val AMOUNT: BigInteger = BigDecimal("0.1").movePointRight(8).toBigIntegerExact()
+    }
+}
@@ -0,0 +1,96 @@
+package xyz.funkybit.sequencerbench
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import xyz.funkybit.sequencer.core.BookSide
+import xyz.funkybit.sequencer.core.OrderBookLevel
+import xyz.funkybit.sequencer.core.datastructure.AVLTree
+import xyz.funkybit.sequencer.core.datastructure.PriceLadder
+import xyz.funkybit.sequencer.core.datastructure.SortedIndex
+import java.math.BigDecimal
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+// Compares the AVL tree and the price ladder on the operations the matching engine performs on levels:
+// lookups around the best bid/offer, sweeps through consecutive levels and levels appearing and disappearing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class LevelIndexBenchmark {
+    @Param("Tree", "Ladder")
+    lateinit var indexType: String
+
+    // number of levels on the book and the share of ticks around the center that have a level
+    @Param("1000")
+    var levelCount: Int = 0
+
+    @Param("50")
+    var occupancyPercent: Int = 0
+
+    private lateinit var levels: SortedIndex<OrderBookLevel>
+    private lateinit var lookupIxs: IntArray
+    private lateinit var churnLevels: Array<OrderBookLevel>
+    private var lookupPos = 0
+    private var churnPos = 0
+    private val center = 100_000
+
+    @Setup(Level.Trial)
+    fun setup() {
+        levels = when (indexType) {
+            "Tree" -> AVLTree()
+            else -> PriceLadder()
+        }
+        val random = Random(42)
+        val span = levelCount * 100 / occupancyPercent
+        val occupied = (center - span / 2 until center + span / 2).shuffled(random).take(levelCount).sorted()
+        occupied.forEach { levels.add(newLevel(it)) }
+
+        lookupIxs = IntArray(4096) { occupied[(random.nextDouble() * random.nextDouble() * occupied.size / 2).toInt() + occupied.size / 4] }
+        val free = (center - span / 2 until center + span / 2).filter { levels.get(it) == null }
+        churnLevels = Array(4096) { newLevel(free[random.nextInt(free.size)]) }
+    }
+
+    @Benchmark
+    fun lookup(): OrderBookLevel? {
+        lookupPos = (lookupPos + 1) and 4095
+        return levels.get(lookupIxs[lookupPos])
+    }
+
+    @Benchmark
+    fun sweepTenLevels(blackhole: Blackhole) {
+        lookupPos = (lookupPos + 1) and 4095
+        var level = levels.get(lookupIxs[lookupPos])
+        var steps = 0
+        while (level != null && steps < 10) {
+            blackhole.consume(level.totalQuantity)
+            level = levels.next(level)
+            steps++
+        }
+    }
+
+    @Benchmark
+    fun addAndRemoveLevel(blackhole: Blackhole) {
+        churnPos = (churnPos + 1) and 4095
+        val level = churnLevels[churnPos]
+        level.detach()
+        levels.add(level)
+        blackhole.consume(levels.prev(level))
+        levels.remove(level.ix)
+    }
+
+    private fun newLevel(ix: Int) = OrderBookLevel(ix, BookSide.Sell, BigDecimal.valueOf(ix.toLong()), 8)
+}
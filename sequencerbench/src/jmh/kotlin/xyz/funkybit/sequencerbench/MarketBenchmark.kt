@@ -0,0 +1,150 @@
+package xyz.funkybit.sequencerbench
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import xyz.funkybit.sequencer.core.ArithmeticMode
+import xyz.funkybit.sequencer.core.FeeRates
+import xyz.funkybit.sequencer.core.LevelIndexType
+import xyz.funkybit.sequencer.core.Market
+import xyz.funkybit.sequencer.core.MarketId
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.OrderBatch
+import xyz.funkybit.sequencer.proto.cancelOrder
+import xyz.funkybit.sequencer.proto.order
+import xyz.funkybit.sequencer.proto.orderBatch
+import xyz.funkybit.sequencerbench.RestoredPool.Companion.POOL_SIZE
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+// The matching engine on its own: Market.applyOrderBatch without the balance, limit and response handling of
+// SequencerApp, so the difference to SequencerBenchmark shows how much of a request is spent outside of matching.
+// The sweep consumes the offers it matches, so like the consuming scenarios of SequencerBenchmark it runs in
+// SingleShotTime mode on a RestoredPool.
+@BenchmarkMode(Mode.Throughput, Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+open class MarketBenchmark {
+    @State(Scope.Thread)
+    open class Book {
+        @Param("Decimal", "FixedPoint")
+        lateinit var arithmeticMode: String
+
+        @Param("Tree", "Ladder")
+        lateinit var levelIndexType: String
+
+        val feeRates = FeeRates.fromPercents(maker = 0.01, taker = 0.02)
+        lateinit var market: Market
+
+        @Setup(Level.Trial)
+        fun setup() {
+            market = newMarket()
+        }
+
+        fun newMarket(): Market =
+            Market(
+                id = MarketId("BTC/ETH"),
+                tickSize = BigDecimal("0.05"),
+                maxOrdersPerLevel = 1000,
+                baseDecimals = 8,
+                quoteDecimals = 18,
+                arithmeticMode = ArithmeticMode.valueOf(arithmeticMode),
+                levelIndexType = LevelIndexType.valueOf(levelIndexType),
+            )
+    }
+
+    // each batch adds a bid and cancels the one added 1000 batches earlier, keeping 1000 bids on 100 levels
+    @State(Scope.Thread)
+    open class PassiveOrders {
+        lateinit var book: Book
+        lateinit var batches: Array<OrderBatch>
+        private var next = 0
+
+        @Setup(Level.Trial)
+        fun setup(book: Book) {
+            this.book = book
+            val ringSize = 4096
+            batches = Array(ringSize) { i ->
+                newBatch(
+                    account = 1L,
+                    adds = listOf(newOrder(i + 1L, Order.Type.LimitBuy, AMOUNT, MID - 1 - i % 100)),
+                    cancels = listOf((i - 1000 + ringSize) % ringSize + 1L),
+                )
+            }
+            batches.forEach { book.market.applyOrderBatch(it, book.feeRates) }
+        }
+
+        fun nextBatch(): OrderBatch = batches[next].also { next = (next + 1) % batches.size }
+    }
+
+    // a market buy taking `depth` levels of offers, on a RestoredPool of books whose offers are restored before
+    // every batch of POOL_SIZE invocations
+    @State(Scope.Thread)
+    open class Sweep {
+        @Param("20")
+        var depth: Int = 0
+
+        lateinit var book: Book
+        lateinit var pool: RestoredPool<Market>
+        lateinit var refillBatch: OrderBatch
+        lateinit var sweepBatch: OrderBatch
+
+        @Setup(Level.Trial)
+        fun setup(book: Book) {
+            this.book = book
+            val offers = (0 until depth).map { newOrder(1_000_001L + it, Order.Type.LimitSell, AMOUNT, MID + 1 + it) }
+            refillBatch = newBatch(account = 1L, adds = offers, cancels = offers.map { it.guid })
+            sweepBatch = newBatch(account = 2L, adds = listOf(newOrder(1_000_000L, Order.Type.MarketBuy, AMOUNT * depth.toBigInteger())))
+            pool = RestoredPool(create = { book.newMarket() }, restore = { it.applyOrderBatch(refillBatch, book.feeRates) })
+        }
+
+        @Setup(Level.Iteration)
+        fun restore() {
+            pool.restoreAll()
+        }
+    }
+
+    @Benchmark
+    fun passiveLimitOrder(state: PassiveOrders): Market.AddOrdersResult =
+        state.book.market.applyOrderBatch(state.nextBatch(), state.book.feeRates)
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 50, batchSize = POOL_SIZE)
+    @Measurement(iterations = 200, batchSize = POOL_SIZE)
+    fun sweep(state: Sweep): Market.AddOrdersResult =
+        state.pool.next().applyOrderBatch(state.sweepBatch, state.book.feeRates)
+
+    companion object {
+        const val MID = 350
+        val AMOUNT: BigInteger = BigDecimal("0.1").movePointRight(8).toBigIntegerExact()
+
+        fun newBatch(account: Long, adds: List<Order>, cancels: List<Long> = emptyList()): OrderBatch = orderBatch {
+            this.guid = "batch"
+            this.marketId = "BTC/ETH"
+            this.account = account
+            this.ordersToAdd.addAll(adds)
+            this.ordersToCancel.addAll(cancels.map { cancelOrder { this.guid = it } })
+        }
+
+        fun newOrder(guid: Long, type: Order.Type, amount: BigInteger, levelIx: Int? = null): Order = order {
+            this.guid = guid
+            this.type = type
+            this.amount = amount.toIntegerValue()
+            levelIx?.let { this.levelIx = it }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package xyz.funkybit.sequencerbench
+
+import net.openhft.chronicle.queue.ChronicleQueue
+import net.openhft.chronicle.queue.ExcerptAppender
+import net.openhft.chronicle.queue.ExcerptTailer
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueue
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import xyz.funkybit.sequencer.core.readProto
+import xyz.funkybit.sequencer.core.writeProto
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.SequencerRequest
+import xyz.funkybit.sequencer.proto.sequencerRequest
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+// Reading and writing an order batch request as a queue document, with a copy of the message into a new byte array
+// (toByteArray/parseFrom) and through the per thread buffer of readProto/writeProto. gc.alloc.rate.norm of the gc
+// profiler gives the bytes allocated per message.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+open class ProtoDocumentBenchmark {
+    @State(Scope.Thread)
+    open class Documents {
+        @Param("1", "20")
+        var ordersPerBatch: Int = 0
+
+        lateinit var directory: Path
+        lateinit var queue: SingleChronicleQueue
+        lateinit var appender: ExcerptAppender
+        lateinit var tailer: ExcerptTailer
+        lateinit var request: SequencerRequest
+
+        @Setup(Level.Trial)
+        fun setup() {
+            directory = Files.createTempDirectory("proto-document-benchmark")
+            queue = ChronicleQueue.singleBuilder(directory).build()
+            appender = queue.acquireAppender()
+            request = sequencerRequest {
+                this.guid = "9b2f6c1e-3a4d-4f7e-8c21-5d0e7b9a6f13"
+                this.type = SequencerRequest.Type.ApplyOrderBatch
+                this.orderBatch = MarketBenchmark.newBatch(
+                    account = 1L,
+                    adds = (1..ordersPerBatch).map { MarketBenchmark.newOrder(it.toLong(), Order.Type.LimitBuy, MarketBenchmark.AMOUNT, MarketBenchmark.MID - it) },
+                )
+            }
+            repeat(DOCUMENTS) {
+                appender.writingDocument().use { it.wire()?.write()?.bytes(request.toByteArray()) }
+            }
+            tailer = queue.createTailer()
+        }
+
+        // reads the documents written in setup over and over
+        fun <T> readNext(read: (ExcerptTailer) -> T?): T? =
+            read(tailer) ?: read(tailer.toStart())
+
+        @TearDown(Level.Trial)
+        fun tearDown() {
+            queue.close()
+            directory.toFile().deleteRecursively()
+        }
+    }
+
+    @Benchmark
+    fun decodeWithCopy(documents: Documents): SequencerRequest? =
+        documents.readNext { tailer ->
+            tailer.readingDocument().use { dc ->
+                var request: SequencerRequest? = null
+                if (dc.isPresent) {
+                    dc.wire()?.read()?.bytes { bytes -> request = SequencerRequest.parseFrom(bytes.toByteArray()) }
+                }
+                request
+            }
+        }
+
+    @Benchmark
+    fun decodeFromScratch(documents: Documents): SequencerRequest? =
+        documents.readNext { tailer ->
+            tailer.readingDocument().use { dc ->
+                var request: SequencerRequest? = null
+                if (dc.isPresent) {
+                    dc.wire()?.read()?.bytes { bytes -> request = bytes.readProto(SequencerRequest.parser()) }
+                }
+                request
+            }
+        }
+
+    @Benchmark
+    fun encodeWithCopy(documents: Documents) {
+        documents.appender.writingDocument().use { it.wire()?.write()?.bytes(documents.request.toByteArray()) }
+    }
+
+    @Benchmark
+    fun encodeFromScratch(documents: Documents) {
+        documents.appender.writingDocument().use { it.wire()?.write()?.writeProto(documents.request) }
+    }
+
+    companion object {
+        const val DOCUMENTS = 10_000
+    }
+}
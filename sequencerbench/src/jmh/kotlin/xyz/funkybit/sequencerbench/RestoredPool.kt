@@ -0,0 +1,20 @@
+package xyz.funkybit.sequencerbench
+
+// Independent copies of the state a scenario consumes, for benchmarks that run in SingleShotTime mode with a batch
+// size of POOL_SIZE. The copies are restored together in a Level.Iteration setup and every invocation of the batch
+// takes the next one, so restoring state neither runs between invocations nor is timed with them.
+class RestoredPool<T>(create: () -> T, private val restore: (T) -> Unit) {
+    companion object {
+        const val POOL_SIZE = 100
+    }
+
+    private val items = List(POOL_SIZE) { create() }
+    private var next = 0
+
+    fun restoreAll() {
+        items.forEach(restore)
+        next = 0
+    }
+
+    fun next(): T = items[next++]
+}
@@ -0,0 +1,328 @@
+package xyz.funkybit.sequencerbench
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import xyz.funkybit.sequencer.core.ArithmeticMode
+import xyz.funkybit.sequencer.core.LevelIndexType
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.SequencerRequest
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import xyz.funkybit.sequencerbench.RestoredPool.Companion.POOL_SIZE
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.BTC_ETH_MID
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.ETH_USDC_MID
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.MAKER
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.PERCENTAGE_TAKER
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.REDUCER
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.TAKER
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.btc
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.btcEth
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.eth
+import xyz.funkybit.sequencerbench.SequencerFixture.Companion.ethUsdc
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+// End to end scenarios through SequencerApp.processRequest, including limit checks, balance and consumption
+// bookkeeping and response building. Throughput gives ops/sec, SampleTime gives the p99/p999 latencies and the gc
+// profiler configured in build.gradle.kts reports the allocation rate per operation.
+//
+// Scenarios which consume liquidity or balances run in SingleShotTime mode instead, on a RestoredPool of
+// POOL_SIZE fixtures that a Level.Iteration setup restores before every batch of POOL_SIZE invocations, so nothing
+// runs between the timed invocations. Their percentiles are over batches rather than single requests. The gc
+// profiler counts the allocations of an iteration including its setup, so gc.alloc.rate.norm of those scenarios
+// is still an upper bound.
+@BenchmarkMode(Mode.Throughput, Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+open class SequencerBenchmark {
+    @State(Scope.Thread)
+    open class Sequencer {
+        @Param("Decimal", "FixedPoint")
+        lateinit var arithmeticMode: String
+
+        @Param("Tree", "Ladder")
+        lateinit var levelIndexType: String
+
+        lateinit var fixture: SequencerFixture
+
+        @Setup(Level.Trial)
+        fun setup() {
+            fixture = newFixture()
+        }
+
+        fun newFixture(): SequencerFixture =
+            SequencerFixture(ArithmeticMode.valueOf(arithmeticMode), LevelIndexType.valueOf(levelIndexType))
+    }
+
+    // A market maker adding a passive bid while cancelling the one it placed `restingOrders` requests ago,
+    // spread over `levels` levels below the best offer.
+    @State(Scope.Thread)
+    open class PassiveLimitOrders {
+        @Param("1000")
+        var restingOrders: Int = 0
+
+        @Param("100")
+        var levels: Int = 0
+
+        lateinit var fixture: SequencerFixture
+        lateinit var requests: Array<SequencerRequest>
+        private var next = 0
+
+        @Setup(Level.Trial)
+        fun setup(sequencer: Sequencer) {
+            fixture = sequencer.fixture
+            val ringSize = 4096
+            requests = Array(ringSize) { i ->
+                fixture.orderBatchRequest(
+                    btcEth,
+                    MAKER,
+                    adds = listOf(fixture.limitOrder(i + 1L, Order.Type.LimitBuy, btc("0.01"), BTC_ETH_MID - 1 - i % levels)),
+                    cancels = listOf((i - restingOrders + ringSize) % ringSize + 1L),
+                )
+            }
+            // one pass over the ring so that every request cancels a resting order
+            requests.forEach { fixture.processOrThrow(it) }
+        }
+
+        fun nextRequest(): SequencerRequest = requests[next].also { next = (next + 1) % requests.size }
+    }
+
+    // A market maker requoting both sides of the book in a single batch: every batch cancels all of its
+    // `quotesPerSide` bids and offers and replaces them one level away.
+    @State(Scope.Thread)
+    open class CancelReplace {
+        @Param("10")
+        var quotesPerSide: Int = 0
+
+        lateinit var fixture: SequencerFixture
+        lateinit var requests: Array<SequencerRequest>
+        private var next = 0
+
+        @Setup(Level.Trial)
+        fun setup(sequencer: Sequencer) {
+            fixture = sequencer.fixture
+            // the two generations alternate between two sets of order guids and price offsets
+            fun guids(generation: Int) = (0 until 2 * quotesPerSide).map { generation * 2L * quotesPerSide + it + 1 }
+            requests = Array(2) { generation ->
+                val current = guids(generation)
+                fixture.orderBatchRequest(
+                    btcEth,
+                    MAKER,
+                    adds = (0 until quotesPerSide).flatMap { j ->
+                        listOf(
+                            fixture.limitOrder(current[2 * j], Order.Type.LimitBuy, btc("0.1"), BTC_ETH_MID - 1 - j - generation),
+                            fixture.limitOrder(current[2 * j + 1], Order.Type.LimitSell, btc("0.1"), BTC_ETH_MID + 1 + j + generation),
+                        )
+                    },
+                    cancels = guids(1 - generation),
+                )
+            }
+            fixture.processOrThrow(requests[0])
+            next = 1
+        }
+
+        fun nextRequest(): SequencerRequest = requests[next].also { next = 1 - next }
+    }
+
+    // A market buy sweeping `depth` levels of offers with `ordersPerLevel` orders each.
+    @State(Scope.Thread)
+    open class DeepSweep {
+        @Param("20")
+        var depth: Int = 0
+
+        @Param("5")
+        var ordersPerLevel: Int = 0
+
+        lateinit var pool: RestoredPool<PreparedRequest>
+
+        @Setup(Level.Trial)
+        fun setup(sequencer: Sequencer) {
+            pool = preparedRequests(sequencer) { fixture ->
+                val asks = offers(fixture, depth, ordersPerLevel, btc("0.1"))
+                PreparedRequest(
+                    fixture,
+                    refills = listOf(fixture.orderBatchRequest(btcEth, MAKER, adds = asks, cancels = asks.map { it.guid })),
+                    request = fixture.orderBatchRequest(
+                        btcEth,
+                        TAKER,
+                        adds = listOf(fixture.marketOrder(1_000_000L, Order.Type.MarketBuy, btc("0.1") * (depth * ordersPerLevel).toBigInteger())),
+                    ),
+                )
+            }
+        }
+
+        @Setup(Level.Iteration)
+        fun restore() {
+            pool.restoreAll()
+        }
+    }
+
+    // A market buy for 100% of the taker's quote balance, which the sequencer has to convert into a base amount
+    // by walking the offers before matching. The balance is reset to the same amount before every batch.
+    @State(Scope.Thread)
+    open class PercentageMarketBuy {
+        lateinit var pool: RestoredPool<PreparedRequest>
+
+        @Setup(Level.Trial)
+        fun setup(sequencer: Sequencer) {
+            pool = preparedRequests(sequencer) { fixture ->
+                val asks = offers(fixture, depth = 10, ordersPerLevel = 2, amount = btc("0.1"))
+                PreparedRequest(
+                    fixture,
+                    refills = listOf(
+                        fixture.orderBatchRequest(btcEth, MAKER, adds = asks, cancels = asks.map { it.guid }),
+                        fixture.withdrawalRequest(PERCENTAGE_TAKER, "ETH", BigInteger.ZERO),
+                        // roughly half of the offered liquidity
+                        fixture.depositRequest(PERCENTAGE_TAKER, "ETH", eth("17.6")),
+                    ),
+                    request = fixture.orderBatchRequest(
+                        btcEth,
+                        PERCENTAGE_TAKER,
+                        adds = listOf(fixture.marketOrder(1_000_000L, Order.Type.MarketBuy, BigInteger.ZERO, percentage = 100)),
+                    ),
+                )
+            }
+        }
+
+        @Setup(Level.Iteration)
+        fun restore() {
+            pool.restoreAll()
+        }
+    }
+
+    // Selling BTC for USDC through ETH, which matches against bids in both markets.
+    @State(Scope.Thread)
+    open class BackToBack {
+        lateinit var pool: RestoredPool<PreparedRequest>
+
+        @Setup(Level.Trial)
+        fun setup(sequencer: Sequencer) {
+            pool = preparedRequests(sequencer) { fixture ->
+                val btcEthBids = (0 until 5).map { fixture.limitOrder(2_000_000L + it, Order.Type.LimitBuy, btc("0.2"), BTC_ETH_MID - 1 - it) }
+                val ethUsdcBids = (0 until 5).map { fixture.limitOrder(3_000_000L + it, Order.Type.LimitBuy, eth("4"), ETH_USDC_MID - 1 - it) }
+                PreparedRequest(
+                    fixture,
+                    refills = listOf(
+                        fixture.orderBatchRequest(btcEth, MAKER, adds = btcEthBids, cancels = btcEthBids.map { it.guid }),
+                        fixture.orderBatchRequest(ethUsdc, MAKER, adds = ethUsdcBids, cancels = ethUsdcBids.map { it.guid }),
+                    ),
+                    request = fixture.backToBackRequest(
+                        TAKER,
+                        listOf(btcEth, ethUsdc),
+                        fixture.marketOrder(1_000_000L, Order.Type.MarketSell, btc("0.5")),
+                    ),
+                )
+            }
+        }
+
+        @Setup(Level.Iteration)
+        fun restore() {
+            pool.restoreAll()
+        }
+    }
+
+    // A withdrawal of half of an account's BTC while its resting sells consume all of it, so the sequencer has to
+    // auto-reduce `orderCount` orders. The balance and the orders are restored before every batch.
+    @State(Scope.Thread)
+    open class AutoReduceAfterWithdrawal {
+        @Param("10")
+        var orderCount: Int = 0
+
+        lateinit var pool: RestoredPool<PreparedRequest>
+
+        @Setup(Level.Trial)
+        fun setup(sequencer: Sequencer) {
+            pool = preparedRequests(sequencer) { fixture ->
+                val orderAmount = btc("1")
+                val total = orderAmount * orderCount.toBigInteger()
+                val sells = (0 until orderCount).map { fixture.limitOrder(4_000_000L + it, Order.Type.LimitSell, orderAmount, BTC_ETH_MID + 50 + it) }
+                fixture.processOrThrow(fixture.depositRequest(REDUCER, "BTC", total / 2.toBigInteger()))
+                PreparedRequest(
+                    fixture,
+                    refills = listOf(
+                        fixture.depositRequest(REDUCER, "BTC", total / 2.toBigInteger()),
+                        fixture.orderBatchRequest(btcEth, REDUCER, adds = sells, cancels = sells.map { it.guid }),
+                    ),
+                    request = fixture.withdrawalRequest(REDUCER, "BTC", total / 2.toBigInteger()),
+                )
+            }
+        }
+
+        @Setup(Level.Iteration)
+        fun restore() {
+            pool.restoreAll()
+        }
+    }
+
+    // a request on a fixture of its own, along with the requests restoring what it consumes
+    class PreparedRequest(
+        val fixture: SequencerFixture,
+        private val refills: List<SequencerRequest>,
+        private val request: SequencerRequest,
+    ) {
+        fun restore() {
+            refills.forEach { fixture.process(it) }
+        }
+
+        fun process(): SequencerResponse = fixture.process(request)
+    }
+
+    @Benchmark
+    fun passiveLimitOrders(state: PassiveLimitOrders): SequencerResponse =
+        state.fixture.process(state.nextRequest())
+
+    @Benchmark
+    fun cancelReplace(state: CancelReplace): SequencerResponse =
+        state.fixture.process(state.nextRequest())
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 50, batchSize = POOL_SIZE)
+    @Measurement(iterations = 200, batchSize = POOL_SIZE)
+    fun deepSweep(state: DeepSweep): SequencerResponse =
+        state.pool.next().process()
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 50, batchSize = POOL_SIZE)
+    @Measurement(iterations = 200, batchSize = POOL_SIZE)
+    fun percentageMarketBuy(state: PercentageMarketBuy): SequencerResponse =
+        state.pool.next().process()
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 50, batchSize = POOL_SIZE)
+    @Measurement(iterations = 200, batchSize = POOL_SIZE)
+    fun backToBack(state: BackToBack): SequencerResponse =
+        state.pool.next().process()
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 50, batchSize = POOL_SIZE)
+    @Measurement(iterations = 200, batchSize = POOL_SIZE)
+    fun autoReduceAfterWithdrawal(state: AutoReduceAfterWithdrawal): SequencerResponse =
+        state.pool.next().process()
+
+    companion object {
+        fun preparedRequests(sequencer: Sequencer, prepare: (SequencerFixture) -> PreparedRequest): RestoredPool<PreparedRequest> =
+            RestoredPool(create = { prepare(sequencer.newFixture()) }, restore = PreparedRequest::restore)
+
+        fun offers(fixture: SequencerFixture, depth: Int, ordersPerLevel: Int, amount: BigInteger): List<Order> =
+            (0 until depth).flatMap { level ->
+                (0 until ordersPerLevel).map { i ->
+                    fixture.limitOrder(1_000_000L + 1 + level * ordersPerLevel + i, Order.Type.LimitSell, amount, BTC_ETH_MID + 1 + level)
+                }
+            }
+    }
+}
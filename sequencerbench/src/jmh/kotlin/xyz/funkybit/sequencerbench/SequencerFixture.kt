@@ -0,0 +1,190 @@
+package xyz.funkybit.sequencerbench
+
+import xyz.funkybit.sequencer.apps.SequencerApp
+import xyz.funkybit.sequencer.core.ArithmeticMode
+import xyz.funkybit.sequencer.core.FeeRates
+import xyz.funkybit.sequencer.core.LevelIndexType
+import xyz.funkybit.sequencer.core.MarketId
+import xyz.funkybit.sequencer.core.toDecimalValue
+import xyz.funkybit.sequencer.core.toIntegerValue
+import xyz.funkybit.sequencer.proto.Order
+import xyz.funkybit.sequencer.proto.SequencerError
+import xyz.funkybit.sequencer.proto.SequencerRequest
+import xyz.funkybit.sequencer.proto.SequencerResponse
+import xyz.funkybit.sequencer.proto.backToBackOrder
+import xyz.funkybit.sequencer.proto.balanceBatch
+import xyz.funkybit.sequencer.proto.cancelOrder
+import xyz.funkybit.sequencer.proto.deposit
+import xyz.funkybit.sequencer.proto.feeRates
+import xyz.funkybit.sequencer.proto.market
+import xyz.funkybit.sequencer.proto.order
+import xyz.funkybit.sequencer.proto.orderBatch
+import xyz.funkybit.sequencer.proto.sequencerRequest
+import xyz.funkybit.sequencer.proto.withdrawal
+import java.math.BigDecimal
+import java.math.BigInteger
+
+// A sequencer with two markets sharing ETH (so back-to-back orders can route BTC -> ETH -> USDC), fee rates set
+// and the maker and taker accounts funded well beyond what any benchmark run can consume.
+// Requests are addressed with counter based guids so that building them does not depend on random UUIDs.
+class SequencerFixture(
+    arithmeticMode: ArithmeticMode = ArithmeticMode.Decimal,
+    levelIndexType: LevelIndexType = LevelIndexType.Tree,
+) {
+    companion object {
+        val btcEth = MarketId("BTC/ETH")
+        val ethUsdc = MarketId("ETH/USDC")
+
+        const val MAKER = 1L
+        const val TAKER = 2L
+        const val REDUCER = 3L
+        const val PERCENTAGE_TAKER = 4L
+
+        // best bid and offer levels the benchmarks quote around
+        const val BTC_ETH_MID = 350
+        const val ETH_USDC_MID = 200_000
+
+        fun btc(amount: String): BigInteger = BigDecimal(amount).movePointRight(8).toBigIntegerExact()
+        fun eth(amount: String): BigInteger = BigDecimal(amount).movePointRight(18).toBigIntegerExact()
+        fun usdc(amount: String): BigInteger = BigDecimal(amount).movePointRight(6).toBigIntegerExact()
+    }
+
+    val sequencer = SequencerApp(
+        checkpointsQueue = null,
+        arithmeticMode = arithmeticMode,
+        priceLadderMarkets = if (levelIndexType == LevelIndexType.Ladder) setOf(btcEth, ethUsdc) else emptySet(),
+    )
+
+    private var requestCount = 0L
+    private var sequence = 0L
+
+    init {
+        processOrThrow(addMarketRequest(btcEth, BigDecimal("0.05"), baseDecimals = 8, quoteDecimals = 18))
+        processOrThrow(addMarketRequest(ethUsdc, BigDecimal("0.01"), baseDecimals = 18, quoteDecimals = 6))
+        processOrThrow(
+            sequencerRequest {
+                this.guid = nextRequestGuid()
+                this.type = SequencerRequest.Type.SetFeeRates
+                this.feeRates = FeeRates.fromPercents(maker = 0.01, taker = 0.02).let { rates ->
+                    feeRates {
+                        this.maker = rates.maker.value
+                        this.taker = rates.taker.value
+                    }
+                }
+            },
+        )
+        listOf(MAKER, TAKER).forEach { account ->
+            processOrThrow(depositRequest(account, "BTC", btc("1000000000")))
+            processOrThrow(depositRequest(account, "ETH", eth("1000000000")))
+            processOrThrow(depositRequest(account, "USDC", usdc("1000000000000")))
+        }
+    }
+
+    fun process(request: SequencerRequest): SequencerResponse =
+        sequencer.processRequest(request, ++sequence)
+
+    // used while setting up state, where a rejected request means the benchmark would measure the wrong thing
+    fun processOrThrow(request: SequencerRequest): SequencerResponse =
+        process(request).also { response ->
+            if (response.error != SequencerError.None) {
+                throw IllegalStateException("Request ${request.guid} of type ${request.type} failed with ${response.error}")
+            }
+        }
+
+    fun nextRequestGuid(): String = "bench-${++requestCount}"
+
+    fun addMarketRequest(marketId: MarketId, tickSize: BigDecimal, baseDecimals: Int, quoteDecimals: Int): SequencerRequest =
+        sequencerRequest {
+            this.guid = nextRequestGuid()
+            this.type = SequencerRequest.Type.AddMarket
+            this.addMarket = market {
+                this.guid = nextRequestGuid()
+                this.marketId = marketId.value
+                this.tickSize = tickSize.toDecimalValue()
+                this.maxOrdersPerLevel = 1000
+                this.baseDecimals = baseDecimals
+                this.quoteDecimals = quoteDecimals
+            }
+        }
+
+    fun orderBatchRequest(
+        marketId: MarketId,
+        account: Long,
+        adds: List<Order> = emptyList(),
+        cancels: List<Long> = emptyList(),
+    ): SequencerRequest =
+        sequencerRequest {
+            this.guid = nextRequestGuid()
+            this.type = SequencerRequest.Type.ApplyOrderBatch
+            this.orderBatch = orderBatch {
+                this.guid = nextRequestGuid()
+                this.marketId = marketId.value
+                this.account = account
+                this.ordersToAdd.addAll(adds)
+                this.ordersToCancel.addAll(cancels.map { cancelOrder { this.guid = it } })
+            }
+        }
+
+    fun backToBackRequest(account: Long, marketIds: List<MarketId>, order: Order): SequencerRequest =
+        sequencerRequest {
+            this.guid = nextRequestGuid()
+            this.type = SequencerRequest.Type.ApplyBackToBackOrder
+            this.backToBackOrder = backToBackOrder {
+                this.guid = nextRequestGuid()
+                this.account = account
+                this.marketIds.addAll(marketIds.map { it.value })
+                this.order = order
+            }
+        }
+
+    fun depositRequest(account: Long, asset: String, amount: BigInteger): SequencerRequest =
+        sequencerRequest {
+            this.guid = nextRequestGuid()
+            this.type = SequencerRequest.Type.ApplyBalanceBatch
+            this.balanceBatch = balanceBatch {
+                this.guid = nextRequestGuid()
+                this.deposits.add(
+                    deposit {
+                        this.account = account
+                        this.asset = asset
+                        this.amount = amount.toIntegerValue()
+                        this.externalGuid = nextRequestGuid()
+                    },
+                )
+            }
+        }
+
+    // an amount of zero withdraws the whole balance
+    fun withdrawalRequest(account: Long, asset: String, amount: BigInteger): SequencerRequest =
+        sequencerRequest {
+            this.guid = nextRequestGuid()
+            this.type = SequencerRequest.Type.ApplyBalanceBatch
+            this.balanceBatch = balanceBatch {
+                this.guid = nextRequestGuid()
+                this.withdrawals.add(
+                    withdrawal {
+                        this.account = account
+                        this.asset = asset
+                        this.amount = amount.toIntegerValue()
+                        this.externalGuid = nextRequestGuid()
+                    },
+                )
+            }
+        }
+
+    fun limitOrder(guid: Long, type: Order.Type, amount: BigInteger, levelIx: Int): Order =
+        order {
+            this.guid = guid
+            this.type = type
+            this.amount = amount.toIntegerValue()
+            this.levelIx = levelIx
+        }
+
+    fun marketOrder(guid: Long, type: Order.Type, amount: BigInteger, percentage: Int? = null): Order =
+        order {
+            this.guid = guid
+            this.type = type
+            this.amount = amount.toIntegerValue()
+            percentage?.let { this.percentage = it }
+        }
+}
@@ -53,6 +53,47 @@ fun quantityFromNotionalAndPrice(notional: QuoteAmount, price: BigDecimal, baseD
 fun notionalPlusFee(amount: IntegerValue, price: DecimalValue, baseDecimals: Int, quoteDecimals: Int, feeRate: FeeRate): QuoteAmount =
     notionalPlusFee(amount.toBaseAmount(), price.toBigDecimal(), baseDecimals, quoteDecimals, feeRate)
 
+// Fixed-point (primitive long) counterparts of the notional functions above. They return exactly the same values
+// as the BigDecimal based versions, or FIXED_POINT_OVERFLOW if the 128-bit intermediate result does not fit into a long,
+// in which case callers are expected to fall back to the BigDecimal based calculation.
+const val FIXED_POINT_OVERFLOW = Long.MIN_VALUE
+
+private val powersOfTen = LongArray(19).also {
+    it[0] = 1L
+    for (i in 1 until it.size) {
+        it[i] = it[i - 1] * 10L
+    }
+}
+
+fun BigInteger.toLongOrOverflow(): Long =
+    if (this.bitLength() < 64) this.toLong() else FIXED_POINT_OVERFLOW
+
+fun multiplyOrOverflow(a: Long, b: Long): Long {
+    if (a == FIXED_POINT_OVERFLOW || b == FIXED_POINT_OVERFLOW) return FIXED_POINT_OVERFLOW
+    val high = Math.multiplyHigh(a, b)
+    val low = a * b
+    return if ((high == 0L && low >= 0L) || (high == -1L && low < 0L)) low else FIXED_POINT_OVERFLOW
+}
+
+// price is represented as priceUnscaled * 10^-priceScale (same as BigDecimal)
+fun notionalFixedPoint(amount: Long, priceUnscaled: Long, priceScale: Int, baseDecimals: Int, quoteDecimals: Int): Long {
+    val product = multiplyOrOverflow(amount, priceUnscaled)
+    if (product == FIXED_POINT_OVERFLOW) return FIXED_POINT_OVERFLOW
+    val exponent = quoteDecimals - baseDecimals - priceScale
+    return when {
+        exponent == 0 -> product
+        exponent > 0 -> if (exponent < powersOfTen.size) multiplyOrOverflow(product, powersOfTen[exponent]) else FIXED_POINT_OVERFLOW
+        // truncation towards zero matches BigDecimal.toBigInteger()
+        else -> if (-exponent < powersOfTen.size) product / powersOfTen[-exponent] else 0L
+    }
+}
+
+// splitting notional into quotient and remainder of FeeRate.MAX_VALUE keeps all intermediate values within a long
+fun notionalFeeFixedPoint(notional: Long, feeRate: FeeRate): Long {
+    if (notional == FIXED_POINT_OVERFLOW) return FIXED_POINT_OVERFLOW
+    return (notional / FeeRate.MAX_VALUE) * feeRate.value + (notional % FeeRate.MAX_VALUE) * feeRate.value / FeeRate.MAX_VALUE
+}
+
 fun Map<Pair<AccountGuid, Asset>, BigInteger>.asBalanceChangesList(): List<BalanceChange> =
     mapNotNull { (k, delta) ->
         if (delta != BigInteger.ZERO) {
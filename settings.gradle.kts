@@ -13,5 +13,6 @@ include("backend")
 include("integrationtests")
 include("sequencercommon")
 include("sequencer")
+include("sequencerbench")
 include("mocker")
 include("telegrambot")